@@ -30,8 +30,12 @@ public class CustomTransitionsIntentService extends IntentService {
         FenceState fenceState = FenceState.extract(intent);
         String fenceKey = fenceState.getFenceKey();
         if (fenceState.getCurrentState() == FenceState.TRUE) {
-            StorableFenceManager manager = new StorableFenceManager(this);
-            StorableFence fence = manager.getFence(fenceKey);
+            // the fence is in the intent if the manager delivers it, no need to look it up
+            StorableFence fence = StorableFence.fromTransitionIntent(intent);
+            if (fence == null) {
+                StorableFenceManager manager = StorableFenceManager.getInstance(this);
+                fence = manager.getFence(fenceKey);
+            }
             if (fence != null) {
                 notificationText = "(Custom)Fence " + fenceKey + " received";
             } else {
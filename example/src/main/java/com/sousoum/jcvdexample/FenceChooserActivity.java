@@ -65,7 +65,8 @@ public class FenceChooserActivity extends AppCompatActivity implements OnMapRead
 
         mActivityType = new ArrayList<>();
 
-        mGeofenceManager = new StorableFenceManager(this);
+        mGeofenceManager = StorableFenceManager.getInstance(this);
+        mGeofenceManager.setDeliverFenceInIntent(true);
         mGeofenceManager.setListener(this);
 
         mFab = findViewById(R.id.fab);
@@ -119,6 +120,15 @@ public class FenceChooserActivity extends AppCompatActivity implements OnMapRead
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // the manager is shared, do not leak this activity
+        if (mGeofenceManager.getListener() == this) {
+            mGeofenceManager.setListener(null);
+        }
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String permissions[],
                                            @NonNull int[] grantResults) {
@@ -26,7 +26,7 @@ public class FenceListActivity extends AppCompatActivity {
         mRecyclerView.setHasFixedSize(true);
         mRecyclerView.setLayoutManager(new LinearLayoutManager(this));
 
-        mFenceManager = new StorableFenceManager(this);
+        mFenceManager = StorableFenceManager.getInstance(this);
 
         mAdapter = new FenceRecyclerAdapter(this, mFenceManager);
         mRecyclerView.setAdapter(mAdapter);
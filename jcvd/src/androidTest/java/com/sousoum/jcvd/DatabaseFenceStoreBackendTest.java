@@ -0,0 +1,12 @@
+package com.sousoum.jcvd;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+public class DatabaseFenceStoreBackendTest extends FenceStoreBackendTest {
+
+    @Override
+    protected FenceStoreBackend createBackend(String storeName) {
+        return new DatabaseFenceStoreBackend(
+                InstrumentationRegistry.getInstrumentation().getTargetContext(), storeName);
+    }
+}
@@ -0,0 +1,125 @@
+package com.sousoum.jcvd;
+
+import com.google.android.gms.awareness.fence.DetectedActivityFence;
+import com.google.android.gms.awareness.fence.TimeFence;
+import com.google.android.gms.awareness.state.HeadphoneState;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static com.sousoum.jcvd.FenceEvaluator.FALSE;
+import static com.sousoum.jcvd.FenceEvaluator.TRUE;
+import static com.sousoum.jcvd.FenceEvaluator.UNKNOWN;
+import static com.sousoum.jcvd.FenceEvaluator.evaluate;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FenceEvaluatorTest {
+
+    private static final long HOUR = 60L * 60L * 1000L;
+
+    // Wednesday 2019-01-02 10:00 UTC
+    private static final long WEDNESDAY_10AM = 1546423200000L;
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private ContextSnapshot mSnapshot;
+
+    @Before
+    public void setUp() {
+        mSnapshot = new ContextSnapshot();
+    }
+
+    @Test
+    public void testUnknownContext() {
+        assertThat(evaluate(StorableLocationFence.in(48.8584, 2.2945, 200, 0), mSnapshot), is(UNKNOWN));
+        assertThat(evaluate(StorableActivityFence.during(DetectedActivityFence.WALKING), mSnapshot), is(UNKNOWN));
+        assertThat(evaluate(StorableTimeFence.inInterval(0, 1), mSnapshot), is(UNKNOWN));
+        assertThat(evaluate(StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN), mSnapshot), is(UNKNOWN));
+    }
+
+    @Test
+    public void testLocation() {
+        mSnapshot.setLocation(48.8584, 2.2950);
+        assertThat(evaluate(StorableLocationFence.in(48.8584, 2.2945, 200, 0), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableLocationFence.in(48.8584, 2.2945, 200, 1000), mSnapshot), is(UNKNOWN));
+        assertThat(evaluate(StorableLocationFence.in(45.7640, 4.8357, 200, 0), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableLocationFence.entering(48.8584, 2.2945, 200), mSnapshot), is(UNKNOWN));
+        assertThat(evaluate(StorableLocationFence.entering(45.7640, 4.8357, 200), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableLocationFence.exiting(48.8584, 2.2945, 200), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableLocationFence.exiting(45.7640, 4.8357, 200), mSnapshot), is(UNKNOWN));
+    }
+
+    @Test
+    public void testActivity() {
+        mSnapshot.setActivity(DetectedActivityFence.RUNNING);
+        assertThat(evaluate(StorableActivityFence.during(DetectedActivityFence.RUNNING), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableActivityFence.during(DetectedActivityFence.ON_FOOT), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableActivityFence.during(DetectedActivityFence.STILL,
+                DetectedActivityFence.IN_VEHICLE), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableActivityFence.starting(DetectedActivityFence.RUNNING), mSnapshot), is(UNKNOWN));
+        assertThat(evaluate(StorableActivityFence.starting(DetectedActivityFence.STILL), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableActivityFence.stopping(DetectedActivityFence.RUNNING), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableActivityFence.stopping(DetectedActivityFence.STILL), mSnapshot), is(UNKNOWN));
+    }
+
+    @Test
+    public void testHeadphone() {
+        mSnapshot.setHeadphoneState(HeadphoneState.PLUGGED_IN);
+        assertThat(evaluate(StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableHeadphoneFence.during(HeadphoneState.UNPLUGGED), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableHeadphoneFence.pluggingIn(), mSnapshot), is(UNKNOWN));
+        assertThat(evaluate(StorableHeadphoneFence.unplugging(), mSnapshot), is(FALSE));
+    }
+
+    @Test
+    public void testTime() {
+        mSnapshot.setTime(WEDNESDAY_10AM, UTC);
+        assertThat(evaluate(StorableTimeFence.inInterval(WEDNESDAY_10AM - HOUR, WEDNESDAY_10AM + HOUR), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableTimeFence.inInterval(WEDNESDAY_10AM + HOUR, WEDNESDAY_10AM + 2 * HOUR), mSnapshot), is(FALSE));
+
+        assertThat(evaluate(StorableTimeFence.inDailyInterval(UTC, 9 * HOUR, 11 * HOUR), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableTimeFence.inDailyInterval(UTC, 11 * HOUR, 12 * HOUR), mSnapshot), is(FALSE));
+        // the fence time zone is used: 10:00 UTC is 12:00 in UTC+2
+        TimeZone plusTwo = TimeZone.getTimeZone("GMT+02:00");
+        assertThat(evaluate(StorableTimeFence.inDailyInterval(plusTwo, 11 * HOUR, 13 * HOUR), mSnapshot), is(TRUE));
+        // without time zone, the one of the snapshot is used
+        assertThat(evaluate(StorableTimeFence.inDailyInterval(null, 9 * HOUR, 11 * HOUR), mSnapshot), is(TRUE));
+
+        assertThat(evaluate(StorableTimeFence.inIntervalOfDay(TimeFence.DAY_OF_WEEK_WEDNESDAY, UTC, 9 * HOUR, 11 * HOUR), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableTimeFence.inIntervalOfDay(TimeFence.DAY_OF_WEEK_THURSDAY, UTC, 9 * HOUR, 11 * HOUR), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableTimeFence.inIntervalOfDays(UTC, 9 * HOUR, 11 * HOUR, TimeFence.DAY_OF_WEEK_MONDAY, TimeFence.DAY_OF_WEEK_WEDNESDAY), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableTimeFence.inIntervalOfDays(UTC, 9 * HOUR, 11 * HOUR, TimeFence.DAY_OF_WEEK_MONDAY, TimeFence.DAY_OF_WEEK_THURSDAY), mSnapshot), is(FALSE));
+
+        assertThat(evaluate(StorableTimeFence.inTimeInterval(TimeFence.TIME_INTERVAL_WEEKDAY), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableTimeFence.inTimeInterval(TimeFence.TIME_INTERVAL_WEEKEND), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableTimeFence.inTimeInterval(TimeFence.TIME_INTERVAL_MORNING), mSnapshot), is(UNKNOWN));
+        assertThat(evaluate(StorableTimeFence.aroundTimeInstant(TimeFence.TIME_INSTANT_SUNRISE, 0, HOUR), mSnapshot), is(UNKNOWN));
+    }
+
+    @Test
+    public void testMeta() {
+        mSnapshot.setHeadphoneState(HeadphoneState.PLUGGED_IN);
+        StorableFence trueFence = StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN);
+        StorableFence falseFence = StorableHeadphoneFence.during(HeadphoneState.UNPLUGGED);
+        // the activity is unknown
+        StorableFence unknownFence = StorableActivityFence.during(DetectedActivityFence.WALKING);
+
+        assertThat(evaluate(StorableFence.and(trueFence, trueFence), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableFence.and(trueFence, unknownFence), mSnapshot), is(UNKNOWN));
+        assertThat(evaluate(StorableFence.and(unknownFence, falseFence), mSnapshot), is(FALSE));
+
+        assertThat(evaluate(StorableFence.or(falseFence, falseFence), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableFence.or(falseFence, unknownFence), mSnapshot), is(UNKNOWN));
+        assertThat(evaluate(StorableFence.or(unknownFence, trueFence), mSnapshot), is(TRUE));
+
+        assertThat(evaluate(StorableFence.not(trueFence), mSnapshot), is(FALSE));
+        assertThat(evaluate(StorableFence.not(falseFence), mSnapshot), is(TRUE));
+        assertThat(evaluate(StorableFence.not(unknownFence), mSnapshot), is(UNKNOWN));
+
+        assertThat(evaluate(StorableFence.and(StorableFence.or(falseFence, trueFence),
+                StorableFence.not(falseFence)), mSnapshot), is(TRUE));
+    }
+}
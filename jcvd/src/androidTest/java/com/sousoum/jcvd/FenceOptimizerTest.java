@@ -0,0 +1,101 @@
+package com.sousoum.jcvd;
+
+import com.google.android.gms.awareness.fence.DetectedActivityFence;
+import com.google.android.gms.awareness.state.HeadphoneState;
+
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static com.sousoum.jcvd.FenceOptimizer.optimize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class FenceOptimizerTest {
+
+    private static final long HOUR = 60L * 60L * 1000L;
+
+    private final StorableFence mWalking = StorableActivityFence.during(DetectedActivityFence.WALKING);
+    private final StorableFence mRunning = StorableActivityFence.during(DetectedActivityFence.RUNNING);
+    private final StorableFence mPluggedIn = StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN);
+
+    @Test
+    public void testLeafIsUnchanged() {
+        assertThat(optimize(mWalking), is(sameInstance(mWalking)));
+    }
+
+    @Test
+    public void testFlatten() {
+        StorableFence fence = StorableFence.and(mWalking, StorableFence.and(mRunning, StorableFence.and(mPluggedIn)));
+        assertThat(optimize(fence), is(StorableFence.and(mWalking, mRunning, mPluggedIn)));
+
+        fence = StorableFence.or(StorableFence.or(mWalking, mRunning), mPluggedIn);
+        assertThat(optimize(fence), is(StorableFence.or(mWalking, mRunning, mPluggedIn)));
+
+        // an 'or' in an 'and' is kept
+        fence = StorableFence.and(StorableFence.or(mWalking, mRunning), mPluggedIn);
+        assertThat(optimize(fence), is(fence));
+    }
+
+    @Test
+    public void testDoubleNegation() {
+        assertThat(optimize(StorableFence.not(StorableFence.not(mWalking))), is(mWalking));
+        assertThat(optimize(StorableFence.not(StorableFence.not(StorableFence.not(mWalking)))),
+                is(StorableFence.not(mWalking)));
+    }
+
+    @Test
+    public void testDeduplicate() {
+        StorableFence fence = StorableFence.or(mWalking, StorableActivityFence.during(DetectedActivityFence.WALKING),
+                StorableFence.or(mRunning, mWalking));
+        assertThat(optimize(fence), is(StorableFence.or(mWalking, mRunning)));
+
+        // a single remaining operand replaces the meta fence
+        assertThat(optimize(StorableFence.and(mWalking, mWalking)), is(mWalking));
+    }
+
+    @Test
+    public void testMergeTimeIntervals() {
+        StorableFence fence = StorableFence.or(StorableTimeFence.inInterval(0, 2 * HOUR),
+                mWalking, StorableTimeFence.inInterval(HOUR, 3 * HOUR));
+        assertThat(optimize(fence), is(StorableFence.or(StorableTimeFence.inInterval(0, 3 * HOUR), mWalking)));
+
+        // disjoint intervals are kept
+        fence = StorableFence.or(StorableTimeFence.inInterval(0, HOUR),
+                StorableTimeFence.inInterval(2 * HOUR, 3 * HOUR));
+        assertThat(optimize(fence), is(fence));
+
+        fence = StorableFence.and(StorableTimeFence.inInterval(0, 2 * HOUR),
+                StorableTimeFence.inInterval(HOUR, 3 * HOUR));
+        assertThat(optimize(fence), is((StorableFence) StorableTimeFence.inInterval(HOUR, 2 * HOUR)));
+
+        // intervals in different time zones are not merged
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        TimeZone paris = TimeZone.getTimeZone("Europe/Paris");
+        fence = StorableFence.or(StorableTimeFence.inDailyInterval(utc, 0, 2 * HOUR),
+                StorableTimeFence.inDailyInterval(paris, HOUR, 3 * HOUR));
+        assertThat(optimize(fence), is(fence));
+        fence = StorableFence.or(StorableTimeFence.inDailyInterval(utc, 0, 2 * HOUR),
+                StorableTimeFence.inDailyInterval(utc, HOUR, 3 * HOUR));
+        assertThat(optimize(fence), is((StorableFence) StorableTimeFence.inDailyInterval(utc, 0, 3 * HOUR)));
+    }
+
+    @Test
+    public void testDropUnsatisfiableBranches() {
+        StorableFence disjointIntervals = StorableFence.and(StorableTimeFence.inInterval(0, HOUR),
+                StorableTimeFence.inInterval(2 * HOUR, 3 * HOUR));
+        assertThat(optimize(StorableFence.or(disjointIntervals, mWalking)), is(mWalking));
+
+        StorableFence contradiction = StorableFence.and(mRunning, StorableFence.not(mRunning));
+        assertThat(optimize(StorableFence.or(mWalking, contradiction, mPluggedIn)),
+                is(StorableFence.or(mWalking, mPluggedIn)));
+
+        // a tautology makes the whole 'and' depend on the other operands only
+        StorableFence tautology = StorableFence.or(mRunning, StorableFence.not(mRunning));
+        assertThat(optimize(StorableFence.and(tautology, mWalking)), is(mWalking));
+
+        // a fence that can never be true is registered as written
+        assertThat(optimize(contradiction), is(sameInstance(contradiction)));
+    }
+}
@@ -0,0 +1,101 @@
+package com.sousoum.jcvd;
+
+import com.google.android.gms.awareness.state.HeadphoneState;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Tests shared by all the {@link FenceStoreBackend} implementations
+ */
+public abstract class FenceStoreBackendTest {
+
+    private FenceStoreBackend mBackend;
+    private FenceStoreBackend mOtherBackend;
+
+    /**
+     * Create the backend to test
+     * @param storeName the name of the store
+     * @return the backend
+     */
+    protected abstract FenceStoreBackend createBackend(String storeName);
+
+    @Before
+    public void setUp() {
+        mBackend = createBackend("test");
+        mOtherBackend = createBackend("other");
+        clear();
+    }
+
+    @After
+    public void tearDown() {
+        clear();
+    }
+
+    @Test
+    public void testWriteAndDelete() {
+        assertThat(mBackend.loadAll().isEmpty(), is(true));
+
+        Map<String, String> entries = new HashMap<>();
+        entries.put("id1", "data1");
+        entries.put("id2", null);
+        mBackend.write(entries);
+        assertThat(mBackend.loadAll(), is(entries));
+        // stores should not share their entries
+        assertThat(mOtherBackend.loadAll().isEmpty(), is(true));
+
+        // writing an existing entry should replace it
+        mBackend.write(Collections.singletonMap("id1", "data1bis"));
+        entries.put("id1", "data1bis");
+        assertThat(mBackend.loadAll(), is(entries));
+
+        // deleting a non existing entry should do nothing
+        mBackend.delete(Arrays.asList("id2", "nop"));
+        entries.remove("id2");
+        assertThat(mBackend.loadAll(), is(entries));
+    }
+
+    @Test
+    public void testWriteId() {
+        mBackend.write(Collections.singletonMap("id1", "data1"));
+
+        // writing only the id of an existing entry should keep its data
+        mBackend.write(Collections.singletonMap("id1", (String) null));
+        assertThat(mBackend.loadAll(), is(Collections.singletonMap("id1", "data1")));
+
+        // then the data can be set again
+        mBackend.write(Collections.singletonMap("id1", "data1bis"));
+        assertThat(mBackend.loadAll(), is(Collections.singletonMap("id1", "data1bis")));
+    }
+
+    @Test
+    public void testFenceStore() {
+        StorableFence fence = StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN);
+        fence.setId("fence");
+        FenceStore store = new FenceStore("test", mBackend);
+        store.storeFence(fence);
+        store.storeFenceId("id");
+        // storing the id of a stored fence should keep the fence
+        store.storeFenceId("fence");
+
+        FenceStore otherStore = new FenceStore("test", mBackend);
+        assertThat(otherStore.getFence("fence"), is(fence));
+        assertThat(otherStore.getFence("id"), is(nullValue()));
+        assertThat(otherStore.getAllFenceIds().size(), is(2));
+    }
+
+    private void clear() {
+        mBackend.delete(mBackend.loadAll().keySet());
+        mOtherBackend.delete(mOtherBackend.loadAll().keySet());
+    }
+}
@@ -15,8 +15,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 public class FenceStoreTest {
@@ -102,6 +106,20 @@ public class FenceStoreTest {
         assertThat(mStore.getAllFences(), is(expectedFences));
     }
 
+    @Test
+    public void testStoredFencesAreNotShared() {
+        mAnd.setId("and");
+        mStore.storeFence(mAnd);
+        StorableFence storedFence = mStore.getFence("and");
+        assertThat(storedFence, is(not(sameInstance(mAnd))));
+        assertThat(storedFence, is(mAnd));
+
+        // modifying the fence once stored does not modify the store
+        mAnd.getAndFences().add(mLoc1);
+        assertThat(mStore.getFence("and"), is(not(mAnd)));
+        assertThat(mStore.getFencesContaining(2, 3), empty());
+    }
+
     @Test
     public void testStoreAndRemoveIds() {
         Set<String> expectedIds = new HashSet<>();
@@ -131,6 +149,112 @@ public class FenceStoreTest {
         assertThat(mStore.getAllFenceIds(), is(expectedIds));
     }
 
+    @Test
+    public void testGetFence() {
+        mStore = new FenceStore(mContext, "test");
+        assertThat(mStore.getFence("act1"), is(nullValue()));
+
+        mAct1.setId("act1");
+        mStore.storeFence(mAct1);
+        mOr.setId("or");
+        mStore.storeFence(mOr);
+        assertThat(mStore.getFence("act1"), is((StorableFence) mAct1));
+        assertThat(mStore.getFence("or"), is(mOr));
+
+        // a new store should load the fences from the preferences
+        FenceStore otherStore = new FenceStore(mContext, "test");
+        assertThat(otherStore.getFence("act1"), is((StorableFence) mAct1));
+        assertThat(otherStore.getFence("or"), is(mOr));
+
+        // check that the cache is updated on removal
+        mStore.removeFence("act1");
+        assertThat(mStore.getFence("act1"), is(nullValue()));
+        assertThat(mStore.getFence("or"), is(mOr));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws InterruptedException {
+        // two stores of the same prefix, as used by two managers
+        final FenceStore[] stores = {new FenceStore(mContext, "test"), new FenceStore(mContext, "test")};
+        final int idsPerThread = 50;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final int threadIndex = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    FenceStore store = stores[threadIndex % 2];
+                    for (int j = 0; j < idsPerThread; j++) {
+                        store.storeFenceId("id" + threadIndex + "_" + j);
+                        // readers use a snapshot, they do not see partial writes
+                        for (String id : store.getAllFenceIds()) {
+                            assertThat(id.startsWith("id"), is(true));
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // no id has been lost
+        assertThat(new FenceStore(mContext, "test").getAllFenceIds().size(), is(4 * idsPerThread));
+    }
+
+    @Test
+    public void testLegacyFencesAreMigrated() {
+        mOr.setId("or");
+        Set<String> ids = new HashSet<>();
+        ids.add("or");
+        SharedPreferences.Editor editor = mPref.edit();
+        editor.putString("testor", LegacyFenceEncoder.encode(mOr));
+        editor.putStringSet("testFENCE_ID_SET_KEY", ids);
+
+        mStore = new FenceStore(mContext, "test");
+        assertThat(mStore.getFence("or"), is(mOr));
+        // the fence should now be stored in the binary format
+        assertThat(StorableFenceCodec.isLegacy(mPref.getString("testor", null)), is(false));
+        assertThat(new FenceStore(mContext, "test").getFence("or"), is(mOr));
+    }
+
+    @Test
+    public void testRemovedIdsAreNotReloaded() {
+        mAct1.setId("act1");
+        mAct2.setId("act2");
+        mStore.storeFence(mAct1);
+        mStore.storeFence(mAct2);
+        mStore.removeFence("act1");
+
+        assertThat(new FenceStore(mContext, "test").getAllFenceIds(), contains("act2"));
+        assertThat(mPref.getAll().containsKey("testact1"), is(false));
+        assertThat(mPref.getAll().containsKey("FENCE_ID_SET_KEY"), is(false));
+    }
+
+    @Test
+    public void testOrphanedEntriesAreCompacted() {
+        mAct1.setId("act1");
+        Set<String> ids = new HashSet<>();
+        ids.add("act1");
+        // entries left by the previous versions
+        SharedPreferences.Editor editor = mPref.edit();
+        editor.putString("testact1", StorableFenceCodec.encodeToString(mAct1));
+        editor.putString("testact2", StorableFenceCodec.encodeToString(mAct2));
+        editor.putStringSet("testFENCE_ID_SET_KEY", ids);
+        editor.putStringSet("FENCE_ID_SET_KEY", new HashSet<>(ids));
+        editor.putString("otheract2", StorableFenceCodec.encodeToString(mAct2));
+
+        mStore = new FenceStore(mContext, "test");
+        assertThat(mStore.getAllFenceIds(), contains("act1"));
+        assertThat(mPref.getAll().containsKey("testact1"), is(true));
+        assertThat(mPref.getAll().containsKey("testact2"), is(false));
+        assertThat(mPref.getAll().containsKey("FENCE_ID_SET_KEY"), is(false));
+        // the entries of the other stores are kept
+        assertThat(mPref.getAll().containsKey("otheract2"), is(true));
+    }
 
     private final MockSharedPreferences mPref = new MockSharedPreferences();
 
@@ -0,0 +1,94 @@
+package com.sousoum.jcvd;
+
+import com.google.android.gms.awareness.fence.DetectedActivityFence;
+import com.google.android.gms.awareness.fence.TimeFence;
+import com.google.android.gms.awareness.state.HeadphoneState;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.SimpleTimeZone;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class LegacyFenceDecoderTest {
+
+    @Test
+    public void testDecodeLocation() {
+        StorableFence fence = LegacyFenceDecoder.decode("{\"type\":1,\"transition\":2,\"latitude\":2.5," +
+                "\"longitude\":-3,\"radius\":30,\"dwell\":400,\"id\":\"loc\"," +
+                "\"pendingIntentClass\":\"className\"}");
+        StorableFence expected = StorableLocationFence.in(2.5, -3, 30, 400);
+        expected.setId("loc");
+        expected.setPendingIntentClass("className");
+        assertThat(fence, is(expected));
+    }
+
+    @Test
+    public void testDecodeWithTypeLast() {
+        StorableFence fence = LegacyFenceDecoder.decode("{\"activities\":[0,8],\"transition\":0," +
+                "\"unknown\":{\"a\":[1,2]},\"type\":2}");
+        assertThat(fence, is((StorableFence) StorableActivityFence.starting(
+                DetectedActivityFence.IN_VEHICLE, DetectedActivityFence.RUNNING)));
+
+        fence = LegacyFenceDecoder.decode("{\"headphone_state\":1,\"trigger_type\":0,\"type\":4}");
+        assertThat(fence, is((StorableFence) StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN)));
+    }
+
+    @Test
+    public void testDecodeTime() {
+        StorableFence fence = LegacyFenceDecoder.decode("{\"type\":3,\"timing_type\":7," +
+                "\"day_of_week\":0,\"time_interval\":0,\"time_instant\":0," +
+                "\"timezone_offset\":3600000,\"timezone_id\":\"Europe/Paris\",\"start\":20," +
+                "\"stop\":20000,\"start_offset\":0,\"stop_offset\":0}");
+        assertThat(fence, is((StorableFence) StorableTimeFence.inIntervalOfDay(
+                TimeFence.DAY_OF_WEEK_FRIDAY, new SimpleTimeZone(3600000, "Europe/Paris"), 20, 20000)));
+
+        fence = LegacyFenceDecoder.decode("{\"type\":3,\"timing_type\":0,\"start\":20,\"stop\":20000}");
+        assertThat(fence, is((StorableFence) StorableTimeFence.inInterval(20, 20000)));
+    }
+
+    @Test
+    public void testDecodeMeta() {
+        StorableFence fence = LegacyFenceDecoder.decode("{\"type\":0,\"or\":[" +
+                "{\"type\":4,\"trigger_type\":1}," +
+                "{\"type\":0,\"not\":{\"type\":4,\"trigger_type\":2}}]}");
+        assertThat(fence, is(StorableFence.or(StorableHeadphoneFence.pluggingIn(),
+                StorableFence.not(StorableHeadphoneFence.unplugging()))));
+
+        // a meta fence with an invalid child is invalid
+        fence = LegacyFenceDecoder.decode("{\"type\":0,\"and\":[" +
+                "{\"type\":4,\"trigger_type\":1},{\"type\":4,\"trigger_type\":42}]}");
+        assertThat(fence, is(nullValue()));
+    }
+
+    @Test
+    public void testDecodeAdditionalData() {
+        StorableFence fence = LegacyFenceDecoder.decode("{\"type\":4,\"trigger_type\":1," +
+                "\"additionalData\":{" +
+                "\"str\":{\"type\":\"java.lang.String\",\"value\":\"12\"}," +
+                "\"int\":{\"value\":12,\"type\":\"java.lang.Integer\"}," +
+                "\"long\":{\"type\":\"java.lang.Long\",\"value\":12345678901}," +
+                "\"double\":{\"type\":\"java.lang.Double\",\"value\":1.5}," +
+                "\"bool\":{\"type\":\"java.lang.Boolean\",\"value\":true}," +
+                "\"unknown\":{\"type\":\"java.util.Date\",\"value\":3}}}");
+        HashMap<String, Object> additionalData = new HashMap<>();
+        additionalData.put("str", "12");
+        additionalData.put("int", 12);
+        additionalData.put("long", 12345678901L);
+        additionalData.put("double", 1.5);
+        additionalData.put("bool", true);
+        assertThat(fence.getAdditionalData(), is(additionalData));
+    }
+
+    @Test
+    public void testDecodeMalformed() {
+        assertThat(LegacyFenceDecoder.decode(""), is(nullValue()));
+        assertThat(LegacyFenceDecoder.decode("{\"type\":1,\"transition\":0"), is(nullValue()));
+        assertThat(LegacyFenceDecoder.decode("{\"type\":9}"), is(nullValue()));
+        assertThat(LegacyFenceDecoder.decode("{\"type\":1,\"transition\":0}"), is(nullValue()));
+        assertThat(LegacyFenceDecoder.decode("{\"type\":\"location\"}"), is(nullValue()));
+    }
+}
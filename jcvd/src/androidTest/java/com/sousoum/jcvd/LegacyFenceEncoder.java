@@ -0,0 +1,125 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.TimeZone;
+
+/**
+ * Writes fences in the legacy JSON format, as the previous versions of the library stored them.
+ * Only used to test that these fences can still be read, see {@link LegacyFenceDecoder}.
+ */
+final class LegacyFenceEncoder {
+
+    private LegacyFenceEncoder() {
+    }
+
+    /**
+     * Encode a fence in the legacy JSON format
+     * @param fence the fence to encode. Days of week time fences did not exist in this format.
+     * @return the JSON string
+     */
+    @NonNull
+    static String encode(@NonNull StorableFence fence) {
+        try {
+            return encode(fence, new JSONObject()).toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NonNull
+    private static JSONObject encode(@NonNull StorableFence fence, @NonNull JSONObject json)
+            throws JSONException {
+        if (fence.getId() != null) {
+            json.put(StorableFence.FENCE_ID_KEY, fence.getId());
+        }
+        if (fence.getPendingIntentClass() != null) {
+            json.put(StorableFence.FENCE_PENDING_INTENT_CLASS_KEY, fence.getPendingIntentClass());
+        }
+        HashMap<String, Object> additionalData = fence.getAdditionalData();
+        if (!additionalData.isEmpty()) {
+            JSONObject additionalDataAsJson = new JSONObject();
+            for (String key : additionalData.keySet()) {
+                Object obj = additionalData.get(key);
+                if (obj != null) {
+                    JSONObject objAsJson = new JSONObject();
+                    objAsJson.put(StorableFence.ADDITIONAL_DATA_TYPE_KEY, obj.getClass().getName());
+                    objAsJson.put(StorableFence.ADDITIONAL_DATA_VALUE_KEY, obj);
+                    additionalDataAsJson.put(key, objAsJson);
+                }
+            }
+            json.put(StorableFence.FENCE_ADDITIONAL_DATA_KEY, additionalDataAsJson);
+        }
+
+        json.put(StorableFence.FENCE_TYPE_KEY, fence.getType().ordinal());
+        switch (fence.getType()) {
+            case META:
+                if (!fence.getAndFences().isEmpty()) {
+                    JSONArray andArr = new JSONArray();
+                    for (StorableFence subFence : fence.getAndFences()) {
+                        andArr.put(encode(subFence, new JSONObject()));
+                    }
+                    json.put(StorableFence.FENCE_META_AND_KEY, andArr);
+                } else if (!fence.getOrFences().isEmpty()) {
+                    JSONArray orArr = new JSONArray();
+                    for (StorableFence subFence : fence.getOrFences()) {
+                        orArr.put(encode(subFence, new JSONObject()));
+                    }
+                    json.put(StorableFence.FENCE_META_OR_KEY, orArr);
+                } else if (fence.getNotFence() != null) {
+                    json.put(StorableFence.FENCE_META_NOT_KEY,
+                            encode(fence.getNotFence(), new JSONObject()));
+                }
+                break;
+            case ACTIVITY:
+                StorableActivityFence actFence = (StorableActivityFence) fence;
+                JSONArray activityArr = new JSONArray();
+                for (int activity : actFence.getActivityTypes()) {
+                    activityArr.put(activity);
+                }
+                json.put(StorableActivityFence.TRANSITION_TYPE_KEY, actFence.getTransitionType());
+                json.put(StorableActivityFence.ACTIVITIES_KEY, activityArr);
+                break;
+            case LOCATION:
+                StorableLocationFence locFence = (StorableLocationFence) fence;
+                json.put(StorableLocationFence.TRANSITION_TYPE_KEY, locFence.getTransitionType());
+                json.put(StorableLocationFence.LATITUDE_KEY, locFence.getLatitude());
+                json.put(StorableLocationFence.LONGITUDE_KEY, locFence.getLongitude());
+                json.put(StorableLocationFence.RADIUS_KEY, locFence.getRadius());
+                json.put(StorableLocationFence.DWELL_KEY, locFence.getDwellTimeMillis());
+                break;
+            case TIME:
+                StorableTimeFence timeFence = (StorableTimeFence) fence;
+                if (timeFence.getTimingType() == StorableTimeFence.DAYS_OF_WEEK) {
+                    throw new IllegalArgumentException("Days of week fences can't be written in the legacy format");
+                }
+                json.put(StorableTimeFence.TIMING_TYPE_KEY, timeFence.getTimingType());
+                json.put(StorableTimeFence.DAY_OF_WEEK_KEY, timeFence.getDayOfWeek());
+                json.put(StorableTimeFence.TIME_INTERVAL_KEY, timeFence.getTimeInterval());
+                json.put(StorableTimeFence.TIME_INSTANT_KEY, timeFence.getTimeInstant());
+                TimeZone timeZone = timeFence.getSharedTimeZone();
+                if (timeZone != null) {
+                    json.put(StorableTimeFence.TIMEZONE_OFFSET_KEY, timeZone.getRawOffset());
+                    json.put(StorableTimeFence.TIMEZONE_ID_KEY, timeZone.getID());
+                }
+                json.put(StorableTimeFence.START_TIME_KEY, timeFence.getStartTime());
+                json.put(StorableTimeFence.STOP_TIME_KEY, timeFence.getStopTime());
+                json.put(StorableTimeFence.START_OFFSET_KEY, timeFence.getStartOffset());
+                json.put(StorableTimeFence.STOP_OFFSET_KEY, timeFence.getStopOffset());
+                break;
+            case HEADPHONE:
+                StorableHeadphoneFence headphoneFence = (StorableHeadphoneFence) fence;
+                json.put(StorableHeadphoneFence.TRIGGER_TYPE_KEY, headphoneFence.getTriggerType());
+                if (headphoneFence.getTriggerType() == StorableHeadphoneFence.STATE) {
+                    json.put(StorableHeadphoneFence.HEADPHONE_STATE_KEY, headphoneFence.getHeadphoneState());
+                }
+                break;
+        }
+        return json;
+    }
+}
@@ -0,0 +1,120 @@
+package com.sousoum.jcvd;
+
+import com.google.android.gms.awareness.fence.DetectedActivityFence;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LocationFenceIndexTest {
+
+    private LocationFenceIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new LocationFenceIndex();
+    }
+
+    @Test
+    public void testDefault() {
+        assertThat(mIndex.findContaining(48.85, 2.35), empty());
+        assertThat(mIndex.findNearest(48.85, 2.35, 3), empty());
+    }
+
+    @Test
+    public void testContaining() {
+        mIndex.add("eiffel", StorableLocationFence.entering(48.8584, 2.2945, 200));
+        mIndex.add("louvre", StorableLocationFence.entering(48.8606, 2.3376, 300));
+        // location fences nested in meta fences are indexed with the id of the root fence
+        mIndex.add("meta", StorableFence.and(
+                StorableActivityFence.during(DetectedActivityFence.WALKING),
+                StorableFence.not(StorableLocationFence.exiting(48.8606, 2.3376, 1000))));
+        mIndex.add("activity", StorableActivityFence.during(DetectedActivityFence.RUNNING));
+
+        assertThat(mIndex.findContaining(48.8584, 2.2950), containsInAnyOrder("eiffel"));
+        assertThat(mIndex.findContaining(48.8610, 2.3380), containsInAnyOrder("louvre", "meta"));
+        assertThat(mIndex.findContaining(48.8650, 2.3376), containsInAnyOrder("meta"));
+        assertThat(mIndex.findContaining(40, 2), empty());
+
+        // replace and remove
+        mIndex.add("louvre", StorableLocationFence.entering(48.8584, 2.2945, 10));
+        assertThat(mIndex.findContaining(48.8610, 2.3380), containsInAnyOrder("meta"));
+        assertThat(mIndex.findContaining(48.8584, 2.2945), containsInAnyOrder("eiffel", "louvre"));
+        mIndex.remove("eiffel");
+        assertThat(mIndex.findContaining(48.8584, 2.2945), containsInAnyOrder("louvre"));
+    }
+
+    @Test
+    public void testContainingLargeFence() {
+        mIndex.add("large", StorableLocationFence.entering(45, 5, 500000));
+        mIndex.add("antimeridian", StorableLocationFence.entering(0, 179.9999, 1000));
+
+        assertThat(mIndex.findContaining(48.85, 2.35), containsInAnyOrder("large"));
+        assertThat(mIndex.findContaining(0, -179.9999), containsInAnyOrder("antimeridian"));
+    }
+
+    @Test
+    public void testNearest() {
+        mIndex.add("eiffel", StorableLocationFence.entering(48.8584, 2.2945, 200));
+        mIndex.add("louvre", StorableLocationFence.entering(48.8606, 2.3376, 300));
+        mIndex.add("lyon", StorableLocationFence.entering(45.7640, 4.8357, 1000));
+
+        assertThat(mIndex.findNearest(48.8600, 2.3300, 2), contains("louvre", "eiffel"));
+        assertThat(mIndex.findNearest(48.8584, 2.2945, 1), contains("eiffel"));
+        // far away fences are found too
+        assertThat(mIndex.findNearest(45, 5, 5), contains("lyon", "louvre", "eiffel"));
+    }
+
+    @Test
+    public void testNearestMatchesLinearScan() {
+        Random random = new Random(42);
+        Map<String, StorableLocationFence> fences = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            StorableLocationFence fence = StorableLocationFence.entering(
+                    48.8 + random.nextDouble() * 0.2, 2.2 + random.nextDouble() * 0.3,
+                    50 + random.nextDouble() * 2000);
+            fences.put("fence" + i, fence);
+            mIndex.add("fence" + i, fence);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            double latitude = 48.7 + random.nextDouble() * 0.4;
+            double longitude = 2.1 + random.nextDouble() * 0.5;
+
+            List<Double> expectedDistances = new ArrayList<>();
+            Map<String, Double> distances = new HashMap<>();
+            List<String> expectedContaining = new ArrayList<>();
+            for (Map.Entry<String, StorableLocationFence> entry : fences.entrySet()) {
+                StorableLocationFence fence = entry.getValue();
+                double distance = Math.max(0, LocationFenceIndex.distanceBetween(latitude, longitude,
+                        fence.getLatitude(), fence.getLongitude()) - fence.getRadius());
+                distances.put(entry.getKey(), distance);
+                expectedDistances.add(distance);
+                if (distance <= 0) {
+                    expectedContaining.add(entry.getKey());
+                }
+            }
+            Collections.sort(expectedDistances);
+
+            assertThat(new ArrayList<>(mIndex.findContaining(latitude, longitude)),
+                    containsInAnyOrder(expectedContaining.toArray()));
+            List<String> nearest = mIndex.findNearest(latitude, longitude, 10);
+            assertThat(nearest.size(), is(10));
+            for (int j = 0; j < nearest.size(); j++) {
+                assertThat(distances.get(nearest.get(j)), is(expectedDistances.get(j)));
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.sousoum.jcvd;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.mock.MockContext;
+
+import com.sousoum.jcvd.mocks.MockSharedPreferences;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MovingFenceStoreBackendTest extends FenceStoreBackendTest {
+
+    @Override
+    protected FenceStoreBackend createBackend(String storeName) {
+        return new MovingFenceStoreBackend(storeName,
+                new PreferencesFenceStoreBackend(mContext, "previous" + storeName),
+                new PreferencesFenceStoreBackend(mContext, storeName), mSettings, "MOVED_" + storeName);
+    }
+
+    @Test
+    public void testEntriesAreMovedOnce() {
+        FenceStoreBackend previousBackend = new PreferencesFenceStoreBackend(mContext, "previousmoved");
+        Map<String, String> entries = new HashMap<>();
+        entries.put("id1", "data1");
+        entries.put("id2", null);
+        previousBackend.write(entries);
+
+        // creating the backend does not move anything
+        FenceStoreBackend backend = createBackend("moved");
+        assertThat(previousBackend.loadAll(), is(entries));
+
+        assertThat(backend.loadAll(), is(entries));
+        assertThat(previousBackend.loadAll().isEmpty(), is(true));
+        assertThat(mSettings.getBoolean("MOVED_moved", false), is(true));
+
+        // once moved, the previous backend is not read again
+        previousBackend.write(Collections.singletonMap("id3", "data3"));
+        assertThat(createBackend("moved").loadAll(), is(entries));
+
+        backend.delete(entries.keySet());
+        previousBackend.delete(Collections.singleton("id3"));
+    }
+
+    private final MockSharedPreferences mPref = new MockSharedPreferences();
+    private final MockSharedPreferences mSettings = new MockSharedPreferences();
+
+    private final Context mContext = new MockContext() {
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return mPref;
+        }
+    };
+}
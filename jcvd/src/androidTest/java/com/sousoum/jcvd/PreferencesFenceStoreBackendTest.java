@@ -0,0 +1,24 @@
+package com.sousoum.jcvd;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.mock.MockContext;
+
+import com.sousoum.jcvd.mocks.MockSharedPreferences;
+
+public class PreferencesFenceStoreBackendTest extends FenceStoreBackendTest {
+
+    @Override
+    protected FenceStoreBackend createBackend(String storeName) {
+        return new PreferencesFenceStoreBackend(mContext, storeName);
+    }
+
+    private final MockSharedPreferences mPref = new MockSharedPreferences();
+
+    private final Context mContext = new MockContext() {
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return mPref;
+        }
+    };
+}
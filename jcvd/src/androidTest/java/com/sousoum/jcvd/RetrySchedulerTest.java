@@ -0,0 +1,96 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class RetrySchedulerTest {
+
+    private final List<Runnable> mScheduledTasks = new ArrayList<>();
+    private final List<Long> mDelays = new ArrayList<>();
+    private int mRetryCalls;
+    private RetryScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new RetryScheduler(new Runnable() {
+            @Override
+            public void run() {
+                mRetryCalls++;
+            }
+        }, new Random(42)) {
+            @Override
+            protected void schedule(@NonNull Runnable task, long delayMs) {
+                mScheduledTasks.add(task);
+                mDelays.add(delayMs);
+            }
+        };
+    }
+
+    @Test
+    public void testOneRetryAtATime() {
+        mScheduler.onFailure();
+        mScheduler.onFailure();
+        assertThat(mScheduledTasks.size(), is(1));
+
+        mScheduledTasks.get(0).run();
+        assertThat(mRetryCalls, is(1));
+
+        // the retry failed
+        mScheduler.onFailure();
+        assertThat(mScheduledTasks.size(), is(2));
+    }
+
+    @Test
+    public void testExponentialBackoff() {
+        long expectedDelay = RetryScheduler.INITIAL_DELAY_MS;
+        for (int i = 0; i < 20; i++) {
+            mScheduler.onFailure();
+            mScheduledTasks.get(i).run();
+
+            long delay = mDelays.get(i);
+            assertThat(delay, greaterThanOrEqualTo(expectedDelay / 2));
+            assertThat(delay, lessThanOrEqualTo(expectedDelay));
+            expectedDelay = Math.min(expectedDelay * 2, RetryScheduler.MAX_DELAY_MS);
+        }
+
+        // a success resets the delay
+        mScheduler.onSuccess();
+        mScheduler.onFailure();
+        assertThat(mDelays.get(20), lessThanOrEqualTo(RetryScheduler.INITIAL_DELAY_MS));
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        for (int i = 0; i < RetryScheduler.FAILURES_TO_OPEN_CIRCUIT - 1; i++) {
+            mScheduler.onFailure();
+        }
+        assertThat(mScheduler.isCircuitOpen(), is(false));
+
+        assertThat(mScheduler.tryRequest(), is(true));
+
+        mScheduler.onFailure();
+        assertThat(mScheduler.isCircuitOpen(), is(true));
+        assertThat(mScheduler.tryRequest(), is(false));
+
+        // each retry lets a single request through
+        mScheduledTasks.get(0).run();
+        assertThat(mScheduler.tryRequest(), is(true));
+        assertThat(mScheduler.tryRequest(), is(false));
+
+        assertThat(mScheduler.onSuccess(), is(true));
+        assertThat(mScheduler.isCircuitOpen(), is(false));
+        assertThat(mScheduler.tryRequest(), is(true));
+        assertThat(mScheduler.onSuccess(), is(false));
+    }
+}
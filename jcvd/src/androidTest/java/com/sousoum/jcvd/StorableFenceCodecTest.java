@@ -0,0 +1,175 @@
+package com.sousoum.jcvd;
+
+import com.google.android.gms.awareness.fence.DetectedActivityFence;
+import com.google.android.gms.awareness.fence.TimeFence;
+import com.google.android.gms.awareness.state.HeadphoneState;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SimpleTimeZone;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class StorableFenceCodecTest {
+
+    @Test
+    public void testAllTypes() {
+        StorableFence andFence = StorableFence.and(
+                StorableFence.or(
+                        StorableLocationFence.entering(2.5, -3.25, 30),
+                        StorableLocationFence.exiting(-3, 4, 40),
+                        StorableLocationFence.in(48.8566, 2.3522, 100, 2000)),
+                StorableFence.not(StorableActivityFence.starting(DetectedActivityFence.IN_VEHICLE,
+                        DetectedActivityFence.ON_BICYCLE)),
+                StorableActivityFence.stopping(DetectedActivityFence.RUNNING),
+                StorableActivityFence.during(DetectedActivityFence.WALKING),
+                StorableTimeFence.inInterval(-20, Long.MAX_VALUE),
+                StorableTimeFence.inDailyInterval(new SimpleTimeZone(-3600000, "test"), 20, 2000),
+                StorableTimeFence.inIntervalOfDay(TimeFence.DAY_OF_WEEK_MONDAY, null, 20, 2000),
+                StorableTimeFence.inIntervalOfDays(null, 20, 2000, TimeFence.DAY_OF_WEEK_MONDAY,
+                        TimeFence.DAY_OF_WEEK_SATURDAY, TimeFence.DAY_OF_WEEK_SUNDAY),
+                StorableTimeFence.inTimeInterval(TimeFence.TIME_INTERVAL_AFTERNOON),
+                StorableTimeFence.aroundTimeInstant(TimeFence.TIME_INSTANT_SUNSET, -200, 200),
+                StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN),
+                StorableHeadphoneFence.pluggingIn(),
+                StorableHeadphoneFence.unplugging());
+        andFence.setId("id");
+        andFence.setPendingIntentClass("className");
+
+        StorableFence decodedFence = StorableFenceCodec.decode(StorableFenceCodec.encode(andFence));
+        assertThat(decodedFence, is(andFence));
+        assertThat(decodedFence.getId(), is("id"));
+
+        decodedFence = StorableFenceCodec.decodeFromString(StorableFenceCodec.encodeToString(andFence));
+        assertThat(decodedFence, is(andFence));
+    }
+
+    @Test
+    public void testFingerprintIsNotTrusted() {
+        StorableFence fence = StorableFence.or(StorableLocationFence.entering(2.5, -3.25, 30),
+                StorableActivityFence.during(DetectedActivityFence.WALKING));
+        fence.setPendingIntentClass("className");
+
+        StorableFence decodedFence = StorableFenceCodec.decode(StorableFenceCodec.encode(fence));
+        assertThat(decodedFence.getFingerprint(), is(fence.getFingerprint()));
+
+        // a persisted fingerprint computed differently (e.g. by another version) is ignored
+        byte[] data = StorableFenceCodec.encode(fence);
+        data[1] ^= 0x5A;
+        decodedFence = StorableFenceCodec.decode(data);
+        assertThat(decodedFence.getFingerprint(), is(fence.getFingerprint()));
+    }
+
+    @Test
+    public void testAdditionalData() {
+        StorableFence fence = StorableHeadphoneFence.pluggingIn();
+        HashMap<String, Object> additionalData = new HashMap<>();
+        additionalData.put("long", Long.MAX_VALUE);
+        additionalData.put("int", Integer.MIN_VALUE);
+        additionalData.put("string", "4é");
+        additionalData.put("double", Double.MAX_VALUE);
+        additionalData.put("boolean", true);
+        fence.setAdditionalData(additionalData);
+
+        StorableFence decodedFence = StorableFenceCodec.decode(StorableFenceCodec.encode(fence));
+        assertThat(decodedFence, is(fence));
+        assertThat(decodedFence.getAdditionalData(), is(additionalData));
+    }
+
+    @Test
+    public void testRichAdditionalData() {
+        HashMap<String, Object> nestedData = new HashMap<>();
+        nestedData.put("bytes", new byte[]{-1, 0, 42});
+        nestedData.put("string", "nested");
+        HashMap<String, Object> additionalData = new HashMap<>();
+        additionalData.put("ints", new int[]{Integer.MIN_VALUE, 0, 3});
+        additionalData.put("longs", new long[]{Long.MAX_VALUE, -1});
+        additionalData.put("map", nestedData);
+        StorableFence fence = StorableHeadphoneFence.pluggingIn();
+        fence.setAdditionalData(additionalData);
+
+        StorableFence decodedFence = StorableFenceCodec.decode(StorableFenceCodec.encode(fence));
+        assertThat(decodedFence, is(fence));
+        assertThat(decodedFence.computeFingerprint(), is(fence.getFingerprint()));
+        HashMap<?, ?> decodedNestedData = (HashMap<?, ?>) decodedFence.getAdditionalData().get("map");
+        assertThat((byte[]) decodedNestedData.get("bytes"), is(new byte[]{-1, 0, 42}));
+        assertThat((long[]) decodedFence.getAdditionalData().get("longs"), is(new long[]{Long.MAX_VALUE, -1}));
+
+        // arrays are compared by content
+        StorableFence otherFence = StorableHeadphoneFence.pluggingIn();
+        HashMap<String, Object> otherData = new HashMap<>(additionalData);
+        otherData.put("ints", new int[]{Integer.MIN_VALUE, 0, 4});
+        otherFence.setAdditionalData(otherData);
+        assertThat(otherFence.equals(fence), is(false));
+    }
+
+    @Test
+    public void testLegacyFormat() {
+        StorableFence fence = StorableFence.or(StorableLocationFence.entering(2, 3, 30),
+                StorableHeadphoneFence.unplugging());
+        HashMap<String, Object> additionalData = new HashMap<>();
+        additionalData.put("string", "4");
+        fence.setAdditionalData(additionalData);
+
+        String legacyStr = LegacyFenceEncoder.encode(fence);
+        assertThat(StorableFenceCodec.isLegacy(legacyStr), is(true));
+        assertThat(StorableFenceCodec.isLegacy(StorableFenceCodec.encodeToString(fence)), is(false));
+        assertThat(StorableFenceCodec.decodeFromString(legacyStr), is(fence));
+    }
+
+    @Test
+    public void testSize() {
+        List<StorableFence> fences = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            fences.add(StorableLocationFence.entering(i, i, 30));
+        }
+        StorableFence fence = StorableFence.or(fences);
+        fence.setPendingIntentClass("com.sousoum.jcvd.SomeIntentService");
+
+        assertThat(StorableFenceCodec.encodeToString(fence).length(),
+                lessThan(LegacyFenceEncoder.encode(fence).length() / 2));
+    }
+
+    @Test
+    public void testTimeZoneDictionary() {
+        SimpleTimeZone timeZone = new SimpleTimeZone(3600000, "Europe/Paris");
+        StorableFence fence = StorableFence.or(
+                StorableTimeFence.inIntervalOfDay(TimeFence.DAY_OF_WEEK_MONDAY, timeZone, 20, 2000),
+                StorableTimeFence.inIntervalOfDay(TimeFence.DAY_OF_WEEK_FRIDAY, timeZone, 20, 2000),
+                StorableTimeFence.inDailyInterval(new SimpleTimeZone(-3600000, "test"), 20, 2000),
+                StorableTimeFence.inDailyInterval(null, 20, 2000));
+
+        byte[] data = StorableFenceCodec.encode(fence);
+        StorableFence decodedFence = StorableFenceCodec.decode(data);
+        assertThat(decodedFence, is(fence));
+        // the time zone is written once, and the decoded fences share it
+        assertThat(new String(data, Charset.forName("UTF-8")).split("Europe/Paris", -1).length, is(2));
+        StorableTimeFence first = (StorableTimeFence) decodedFence.getOrFences().get(0);
+        StorableTimeFence second = (StorableTimeFence) decodedFence.getOrFences().get(1);
+        assertThat(first.getSharedTimeZone(), is(sameInstance(second.getSharedTimeZone())));
+        assertThat(((StorableTimeFence) decodedFence.getOrFences().get(3)).getSharedTimeZone(), is(nullValue()));
+        assertThat(((StorableTimeFence) StorableFenceCodec.decode(data).getOrFences().get(0)).getSharedTimeZone(),
+                is(sameInstance(first.getSharedTimeZone())));
+        // the shared time zone can not be modified through the public getter
+        first.getTimeZone().setRawOffset(0);
+        assertThat(second.getTimeZone().getRawOffset(), is(timeZone.getRawOffset()));
+    }
+
+    @Test
+    public void testCorruptedData() {
+        byte[] data = StorableFenceCodec.encode(StorableLocationFence.entering(2, 3, 30));
+        byte[] truncatedData = new byte[data.length - 1];
+        System.arraycopy(data, 0, truncatedData, 0, truncatedData.length);
+        assertThat(StorableFenceCodec.decode(truncatedData), is(nullValue()));
+        assertThat(StorableFenceCodec.decode(new byte[]{(byte) (StorableFenceCodec.VERSION + 1)}),
+                is(nullValue()));
+    }
+}
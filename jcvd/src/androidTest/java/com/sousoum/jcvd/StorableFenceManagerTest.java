@@ -2,11 +2,11 @@ package com.sousoum.jcvd;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.support.annotation.NonNull;
 import android.test.mock.MockContext;
 
 import com.google.android.gms.awareness.FenceClient;
-import com.google.android.gms.awareness.fence.AwarenessFence;
 import com.google.android.gms.awareness.fence.TimeFence;
 import com.google.android.gms.awareness.state.HeadphoneState;
 import com.google.android.gms.common.api.CommonStatusCodes;
@@ -17,7 +17,15 @@ import com.sousoum.jcvd.mocks.MockSharedPreferences;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.contains;
@@ -27,7 +35,10 @@ import static org.hamcrest.Matchers.hasEntry;
 import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 public class StorableFenceManagerTest {
@@ -41,6 +52,9 @@ public class StorableFenceManagerTest {
     public void setUp() {
         mMockGapiFenceManager = new MockGapiFenceManager(mContext);
         MockStorableFenceManager.sMockGapiFenceManager = mMockGapiFenceManager;
+        MockStorableFenceManager.sScheduledRetries.clear();
+        MockStorableFenceManager.sTimeWindowUpdates.clear();
+        MockStorableFenceManager.sCurrentTime = 0;
         mManager = new MockStorableFenceManager(mContext);
         mManager.setListener(new StorableFenceManager.Listener() {
             @Override
@@ -269,6 +283,464 @@ public class StorableFenceManagerTest {
         assertThat(mManager.getFence("fenceId3"), is(fence3));
     }
 
+    @Test
+    public void testSynchronizeAllIsBatched() {
+        // start with multiple already added fences
+        StorableFence fence1 = StorableTimeFence.aroundTimeInstant(TimeFence.TIME_INSTANT_SUNRISE, 0, 1);
+        mManager.addFence("fenceId1", fence1, "");
+        mMockGapiFenceManager.addResultDict.get("fenceId1").onResult(new Status(CommonStatusCodes.SUCCESS));
+        StorableFence fence2 = StorableTimeFence.inDailyInterval(null, 0, 1);
+        mManager.addFence("fenceId2", fence2, "");
+        mMockGapiFenceManager.addResultDict.get("fenceId2").onResult(new Status(CommonStatusCodes.SUCCESS));
+
+        // add non-committed fences
+        mManager.removeFence("fenceId1");
+        StorableFence fence3 = StorableTimeFence.inInterval(0, 1);
+        mManager.addFence("fenceId3", fence3, "");
+        mMockGapiFenceManager.addResultDict.clear();
+        mMockGapiFenceManager.removeResultDict.clear();
+
+        // all the re-submissions and the non-committed operations should be sent in one call
+        int callsBefore = mMockGapiFenceManager.updateFencesCalls;
+        mManager.synchronizeAllToGoogleApi();
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 1));
+        assertThat(mMockGapiFenceManager.addResultDict, allOf(
+                hasEntry("fenceId1", null),
+                hasEntry("fenceId2", null),
+                hasKey("fenceId3")));
+        assertThat(mMockGapiFenceManager.removeResultDict, hasKey("fenceId1"));
+
+        // each fence should still be reported individually
+        mMockGapiFenceManager.addResultDict.get("fenceId3").onResult(new Status(CommonStatusCodes.SUCCESS));
+        mMockGapiFenceManager.removeResultDict.get("fenceId1").onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mAddedCalls, is(3));
+        assertThat(mRemovedCalls, is(1));
+        assertThat(mManager.mSyncedStore.getAllFences(), containsInAnyOrder(fence2, fence3));
+    }
+
+    @Test
+    public void testBulkAddAndRemove() {
+        final List<StorableFence> addedFences = new ArrayList<>();
+        final List<StorableFence> failedFences = new ArrayList<>();
+        final List<String> removedIds = new ArrayList<>();
+        final List<String> failedIds = new ArrayList<>();
+        StorableFenceManager.BulkListener bulkListener = new StorableFenceManager.BulkListener() {
+            @Override
+            public void fencesAddStatus(@NonNull List<StorableFence> added, @NonNull List<StorableFence> failed) {
+                addedFences.addAll(added);
+                failedFences.addAll(failed);
+            }
+
+            @Override
+            public void fencesRemoveStatus(@NonNull List<String> removed, @NonNull List<String> failed) {
+                removedIds.addAll(removed);
+                failedIds.addAll(failed);
+            }
+        };
+
+        StorableFence fence1 = StorableHeadphoneFence.pluggingIn();
+        StorableFence fence2 = StorableHeadphoneFence.unplugging();
+        HashMap<String, StorableFence> fences = new HashMap<>();
+        fences.put("fenceId1", fence1);
+        fences.put("fenceId2", fence2);
+        HashMap<String, Object> data = new HashMap<>();
+        data.put("key", "value");
+        HashMap<String, HashMap<String, Object>> additionalData = new HashMap<>();
+        additionalData.put("fenceId1", data);
+
+        int callsBefore = mMockGapiFenceManager.updateFencesCalls;
+        mManager.addFences(fences, additionalData, "", bulkListener);
+
+        // all the fences should be submitted at once
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 1));
+        assertThat(mManager.mToAddStore.getAllFences(), containsInAnyOrder(fence1, fence2));
+        assertThat(fence1.getAdditionalData(), is(data));
+
+        // nothing should be reported until all the fences have been processed
+        mMockGapiFenceManager.addResultDict.get("fenceId1").onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mAddedCalls, is(0));
+        assertThat(addedFences, empty());
+        mMockGapiFenceManager.addResultDict.get("fenceId2").onResult(new Status(CommonStatusCodes.ERROR));
+        assertThat(mAddedCalls, is(2));
+        assertThat(addedFences, contains(fence1));
+        assertThat(failedFences, contains(fence2));
+        assertThat(mManager.mSyncedStore.getAllFences(), contains(fence1));
+        assertThat(mManager.mToAddStore.getAllFences(), contains(fence2));
+
+        mManager.removeFences(Arrays.asList("fenceId1", "fenceId2"), bulkListener);
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 2));
+        assertThat(mManager.mToRemoveStore.getAllFenceIds(), containsInAnyOrder("fenceId1", "fenceId2"));
+
+        mMockGapiFenceManager.removeResultDict.get("fenceId1").onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mRemovedCalls, is(0));
+        mMockGapiFenceManager.removeResultDict.get("fenceId2").onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mRemovedCalls, is(2));
+        assertThat(removedIds, containsInAnyOrder("fenceId1", "fenceId2"));
+        assertThat(failedIds, empty());
+        assertThat(mManager.mSyncedStore.getAllFences(), empty());
+        assertThat(mManager.mToRemoveStore.getAllFenceIds(), empty());
+    }
+
+    @Test
+    public void testNearestRegistrationMode() {
+        mManager.setMaxRegisteredLocationFences(1);
+        assertThat(mManager.getMaxRegisteredLocationFences(), is(1));
+
+        StorableFence nearFence = StorableLocationFence.entering(48.8584, 2.2945, 200);
+        StorableFence farFence = StorableFence.and(StorableHeadphoneFence.pluggingIn(),
+                StorableLocationFence.entering(45.7640, 4.8357, 1000));
+        StorableFence headphoneFence = StorableHeadphoneFence.unplugging();
+
+        // location fences are only stored, the other ones are added as usual
+        mManager.addFence("near", nearFence, "");
+        mManager.addFence("far", farFence, "");
+        mManager.addFence("headphone", headphoneFence, "");
+        assertThat(mAddedCalls, is(2));
+        assertThat(mManager.mSyncedStore.getAllFences(), containsInAnyOrder(nearFence, farFence));
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), contains("headphone"));
+
+        // only the nearest location fence is registered
+        mManager.updateDeviceLocation(48.86, 2.33);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), containsInAnyOrder("headphone", "near"));
+        mMockGapiFenceManager.addResultDict.get("near").onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mManager.mRegisteredStore.getAllFenceIds(), contains("near"));
+        // the listener is not informed about registrations
+        assertThat(mAddedCalls, is(2));
+
+        // when the device moves, only the difference is sent
+        mMockGapiFenceManager.addResultDict.clear();
+        mManager.updateDeviceLocation(45.76, 4.83);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), contains("far"));
+        assertThat(mMockGapiFenceManager.removeResultDict.keySet(), contains("near"));
+        mMockGapiFenceManager.addResultDict.get("far").onResult(new Status(CommonStatusCodes.SUCCESS));
+        mMockGapiFenceManager.removeResultDict.get("near").onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mManager.mRegisteredStore.getAllFenceIds(), contains("far"));
+        assertThat(mManager.mSyncedStore.getAllFences(), containsInAnyOrder(nearFence, farFence));
+        assertThat(mRemovedCalls, is(0));
+
+        // nothing is sent if the nearest fences did not change
+        mMockGapiFenceManager.addResultDict.clear();
+        mMockGapiFenceManager.removeResultDict.clear();
+        mManager.updateDeviceLocation(45.77, 4.84);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), empty());
+        assertThat(mMockGapiFenceManager.removeResultDict.keySet(), empty());
+
+        // disabling the mode registers all the fences
+        mManager.setMaxRegisteredLocationFences(0);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), contains("near"));
+        assertThat(mManager.mRegisteredStore.getAllFenceIds(), empty());
+    }
+
+    @Test
+    public void testTimeWindowRegistrationMode() {
+        long hour = 60L * 60L * 1000L;
+        long now = 1000L * hour;
+        MockStorableFenceManager.sCurrentTime = now;
+        mManager.setTimeWindowHorizon(24 * hour);
+        assertThat(mManager.getTimeWindowHorizon(), is(24 * hour));
+
+        StorableFence soonFence = StorableTimeFence.inInterval(now + hour, now + 2 * hour);
+        StorableFence laterFence = StorableFence.and(StorableHeadphoneFence.pluggingIn(),
+                StorableTimeFence.inInterval(now + 72 * hour, now + 96 * hour));
+        StorableFence headphoneFence = StorableHeadphoneFence.unplugging();
+
+        // only the fence whose interval opens within the horizon is registered
+        mManager.addFence("soon", soonFence, "");
+        mManager.addFence("later", laterFence, "");
+        mManager.addFence("headphone", headphoneFence, "");
+        assertThat(mAddedCalls, is(2));
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), containsInAnyOrder("headphone", "soon"));
+        mMockGapiFenceManager.addResultDict.get("headphone").onResult(new Status(CommonStatusCodes.SUCCESS));
+        mMockGapiFenceManager.addResultDict.get("soon").onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mManager.mRegisteredStore.getAllFenceIds(), contains("soon"));
+        // the window is updated when the registered fence expires
+        assertThat(MockStorableFenceManager.sTimeWindowUpdates.get(
+                MockStorableFenceManager.sTimeWindowUpdates.size() - 1), is(now + 2 * hour));
+
+        // when the window moves, the expired fence is removed and the next one is registered
+        mMockGapiFenceManager.addResultDict.clear();
+        MockStorableFenceManager.sCurrentTime = now + 48 * hour;
+        mManager.updateTimeWindow(null);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), contains("later"));
+        assertThat(mMockGapiFenceManager.removeResultDict.keySet(), contains("soon"));
+        mMockGapiFenceManager.addResultDict.get("later").onResult(new Status(CommonStatusCodes.SUCCESS));
+        mMockGapiFenceManager.removeResultDict.get("soon").onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mRemovedCalls, is(1));
+        assertThat(mManager.mSyncedStore.getAllFences(), containsInAnyOrder(laterFence, headphoneFence));
+        assertThat(mManager.mRegisteredStore.getAllFenceIds(), contains("later"));
+        assertThat(MockStorableFenceManager.sTimeWindowUpdates.get(
+                MockStorableFenceManager.sTimeWindowUpdates.size() - 1), is(now + 96 * hour));
+
+        // disabling the mode cancels the alarm
+        mManager.setTimeWindowHorizon(0);
+        assertThat(mManager.mRegisteredStore.getAllFenceIds(), empty());
+        assertThat(MockStorableFenceManager.sTimeWindowUpdates.get(
+                MockStorableFenceManager.sTimeWindowUpdates.size() - 1), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testSynchronizeChangedFences() {
+        mManager.addFence("fenceId1", StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN), "");
+        mManager.addFence("fenceId2", StorableHeadphoneFence.unplugging(), "");
+        mMockGapiFenceManager.addResultDict.get("fenceId1").onResult(new Status(CommonStatusCodes.SUCCESS));
+        mMockGapiFenceManager.addResultDict.get("fenceId2").onResult(new Status(CommonStatusCodes.SUCCESS));
+        mMockGapiFenceManager.registrationListener.onFencesAdded(mMockGapiFenceManager.additions);
+        // a fence that has been registered but is not synced anymore
+        mManager.mRegistrationRecords.put("oldFenceId", 0, 0);
+
+        // nothing is sent for the fences that are still registered
+        mMockGapiFenceManager.addResultDict.clear();
+        mMockGapiFenceManager.queriedFenceIds = new HashSet<>(Arrays.asList("fenceId1", "fenceId2"));
+        mManager.synchronizeChangedToGoogleApi(null);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), empty());
+        assertThat(mMockGapiFenceManager.removeResultDict.keySet(), empty());
+        assertThat(mManager.mRegistrationRecords.getIds(), containsInAnyOrder("fenceId1", "fenceId2"));
+
+        // only the missing fences are added, stale registrations are removed
+        mMockGapiFenceManager.queriedFenceIds = new HashSet<>(Arrays.asList("fenceId1", "oldFenceId"));
+        mManager.mRegistrationRecords.put("oldFenceId", 0, 0);
+        mManager.synchronizeChangedToGoogleApi(null);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), contains("fenceId2"));
+        assertThat(mMockGapiFenceManager.removeResultDict.keySet(), contains("oldFenceId"));
+
+        // if the registered fences are unknown, all the fences registered before the reboot are added
+        mMockGapiFenceManager.addResultDict.clear();
+        mMockGapiFenceManager.removeResultDict.clear();
+        mMockGapiFenceManager.queriedFenceIds = null;
+        mManager.synchronizeChangedToGoogleApi(null);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), containsInAnyOrder("fenceId1", "fenceId2"));
+
+        // changed fences are added again
+        mMockGapiFenceManager.addResultDict.clear();
+        mMockGapiFenceManager.queriedFenceIds = new HashSet<>(Arrays.asList("fenceId1", "fenceId2"));
+        mManager.setDeliverFenceInIntent(true);
+        mManager.synchronizeChangedToGoogleApi(null);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), containsInAnyOrder("fenceId1", "fenceId2"));
+        assertThat(mAddedCalls, is(2));
+    }
+
+    @Test
+    public void testReconcile() {
+        mManager.addFence("fenceId1", StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN), "");
+        mManager.addFence("fenceId2", StorableHeadphoneFence.unplugging(), "");
+        mMockGapiFenceManager.addResultDict.get("fenceId1").onResult(new Status(CommonStatusCodes.SUCCESS));
+        mMockGapiFenceManager.addResultDict.get("fenceId2").onResult(new Status(CommonStatusCodes.SUCCESS));
+        mMockGapiFenceManager.registrationListener.onFencesAdded(mMockGapiFenceManager.additions);
+        mMockGapiFenceManager.addResultDict.clear();
+        final int[] doneCalls = {0};
+        Runnable onDone = new Runnable() {
+            @Override
+            public void run() {
+                doneCalls[0]++;
+            }
+        };
+
+        // the missing fence is added, the unknown fence is removed
+        mMockGapiFenceManager.queriedFenceIds = new HashSet<>(Arrays.asList("fenceId1", "strayFenceId"));
+        int callsBefore = mMockGapiFenceManager.updateFencesCalls;
+        mManager.reconcileWithGoogleApi(onDone);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), contains("fenceId2"));
+        assertThat(mMockGapiFenceManager.removeResultDict.keySet(), contains("strayFenceId"));
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 1));
+        assertThat(doneCalls[0], is(1));
+
+        // nothing is submitted if the registered fences are unknown
+        mMockGapiFenceManager.addResultDict.clear();
+        mMockGapiFenceManager.removeResultDict.clear();
+        mMockGapiFenceManager.queriedFenceIds = null;
+        mManager.reconcileWithGoogleApi(onDone);
+        assertThat(mMockGapiFenceManager.addResultDict.keySet(), empty());
+        assertThat(mMockGapiFenceManager.removeResultDict.keySet(), empty());
+        assertThat(doneCalls[0], is(2));
+    }
+
+    @Test
+    public void testOperationsAreCoalesced() {
+        StorableFence fence1 = StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN);
+        mManager.addFence("fenceId", fence1, "");
+        ResultCallback<Status> inFlightStatus = mMockGapiFenceManager.addResultDict.get("fenceId");
+        int callsBefore = mMockGapiFenceManager.updateFencesCalls;
+
+        // while the addition is in flight, the next operations are coalesced locally
+        mManager.removeFence("fenceId");
+        StorableFence fence2 = StorableHeadphoneFence.pluggingIn();
+        mManager.addFence("fenceId", fence2, "");
+        StorableFence fence3 = StorableHeadphoneFence.unplugging();
+        mManager.addFence("fenceId", fence3, "");
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore));
+        assertThat(mMockGapiFenceManager.removeResultDict.keySet(), empty());
+        // the replaced operations are reported
+        assertThat(mRemovedCalls, is(1));
+        assertThat(mAddedCalls, is(1));
+        // only the last operation is stored
+        assertThat(mManager.mToRemoveStore.getAllFenceIds(), empty());
+        assertThat(mManager.mToAddStore.getFence("fenceId"), is(fence3));
+
+        // once the addition is done, only the last operation is submitted
+        inFlightStatus.onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 1));
+        assertThat(mManager.mSyncedStore.getFence("fenceId"), is(fence1));
+        assertThat(mManager.mToAddStore.getFence("fenceId"), is(fence3));
+
+        mMockGapiFenceManager.addResultDict.get("fenceId").onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mManager.mSyncedStore.getFence("fenceId"), is(fence3));
+        assertThat(mManager.mToAddStore.getAllFences(), empty());
+        assertThat(mAddedCalls, is(3));
+    }
+
+    @Test
+    public void testToggledFenceIsNotResubmitted() {
+        StorableFence fence = StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN);
+        mManager.addFence("fenceId", fence, "");
+        ResultCallback<Status> inFlightStatus = mMockGapiFenceManager.addResultDict.get("fenceId");
+        int callsBefore = mMockGapiFenceManager.updateFencesCalls;
+
+        mManager.removeFence("fenceId");
+        mManager.addFence("fenceId", StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN), "");
+
+        // the net effect is the addition that is in flight, nothing else is submitted
+        inFlightStatus.onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore));
+        assertThat(mManager.mSyncedStore.getFence("fenceId"), is(fence));
+        assertThat(mManager.mToAddStore.getAllFences(), empty());
+        assertThat(mManager.mToRemoveStore.getAllFenceIds(), empty());
+        assertThat(mRemovedCalls, is(1));
+        assertThat(mAddedCalls, is(2));
+
+        // a new operation is submitted right away
+        mManager.removeFence("fenceId");
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 1));
+        assertThat(mMockGapiFenceManager.removeResultDict, hasKey("fenceId"));
+    }
+
+    @Test
+    public void testFailedOperationsAreRetried() {
+        mManager.addFence("fenceId", StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN), "");
+        mMockGapiFenceManager.registrationListener.onRequestFailed();
+        mMockGapiFenceManager.addResultDict.get("fenceId").onResult(Status.RESULT_INTERNAL_ERROR);
+        assertThat(MockStorableFenceManager.sScheduledRetries, hasSize(1));
+
+        // the retry submits the fence that is still to add
+        mMockGapiFenceManager.addResultDict.clear();
+        MockStorableFenceManager.sScheduledRetries.get(0).run();
+        assertThat(mMockGapiFenceManager.addResultDict, hasKey("fenceId"));
+        mMockGapiFenceManager.addResultDict.get("fenceId").onResult(new Status(CommonStatusCodes.SUCCESS));
+        assertThat(mManager.mToAddStore.getAllFences(), empty());
+        assertThat(mManager.getFence("fenceId"), is(notNullValue()));
+    }
+
+    @Test
+    public void testOperationsAreSuspendedWhenCircuitIsOpen() {
+        for (int i = 0; i < RetryScheduler.FAILURES_TO_OPEN_CIRCUIT; i++) {
+            mMockGapiFenceManager.registrationListener.onRequestFailed();
+        }
+
+        // operations are not submitted but are kept to be retried
+        int callsBefore = mMockGapiFenceManager.updateFencesCalls;
+        mManager.addFence("fenceId", StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN), "");
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore));
+        assertThat(mAddedCalls, is(1));
+        assertThat(mManager.mToAddStore.getAllFenceIds(), contains("fenceId"));
+
+        // the retry drains the stores
+        MockStorableFenceManager.sScheduledRetries.get(0).run();
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 1));
+        assertThat(mMockGapiFenceManager.addResultDict, hasKey("fenceId"));
+
+        // once a request succeeds, operations are submitted again
+        mMockGapiFenceManager.addResultDict.get("fenceId").onResult(new Status(CommonStatusCodes.SUCCESS));
+        mMockGapiFenceManager.registrationListener.onFencesAdded(mMockGapiFenceManager.additions);
+        mManager.removeFence("otherFenceId");
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 2));
+    }
+
+    @Test
+    public void testRetryProbesWhenCircuitIsOpen() {
+        mManager.addFence("fenceId", StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN), "");
+        mMockGapiFenceManager.addResultDict.get("fenceId").onResult(new Status(CommonStatusCodes.SUCCESS));
+        // failures of requests that are not operations of the user (registrations, resync...)
+        for (int i = 0; i < RetryScheduler.FAILURES_TO_OPEN_CIRCUIT; i++) {
+            mMockGapiFenceManager.registrationListener.onRequestFailed();
+        }
+        assertThat(MockStorableFenceManager.sScheduledRetries, hasSize(1));
+
+        // no request is sent while the circuit is open
+        int callsBefore = mMockGapiFenceManager.updateFencesCalls;
+        mManager.synchronizeAllToGoogleApi();
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore));
+
+        // the stores are empty, the retry probes the Play Services and fails again
+        MockStorableFenceManager.sScheduledRetries.get(0).run();
+        assertThat(MockStorableFenceManager.sScheduledRetries, hasSize(2));
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore));
+
+        // the next probe succeeds, the circuit is closed and the fences are reconciled
+        mMockGapiFenceManager.queriedFenceIds = new HashSet<>();
+        MockStorableFenceManager.sScheduledRetries.get(1).run();
+        assertThat(MockStorableFenceManager.sScheduledRetries, hasSize(2));
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 1));
+        assertThat(mMockGapiFenceManager.additions.get(mMockGapiFenceManager.additions.size() - 1).mId,
+                is("fenceId"));
+
+        mManager.removeFence("fenceId");
+        assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 2));
+    }
+
+    @Test
+    public void testStaleIdsAreCompacted() {
+        mManager.addFence("fenceId", StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN), "");
+        mMockGapiFenceManager.addResultDict.get("fenceId").onResult(new Status(CommonStatusCodes.SUCCESS));
+        // ids without fence left by the previous versions
+        mManager.mSyncedStore.storeFenceId("staleId");
+        mManager.mRegisteredStore.storeFenceId("staleId");
+        mPref.edit().remove("STORES_COMPACTED").apply();
+
+        mManager = new MockStorableFenceManager(mContext);
+        assertThat(mManager.mSyncedStore.getAllFenceIds(), contains("fenceId"));
+        assertThat(mManager.mRegisteredStore.getAllFenceIds(), empty());
+    }
+
+    @Test
+    public void testGetInstance() throws InterruptedException {
+        // a fence waiting to be added, and an id without fence left by a previous version
+        mManager.addFence("fenceId", StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN), "");
+        mManager.mSyncedStore.storeFenceId("staleId");
+        mPref.edit().remove("STORES_COMPACTED").apply();
+        int callsBefore = mMockGapiFenceManager.updateFencesCalls;
+
+        BackgroundStorableFenceManager.sStartLatch = new CountDownLatch(1);
+        StorableFenceManager.setInstanceFactory(new StorableFenceManager.InstanceFactory() {
+            @NonNull
+            @Override
+            public StorableFenceManager create(@NonNull Context context, int storageType) {
+                return new BackgroundStorableFenceManager(context);
+            }
+        });
+        try {
+            StorableFenceManager instance = StorableFenceManager.getInstance(mContext);
+            assertThat(StorableFenceManager.getInstance(mContext), is(sameInstance(instance)));
+            // the compaction and the synchronization are not done by the calling thread
+            assertThat(instance.mSyncedStore.getAllFenceIds(), contains("staleId"));
+            assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore));
+
+            BackgroundStorableFenceManager.sStartLatch.countDown();
+            final CountDownLatch doneLatch = new CountDownLatch(1);
+            instance.runInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    doneLatch.countDown();
+                }
+            });
+            assertThat(doneLatch.await(5, TimeUnit.SECONDS), is(true));
+
+            assertThat(instance.mSyncedStore.getAllFenceIds(), empty());
+            assertThat(mMockGapiFenceManager.updateFencesCalls, is(callsBefore + 1));
+            assertThat(mMockGapiFenceManager.updateFencesThread, is(not(sameInstance(Thread.currentThread()))));
+        } finally {
+            StorableFenceManager.setInstanceFactory(null);
+        }
+    }
+
     private final MockSharedPreferences mPref = new MockSharedPreferences();
 
     private final Context mContext = new MockContext() {
@@ -276,12 +748,27 @@ public class StorableFenceManagerTest {
         public SharedPreferences getSharedPreferences(String name, int mode) {
             return mPref;
         }
+
+        @Override
+        public int checkPermission(String permission, int pid, int uid) {
+            return PackageManager.PERMISSION_GRANTED;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
     };
 
     private static class MockGapiFenceManager extends GapiFenceManager {
 
         public final HashMap<String, ResultCallback<Status>> addResultDict = new HashMap<>();
         public final HashMap<String, ResultCallback<Status>> removeResultDict = new HashMap<>();
+        public final List<FenceAddition> additions = new ArrayList<>();
+        public int updateFencesCalls;
+        public Thread updateFencesThread;
+        public Set<String> queriedFenceIds;
+        public RegistrationListener registrationListener;
 
         public MockGapiFenceManager(@NonNull Context context) {
             super(context);
@@ -293,21 +780,37 @@ public class StorableFenceManagerTest {
         }
 
         @Override
-        boolean addFence(@NonNull String id, @NonNull AwarenessFence fence, @NonNull String pendingIntentClassName, ResultCallback<Status> status) {
-            addResultDict.put(id, status);
+        boolean updateFences(@NonNull List<FenceAddition> additions, @NonNull List<FenceRemoval> removals) {
+            updateFencesCalls++;
+            updateFencesThread = Thread.currentThread();
+            for (FenceAddition addition : additions) {
+                addResultDict.put(addition.mId, addition.mStatus);
+            }
+            this.additions.addAll(additions);
+            for (FenceRemoval removal : removals) {
+                removeResultDict.put(removal.mId, removal.mStatus);
+            }
             return true;
         }
 
         @Override
-        boolean removeFence(@NonNull String fenceId, ResultCallback<Status> status) {
-            removeResultDict.put(fenceId, status);
-            return true;
+        void queryFenceIds(@NonNull FenceIdsListener listener) {
+            listener.onFenceIds(queriedFenceIds);
+        }
+
+        @Override
+        void setRegistrationListener(RegistrationListener registrationListener) {
+            super.setRegistrationListener(registrationListener);
+            this.registrationListener = registrationListener;
         }
     }
 
     private static class MockStorableFenceManager extends StorableFenceManager {
 
         public static MockGapiFenceManager sMockGapiFenceManager;
+        public static final List<Runnable> sScheduledRetries = new ArrayList<>();
+        public static final List<Long> sTimeWindowUpdates = new ArrayList<>();
+        public static long sCurrentTime;
 
         public MockStorableFenceManager(Context context) {
             super(context);
@@ -317,5 +820,60 @@ public class StorableFenceManagerTest {
         protected GapiFenceManager createGapiFenceManager() {
             return sMockGapiFenceManager;
         }
+
+        @Override
+        void runInBackground(@NonNull Runnable task) {
+            task.run();
+        }
+
+        @Override
+        protected RetryScheduler createRetryScheduler(@NonNull Runnable retryTask) {
+            return new RetryScheduler(retryTask, new Random(0)) {
+                @Override
+                protected void schedule(@NonNull Runnable task, long delayMs) {
+                    sScheduledRetries.add(task);
+                }
+            };
+        }
+
+        @Override
+        protected long getCurrentTimeMillis() {
+            return sCurrentTime;
+        }
+
+        @Override
+        protected void scheduleTimeWindowUpdate(long triggerAtMillis) {
+            sTimeWindowUpdates.add(triggerAtMillis);
+        }
+    }
+
+    private static class BackgroundStorableFenceManager extends StorableFenceManager {
+
+        /** Released to let the background thread run the tasks */
+        public static CountDownLatch sStartLatch;
+
+        public BackgroundStorableFenceManager(Context context) {
+            super(context, PREFERENCES_STORAGE, true);
+        }
+
+        @Override
+        protected GapiFenceManager createGapiFenceManager() {
+            return MockStorableFenceManager.sMockGapiFenceManager;
+        }
+
+        @Override
+        void runInBackground(@NonNull final Runnable task) {
+            super.runInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sStartLatch.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    task.run();
+                }
+            });
+        }
     }
 }
\ No newline at end of file
@@ -1,5 +1,8 @@
 package com.sousoum.jcvd;
 
+import android.content.Intent;
+
+import com.google.android.gms.awareness.fence.AwarenessFence;
 import com.google.android.gms.awareness.fence.DetectedActivityFence;
 import com.google.android.gms.awareness.state.HeadphoneState;
 
@@ -8,6 +11,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.TimeZone;
 
 import static com.sousoum.jcvd.matchers.StorableFenceMatcher.isAnd;
@@ -19,7 +23,10 @@ import static com.sousoum.jcvd.matchers.StorableFenceMatcher.isOr;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class StorableFenceTest {
 
@@ -125,10 +132,10 @@ public class StorableFenceTest {
         additionalData.put("boolean", true);
         andFence.setAdditionalData(additionalData);
 
-        String str = StorableFence.fenceToString(andFence);
+        String str = LegacyFenceEncoder.encode(andFence);
 
         StorableFence retrievedFence = StorableFence.stringToFence(str);
-        String str2 = StorableFence.fenceToString(retrievedFence);
+        String str2 = LegacyFenceEncoder.encode(retrievedFence);
         assertThat(str, is(str2));
         assertThat(andFence, is(retrievedFence));
     }
@@ -158,4 +165,80 @@ public class StorableFenceTest {
         assertThat(andFence.equals(null), is(false));
         assertThat(andFence.equals(orFence2), is(false));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testHashCode() {
+        StorableFence andFence = StorableFence.and(StorableFence.or(mLoc1, mLoc2), mAct2);
+        StorableFence andFence2 = StorableFence.and(StorableFence.or(
+                StorableLocationFence.entering(2, 3, 30), StorableLocationFence.exiting(3, 4, 40)),
+                StorableActivityFence.during(DetectedActivityFence.RUNNING));
+        assertThat(andFence.getFingerprint(), is(andFence2.getFingerprint()));
+        assertThat(andFence.hashCode(), is(andFence2.hashCode()));
+
+        // the id is not part of the fingerprint
+        andFence2.setId("other");
+        assertThat(andFence.getFingerprint(), is(andFence2.getFingerprint()));
+
+        // the cached fingerprint is updated when the fence is modified
+        andFence2.setPendingIntentClass("className");
+        assertThat(andFence.getFingerprint(), is(not(andFence2.getFingerprint())));
+        assertThat(andFence.equals(andFence2), is(false));
+        andFence.setPendingIntentClass("className");
+        HashMap<String, Object> data = new HashMap<>();
+        data.put("key", 1);
+        andFence.setAdditionalData(data);
+        assertThat(andFence.getFingerprint(), is(not(andFence2.getFingerprint())));
+        andFence2.setAdditionalData(data);
+        assertThat(andFence.getFingerprint(), is(andFence2.getFingerprint()));
+
+        // the additional data can't be modified behind the cached fingerprint
+        andFence2.getAdditionalData().put("key", 2);
+        assertThat(andFence2.getAdditionalData().get("key"), is((Object) 1));
+        assertThat(andFence2.getFingerprint(), is(andFence2.computeFingerprint()));
+        assertThat(andFence.equals(andFence2), is(true));
+
+        // fences can be used in hash based collections
+        HashSet<StorableFence> fences = new HashSet<>();
+        fences.add(andFence);
+        fences.add(andFence2);
+        fences.add(mTime1);
+        assertThat(fences.size(), is(2));
+        assertThat(fences.contains(StorableTimeFence.inFridayInterval(TimeZone.getDefault(), 20, 20000)), is(true));
+        assertThat(fences.contains(StorableTimeFence.inFridayInterval(TimeZone.getDefault(), 20, 20001)), is(false));
+    }
+
+    @Test
+    public void testFromTransitionIntent() {
+        assertThat(StorableFence.fromTransitionIntent(new Intent()), is(nullValue()));
+
+        StorableFence andFence = StorableFence.and(mLoc1, mAct2);
+        andFence.setId("fenceId");
+        andFence.setPendingIntentClass("className");
+        HashMap<String, Object> data = new HashMap<>();
+        data.put("key", "value");
+        andFence.setAdditionalData(data);
+
+        Intent intent = new Intent();
+        intent.putExtra(GapiFenceManager.EXTRA_ENCODED_FENCE, StorableFenceCodec.encode(andFence));
+        StorableFence retrievedFence = StorableFence.fromTransitionIntent(intent);
+        assertThat(retrievedFence, is(andFence));
+        assertThat(retrievedFence.getId(), is("fenceId"));
+    }
+
+    @Test
+    public void testAwarenessFenceIsCached() {
+        StorableFence fence = StorableFence.or(StorableLocationFence.entering(2, 3, 30),
+                StorableHeadphoneFence.pluggingIn());
+        AwarenessFence awarenessFence = fence.getAwarenessFence(StorableFence.PERMISSION_FINE_LOCATION);
+        assertThat(awarenessFence, is(notNullValue()));
+        assertThat(fence.getAwarenessFence(StorableFence.PERMISSION_FINE_LOCATION), is(sameInstance(awarenessFence)));
+
+        // the awareness fence is built again when the permissions change
+        assertThat(fence.getAwarenessFence(0), is(not(sameInstance(awarenessFence))));
+        assertThat(fence.getAwarenessFence(StorableFence.PERMISSION_FINE_LOCATION), is(not(sameInstance(awarenessFence))));
+
+        StorableFence locationFence = StorableLocationFence.entering(2, 3, 30);
+        assertThat(locationFence.getAwarenessFence(0), is(nullValue()));
+        assertThat(locationFence.getAwarenessFence(StorableFence.PERMISSION_FINE_LOCATION), is(notNullValue()));
+    }
+}
@@ -2,7 +2,6 @@ package com.sousoum.jcvd;
 
 import com.google.android.gms.awareness.fence.TimeFence;
 
-import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -84,58 +83,79 @@ public class StorableTimeFenceTest {
 
     @Test
     public void testDeprecated() {
-        JSONObject root = new JSONObject();
         StorableTimeFence fence = StorableTimeFence.inMondayInterval(null, 20, 200);
-        StorableTimeFence copiedFence = (StorableTimeFence) StorableTimeFence.jsonToTimeFence(
-                StorableTimeFence.timeFenceToString(fence, root));
+        StorableTimeFence copiedFence = (StorableTimeFence) LegacyFenceDecoder.decode(
+                LegacyFenceEncoder.encode(fence));
         assertThat(fence.getType(), is(StorableFence.Type.TIME));
         assertThat(fence, isDayOfWeek(DAY_OF_WEEK_MONDAY, null, 20, 200));
         assertThat(fence, is(copiedFence));
 
         fence = StorableTimeFence.inTuesdayInterval(mTimeZone, 20, 200);
-        copiedFence = (StorableTimeFence) StorableTimeFence.jsonToTimeFence(
-                StorableTimeFence.timeFenceToString(fence, root));
+        copiedFence = (StorableTimeFence) LegacyFenceDecoder.decode(
+                LegacyFenceEncoder.encode(fence));
         assertThat(fence.getType(), is(StorableFence.Type.TIME));
         assertThat(fence, isDayOfWeek(DAY_OF_WEEK_TUESDAY, mTimeZone, 20, 200));
         assertThat(fence, is(copiedFence));
 
         fence = StorableTimeFence.inWednesdayInterval(mTimeZone, 20, 200);
-        copiedFence = (StorableTimeFence) StorableTimeFence.jsonToTimeFence(
-                StorableTimeFence.timeFenceToString(fence, root));
+        copiedFence = (StorableTimeFence) LegacyFenceDecoder.decode(
+                LegacyFenceEncoder.encode(fence));
         assertThat(fence.getType(), is(StorableFence.Type.TIME));
         assertThat(fence, isDayOfWeek(DAY_OF_WEEK_WEDNESDAY, mTimeZone, 20, 200));
         assertThat(fence, is(copiedFence));
 
         fence = StorableTimeFence.inThursdayInterval(mTimeZone, 20, 200);
-        copiedFence = (StorableTimeFence) StorableTimeFence.jsonToTimeFence(
-                StorableTimeFence.timeFenceToString(fence, root));
+        copiedFence = (StorableTimeFence) LegacyFenceDecoder.decode(
+                LegacyFenceEncoder.encode(fence));
         assertThat(fence.getType(), is(StorableFence.Type.TIME));
         assertThat(fence, isDayOfWeek(DAY_OF_WEEK_THURSDAY, mTimeZone, 20, 200));
         assertThat(fence, is(copiedFence));
 
         fence = StorableTimeFence.inFridayInterval(mTimeZone, 20, 200);
-        copiedFence = (StorableTimeFence) StorableTimeFence.jsonToTimeFence(
-                StorableTimeFence.timeFenceToString(fence, root));
+        copiedFence = (StorableTimeFence) LegacyFenceDecoder.decode(
+                LegacyFenceEncoder.encode(fence));
         assertThat(fence.getType(), is(StorableFence.Type.TIME));
         assertThat(fence, isDayOfWeek(DAY_OF_WEEK_FRIDAY, mTimeZone, 20, 200));
         assertThat(fence, is(copiedFence));
 
         fence = StorableTimeFence.inSaturdayInterval(mTimeZone, 20, 200);
-        copiedFence = (StorableTimeFence) StorableTimeFence.jsonToTimeFence(
-                StorableTimeFence.timeFenceToString(fence, root));
+        copiedFence = (StorableTimeFence) LegacyFenceDecoder.decode(
+                LegacyFenceEncoder.encode(fence));
         assertThat(fence.getType(), is(StorableFence.Type.TIME));
         assertThat(fence, isDayOfWeek(DAY_OF_WEEK_SATURDAY, mTimeZone, 20, 200));
         assertThat(fence, is(copiedFence));
 
         fence = StorableTimeFence.inSundayInterval(mTimeZone, 20, 200);
-        copiedFence = (StorableTimeFence) StorableTimeFence.jsonToTimeFence(
-                StorableTimeFence.timeFenceToString(fence, root));
+        copiedFence = (StorableTimeFence) LegacyFenceDecoder.decode(
+                LegacyFenceEncoder.encode(fence));
         assertThat(fence.getType(), is(StorableFence.Type.TIME));
         assertThat(fence, isDayOfWeek(DAY_OF_WEEK_SUNDAY, mTimeZone, 20, 200));
         assertThat(fence, is(copiedFence));
 
     }
 
+    @Test
+    public void testDaysOfWeek() {
+        StorableTimeFence fence = StorableTimeFence.inIntervalOfDays(mTimeZone, 20, 200,
+                DAY_OF_WEEK_MONDAY, DAY_OF_WEEK_FRIDAY, DAY_OF_WEEK_MONDAY);
+        assertThat(fence.getType(), is(StorableFence.Type.TIME));
+        assertThat(fence.getTimingType(), is(StorableTimeFence.DAYS_OF_WEEK));
+        assertThat(fence.getTimeZone(), is(mTimeZone));
+        assertThat(fence.getStartTime(), is(20L));
+        assertThat(fence.getStopTime(), is(200L));
+        assertThat(fence.hasDayOfWeek(DAY_OF_WEEK_MONDAY), is(true));
+        assertThat(fence.hasDayOfWeek(DAY_OF_WEEK_FRIDAY), is(true));
+        assertThat(fence.hasDayOfWeek(DAY_OF_WEEK_SUNDAY), is(false));
+
+        // the order of the days does not matter
+        assertThat(fence.equals(StorableTimeFence.inIntervalOfDays(mTimeZone, 20, 200,
+                DAY_OF_WEEK_FRIDAY, DAY_OF_WEEK_MONDAY)), is(true));
+        assertThat(fence.equals(StorableTimeFence.inIntervalOfDays(mTimeZone, 20, 200,
+                DAY_OF_WEEK_MONDAY)), is(false));
+        assertThat(fence.equals(StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_MONDAY, mTimeZone,
+                20, 200)), is(false));
+    }
+
     @Test
     public void testEquals() {
         StorableTimeFence fence1 = StorableTimeFence.inInterval(2, 300);
@@ -0,0 +1,147 @@
+package com.sousoum.jcvd;
+
+import com.google.android.gms.awareness.fence.TimeFence;
+import com.google.android.gms.awareness.state.HeadphoneState;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
+
+import static com.sousoum.jcvd.StorableTimeFence.DAY_MILLIS;
+import static com.sousoum.jcvd.StorableTimeFence.WEEK_MILLIS;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TimeFenceIndexTest {
+
+    private static final long HOUR_MILLIS = 60L * 60L * 1000L;
+
+    /** The epoch is a Thursday, the next Sunday is 3 days later */
+    private static final long SUNDAY = 3 * DAY_MILLIS;
+    private static final long MONDAY = 4 * DAY_MILLIS;
+
+    private static final TimeZone UTC = new SimpleTimeZone(0, "utc");
+    private static final TimeZone UTC_PLUS_ONE = new SimpleTimeZone((int) HOUR_MILLIS, "utc+1");
+
+    private TimeFenceIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new TimeFenceIndex();
+    }
+
+    @Test
+    public void testDefault() {
+        assertThat(mIndex.findActiveAt(0), empty());
+        assertThat(mIndex.findNextTransitionAfter(0), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testActiveAt() {
+        mIndex.add("absolute", StorableTimeFence.inInterval(1000, 5000));
+        mIndex.add("daily", StorableTimeFence.inDailyInterval(UTC, 8 * HOUR_MILLIS, 10 * HOUR_MILLIS));
+        mIndex.add("monday", StorableTimeFence.inIntervalOfDay(TimeFence.DAY_OF_WEEK_MONDAY, UTC,
+                8 * HOUR_MILLIS, 10 * HOUR_MILLIS));
+        mIndex.add("shifted", StorableTimeFence.inDailyInterval(UTC_PLUS_ONE, 8 * HOUR_MILLIS, 10 * HOUR_MILLIS));
+        // time fences nested in meta fences are indexed with the id of the root fence
+        mIndex.add("meta", StorableFence.and(
+                StorableHeadphoneFence.during(HeadphoneState.PLUGGED_IN),
+                StorableFence.or(StorableTimeFence.inInterval(4000, 6000),
+                        StorableTimeFence.inTimeInterval(TimeFence.TIME_INTERVAL_WEEKDAY))));
+        // time fences without interval are not indexed
+        mIndex.add("weekday", StorableTimeFence.inTimeInterval(TimeFence.TIME_INTERVAL_WEEKDAY));
+        mIndex.add("headphone", StorableHeadphoneFence.pluggingIn());
+
+        // intervals are half open
+        assertThat(mIndex.findActiveAt(999), empty());
+        assertThat(mIndex.findActiveAt(1000), containsInAnyOrder("absolute"));
+        assertThat(mIndex.findActiveAt(4999), containsInAnyOrder("absolute", "meta"));
+        assertThat(mIndex.findActiveAt(5000), containsInAnyOrder("meta"));
+        assertThat(mIndex.findActiveAt(6000), empty());
+
+        assertThat(mIndex.findActiveAt(SUNDAY + 7 * HOUR_MILLIS + 1), containsInAnyOrder("shifted"));
+        assertThat(mIndex.findActiveAt(SUNDAY + 9 * HOUR_MILLIS), containsInAnyOrder("daily"));
+        assertThat(mIndex.findActiveAt(MONDAY + 8 * HOUR_MILLIS + 1), containsInAnyOrder("daily", "monday", "shifted"));
+        assertThat(mIndex.findActiveAt(MONDAY + 8 * HOUR_MILLIS + WEEK_MILLIS),
+                containsInAnyOrder("daily", "monday", "shifted"));
+        assertThat(mIndex.findActiveAt(MONDAY + 10 * HOUR_MILLIS), empty());
+        assertThat(mIndex.findActiveAt(SUNDAY - WEEK_MILLIS + 9 * HOUR_MILLIS), containsInAnyOrder("daily"));
+
+        // replace and remove
+        mIndex.add("monday", StorableTimeFence.inIntervalOfDay(TimeFence.DAY_OF_WEEK_SUNDAY, UTC,
+                8 * HOUR_MILLIS, 10 * HOUR_MILLIS));
+        assertThat(mIndex.findActiveAt(SUNDAY + 9 * HOUR_MILLIS), containsInAnyOrder("daily", "monday"));
+        assertThat(mIndex.findActiveAt(MONDAY + 9 * HOUR_MILLIS), containsInAnyOrder("daily"));
+        mIndex.remove("daily");
+        mIndex.add("absolute", StorableHeadphoneFence.pluggingIn());
+        assertThat(mIndex.findActiveAt(SUNDAY + 9 * HOUR_MILLIS), containsInAnyOrder("monday"));
+        assertThat(mIndex.findActiveAt(1000), empty());
+        mIndex.clear();
+        assertThat(mIndex.findActiveAt(SUNDAY + 9 * HOUR_MILLIS), empty());
+    }
+
+    @Test
+    public void testDaysOfWeek() {
+        mIndex.add("weekdays", StorableTimeFence.inIntervalOfDays(UTC, 9 * HOUR_MILLIS, 17 * HOUR_MILLIS,
+                TimeFence.DAY_OF_WEEK_MONDAY, TimeFence.DAY_OF_WEEK_TUESDAY,
+                TimeFence.DAY_OF_WEEK_WEDNESDAY, TimeFence.DAY_OF_WEEK_THURSDAY,
+                TimeFence.DAY_OF_WEEK_FRIDAY));
+
+        assertThat(mIndex.findActiveAt(SUNDAY + 10 * HOUR_MILLIS), empty());
+        for (int day = 1; day <= 5; day++) {
+            assertThat(mIndex.findActiveAt(SUNDAY + day * DAY_MILLIS + 10 * HOUR_MILLIS),
+                    containsInAnyOrder("weekdays"));
+        }
+        assertThat(mIndex.findActiveAt(SUNDAY + 6 * DAY_MILLIS + 10 * HOUR_MILLIS), empty());
+        // from Friday evening to Monday morning
+        assertThat(mIndex.findNextTransitionAfter(MONDAY + 4 * DAY_MILLIS + 17 * HOUR_MILLIS),
+                is(MONDAY + WEEK_MILLIS + 9 * HOUR_MILLIS));
+    }
+
+    @Test
+    public void testManyIntervals() {
+        for (int i = 0; i < 1000; i++) {
+            mIndex.add("fence" + i, StorableTimeFence.inInterval(i * 10, i * 10 + 25));
+        }
+        assertThat(mIndex.findActiveAt(5004), containsInAnyOrder("fence498", "fence499", "fence500"));
+        assertThat(mIndex.findActiveAt(5010), containsInAnyOrder("fence499", "fence500", "fence501"));
+        assertThat(mIndex.findActiveAt(10014), containsInAnyOrder("fence999"));
+        assertThat(mIndex.findActiveAt(10025), empty());
+    }
+
+    @Test
+    public void testNextTransition() {
+        mIndex.add("absolute", StorableTimeFence.inInterval(1000, 5000));
+        mIndex.add("daily", StorableTimeFence.inDailyInterval(UTC, 8 * HOUR_MILLIS, 10 * HOUR_MILLIS));
+
+        assertThat(mIndex.findNextTransitionAfter(0), is(1000L));
+        assertThat(mIndex.findNextTransitionAfter(1000), is(5000L));
+        assertThat(mIndex.findNextTransitionAfter(5000), is(8 * HOUR_MILLIS));
+        assertThat(mIndex.findNextTransitionAfter(8 * HOUR_MILLIS), is(10 * HOUR_MILLIS));
+        assertThat(mIndex.findNextTransitionAfter(10 * HOUR_MILLIS), is(DAY_MILLIS + 8 * HOUR_MILLIS));
+
+        // the next transition of a weekly interval can be in the next week
+        mIndex.clear();
+        mIndex.add("monday", StorableTimeFence.inIntervalOfDay(TimeFence.DAY_OF_WEEK_MONDAY, UTC_PLUS_ONE,
+                8 * HOUR_MILLIS, 10 * HOUR_MILLIS));
+        assertThat(mIndex.findNextTransitionAfter(MONDAY + 9 * HOUR_MILLIS),
+                is(MONDAY + WEEK_MILLIS + 7 * HOUR_MILLIS));
+        assertThat(mIndex.findNextTransitionAfter(SUNDAY + 12 * HOUR_MILLIS), is(MONDAY + 7 * HOUR_MILLIS));
+    }
+
+    @Test
+    public void testIntervalOutOfTheWeek() {
+        // the interval ends before the start of the Sunday, nothing is indexed
+        mIndex.add("before", StorableTimeFence.inIntervalOfDay(TimeFence.DAY_OF_WEEK_SUNDAY, UTC,
+                -2 * HOUR_MILLIS, -HOUR_MILLIS));
+        assertThat(mIndex.findActiveAt(SUNDAY), empty());
+        assertThat(mIndex.findNextTransitionAfter(SUNDAY), is(Long.MAX_VALUE));
+
+        mIndex.add("absolute", StorableTimeFence.inInterval(1000, 5000));
+        assertThat(mIndex.findNextTransitionAfter(0), is(1000L));
+    }
+}
@@ -0,0 +1,27 @@
+package com.sousoum.jcvd;
+
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class TimeZoneTableTest {
+
+    @Test
+    public void testIntern() {
+        TimeZone timeZone = TimeZoneTable.intern("Europe/Paris", 3600000);
+        assertThat(timeZone.getID(), is("Europe/Paris"));
+        assertThat(timeZone.getRawOffset(), is(3600000));
+        assertThat(TimeZoneTable.intern("Europe/Paris", 3600000), is(sameInstance(timeZone)));
+
+        // the same id with another offset is another time zone
+        TimeZone otherTimeZone = TimeZoneTable.intern("Europe/Paris", 7200000);
+        assertThat(otherTimeZone.getRawOffset(), is(7200000));
+        assertThat(otherTimeZone, is(not(sameInstance(timeZone))));
+        assertThat(TimeZoneTable.intern("Europe/Paris", 7200000), is(sameInstance(otherTimeZone)));
+    }
+}
@@ -35,12 +35,12 @@ public class MockSharedPreferences implements SharedPreferences {
 
     @Override
     public int getInt(String key, int defValue) {
-        return 0;
+        return defValue;
     }
 
     @Override
     public long getLong(String key, long defValue) {
-        return 0;
+        return defValue;
     }
 
     @Override
@@ -50,7 +50,8 @@ public class MockSharedPreferences implements SharedPreferences {
 
     @Override
     public boolean getBoolean(String key, boolean defValue) {
-        return false;
+        Boolean value = (Boolean) mPrefs.get(key);
+        return (value != null) ? value : defValue;
     }
 
     @Override
@@ -100,12 +101,15 @@ public class MockSharedPreferences implements SharedPreferences {
 
             @Override
             public Editor putBoolean(String key, boolean value) {
-                return null;
+                mChangeCnt++;
+                mPrefs.put(key, value);
+                return this;
             }
 
             @Override
             public Editor remove(String key) {
-                return null;
+                mPrefs.remove(key);
+                return this;
             }
 
             @Override
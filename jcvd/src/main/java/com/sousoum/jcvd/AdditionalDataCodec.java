@@ -0,0 +1,421 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Package local registry of the types that can be stored in the additional data of a fence.
+ *
+ * Each supported type has a {@link ValueCodec} identified by a compact tag, written before the
+ * value by {@link StorableFenceCodec}. Reading a value is a lookup of its codec in an array indexed
+ * by the tag; writing it is a lookup by the class of the value.
+ * The codecs also define the fingerprint and the equality of the values, so that arrays are
+ * compared by content and nested maps entry by entry.
+ *
+ * The tags are persisted: existing tags must never change, new types get new tags.
+ */
+final class AdditionalDataCodec {
+
+    private static final String TAG = "AdditionalDataCodec";
+
+    //region tags
+    static final int TAG_STRING = 0;
+    static final int TAG_INTEGER = 1;
+    static final int TAG_LONG = 2;
+    static final int TAG_DOUBLE = 3;
+    static final int TAG_BOOLEAN = 4;
+    static final int TAG_BYTE_ARRAY = 5;
+    static final int TAG_INT_ARRAY = 6;
+    static final int TAG_LONG_ARRAY = 7;
+    static final int TAG_MAP = 8;
+    //endregion tags
+
+    /**
+     * Codec of one type of additional data value
+     */
+    abstract static class ValueCodec {
+        final int mTag;
+
+        ValueCodec(int tag) {
+            mTag = tag;
+        }
+
+        abstract void write(@NonNull Object value, @NonNull StorableFenceCodec.Writer writer);
+
+        @NonNull
+        abstract Object read(@NonNull StorableFenceCodec.Reader reader) throws IOException;
+
+        /**
+         * Get the fingerprint of a value, stable across runs
+         * @param value a value of the type of this codec
+         * @return the fingerprint of the value
+         */
+        abstract long fingerprint(@NonNull Object value);
+
+        /**
+         * Whether two values of the type of this codec are equal
+         */
+        boolean valueEquals(@NonNull Object value, @NonNull Object other) {
+            return value.equals(other);
+        }
+    }
+
+    /** Codecs indexed by their tag */
+    private static final ValueCodec[] CODECS = new ValueCodec[TAG_MAP + 1];
+
+    /** Codecs indexed by the class of their values, the maps are handled separately */
+    private static final HashMap<Class<?>, ValueCodec> CODECS_BY_CLASS = new HashMap<>();
+
+    static {
+        register(String.class, new ValueCodec(TAG_STRING) {
+            @Override
+            void write(@NonNull Object value, @NonNull StorableFenceCodec.Writer writer) {
+                writer.writeString((String) value);
+            }
+
+            @NonNull
+            @Override
+            Object read(@NonNull StorableFenceCodec.Reader reader) throws IOException {
+                return reader.readString();
+            }
+
+            @Override
+            long fingerprint(@NonNull Object value) {
+                return StorableFence.stringFingerprint((String) value);
+            }
+        });
+        register(Integer.class, new ValueCodec(TAG_INTEGER) {
+            @Override
+            void write(@NonNull Object value, @NonNull StorableFenceCodec.Writer writer) {
+                writer.writeVarLong((Integer) value);
+            }
+
+            @NonNull
+            @Override
+            Object read(@NonNull StorableFenceCodec.Reader reader) throws IOException {
+                return (int) reader.readVarLong();
+            }
+
+            @Override
+            long fingerprint(@NonNull Object value) {
+                return StorableFence.mixFingerprint(Integer.class.getName().hashCode(), value.hashCode());
+            }
+        });
+        register(Long.class, new ValueCodec(TAG_LONG) {
+            @Override
+            void write(@NonNull Object value, @NonNull StorableFenceCodec.Writer writer) {
+                writer.writeVarLong((Long) value);
+            }
+
+            @NonNull
+            @Override
+            Object read(@NonNull StorableFenceCodec.Reader reader) throws IOException {
+                return reader.readVarLong();
+            }
+
+            @Override
+            long fingerprint(@NonNull Object value) {
+                return StorableFence.mixFingerprint(Long.class.getName().hashCode(), value.hashCode());
+            }
+        });
+        register(Double.class, new ValueCodec(TAG_DOUBLE) {
+            @Override
+            void write(@NonNull Object value, @NonNull StorableFenceCodec.Writer writer) {
+                writer.writeDouble((Double) value);
+            }
+
+            @NonNull
+            @Override
+            Object read(@NonNull StorableFenceCodec.Reader reader) throws IOException {
+                return reader.readDouble();
+            }
+
+            @Override
+            long fingerprint(@NonNull Object value) {
+                return StorableFence.mixFingerprint(Double.class.getName().hashCode(), (double) (Double) value);
+            }
+        });
+        register(Boolean.class, new ValueCodec(TAG_BOOLEAN) {
+            @Override
+            void write(@NonNull Object value, @NonNull StorableFenceCodec.Writer writer) {
+                writer.writeBoolean((Boolean) value);
+            }
+
+            @NonNull
+            @Override
+            Object read(@NonNull StorableFenceCodec.Reader reader) throws IOException {
+                return reader.readBoolean();
+            }
+
+            @Override
+            long fingerprint(@NonNull Object value) {
+                return StorableFence.mixFingerprint(Boolean.class.getName().hashCode(), value.hashCode());
+            }
+        });
+        register(byte[].class, new ValueCodec(TAG_BYTE_ARRAY) {
+            @Override
+            void write(@NonNull Object value, @NonNull StorableFenceCodec.Writer writer) {
+                writer.writeBytes((byte[]) value);
+            }
+
+            @NonNull
+            @Override
+            Object read(@NonNull StorableFenceCodec.Reader reader) throws IOException {
+                return reader.readBytes();
+            }
+
+            @Override
+            long fingerprint(@NonNull Object value) {
+                byte[] array = (byte[]) value;
+                long fingerprint = StorableFence.mixFingerprint(TAG_BYTE_ARRAY, array.length);
+                for (byte element : array) {
+                    fingerprint = StorableFence.mixFingerprint(fingerprint, element);
+                }
+                return fingerprint;
+            }
+
+            @Override
+            boolean valueEquals(@NonNull Object value, @NonNull Object other) {
+                return Arrays.equals((byte[]) value, (byte[]) other);
+            }
+        });
+        register(int[].class, new ValueCodec(TAG_INT_ARRAY) {
+            @Override
+            void write(@NonNull Object value, @NonNull StorableFenceCodec.Writer writer) {
+                int[] array = (int[]) value;
+                writer.writeVarInt(array.length);
+                for (int element : array) {
+                    writer.writeVarLong(element);
+                }
+            }
+
+            @NonNull
+            @Override
+            Object read(@NonNull StorableFenceCodec.Reader reader) throws IOException {
+                int[] array = new int[reader.readLength()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = (int) reader.readVarLong();
+                }
+                return array;
+            }
+
+            @Override
+            long fingerprint(@NonNull Object value) {
+                int[] array = (int[]) value;
+                long fingerprint = StorableFence.mixFingerprint(TAG_INT_ARRAY, array.length);
+                for (int element : array) {
+                    fingerprint = StorableFence.mixFingerprint(fingerprint, element);
+                }
+                return fingerprint;
+            }
+
+            @Override
+            boolean valueEquals(@NonNull Object value, @NonNull Object other) {
+                return Arrays.equals((int[]) value, (int[]) other);
+            }
+        });
+        register(long[].class, new ValueCodec(TAG_LONG_ARRAY) {
+            @Override
+            void write(@NonNull Object value, @NonNull StorableFenceCodec.Writer writer) {
+                long[] array = (long[]) value;
+                writer.writeVarInt(array.length);
+                for (long element : array) {
+                    writer.writeVarLong(element);
+                }
+            }
+
+            @NonNull
+            @Override
+            Object read(@NonNull StorableFenceCodec.Reader reader) throws IOException {
+                long[] array = new long[reader.readLength()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = reader.readVarLong();
+                }
+                return array;
+            }
+
+            @Override
+            long fingerprint(@NonNull Object value) {
+                long[] array = (long[]) value;
+                long fingerprint = StorableFence.mixFingerprint(TAG_LONG_ARRAY, array.length);
+                for (long element : array) {
+                    fingerprint = StorableFence.mixFingerprint(fingerprint, element);
+                }
+                return fingerprint;
+            }
+
+            @Override
+            boolean valueEquals(@NonNull Object value, @NonNull Object other) {
+                return Arrays.equals((long[]) value, (long[]) other);
+            }
+        });
+        // the maps can be of any class, they are not registered by class
+        CODECS[TAG_MAP] = new ValueCodec(TAG_MAP) {
+            @Override
+            void write(@NonNull Object value, @NonNull StorableFenceCodec.Writer writer) {
+                writeMap((Map<?, ?>) value, writer);
+            }
+
+            @NonNull
+            @Override
+            Object read(@NonNull StorableFenceCodec.Reader reader) throws IOException {
+                return readMap(reader);
+            }
+
+            @Override
+            long fingerprint(@NonNull Object value) {
+                return StorableFence.mixFingerprint(TAG_MAP, mapFingerprint((Map<?, ?>) value));
+            }
+
+            @Override
+            boolean valueEquals(@NonNull Object value, @NonNull Object other) {
+                return mapsEqual((Map<?, ?>) value, (Map<?, ?>) other);
+            }
+        };
+    }
+
+    private AdditionalDataCodec() {
+    }
+
+    private static void register(@NonNull Class<?> valueClass, @NonNull ValueCodec codec) {
+        CODECS[codec.mTag] = codec;
+        CODECS_BY_CLASS.put(valueClass, codec);
+    }
+
+    /**
+     * Get the codec of a value
+     * @param value the value
+     * @return the codec of the value, null if the value can't be stored
+     */
+    @Nullable
+    static ValueCodec forValue(@Nullable Object value) {
+        if (value == null) {
+            return null;
+        }
+        ValueCodec codec = CODECS_BY_CLASS.get(value.getClass());
+        if (codec == null && value instanceof Map) {
+            codec = CODECS[TAG_MAP];
+        }
+        return codec;
+    }
+
+    /**
+     * Get the codec of a tag
+     * @param tag the tag read before a value
+     * @return the codec of the tag, null if the tag is unknown
+     */
+    @Nullable
+    static ValueCodec forTag(int tag) {
+        return (tag >= 0 && tag < CODECS.length) ? CODECS[tag] : null;
+    }
+
+    /**
+     * Write a map of additional data. The entries that can't be stored are skipped.
+     * @param map the map, its keys should be strings
+     * @param writer the writer
+     */
+    static void writeMap(@NonNull Map<?, ?> map, @NonNull StorableFenceCodec.Writer writer) {
+        // only count the entries that can be written
+        int count = 0;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (entry.getKey() instanceof String && forValue(entry.getValue()) != null) {
+                count++;
+            }
+        }
+
+        writer.writeVarInt(count);
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            ValueCodec codec = forValue(value);
+            if (!(entry.getKey() instanceof String) || codec == null) {
+                if (value != null) {
+                    Log.e(TAG, "Key " + entry.getKey() + " is storing a object of class " +
+                            value.getClass() + " which is not supported");
+                }
+                continue;
+            }
+
+            writer.writeString((String) entry.getKey());
+            writer.writeVarInt(codec.mTag);
+            codec.write(value, writer);
+        }
+    }
+
+    /**
+     * Read a map written by {@link #writeMap(Map, StorableFenceCodec.Writer)}
+     * @param reader the reader
+     * @return the map
+     * @throws IOException if the data is malformed or contains an unknown tag
+     */
+    @NonNull
+    static HashMap<String, Object> readMap(@NonNull StorableFenceCodec.Reader reader) throws IOException {
+        int count = reader.readLength();
+        HashMap<String, Object> map = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = reader.readString();
+            int tag = reader.readVarInt();
+            ValueCodec codec = forTag(tag);
+            if (codec == null) {
+                throw new IOException("Unknown additional data tag " + tag);
+            }
+            map.put(key, codec.read(reader));
+        }
+        return map;
+    }
+
+    /**
+     * Get the fingerprint of a map of additional data, the entries that can't be stored are
+     * ignored
+     * @param map the map
+     * @return the fingerprint of the map
+     */
+    static long mapFingerprint(@NonNull Map<?, ?> map) {
+        // the order of the entries of a map is not defined, the entries are combined with a sum
+        long fingerprint = 0;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            ValueCodec codec = forValue(entry.getValue());
+            if (entry.getKey() instanceof String && codec != null) {
+                fingerprint += StorableFence.mixFingerprint(
+                        StorableFence.stringFingerprint((String) entry.getKey()),
+                        codec.fingerprint(entry.getValue()));
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Whether two maps of additional data are equal. Arrays are compared by content and nested
+     * maps entry by entry.
+     * @return true if both maps have the same keys and equal values
+     */
+    static boolean mapsEqual(@NonNull Map<?, ?> map, @NonNull Map<?, ?> other) {
+        if (map.size() != other.size()) {
+            return false;
+        }
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            Object otherValue = other.get(entry.getKey());
+            if (value == null || otherValue == null) {
+                if (value != otherValue || !other.containsKey(entry.getKey())) {
+                    return false;
+                }
+                continue;
+            }
+            ValueCodec codec = forValue(value);
+            if (codec == null) {
+                if (!value.equals(otherValue)) {
+                    return false;
+                }
+            } else if (codec != forValue(otherValue) || !codec.valueEquals(value, otherValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -11,7 +11,15 @@ import android.content.Intent;
 public class BootCompleteReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
-        StorableFenceManager manager = new StorableFenceManager(context);
-        manager.synchronizeAllToGoogleApi();
+        StorableFenceManager manager = StorableFenceManager.getInstance(context);
+        // keep the receiver alive until the fences have been submitted
+        final PendingResult pendingResult = goAsync();
+        // only the fences that are not registered anymore are submitted again
+        manager.synchronizeChangedToGoogleApi(new Runnable() {
+            @Override
+            public void run() {
+                pendingResult.finish();
+            }
+        });
     }
 }
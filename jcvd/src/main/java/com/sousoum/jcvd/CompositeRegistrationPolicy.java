@@ -0,0 +1,67 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Package local policy that combines several registration policies.
+ * A fence is handled if one of the policies handles it, and it is selected only if all the
+ * policies that handle it select it.
+ */
+final class CompositeRegistrationPolicy implements RegistrationPolicy {
+
+    @NonNull
+    private final RegistrationPolicy[] mPolicies;
+
+    /**
+     * Constructor.
+     * @param policies the policies to combine
+     */
+    CompositeRegistrationPolicy(@NonNull RegistrationPolicy... policies) {
+        mPolicies = policies;
+    }
+
+    @Override
+    public boolean handles(@NonNull StorableFence fence) {
+        for (RegistrationPolicy policy : mPolicies) {
+            if (policy.handles(fence)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> selectFences(@NonNull FenceStore store) {
+        List<Set<String>> selections = new ArrayList<>(mPolicies.length);
+        Set<String> fenceIds = new HashSet<>();
+        for (RegistrationPolicy policy : mPolicies) {
+            Set<String> selection = policy.selectFences(store);
+            selections.add(selection);
+            fenceIds.addAll(selection);
+        }
+
+        // a fence handled by several policies should be selected by all of them
+        Iterator<String> iterator = fenceIds.iterator();
+        while (iterator.hasNext()) {
+            StorableFence fence = store.getFence(iterator.next());
+            if (fence == null) {
+                iterator.remove();
+                continue;
+            }
+            for (int i = 0; i < mPolicies.length; i++) {
+                if (!selections.get(i).contains(fence.getId()) && mPolicies[i].handles(fence)) {
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+        return fenceIds;
+    }
+}
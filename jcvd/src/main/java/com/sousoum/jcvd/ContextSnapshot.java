@@ -0,0 +1,171 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.awareness.state.HeadphoneState;
+
+import java.util.TimeZone;
+
+/**
+ * A snapshot of the context of the device: location, time, activity and headphone state.
+ * It is used by {@link FenceEvaluator} to evaluate fences without calling the Play Services.
+ * Each part of the context is optional: fences that depend on an unknown part are evaluated as
+ * {@link FenceEvaluator#UNKNOWN}.
+ * A snapshot can be modified and reused to evaluate fences in a loop without any allocation.
+ */
+public final class ContextSnapshot {
+
+    /** Value of the activity type when the activity is unknown. */
+    public static final int UNKNOWN_ACTIVITY = -1;
+
+    /** Value of the headphone state when it is unknown. */
+    public static final int UNKNOWN_HEADPHONE_STATE = 0;
+
+    private boolean mHasLocation;
+    private double mLatitude;
+    private double mLongitude;
+
+    private boolean mHasTime;
+    private long mTimeMillis;
+    @Nullable
+    private TimeZone mTimeZone;
+
+    private int mActivityType = UNKNOWN_ACTIVITY;
+
+    private int mHeadphoneState = UNKNOWN_HEADPHONE_STATE;
+
+    /**
+     * Set the location of the device
+     * @param latitude the latitude of the device
+     * @param longitude the longitude of the device
+     * @return this snapshot
+     */
+    @NonNull
+    public ContextSnapshot setLocation(double latitude, double longitude) {
+        mHasLocation = true;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        return this;
+    }
+
+    /**
+     * Set the current time
+     * @param timeMillis the current time in milli since epoch
+     * @param timeZone the time zone of the device, used by the time fences that do not have a
+     *                 time zone. If null, the default time zone is used.
+     * @return this snapshot
+     */
+    @NonNull
+    public ContextSnapshot setTime(long timeMillis, @Nullable TimeZone timeZone) {
+        mHasTime = true;
+        mTimeMillis = timeMillis;
+        mTimeZone = timeZone;
+        return this;
+    }
+
+    /**
+     * Set the current activity of the user
+     * @param activityType the activity, {@link #UNKNOWN_ACTIVITY} if unknown
+     * @return this snapshot
+     */
+    @NonNull
+    public ContextSnapshot setActivity(@StorableActivityFence.ActivityType int activityType) {
+        mActivityType = activityType;
+        return this;
+    }
+
+    /**
+     * Set the headphone state
+     * @param headphoneState {@link HeadphoneState#PLUGGED_IN}, {@link HeadphoneState#UNPLUGGED} or
+     *                       {@link #UNKNOWN_HEADPHONE_STATE}
+     * @return this snapshot
+     */
+    @NonNull
+    public ContextSnapshot setHeadphoneState(int headphoneState) {
+        mHeadphoneState = headphoneState;
+        return this;
+    }
+
+    /**
+     * Forget all the parts of the context
+     * @return this snapshot
+     */
+    @NonNull
+    public ContextSnapshot clear() {
+        mHasLocation = false;
+        mHasTime = false;
+        mTimeZone = null;
+        mActivityType = UNKNOWN_ACTIVITY;
+        mHeadphoneState = UNKNOWN_HEADPHONE_STATE;
+        return this;
+    }
+
+    //region getters
+
+    /**
+     * Whether the location is known
+     * @return true if {@link #setLocation(double, double)} has been called
+     */
+    public boolean hasLocation() {
+        return mHasLocation;
+    }
+
+    /**
+     * Get the latitude of the device
+     * @return the latitude, only meaningful if {@link #hasLocation()}
+     */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    /**
+     * Get the longitude of the device
+     * @return the longitude, only meaningful if {@link #hasLocation()}
+     */
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * Whether the time is known
+     * @return true if {@link #setTime(long, TimeZone)} has been called
+     */
+    public boolean hasTime() {
+        return mHasTime;
+    }
+
+    /**
+     * Get the current time
+     * @return the time in milli since epoch, only meaningful if {@link #hasTime()}
+     */
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    /**
+     * Get the time zone of the device
+     * @return the time zone, null if the default one should be used
+     */
+    @Nullable
+    public TimeZone getTimeZone() {
+        return mTimeZone;
+    }
+
+    /**
+     * Get the current activity of the user
+     * @return the activity, {@link #UNKNOWN_ACTIVITY} if unknown
+     */
+    public int getActivityType() {
+        return mActivityType;
+    }
+
+    /**
+     * Get the headphone state
+     * @return the headphone state, {@link #UNKNOWN_HEADPHONE_STATE} if unknown
+     */
+    public int getHeadphoneState() {
+        return mHeadphoneState;
+    }
+    //endregion getters
+}
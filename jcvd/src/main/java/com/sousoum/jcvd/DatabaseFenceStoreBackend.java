@@ -0,0 +1,154 @@
+package com.sousoum.jcvd;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Package local class that stores the fences in a SQLite database.
+ * All the stores share the same table, which is indexed by store name and fence id. Hence,
+ * writing or deleting a fence only touches its own row, whatever the number of stored fences.
+ */
+class DatabaseFenceStoreBackend implements FenceStoreBackend {
+
+    private static final String DATABASE_NAME = "JCVDLibStore.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_FENCES = "fences";
+    private static final String COLUMN_STORE = "store";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_DATA = "data";
+
+    private static DatabaseHelper sHelper;
+
+    @NonNull
+    private final String mStoreName;
+
+    @NonNull
+    private final DatabaseHelper mHelper;
+
+    /**
+     * Constructor.
+     * @param context a context
+     * @param storeName the name of the store, all the entries of this storage will be linked to it
+     */
+    DatabaseFenceStoreBackend(@NonNull Context context, @NonNull String storeName) {
+        mStoreName = storeName;
+        mHelper = getHelper(context);
+    }
+
+    @NonNull
+    private static synchronized DatabaseHelper getHelper(@NonNull Context context) {
+        if (sHelper == null) {
+            sHelper = new DatabaseHelper(context.getApplicationContext());
+        }
+        return sHelper;
+    }
+
+    @NonNull
+    @Override
+    public Map<String, String> loadAll() {
+        HashMap<String, String> entries = new HashMap<>();
+
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_FENCES, new String[]{COLUMN_ID, COLUMN_DATA},
+                COLUMN_STORE + " = ?", new String[]{mStoreName}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                entries.put(cursor.getString(0), cursor.isNull(1) ? null : cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return entries;
+    }
+
+    @Override
+    public void write(@NonNull Map<String, String> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_FENCES +
+                " (" + COLUMN_STORE + ", " + COLUMN_ID + ", " + COLUMN_DATA + ") VALUES (?, ?, ?)");
+        // only storing the id must not erase the data of an existing row
+        SQLiteStatement idStatement = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_FENCES +
+                " (" + COLUMN_STORE + ", " + COLUMN_ID + ") VALUES (?, ?)");
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (entry.getValue() != null) {
+                    statement.clearBindings();
+                    statement.bindString(1, mStoreName);
+                    statement.bindString(2, entry.getKey());
+                    statement.bindString(3, entry.getValue());
+                    statement.executeInsert();
+                } else {
+                    idStatement.clearBindings();
+                    idStatement.bindString(1, mStoreName);
+                    idStatement.bindString(2, entry.getKey());
+                    idStatement.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+            idStatement.close();
+        }
+    }
+
+    @Override
+    public void delete(@NonNull Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement("DELETE FROM " + TABLE_FENCES +
+                " WHERE " + COLUMN_STORE + " = ? AND " + COLUMN_ID + " = ?");
+        db.beginTransaction();
+        try {
+            for (String id : ids) {
+                statement.clearBindings();
+                statement.bindString(1, mStoreName);
+                statement.bindString(2, id);
+                statement.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(@NonNull Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            // the primary key is backed by an index on (store, id)
+            db.execSQL("CREATE TABLE " + TABLE_FENCES + " (" +
+                    COLUMN_STORE + " TEXT NOT NULL, " +
+                    COLUMN_ID + " TEXT NOT NULL, " +
+                    COLUMN_DATA + " TEXT, " +
+                    "PRIMARY KEY (" + COLUMN_STORE + ", " + COLUMN_ID + "))");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.awareness.fence.DetectedActivityFence;
+import com.google.android.gms.awareness.fence.FenceState;
+import com.google.android.gms.awareness.fence.TimeFence;
+import com.google.android.gms.awareness.state.HeadphoneState;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.TimeZone;
+
+import static com.sousoum.jcvd.StorableTimeFence.DAY_MILLIS;
+import static com.sousoum.jcvd.StorableTimeFence.dayOfWeekFlag;
+import static com.sousoum.jcvd.StorableTimeFence.getDayOfWeek;
+import static com.sousoum.jcvd.StorableTimeFence.getWeekPosition;
+
+/**
+ * Evaluates a {@link StorableFence} against a {@link ContextSnapshot}, without calling the Play
+ * Services.
+ * The evaluation uses a three-valued logic: a fence is {@link #TRUE}, {@link #FALSE} or
+ * {@link #UNKNOWN} when the snapshot does not contain enough information. Meta fences are
+ * evaluated with short-circuits: an 'and' stops at the first false fence, an 'or' at the first
+ * true fence.
+ * Transitions (entering, exiting, starting, stopping, plugging in, unplugging) can not be observed
+ * on a snapshot: they are false when the state after the transition does not match the snapshot,
+ * unknown otherwise.
+ * Semantic time intervals (except weekday and weekend) and time instants are always unknown.
+ * The evaluation does not allocate any object.
+ */
+public final class FenceEvaluator {
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({UNKNOWN, FALSE, TRUE})
+    public @interface Result {}
+
+    /** The snapshot does not contain enough information to evaluate the fence. Same value as {@link FenceState#UNKNOWN}. */
+    public static final int UNKNOWN = FenceState.UNKNOWN;
+
+    /** The fence is false. Same value as {@link FenceState#FALSE}. */
+    public static final int FALSE = FenceState.FALSE;
+
+    /** The fence is true. Same value as {@link FenceState#TRUE}. */
+    public static final int TRUE = FenceState.TRUE;
+
+    private FenceEvaluator() {
+    }
+
+    /**
+     * Evaluate a fence against a snapshot.
+     * @param fence the fence to evaluate
+     * @param snapshot the context to evaluate the fence against
+     * @return {@link #TRUE}, {@link #FALSE} or {@link #UNKNOWN}
+     */
+    @Result
+    public static int evaluate(@NonNull StorableFence fence, @NonNull ContextSnapshot snapshot) {
+        switch (fence.getType()) {
+            case META:
+                return evaluateMeta(fence, snapshot);
+            case LOCATION:
+                return evaluateLocation((StorableLocationFence) fence, snapshot);
+            case ACTIVITY:
+                return evaluateActivity((StorableActivityFence) fence, snapshot);
+            case TIME:
+                return evaluateTime((StorableTimeFence) fence, snapshot);
+            case HEADPHONE:
+                return evaluateHeadphone((StorableHeadphoneFence) fence, snapshot);
+        }
+        return UNKNOWN;
+    }
+
+    @Result
+    private static int evaluateMeta(@NonNull StorableFence fence, @NonNull ContextSnapshot snapshot) {
+        // indexed loops do not allocate an iterator
+        ArrayList<StorableFence> andFences = fence.getAndFences();
+        if (!andFences.isEmpty()) {
+            int result = TRUE;
+            for (int i = 0; i < andFences.size(); i++) {
+                StorableFence subFence = andFences.get(i);
+                if (subFence != null) {
+                    int subResult = evaluate(subFence, snapshot);
+                    if (subResult == FALSE) {
+                        return FALSE;
+                    } else if (subResult == UNKNOWN) {
+                        result = UNKNOWN;
+                    }
+                }
+            }
+            return result;
+        }
+
+        ArrayList<StorableFence> orFences = fence.getOrFences();
+        if (!orFences.isEmpty()) {
+            int result = FALSE;
+            for (int i = 0; i < orFences.size(); i++) {
+                StorableFence subFence = orFences.get(i);
+                if (subFence != null) {
+                    int subResult = evaluate(subFence, snapshot);
+                    if (subResult == TRUE) {
+                        return TRUE;
+                    } else if (subResult == UNKNOWN) {
+                        result = UNKNOWN;
+                    }
+                }
+            }
+            return result;
+        }
+
+        StorableFence notFence = fence.getNotFence();
+        if (notFence != null) {
+            return negate(evaluate(notFence, snapshot));
+        }
+        return UNKNOWN;
+    }
+
+    @Result
+    private static int evaluateLocation(@NonNull StorableLocationFence fence,
+                                        @NonNull ContextSnapshot snapshot) {
+        if (!snapshot.hasLocation()) {
+            return UNKNOWN;
+        }
+        boolean inside = LocationFenceIndex.distanceBetween(snapshot.getLatitude(),
+                snapshot.getLongitude(), fence.getLatitude(), fence.getLongitude()) <= fence.getRadius();
+        switch (fence.getTransitionType()) {
+            case StorableLocationFence.IN_TYPE:
+                if (!inside) {
+                    return FALSE;
+                }
+                // the time spent in the fence is not known
+                return (fence.getDwellTimeMillis() <= 0) ? TRUE : UNKNOWN;
+            case StorableLocationFence.ENTER_TYPE:
+                return inside ? UNKNOWN : FALSE;
+            case StorableLocationFence.EXIT_TYPE:
+                return inside ? FALSE : UNKNOWN;
+        }
+        return UNKNOWN;
+    }
+
+    @Result
+    private static int evaluateActivity(@NonNull StorableActivityFence fence,
+                                        @NonNull ContextSnapshot snapshot) {
+        int activityType = snapshot.getActivityType();
+        if (activityType == ContextSnapshot.UNKNOWN_ACTIVITY) {
+            return UNKNOWN;
+        }
+        boolean matches = false;
+        int[] activityTypes = fence.getActivityTypes();
+        for (int i = 0; i < activityTypes.length && !matches; i++) {
+            matches = (activityTypes[i] == activityType) ||
+                    ((activityTypes[i] == DetectedActivityFence.ON_FOOT) &&
+                            ((activityType == DetectedActivityFence.WALKING) ||
+                                    (activityType == DetectedActivityFence.RUNNING)));
+        }
+        switch (fence.getTransitionType()) {
+            case StorableActivityFence.DURING_TYPE:
+                return matches ? TRUE : FALSE;
+            case StorableActivityFence.START_TYPE:
+                return matches ? UNKNOWN : FALSE;
+            case StorableActivityFence.STOP_TYPE:
+                return matches ? FALSE : UNKNOWN;
+        }
+        return UNKNOWN;
+    }
+
+    @Result
+    private static int evaluateHeadphone(@NonNull StorableHeadphoneFence fence,
+                                         @NonNull ContextSnapshot snapshot) {
+        int headphoneState = snapshot.getHeadphoneState();
+        if (headphoneState == ContextSnapshot.UNKNOWN_HEADPHONE_STATE) {
+            return UNKNOWN;
+        }
+        switch (fence.getTriggerType()) {
+            case StorableHeadphoneFence.STATE:
+                return (headphoneState == fence.getHeadphoneState()) ? TRUE : FALSE;
+            case StorableHeadphoneFence.PLUGGING_IN:
+                return (headphoneState == HeadphoneState.PLUGGED_IN) ? UNKNOWN : FALSE;
+            case StorableHeadphoneFence.UNPLUGGING:
+                return (headphoneState == HeadphoneState.UNPLUGGED) ? UNKNOWN : FALSE;
+        }
+        return UNKNOWN;
+    }
+
+    @Result
+    private static int evaluateTime(@NonNull StorableTimeFence fence,
+                                    @NonNull ContextSnapshot snapshot) {
+        if (!snapshot.hasTime()) {
+            return UNKNOWN;
+        }
+        long timeMillis = snapshot.getTimeMillis();
+        switch (fence.getTimingType()) {
+            case StorableTimeFence.ABSOLUTE:
+                return toResult(timeMillis >= fence.getStartTime() && timeMillis < fence.getStopTime());
+            case StorableTimeFence.DAILY:
+                return evaluateTimeOfDay(fence, snapshot, StorableTimeFence.ALL_DAYS_OF_WEEK);
+            case StorableTimeFence.DAY_OF_WEEK:
+                return evaluateTimeOfDay(fence, snapshot, dayOfWeekFlag(fence.getDayOfWeek()));
+            case StorableTimeFence.DAYS_OF_WEEK:
+                return evaluateTimeOfDay(fence, snapshot, fence.getDaysOfWeek());
+            case StorableTimeFence.MONDAY:
+                return evaluateTimeOfDay(fence, snapshot, dayOfWeekFlag(TimeFence.DAY_OF_WEEK_MONDAY));
+            case StorableTimeFence.TUESDAY:
+                return evaluateTimeOfDay(fence, snapshot, dayOfWeekFlag(TimeFence.DAY_OF_WEEK_TUESDAY));
+            case StorableTimeFence.WEDNESDAY:
+                return evaluateTimeOfDay(fence, snapshot, dayOfWeekFlag(TimeFence.DAY_OF_WEEK_WEDNESDAY));
+            case StorableTimeFence.THURSDAY:
+                return evaluateTimeOfDay(fence, snapshot, dayOfWeekFlag(TimeFence.DAY_OF_WEEK_THURSDAY));
+            case StorableTimeFence.FRIDAY:
+                return evaluateTimeOfDay(fence, snapshot, dayOfWeekFlag(TimeFence.DAY_OF_WEEK_FRIDAY));
+            case StorableTimeFence.SATURDAY:
+                return evaluateTimeOfDay(fence, snapshot, dayOfWeekFlag(TimeFence.DAY_OF_WEEK_SATURDAY));
+            case StorableTimeFence.SUNDAY:
+                return evaluateTimeOfDay(fence, snapshot, dayOfWeekFlag(TimeFence.DAY_OF_WEEK_SUNDAY));
+            case StorableTimeFence.TIME_INTERVAL:
+                int dayOfWeek = getDayOfWeek(getWeekPosition(timeMillis, getTimeZone(snapshot.getTimeZone())));
+                boolean weekend = (dayOfWeek == TimeFence.DAY_OF_WEEK_SATURDAY) ||
+                        (dayOfWeek == TimeFence.DAY_OF_WEEK_SUNDAY);
+                if (fence.getTimeInterval() == TimeFence.TIME_INTERVAL_WEEKDAY) {
+                    return toResult(!weekend);
+                } else if (fence.getTimeInterval() == TimeFence.TIME_INTERVAL_WEEKEND) {
+                    return toResult(weekend);
+                }
+                return UNKNOWN;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Evaluate a time fence which interval is expressed in milliseconds since the start of the day
+     * @param daysOfWeek the flags of the days of the week on which the fence is valid, as given
+     *                   by {@link StorableTimeFence#dayOfWeekFlag(int)}
+     */
+    @Result
+    private static int evaluateTimeOfDay(@NonNull StorableTimeFence fence,
+                                         @NonNull ContextSnapshot snapshot, int daysOfWeek) {
+        // fences without time zone use the one of the device
+        TimeZone timeZone = (fence.getSharedTimeZone() != null) ? fence.getSharedTimeZone() : snapshot.getTimeZone();
+        long weekPosition = getWeekPosition(snapshot.getTimeMillis(), getTimeZone(timeZone));
+        if ((daysOfWeek & dayOfWeekFlag(getDayOfWeek(weekPosition))) == 0) {
+            return FALSE;
+        }
+        long timeOfDay = weekPosition % DAY_MILLIS;
+        return toResult(timeOfDay >= fence.getStartTime() && timeOfDay < fence.getStopTime());
+    }
+
+    /**
+     * Get a time zone, or the default one
+     * @param timeZone the time zone, null to use the default one
+     */
+    @NonNull
+    private static TimeZone getTimeZone(@Nullable TimeZone timeZone) {
+        return (timeZone != null) ? timeZone : TimeZone.getDefault();
+    }
+
+    @Result
+    private static int toResult(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    @Result
+    private static int negate(@Result int result) {
+        if (result == TRUE) {
+            return FALSE;
+        } else if (result == FALSE) {
+            return TRUE;
+        }
+        return UNKNOWN;
+    }
+}
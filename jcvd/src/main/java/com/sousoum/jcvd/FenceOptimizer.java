@@ -0,0 +1,254 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Package local class that simplifies a fence tree before it is converted into an awareness fence.
+ * The fences are built exactly as the caller wrote them, this pass removes what the Play Services
+ * would otherwise evaluate for nothing:
+ * - nested 'and' in 'and' and 'or' in 'or' are flattened
+ * - double negations are removed
+ * - identical fences of an 'and' or an 'or' are only kept once
+ * - time fences of an 'and' are intersected and overlapping time fences of an 'or' are merged
+ * - branches that can never be true are dropped
+ * The given fence is never modified: the optimized tree is only used to register the fence, it is
+ * not stored.
+ */
+final class FenceOptimizer {
+
+    /** Marker of a branch that is always true */
+    private static final StorableFence ALWAYS_TRUE = new StorableFence(StorableFence.Type.META);
+
+    /** Marker of a branch that is always false */
+    private static final StorableFence ALWAYS_FALSE = new StorableFence(StorableFence.Type.META);
+
+    private FenceOptimizer() {
+    }
+
+    /**
+     * Optimize a fence
+     * @param fence the fence to optimize
+     * @return a fence that has the same meaning as the given one. It might be the given fence
+     * itself, or share some sub fences with it.
+     */
+    @NonNull
+    static StorableFence optimize(@NonNull StorableFence fence) {
+        StorableFence optimized = simplify(fence);
+        if (optimized == ALWAYS_TRUE || optimized == ALWAYS_FALSE) {
+            // a constant can not be registered, keep the fence as the caller wrote it
+            return fence;
+        }
+        return optimized;
+    }
+
+    @NonNull
+    private static StorableFence simplify(@NonNull StorableFence fence) {
+        if (!fence.getType().equals(StorableFence.Type.META)) {
+            if (fence instanceof StorableTimeFence) {
+                StorableTimeFence timeFence = (StorableTimeFence) fence;
+                if (hasInterval(timeFence) && timeFence.getStartTime() > timeFence.getStopTime()) {
+                    return ALWAYS_FALSE;
+                }
+            }
+            return fence;
+        }
+
+        if (!fence.getAndFences().isEmpty()) {
+            return simplifyJunction(fence.getAndFences(), true);
+        } else if (!fence.getOrFences().isEmpty()) {
+            return simplifyJunction(fence.getOrFences(), false);
+        } else if (fence.getNotFence() != null) {
+            return simplifyNot(fence.getNotFence());
+        }
+        return fence;
+    }
+
+    @NonNull
+    private static StorableFence simplifyNot(@NonNull StorableFence notFence) {
+        StorableFence operand = simplify(notFence);
+        if (operand == ALWAYS_TRUE) {
+            return ALWAYS_FALSE;
+        } else if (operand == ALWAYS_FALSE) {
+            return ALWAYS_TRUE;
+        }
+
+        StorableFence doubleNegated = getNegatedFence(operand);
+        if (doubleNegated != null) {
+            return doubleNegated;
+        }
+        return StorableFence.not(operand);
+    }
+
+    /**
+     * Simplify an 'and' or an 'or'
+     * @param fences the operands
+     * @param isAnd true for an 'and', false for an 'or'
+     * @return the simplified fence
+     */
+    @NonNull
+    private static StorableFence simplifyJunction(@NonNull List<StorableFence> fences, boolean isAnd) {
+        StorableFence absorbing = isAnd ? ALWAYS_FALSE : ALWAYS_TRUE;
+        StorableFence neutral = isAnd ? ALWAYS_TRUE : ALWAYS_FALSE;
+
+        List<StorableFence> operands = new ArrayList<>();
+        for (StorableFence fence : fences) {
+            if (fence == null) {
+                continue;
+            }
+            StorableFence operand = simplify(fence);
+            if (operand == absorbing) {
+                return absorbing;
+            } else if (operand == neutral) {
+                continue;
+            }
+
+            // the simplified operand is already flat, its operands can be added directly
+            List<StorableFence> subOperands = isAnd ? operand.getAndFences() : operand.getOrFences();
+            if (operand.getType().equals(StorableFence.Type.META) && !subOperands.isEmpty()) {
+                for (StorableFence subOperand : subOperands) {
+                    addOperand(operands, subOperand);
+                }
+            } else {
+                addOperand(operands, operand);
+            }
+        }
+
+        // 'a and not a' is always false, 'a or not a' is always true
+        for (StorableFence operand : operands) {
+            StorableFence negatedFence = getNegatedFence(operand);
+            if (negatedFence != null && operands.contains(negatedFence)) {
+                return absorbing;
+            }
+        }
+
+        if (!mergeTimeFences(operands, isAnd)) {
+            return absorbing;
+        }
+
+        if (operands.isEmpty()) {
+            return neutral;
+        } else if (operands.size() == 1) {
+            return operands.get(0);
+        }
+        return isAnd ? StorableFence.and(operands) : StorableFence.or(operands);
+    }
+
+    private static void addOperand(@NonNull List<StorableFence> operands, @NonNull StorableFence operand) {
+        if (!operands.contains(operand)) {
+            operands.add(operand);
+        }
+    }
+
+    /**
+     * Get the fence negated by a 'not' fence
+     * @param fence a fence
+     * @return the negated fence if the given fence is a 'not', null otherwise
+     */
+    @Nullable
+    private static StorableFence getNegatedFence(@NonNull StorableFence fence) {
+        if (fence.getType().equals(StorableFence.Type.META) && fence.getAndFences().isEmpty() &&
+                fence.getOrFences().isEmpty()) {
+            return fence.getNotFence();
+        }
+        return null;
+    }
+
+    /**
+     * Merge the time fences of the same kind in place.
+     * In an 'and' the intervals are intersected, in an 'or' the overlapping intervals are merged.
+     * @param operands the operands of the 'and' or the 'or'
+     * @param isAnd true for an 'and', false for an 'or'
+     * @return false if the intersection of the intervals is empty
+     */
+    private static boolean mergeTimeFences(@NonNull List<StorableFence> operands, boolean isAnd) {
+        int i = 0;
+        while (i < operands.size()) {
+            if (!(operands.get(i) instanceof StorableTimeFence) ||
+                    !hasInterval((StorableTimeFence) operands.get(i))) {
+                i++;
+                continue;
+            }
+
+            boolean merged = false;
+            for (int j = i + 1; j < operands.size() && !merged; j++) {
+                if (!(operands.get(j) instanceof StorableTimeFence)) {
+                    continue;
+                }
+                StorableTimeFence first = (StorableTimeFence) operands.get(i);
+                StorableTimeFence second = (StorableTimeFence) operands.get(j);
+                if (!canBeMerged(first, second)) {
+                    continue;
+                }
+
+                if (isAnd) {
+                    long startTime = Math.max(first.getStartTime(), second.getStartTime());
+                    long stopTime = Math.min(first.getStopTime(), second.getStopTime());
+                    if (startTime > stopTime) {
+                        return false;
+                    }
+                    operands.set(i, first.withInterval(startTime, stopTime));
+                    operands.remove(j);
+                    merged = true;
+                } else if (first.getStartTime() <= second.getStopTime() &&
+                        second.getStartTime() <= first.getStopTime()) {
+                    operands.set(i, first.withInterval(
+                            Math.min(first.getStartTime(), second.getStartTime()),
+                            Math.max(first.getStopTime(), second.getStopTime())));
+                    operands.remove(j);
+                    merged = true;
+                }
+            }
+
+            // a merged interval might now overlap an interval it has already been compared to
+            if (!merged) {
+                i++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the time fence is valid during an interval defined by its start and stop time
+     */
+    private static boolean hasInterval(@NonNull StorableTimeFence fence) {
+        switch (fence.getTimingType()) {
+            case StorableTimeFence.ABSOLUTE:
+            case StorableTimeFence.DAILY:
+            case StorableTimeFence.DAY_OF_WEEK:
+            case StorableTimeFence.DAYS_OF_WEEK:
+            case StorableTimeFence.MONDAY:
+            case StorableTimeFence.TUESDAY:
+            case StorableTimeFence.WEDNESDAY:
+            case StorableTimeFence.THURSDAY:
+            case StorableTimeFence.FRIDAY:
+            case StorableTimeFence.SATURDAY:
+            case StorableTimeFence.SUNDAY:
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the intervals of two time fences are expressed on the same time line
+     */
+    private static boolean canBeMerged(@NonNull StorableTimeFence first,
+                                       @NonNull StorableTimeFence second) {
+        if (first.getTimingType() != second.getTimingType() || !hasInterval(second) ||
+                first.getDayOfWeek() != second.getDayOfWeek() ||
+                first.getDaysOfWeek() != second.getDaysOfWeek()) {
+            return false;
+        }
+        TimeZone firstTimeZone = first.getSharedTimeZone();
+        TimeZone secondTimeZone = second.getSharedTimeZone();
+        if (firstTimeZone == null || secondTimeZone == null) {
+            return firstTimeZone == secondTimeZone;
+        }
+        return firstTimeZone.getID().equals(secondTimeZone.getID()) &&
+                firstTimeZone.hasSameRules(secondTimeZone);
+    }
+}
@@ -1,150 +1,463 @@
-package com.sousoum.jcvd;
-
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.support.annotation.NonNull;
-
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
-
-class FenceStore {
-
-    /**
-     * Package local class that stores fence
-     * This implementation stores the fences in the preferences
-     */
-
-    private static final String TAG = "FenceStore";
-
-    private static final String SHARED_PREFS = "JCVDLibStore";
-
-    private static final String FENCE_ID_SET_KEY = "FENCE_ID_SET_KEY";
-
-    private final String mPrefix;
-    private final SharedPreferences mPrefs;
-
-    public FenceStore(@NonNull Context context, @NonNull String prefix) {
-        mPrefix = prefix;
-
-        mPrefs = context.getSharedPreferences(SHARED_PREFS, Context.MODE_PRIVATE);
-    }
-
-    /**
-     * Store a fence in the store
-     * @param fence the fence to store
-     */
-    void storeFence(@NonNull StorableFence fence) {
-        Set<String> setTmp = mPrefs.getStringSet(mPrefix + FENCE_ID_SET_KEY, null);
-        HashSet<String> fenceIdSet;
-        if (setTmp == null) {
-            fenceIdSet = new HashSet<>();
-        } else {
-            fenceIdSet = new HashSet<>(setTmp);
-        }
-
-        SharedPreferences.Editor editor = mPrefs.edit();
-        editor.putString(mPrefix + fence.getId(), StorableFence.fenceToString(fence));
-
-        fenceIdSet.add(fence.getId());
-        editor.putStringSet(mPrefix + FENCE_ID_SET_KEY, fenceIdSet);
-        editor.apply();
-    }
-
-    /**
-     * Remove a fence from the store based on its id
-     * @param id the id of the fence to remove
-     */
-    public void removeFence(@NonNull String id) {
-        Set<String> fenceIdSet = mPrefs.getStringSet(mPrefix + FENCE_ID_SET_KEY, null);
-        if ((fenceIdSet != null) && fenceIdSet.contains(id)) {
-            SharedPreferences.Editor editor = mPrefs.edit();
-
-            editor.remove(mPrefix + id);
-
-            fenceIdSet.remove(id);
-            editor.putStringSet(FENCE_ID_SET_KEY, fenceIdSet);
-            editor.apply();
-        }
-    }
-
-    /**
-     * Get a stored fence by its id
-     * @param id the id of the fence to retrieve
-     * @return a fence if found, otherwise null
-     */
-    private StorableFence getStoredFence(String id) {
-        StorableFence fence = null;
-        String jsonStr = mPrefs.getString(mPrefix + id, null);
-        if (jsonStr != null) {
-            fence = StorableFence.stringToFence(jsonStr);
-        }
-
-        return fence;
-    }
-
-    /**
-     * Stores immediately the given fence id to the store
-     * @param fenceId the id of the fence to add
-     */
-    public void storeFenceId(@NonNull String fenceId) {
-        Set<String> setTmp = mPrefs.getStringSet(mPrefix + FENCE_ID_SET_KEY, null);
-        HashSet<String> fenceIdSet;
-        if (setTmp == null) {
-            fenceIdSet = new HashSet<>();
-        } else {
-            fenceIdSet = new HashSet<>(setTmp);
-        }
-
-        SharedPreferences.Editor editor = mPrefs.edit();
-
-        fenceIdSet.add(fenceId);
-        editor.putStringSet(mPrefix + FENCE_ID_SET_KEY, fenceIdSet);
-
-        editor.apply();
-    }
-
-    /**
-     * Get all stored fences.
-     * @return a list of StorableFence (can not be null)
-     */
-    @NonNull
-    public ArrayList<StorableFence> getAllFences() {
-        ArrayList<StorableFence> fenceList = new ArrayList<>();
-
-        Set<String> setTmp = mPrefs.getStringSet(mPrefix + FENCE_ID_SET_KEY, null);
-        HashSet<String> fenceIdSet;
-        if (setTmp == null) {
-            fenceIdSet = new HashSet<>();
-        } else {
-            fenceIdSet = new HashSet<>(setTmp);
-        }
-
-        for (String fenceId : fenceIdSet) {
-            StorableFence storableFence = getStoredFence(fenceId);
-
-            if (storableFence != null) {
-                fenceList.add(storableFence);
-            }
-        }
-
-        return fenceList;
-    }
-
-    /**
-     * Get all stored fence ids.
-     * @return a set of String (can not be null)
-     */
-    @NonNull
-    public Set<String> getAllFenceIds() {
-        Set<String> setTmp = mPrefs.getStringSet(mPrefix + FENCE_ID_SET_KEY, null);
-        HashSet<String> fenceIdSet;
-        if (setTmp == null) {
-            fenceIdSet = new HashSet<>();
-        } else {
-            fenceIdSet = new HashSet<>(setTmp);
-        }
-
-        return fenceIdSet;
-    }
-}
+package com.sousoum.jcvd;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class FenceStore {
+
+    /**
+     * Package local class that stores fence
+     * The fences are encoded by {@link StorableFenceCodec} and persisted by a
+     * {@link FenceStoreBackend}. By default, they are stored in the preferences.
+     * Stored fences are also kept decoded in memory: the backend is only read and parsed
+     * once, then the memory cache is updated at the same time as the backend. The cache holds
+     * its own decoded instances, never the fences given by the callers, so that modifying a fence
+     * once stored does not modify the store.
+     * A store can be used from multiple threads. Writers are serialized, and each write publishes
+     * a new immutable snapshot of the stored fences: readers use the last published snapshot
+     * without any lock, so reads never wait for a write to be persisted.
+     */
+
+    private static final String TAG = "FenceStore";
+
+    @NonNull
+    private final String mName;
+
+    @NonNull
+    private final FenceStoreBackend mBackend;
+
+    /** Serializes the writes, and the load of the store */
+    private final Object mWriteLock = new Object();
+
+    /** Last published content of the store. Null until the store has been loaded. */
+    @Nullable
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * Spatial index over the location fences. Null until it has been queried once.
+     * Created and updated by the writers, queried under its own lock.
+     */
+    @Nullable
+    private volatile LocationFenceIndex mLocationIndex;
+
+    /**
+     * Interval index over the time fences. Null until it has been queried once.
+     * Created and updated by the writers, queried under its own lock.
+     */
+    @Nullable
+    private volatile TimeFenceIndex mTimeIndex;
+
+    public FenceStore(@NonNull Context context, @NonNull String prefix) {
+        this(prefix, new PreferencesFenceStoreBackend(context, prefix));
+    }
+
+    /**
+     * Constructor.
+     * @param name the name of the store, only used for logging
+     * @param backend the backend that persists the fences
+     */
+    FenceStore(@NonNull String name, @NonNull FenceStoreBackend backend) {
+        mName = name;
+        mBackend = backend;
+    }
+
+    /**
+     * Store a fence in the store
+     * @param fence the fence to store
+     */
+    void storeFence(@NonNull StorableFence fence) {
+        storeFences(Collections.singletonList(fence));
+    }
+
+    /**
+     * Store multiple fences in the store, in one transaction
+     * @param fences the fences to store
+     */
+    void storeFences(@NonNull Collection<StorableFence> fences) {
+        synchronized (mWriteLock) {
+            Snapshot snapshot = getSnapshot();
+
+            HashMap<String, String> entries = new HashMap<>();
+            HashMap<String, StorableFence> decodedFences = new HashMap<>();
+            for (StorableFence fence : fences) {
+                String encodedStr = StorableFenceCodec.encodeToString(fence);
+                entries.put(fence.getId(), encodedStr);
+                StorableFence decodedFence = StorableFenceCodec.decodeFromString(encodedStr);
+                decodedFences.put(fence.getId(), (decodedFence != null) ? decodedFence : fence);
+            }
+            mBackend.write(entries);
+
+            HashSet<String> fenceIds = new HashSet<>(snapshot.mFenceIds);
+            fenceIds.addAll(decodedFences.keySet());
+            HashMap<String, StorableFence> storedFences = new HashMap<>(snapshot.mFences);
+            storedFences.putAll(decodedFences);
+            mSnapshot = new Snapshot(fenceIds, storedFences);
+
+            LocationFenceIndex locationIndex = mLocationIndex;
+            if (locationIndex != null) {
+                synchronized (locationIndex) {
+                    for (Map.Entry<String, StorableFence> entry : decodedFences.entrySet()) {
+                        locationIndex.add(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+
+            TimeFenceIndex timeIndex = mTimeIndex;
+            if (timeIndex != null) {
+                synchronized (timeIndex) {
+                    for (Map.Entry<String, StorableFence> entry : decodedFences.entrySet()) {
+                        timeIndex.add(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a fence from the store based on its id
+     * @param id the id of the fence to remove
+     */
+    public void removeFence(@NonNull String id) {
+        removeFences(Collections.singleton(id));
+    }
+
+    /**
+     * Remove multiple fences from the store based on their ids, in one transaction
+     * @param ids the ids of the fences to remove
+     */
+    public void removeFences(@NonNull Collection<String> ids) {
+        synchronized (mWriteLock) {
+            Snapshot snapshot = getSnapshot();
+
+            mBackend.delete(ids);
+
+            HashSet<String> fenceIds = new HashSet<>(snapshot.mFenceIds);
+            HashMap<String, StorableFence> storedFences = new HashMap<>(snapshot.mFences);
+            for (String id : ids) {
+                fenceIds.remove(id);
+                storedFences.remove(id);
+            }
+            mSnapshot = new Snapshot(fenceIds, storedFences);
+
+            LocationFenceIndex locationIndex = mLocationIndex;
+            if (locationIndex != null) {
+                synchronized (locationIndex) {
+                    for (String id : ids) {
+                        locationIndex.remove(id);
+                    }
+                }
+            }
+
+            TimeFenceIndex timeIndex = mTimeIndex;
+            if (timeIndex != null) {
+                synchronized (timeIndex) {
+                    for (String id : ids) {
+                        timeIndex.remove(id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove multiple fences from the store, in one transaction, unless another fence has been
+     * stored with the same id in the meantime
+     * @param fences the fences to remove
+     */
+    void removeFencesIfUnchanged(@NonNull Collection<StorableFence> fences) {
+        synchronized (mWriteLock) {
+            Snapshot snapshot = getSnapshot();
+
+            ArrayList<String> ids = new ArrayList<>(fences.size());
+            for (StorableFence fence : fences) {
+                StorableFence storedFence = snapshot.mFences.get(fence.getId());
+                if (storedFence == null || storedFence.equals(fence)) {
+                    ids.add(fence.getId());
+                }
+            }
+            if (!ids.isEmpty()) {
+                removeFences(ids);
+            }
+        }
+    }
+
+    /**
+     * Stores immediately the given fence id to the store
+     * @param fenceId the id of the fence to add
+     */
+    public void storeFenceId(@NonNull String fenceId) {
+        storeFenceIds(Collections.singleton(fenceId));
+    }
+
+    /**
+     * Stores immediately the given fence ids to the store, in one transaction
+     * @param fenceIds the ids of the fences to add
+     */
+    public void storeFenceIds(@NonNull Collection<String> fenceIds) {
+        synchronized (mWriteLock) {
+            Snapshot snapshot = getSnapshot();
+
+            HashMap<String, String> entries = new HashMap<>();
+            for (String fenceId : fenceIds) {
+                entries.put(fenceId, null);
+            }
+            mBackend.write(entries);
+
+            HashSet<String> storedIds = new HashSet<>(snapshot.mFenceIds);
+            storedIds.addAll(fenceIds);
+            mSnapshot = new Snapshot(storedIds, snapshot);
+        }
+    }
+
+    /**
+     * Get a stored fence by its id.
+     * This does not parse anything once the store has been loaded.
+     * @param id the id of the fence to retrieve
+     * @return a fence if found, otherwise null
+     */
+    @Nullable
+    public StorableFence getFence(@NonNull String id) {
+        return getSnapshot().mFences.get(id);
+    }
+
+    /**
+     * Whether a fence id is stored.
+     * @param id the id of the fence
+     * @return true if the id is stored, with or without a fence
+     */
+    public boolean containsFenceId(@NonNull String id) {
+        return getSnapshot().mFenceIds.contains(id);
+    }
+
+    /**
+     * Get all stored fences.
+     * @return a list of StorableFence (can not be null)
+     */
+    @NonNull
+    public ArrayList<StorableFence> getAllFences() {
+        return new ArrayList<>(getSnapshot().mFences.values());
+    }
+
+    /**
+     * Get all stored fence ids.
+     * @return a set of String (can not be null)
+     */
+    @NonNull
+    public Set<String> getAllFenceIds() {
+        return new HashSet<>(getSnapshot().mFenceIds);
+    }
+
+    /**
+     * Get the stored fences that contain a location fence which contains the given point.
+     * Location fences nested in meta fences are taken into account, but the logic of the meta
+     * fences is not evaluated.
+     * This uses a spatial index, built on the first call and updated with the store.
+     * @param latitude the latitude of the point
+     * @param longitude the longitude of the point
+     * @return a list of StorableFence (can not be null)
+     */
+    @NonNull
+    ArrayList<StorableFence> getFencesContaining(double latitude, double longitude) {
+        LocationFenceIndex locationIndex = getLocationIndex();
+        Set<String> ids;
+        synchronized (locationIndex) {
+            ids = locationIndex.findContaining(latitude, longitude);
+        }
+        return getFences(ids);
+    }
+
+    /**
+     * Get the stored fences whose location fences are the nearest to the given point.
+     * This uses a spatial index, built on the first call and updated with the store.
+     * @param latitude the latitude of the point
+     * @param longitude the longitude of the point
+     * @param count the maximum number of fences to return
+     * @return a list of StorableFence, sorted from the nearest to the farthest (can not be null)
+     */
+    @NonNull
+    ArrayList<StorableFence> getNearestFences(double latitude, double longitude, int count) {
+        LocationFenceIndex locationIndex = getLocationIndex();
+        List<String> ids;
+        synchronized (locationIndex) {
+            ids = locationIndex.findNearest(latitude, longitude, count);
+        }
+        return getFences(ids);
+    }
+
+    /**
+     * Get the stored fences that contain a time fence active at the given time.
+     * Absolute, daily and day of week time fences nested in meta fences are taken into account,
+     * but the logic of the meta fences is not evaluated.
+     * This uses an interval index, built on the first call and updated with the store.
+     * @param time the time in milliseconds since epoch
+     * @return a list of StorableFence (can not be null)
+     */
+    @NonNull
+    ArrayList<StorableFence> getFencesActiveAt(long time) {
+        TimeFenceIndex timeIndex = getTimeIndex();
+        Set<String> ids;
+        synchronized (timeIndex) {
+            ids = timeIndex.findActiveAt(time);
+        }
+        return getFences(ids);
+    }
+
+    /**
+     * Get the next time at which a time fence of the stored fences becomes active or inactive.
+     * This uses an interval index, built on the first call and updated with the store.
+     * @param time the time in milliseconds since epoch
+     * @return the time of the transition in milliseconds since epoch, {@link Long#MAX_VALUE} if
+     * there is none
+     */
+    long getNextTimeTransitionAfter(long time) {
+        TimeFenceIndex timeIndex = getTimeIndex();
+        synchronized (timeIndex) {
+            return timeIndex.findNextTransitionAfter(time);
+        }
+    }
+
+    @NonNull
+    private ArrayList<StorableFence> getFences(@NonNull Collection<String> ids) {
+        Map<String, StorableFence> storedFences = getSnapshot().mFences;
+        ArrayList<StorableFence> fences = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            StorableFence fence = storedFences.get(id);
+            if (fence != null) {
+                fences.add(fence);
+            }
+        }
+        return fences;
+    }
+
+    /**
+     * Get the spatial index, build it if not already done.
+     */
+    @NonNull
+    private LocationFenceIndex getLocationIndex() {
+        LocationFenceIndex locationIndex = mLocationIndex;
+        if (locationIndex == null) {
+            synchronized (mWriteLock) {
+                locationIndex = mLocationIndex;
+                if (locationIndex == null) {
+                    locationIndex = new LocationFenceIndex();
+                    for (Map.Entry<String, StorableFence> entry : getSnapshot().mFences.entrySet()) {
+                        locationIndex.add(entry.getKey(), entry.getValue());
+                    }
+                    mLocationIndex = locationIndex;
+                }
+            }
+        }
+        return locationIndex;
+    }
+
+    /**
+     * Get the interval index, build it if not already done.
+     */
+    @NonNull
+    private TimeFenceIndex getTimeIndex() {
+        TimeFenceIndex timeIndex = mTimeIndex;
+        if (timeIndex == null) {
+            synchronized (mWriteLock) {
+                timeIndex = mTimeIndex;
+                if (timeIndex == null) {
+                    timeIndex = new TimeFenceIndex();
+                    for (Map.Entry<String, StorableFence> entry : getSnapshot().mFences.entrySet()) {
+                        timeIndex.add(entry.getKey(), entry.getValue());
+                    }
+                    mTimeIndex = timeIndex;
+                }
+            }
+        }
+        return timeIndex;
+    }
+
+    /**
+     * Get the last published snapshot, read and decode all the stored fences if not already done.
+     */
+    @NonNull
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (mWriteLock) {
+                snapshot = mSnapshot;
+                if (snapshot == null) {
+                    snapshot = load();
+                    mSnapshot = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Read and decode all the stored fences.
+     */
+    @NonNull
+    private Snapshot load() {
+        Map<String, String> entries = mBackend.loadAll();
+
+        HashSet<String> fenceIdSet = new HashSet<>(entries.keySet());
+        HashMap<String, StorableFence> fences = new HashMap<>();
+        HashMap<String, String> migratedEntries = new HashMap<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String encodedStr = entry.getValue();
+            StorableFence storableFence = null;
+            if (encodedStr != null) {
+                storableFence = StorableFenceCodec.decodeFromString(encodedStr);
+            }
+
+            if (storableFence != null) {
+                fences.put(entry.getKey(), storableFence);
+
+                // rewrite the fences stored in the legacy JSON format in the binary format
+                if (StorableFenceCodec.isLegacy(encodedStr)) {
+                    migratedEntries.put(entry.getKey(),
+                            StorableFenceCodec.encodeToString(storableFence));
+                }
+            }
+        }
+        if (!migratedEntries.isEmpty()) {
+            Log.i(TAG, "Migrated fences of " + mName + " to the binary format");
+            mBackend.write(migratedEntries);
+        }
+
+        return new Snapshot(fenceIdSet, fences);
+    }
+
+    /**
+     * Immutable content of the store at a given time
+     */
+    private static final class Snapshot {
+        /** Ids of all the stored fences */
+        @NonNull
+        final Set<String> mFenceIds;
+
+        /** Decoded fences indexed by their id */
+        @NonNull
+        final Map<String, StorableFence> mFences;
+
+        Snapshot(@NonNull Set<String> fenceIds, @NonNull Map<String, StorableFence> fences) {
+            mFenceIds = Collections.unmodifiableSet(fenceIds);
+            mFences = Collections.unmodifiableMap(fences);
+        }
+
+        /**
+         * Constructor of a snapshot that only differs from the previous one by its ids
+         */
+        Snapshot(@NonNull Set<String> fenceIds, @NonNull Snapshot previous) {
+            mFenceIds = Collections.unmodifiableSet(fenceIds);
+            mFences = previous.mFences;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Package local interface of the persistent storage used by a {@link FenceStore}.
+ * An entry is identified by the id of the fence and holds the encoded fence, or null if only
+ * the id is stored.
+ */
+interface FenceStoreBackend {
+
+    /**
+     * Read all the entries of the storage
+     * @return a map of the encoded fences (or null if only the id is stored) indexed by their id
+     */
+    @NonNull
+    Map<String, String> loadAll();
+
+    /**
+     * Write or replace the given entries, in one transaction
+     * An entry with a null value only stores its id: the encoded fence already stored for this
+     * id, if any, is kept.
+     * @param entries the encoded fences (or null to only store the id) indexed by their id
+     */
+    void write(@NonNull Map<String, String> entries);
+
+    /**
+     * Delete the given entries, in one transaction
+     * Ids that are not stored are ignored.
+     * @param ids the ids of the entries to delete
+     */
+    void delete(@NonNull Collection<String> ids);
+}
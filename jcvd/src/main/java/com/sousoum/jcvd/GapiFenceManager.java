@@ -1,133 +1,478 @@
-package com.sousoum.jcvd;
-
-import android.app.PendingIntent;
-import android.content.Context;
-import android.content.Intent;
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
-import android.support.annotation.VisibleForTesting;
-
-import com.google.android.gms.awareness.Awareness;
-import com.google.android.gms.awareness.FenceClient;
-import com.google.android.gms.awareness.fence.AwarenessFence;
-import com.google.android.gms.awareness.fence.FenceUpdateRequest;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.common.api.Status;
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.Task;
-
-/**
- * Class that manages addition and deletion of Fences in the Google API Client.
- * It uses a store to remember all fences that are currently in the Google API Client.
- * The store is currently backed by the shared preferences
- */
-class GapiFenceManager {
-
-    private static final String TAG = "GapiFenceManager";
-
-    @NonNull
-    private final Context mContext;
-
-    @NonNull
-    private final FenceClient mFenceClient;
-
-    /**
-     * Constructor.
-     *
-     * @param context a context
-     */
-    GapiFenceManager(@NonNull Context context) {
-        mContext = context;
-
-        mFenceClient = createFenceClient();
-    }
-
-    @VisibleForTesting
-    protected FenceClient createFenceClient() {
-        return Awareness.getFenceClient(mContext);
-    }
-
-    /**
-     * Add a fence to the Google API
-     * If not connected, this will only trigger a connection.
-     * This call requires that the following granted permissions:
-     *      - ACCESS_FINE_LOCATION if one of the fence is a {@link StorableLocationFence}
-     *      - ACTIVITY_RECOGNITION if one of the fence is a {@link StorableActivityFence}
-     * @param id the unique id of the fence.
-     * @param fence the fence to store
-     * @param pendingIntentClassName the class name of the pending intent to call when the fence will be valid.
-     * @param status the status that will be called when the addition fails or succeed.
-     * @return true if add has been asked, false otherwise.
-     */
-    boolean addFence(@NonNull String id, @NonNull AwarenessFence fence,
-                            @NonNull String pendingIntentClassName, @Nullable final ResultCallback<Status> status) {
-
-        FenceUpdateRequest.Builder requestBuilder = new FenceUpdateRequest.Builder()
-                .addFence(id, fence, createRequestPendingIntent(pendingIntentClassName));
-
-        mFenceClient.updateFences(requestBuilder.build())
-                .addOnCompleteListener(new OnCompleteListener<Void>() {
-                    @Override
-                    public void onComplete(@NonNull Task<Void> task) {
-                        if (status != null) {
-                            if (task.isSuccessful()) {
-                                status.onResult(Status.RESULT_SUCCESS);
-                            } else {
-                                status.onResult(Status.RESULT_INTERNAL_ERROR);
-                            }
-                        }
-                    }
-                });
-        return true;
-    }
-
-    /**
-     * Ask to remove a fence from the Google API.
-     * @param fenceId The id of the fence to remove.
-     * @param status the status that will be called when the addition fails or succeed.
-     * @return true if remove has been asked, false otherwise.
-     */
-    boolean removeFence(@NonNull String fenceId, final ResultCallback<Status> status) {
-        FenceUpdateRequest.Builder requestBuilder = new FenceUpdateRequest.Builder()
-                .removeFence(fenceId);
-
-        mFenceClient.updateFences(requestBuilder.build()).addOnCompleteListener(new OnCompleteListener<Void>() {
-            @Override
-            public void onComplete(@NonNull Task<Void> task) {
-                if (task.isSuccessful()) {
-                    status.onResult(Status.RESULT_SUCCESS);
-                } else {
-                    status.onResult(Status.RESULT_INTERNAL_ERROR);
-                }
-            }
-        });
-        return true;
-    }
-
-    /**
-     * Create a pending intent from the storable fence
-     * @param pendingIntentClassName The storable fence which should contain the class name of the pending intent
-     * @return The pending intent of the class if it has been successfully loaded, or a DefaultTransitionsIntentService
-     */
-    private PendingIntent createRequestPendingIntent(@NonNull String pendingIntentClassName) {
-        PendingIntent pendingIntent = null;
-        try {
-            Class classOfPendingIntent = Class.forName(pendingIntentClassName);
-            if (classOfPendingIntent != null) {
-                // Create an Intent pointing to the IntentService
-                Intent intent = new Intent(mContext, classOfPendingIntent);
-
-                // Return a PendingIntent to start the IntentService.
-                // Always create a PendingIntent sent to Location Services
-                // with FLAG_UPDATE_CURRENT, so that sending the PendingIntent
-                // again updates the original. Otherwise, Location Services
-                // can't match the PendingIntent to requests made with it.
-                pendingIntent = PendingIntent.getService(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-            }
-
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        }
-        return pendingIntent;
-    }
-}
+package com.sousoum.jcvd;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.google.android.gms.awareness.Awareness;
+import com.google.android.gms.awareness.FenceClient;
+import com.google.android.gms.awareness.fence.AwarenessFence;
+import com.google.android.gms.awareness.fence.FenceQueryRequest;
+import com.google.android.gms.awareness.fence.FenceQueryResponse;
+import com.google.android.gms.awareness.fence.FenceUpdateRequest;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class that manages addition and deletion of Fences in the Google API Client.
+ * It uses a store to remember all fences that are currently in the Google API Client.
+ * The store is currently backed by the shared preferences
+ */
+class GapiFenceManager {
+
+    private static final String TAG = "GapiFenceManager";
+
+    /**
+     * Maximum number of additions and removals packed in one {@link FenceUpdateRequest}.
+     * This keeps each request far below the binder transaction limit.
+     */
+    @VisibleForTesting
+    static final int MAX_OPERATIONS_PER_REQUEST = 50;
+
+    /**
+     * Extra of the transition intent that contains the fence, encoded with
+     * {@link StorableFenceCodec#encode(StorableFence)}.
+     * @see StorableFence#fromTransitionIntent(Intent)
+     */
+    static final String EXTRA_ENCODED_FENCE = "com.sousoum.jcvd.EXTRA_ENCODED_FENCE";
+
+    /**
+     * Prefix of the action of the transition intents that contain an encoded fence.
+     * Extras are not taken into account to tell pending intents apart, so the id of the fence is
+     * appended to this prefix to get one pending intent per fence.
+     */
+    private static final String ACTION_FENCE_PREFIX = "com.sousoum.jcvd.FENCE.";
+
+    /**
+     * Informs about the fences that are registered in the Google API Client
+     */
+    interface FenceIdsListener {
+        /**
+         * Called when the registered fences are known
+         * @param fenceIds the ids of the registered fences, null if they could not be queried
+         */
+        void onFenceIds(@Nullable Set<String> fenceIds);
+    }
+
+    /**
+     * Informs about the fences that have been successfully added or removed, and about the
+     * requests that failed
+     */
+    interface RegistrationListener {
+        /**
+         * Called when fences have been successfully added
+         * @param additions the additions that succeeded
+         */
+        void onFencesAdded(@NonNull List<FenceAddition> additions);
+
+        /**
+         * Called when fences have been successfully removed
+         * @param fenceIds the ids of the removed fences
+         */
+        void onFencesRemoved(@NonNull List<String> fenceIds);
+
+        /**
+         * Called when a request to the Google API Client failed
+         */
+        void onRequestFailed();
+    }
+
+    /**
+     * A fence addition, as submitted by {@link #updateFences(List, List)}.
+     */
+    static final class FenceAddition {
+        @NonNull
+        final String mId;
+        @Nullable
+        final AwarenessFence mFence;
+        @NonNull
+        final String mPendingIntentClassName;
+        @Nullable
+        final byte[] mEncodedFence;
+        /** Fingerprint of what is registered, see {@link StorableFence#getFingerprint()} */
+        final long mFingerprint;
+        @Nullable
+        final ResultCallback<Status> mStatus;
+
+        /**
+         * Constructor.
+         * @param id the unique id of the fence.
+         * @param fence the fence to add. If null, the addition will be reported as failed.
+         * @param pendingIntentClassName the class name of the pending intent to call when the fence will be valid.
+         * @param status the status that will be called when the addition fails or succeed.
+         */
+        FenceAddition(@NonNull String id, @Nullable AwarenessFence fence,
+                      @NonNull String pendingIntentClassName, @Nullable ResultCallback<Status> status) {
+            this(id, fence, pendingIntentClassName, null, 0, status);
+        }
+
+        /**
+         * Constructor.
+         * @param id the unique id of the fence.
+         * @param fence the fence to add. If null, the addition will be reported as failed.
+         * @param pendingIntentClassName the class name of the pending intent to call when the fence will be valid.
+         * @param encodedFence the encoded fence to put in the transition intent. If null, the
+         *                     transition intent will not contain the fence.
+         * @param fingerprint the fingerprint of what is registered, reported to the
+         *                    {@link RegistrationListener}.
+         * @param status the status that will be called when the addition fails or succeed.
+         */
+        FenceAddition(@NonNull String id, @Nullable AwarenessFence fence,
+                      @NonNull String pendingIntentClassName, @Nullable byte[] encodedFence,
+                      long fingerprint, @Nullable ResultCallback<Status> status) {
+            mId = id;
+            mFence = fence;
+            mPendingIntentClassName = pendingIntentClassName;
+            mEncodedFence = encodedFence;
+            mFingerprint = fingerprint;
+            mStatus = status;
+        }
+    }
+
+    /**
+     * A fence removal, as submitted by {@link #updateFences(List, List)}.
+     */
+    static final class FenceRemoval {
+        @NonNull
+        final String mId;
+        @Nullable
+        final ResultCallback<Status> mStatus;
+
+        /**
+         * Constructor.
+         * @param id the id of the fence to remove.
+         * @param status the status that will be called when the removal fails or succeed.
+         */
+        FenceRemoval(@NonNull String id, @Nullable ResultCallback<Status> status) {
+            mId = id;
+            mStatus = status;
+        }
+    }
+
+    @NonNull
+    private final Context mContext;
+
+    @NonNull
+    private final FenceClient mFenceClient;
+
+    @Nullable
+    private volatile RegistrationListener mRegistrationListener;
+
+    /**
+     * Constructor.
+     *
+     * @param context a context
+     */
+    GapiFenceManager(@NonNull Context context) {
+        mContext = context;
+
+        mFenceClient = createFenceClient();
+    }
+
+    @VisibleForTesting
+    protected FenceClient createFenceClient() {
+        return Awareness.getFenceClient(mContext);
+    }
+
+    /**
+     * Set the listener informed about the successful additions and removals
+     * @param registrationListener the listener, can be null
+     */
+    void setRegistrationListener(@Nullable RegistrationListener registrationListener) {
+        mRegistrationListener = registrationListener;
+    }
+
+    /**
+     * Add and remove multiple fences with as few requests as possible.
+     * Operations are packed in requests of at most {@link #MAX_OPERATIONS_PER_REQUEST} operations,
+     * additions first, then removals.
+     * Each status is called once per fence. If a request that contains several operations fails,
+     * each of its operations is retried alone, so that a single faulty fence does not
+     * prevent the others to be synchronized. Such a request is only reported as failed to the
+     * registration listener if all its operations failed again.
+     * @param additions the fences to add
+     * @param removals the fences to remove
+     * @return true if the update has been asked, false otherwise.
+     */
+    boolean updateFences(@NonNull List<FenceAddition> additions, @NonNull List<FenceRemoval> removals) {
+        updateFences(additions, removals, null);
+        return true;
+    }
+
+    /**
+     * Add and remove multiple fences with as few requests as possible.
+     * @param additions the fences to add
+     * @param removals the fences to remove
+     * @param isolatedRetries if not null, the operations are retried alone after the failure of
+     *                        their batch and their results are reported to this object instead of
+     *                        being counted as failed requests
+     */
+    private void updateFences(@NonNull List<FenceAddition> additions, @NonNull List<FenceRemoval> removals,
+                              @Nullable IsolatedRetries isolatedRetries) {
+        // pending intents are shared between all the fences that have the same class, except the
+        // ones that contain their fence
+        HashMap<String, PendingIntent> pendingIntents = new HashMap<>();
+
+        FenceUpdateRequest.Builder requestBuilder = new FenceUpdateRequest.Builder();
+        List<FenceAddition> batchAdditions = new ArrayList<>();
+        List<FenceRemoval> batchRemovals = new ArrayList<>();
+
+        for (FenceAddition addition : additions) {
+            if (addition.mFence == null) {
+                Log.e(TAG, "Error : fence " + addition.mId + " has no awareness fence, it can't be added");
+                if (addition.mStatus != null) {
+                    addition.mStatus.onResult(Status.RESULT_INTERNAL_ERROR);
+                }
+                continue;
+            }
+
+            PendingIntent pendingIntent;
+            if (addition.mEncodedFence != null) {
+                pendingIntent = createRequestPendingIntent(addition.mPendingIntentClassName,
+                        addition.mId, addition.mEncodedFence);
+            } else {
+                pendingIntent = pendingIntents.get(addition.mPendingIntentClassName);
+                if (pendingIntent == null) {
+                    pendingIntent = createRequestPendingIntent(addition.mPendingIntentClassName);
+                    pendingIntents.put(addition.mPendingIntentClassName, pendingIntent);
+                }
+            }
+            requestBuilder.addFence(addition.mId, addition.mFence, pendingIntent);
+            batchAdditions.add(addition);
+
+            if (batchAdditions.size() + batchRemovals.size() >= MAX_OPERATIONS_PER_REQUEST) {
+                submitBatch(requestBuilder, batchAdditions, batchRemovals, isolatedRetries);
+                requestBuilder = new FenceUpdateRequest.Builder();
+                batchAdditions = new ArrayList<>();
+                batchRemovals = new ArrayList<>();
+            }
+        }
+
+        for (FenceRemoval removal : removals) {
+            requestBuilder.removeFence(removal.mId);
+            batchRemovals.add(removal);
+
+            if (batchAdditions.size() + batchRemovals.size() >= MAX_OPERATIONS_PER_REQUEST) {
+                submitBatch(requestBuilder, batchAdditions, batchRemovals, isolatedRetries);
+                requestBuilder = new FenceUpdateRequest.Builder();
+                batchAdditions = new ArrayList<>();
+                batchRemovals = new ArrayList<>();
+            }
+        }
+
+        if (!batchAdditions.isEmpty() || !batchRemovals.isEmpty()) {
+            submitBatch(requestBuilder, batchAdditions, batchRemovals, isolatedRetries);
+        }
+    }
+
+    /**
+     * Submit a request built by {@link #updateFences(List, List)} and dispatch its result to
+     * each of its operations.
+     * @param requestBuilder the builder containing all the given operations
+     * @param additions the additions contained in the request
+     * @param removals the removals contained in the request
+     * @param isolatedRetries if not null, the object the result of this retried operation is
+     *                        reported to
+     */
+    private void submitBatch(@NonNull FenceUpdateRequest.Builder requestBuilder,
+                             @NonNull final List<FenceAddition> additions,
+                             @NonNull final List<FenceRemoval> removals,
+                             @Nullable final IsolatedRetries isolatedRetries) {
+        mFenceClient.updateFences(requestBuilder.build())
+                .addOnCompleteListener(new OnCompleteListener<Void>() {
+                    @Override
+                    public void onComplete(@NonNull Task<Void> task) {
+                        if (task.isSuccessful()) {
+                            notifyRegistrationListener(additions, removals);
+                            for (FenceAddition addition : additions) {
+                                if (addition.mStatus != null) {
+                                    addition.mStatus.onResult(Status.RESULT_SUCCESS);
+                                }
+                            }
+                            for (FenceRemoval removal : removals) {
+                                if (removal.mStatus != null) {
+                                    removal.mStatus.onResult(Status.RESULT_SUCCESS);
+                                }
+                            }
+                            if (isolatedRetries != null) {
+                                isolatedRetries.onRetryResult(true);
+                            }
+                        } else if (additions.size() + removals.size() == 1) {
+                            // nothing to isolate, report the error
+                            for (FenceAddition addition : additions) {
+                                if (addition.mStatus != null) {
+                                    addition.mStatus.onResult(Status.RESULT_INTERNAL_ERROR);
+                                }
+                            }
+                            for (FenceRemoval removal : removals) {
+                                if (removal.mStatus != null) {
+                                    removal.mStatus.onResult(Status.RESULT_INTERNAL_ERROR);
+                                }
+                            }
+                            if (isolatedRetries != null) {
+                                isolatedRetries.onRetryResult(false);
+                            } else {
+                                notifyRequestFailed();
+                            }
+                        } else {
+                            Log.w(TAG, "Batch of " + (additions.size() + removals.size()) +
+                                    " operations failed, retrying each operation alone");
+                            // the failure is counted once all the retries are done
+                            IsolatedRetries retries = new IsolatedRetries(additions.size() + removals.size());
+                            List<FenceAddition> noAddition = new ArrayList<>();
+                            List<FenceRemoval> noRemoval = new ArrayList<>();
+                            for (FenceAddition addition : additions) {
+                                List<FenceAddition> singleAddition = new ArrayList<>();
+                                singleAddition.add(addition);
+                                updateFences(singleAddition, noRemoval, retries);
+                            }
+                            for (FenceRemoval removal : removals) {
+                                List<FenceRemoval> singleRemoval = new ArrayList<>();
+                                singleRemoval.add(removal);
+                                updateFences(noAddition, singleRemoval, retries);
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Inform the registration listener about successful operations
+     * @param additions the additions that succeeded
+     * @param removals the removals that succeeded
+     */
+    private void notifyRegistrationListener(@NonNull List<FenceAddition> additions,
+                                            @NonNull List<FenceRemoval> removals) {
+        RegistrationListener registrationListener = mRegistrationListener;
+        if (registrationListener != null) {
+            if (!additions.isEmpty()) {
+                registrationListener.onFencesAdded(additions);
+            }
+            if (!removals.isEmpty()) {
+                List<String> fenceIds = new ArrayList<>(removals.size());
+                for (FenceRemoval removal : removals) {
+                    fenceIds.add(removal.mId);
+                }
+                registrationListener.onFencesRemoved(fenceIds);
+            }
+        }
+    }
+
+    /**
+     * Inform the registration listener that a request failed
+     */
+    private void notifyRequestFailed() {
+        RegistrationListener registrationListener = mRegistrationListener;
+        if (registrationListener != null) {
+            registrationListener.onRequestFailed();
+        }
+    }
+
+    /**
+     * Collects the results of the operations of a failed batch, retried one by one.
+     * The failed batch counts as one failed request, and only if all its operations failed again.
+     * Otherwise the batch was rejected because of some of its fences, not because the Google API
+     * could not be reached.
+     */
+    private class IsolatedRetries {
+        private int mPendingCount;
+        private boolean mHasSucceeded;
+
+        /**
+         * Constructor.
+         * @param count the number of operations retried alone
+         */
+        IsolatedRetries(int count) {
+            mPendingCount = count;
+        }
+
+        /**
+         * Called once for each retried operation.
+         * @param success true if the operation succeeded
+         */
+        synchronized void onRetryResult(boolean success) {
+            mHasSucceeded |= success;
+            mPendingCount--;
+            if (mPendingCount == 0 && !mHasSucceeded) {
+                notifyRequestFailed();
+            }
+        }
+    }
+
+    /**
+     * Query the ids of all the fences registered by this application in the Google API.
+     * @param listener the listener informed when the ids are known
+     */
+    void queryFenceIds(@NonNull final FenceIdsListener listener) {
+        mFenceClient.queryFences(FenceQueryRequest.all())
+                .addOnCompleteListener(new OnCompleteListener<FenceQueryResponse>() {
+                    @Override
+                    public void onComplete(@NonNull Task<FenceQueryResponse> task) {
+                        Set<String> fenceIds = null;
+                        if (task.isSuccessful() && task.getResult() != null) {
+                            fenceIds = new HashSet<>(task.getResult().getFenceStateMap().getFenceKeys());
+                        } else {
+                            Log.e(TAG, "Error : registered fences could not be queried");
+                        }
+                        listener.onFenceIds(fenceIds);
+                    }
+                });
+    }
+
+    /**
+     * Create a pending intent from the storable fence
+     * @param pendingIntentClassName The storable fence which should contain the class name of the pending intent
+     * @return The pending intent of the class if it has been successfully loaded, or a DefaultTransitionsIntentService
+     */
+    private PendingIntent createRequestPendingIntent(@NonNull String pendingIntentClassName) {
+        return createRequestPendingIntent(pendingIntentClassName, null, null);
+    }
+
+    /**
+     * Create a pending intent from the storable fence
+     * @param pendingIntentClassName The storable fence which should contain the class name of the pending intent
+     * @param fenceId the id of the fence. Only used if encodedFence is not null.
+     * @param encodedFence the encoded fence to put in the intent in the {@link #EXTRA_ENCODED_FENCE}
+     *                     extra. If null, the intent is shared by all the fences of the class.
+     * @return The pending intent of the class if it has been successfully loaded, or a DefaultTransitionsIntentService
+     */
+    private PendingIntent createRequestPendingIntent(@NonNull String pendingIntentClassName,
+                                                     @Nullable String fenceId,
+                                                     @Nullable byte[] encodedFence) {
+        PendingIntent pendingIntent = null;
+        try {
+            Class classOfPendingIntent = Class.forName(pendingIntentClassName);
+            if (classOfPendingIntent != null) {
+                // Create an Intent pointing to the IntentService
+                Intent intent = new Intent(mContext, classOfPendingIntent);
+                if (encodedFence != null) {
+                    intent.setAction(ACTION_FENCE_PREFIX + fenceId);
+                    intent.putExtra(EXTRA_ENCODED_FENCE, encodedFence);
+                }
+
+                // Return a PendingIntent to start the IntentService.
+                // Always create a PendingIntent sent to Location Services
+                // with FLAG_UPDATE_CURRENT, so that sending the PendingIntent
+                // again updates the original. Otherwise, Location Services
+                // can't match the PendingIntent to requests made with it.
+                pendingIntent = PendingIntent.getService(mContext, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+            }
+
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+        return pendingIntent;
+    }
+}
@@ -0,0 +1,472 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+import static com.google.android.gms.awareness.fence.TimeFence.DAY_OF_WEEK_FRIDAY;
+import static com.google.android.gms.awareness.fence.TimeFence.DAY_OF_WEEK_MONDAY;
+import static com.google.android.gms.awareness.fence.TimeFence.DAY_OF_WEEK_SATURDAY;
+import static com.google.android.gms.awareness.fence.TimeFence.DAY_OF_WEEK_SUNDAY;
+import static com.google.android.gms.awareness.fence.TimeFence.DAY_OF_WEEK_THURSDAY;
+import static com.google.android.gms.awareness.fence.TimeFence.DAY_OF_WEEK_TUESDAY;
+import static com.google.android.gms.awareness.fence.TimeFence.DAY_OF_WEEK_WEDNESDAY;
+
+/**
+ * Package local class that decodes the fences stored in the legacy JSON format, written by the
+ * previous versions of the library.
+ * The JSON is read in a single pass by a {@link JsonReader}, without building any DOM. The keys
+ * of a JSON object have no order, so the fields of each fence are gathered in a {@link Fields}
+ * until the end of its object, then the fence is created according to its type.
+ */
+final class LegacyFenceDecoder {
+
+    private static final String TAG = "LegacyFenceDecoder";
+
+    private LegacyFenceDecoder() {
+    }
+
+    /**
+     * Decode a fence
+     * @param jsonStr the fence in the legacy JSON format
+     * @return the fence, null if the string can't be decoded
+     */
+    @Nullable
+    static StorableFence decode(@NonNull String jsonStr) {
+        JsonReader reader = new JsonReader(new StringReader(jsonStr));
+        try {
+            return readFence(reader);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private static StorableFence readFence(@NonNull JsonReader reader) throws IOException {
+        Fields fields = new Fields();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case StorableFence.FENCE_TYPE_KEY:
+                    fields.mType = reader.nextInt();
+                    fields.mPresent |= Fields.TYPE;
+                    break;
+                case StorableFence.FENCE_ID_KEY:
+                    fields.mId = reader.nextString();
+                    break;
+                case StorableFence.FENCE_PENDING_INTENT_CLASS_KEY:
+                    fields.mPendingIntentClass = reader.nextString();
+                    break;
+                case StorableFence.FENCE_ADDITIONAL_DATA_KEY:
+                    fields.mAdditionalData = readAdditionalData(reader);
+                    break;
+                case StorableFence.FENCE_META_AND_KEY:
+                    fields.mAndFences = readFences(reader);
+                    break;
+                case StorableFence.FENCE_META_OR_KEY:
+                    fields.mOrFences = readFences(reader);
+                    break;
+                case StorableFence.FENCE_META_NOT_KEY:
+                    fields.mNotFence = readFence(reader);
+                    fields.mPresent |= Fields.NOT;
+                    break;
+                // location and activity fences share the transition key
+                case StorableLocationFence.TRANSITION_TYPE_KEY:
+                    fields.mTransition = reader.nextInt();
+                    fields.mPresent |= Fields.TRANSITION;
+                    break;
+                case StorableLocationFence.LATITUDE_KEY:
+                    fields.mLatitude = reader.nextDouble();
+                    fields.mPresent |= Fields.LATITUDE;
+                    break;
+                case StorableLocationFence.LONGITUDE_KEY:
+                    fields.mLongitude = reader.nextDouble();
+                    fields.mPresent |= Fields.LONGITUDE;
+                    break;
+                case StorableLocationFence.RADIUS_KEY:
+                    fields.mRadius = reader.nextDouble();
+                    fields.mPresent |= Fields.RADIUS;
+                    break;
+                case StorableLocationFence.DWELL_KEY:
+                    fields.mDwell = reader.nextLong();
+                    fields.mPresent |= Fields.DWELL;
+                    break;
+                case StorableActivityFence.ACTIVITIES_KEY:
+                    fields.mActivities = readInts(reader);
+                    break;
+                case StorableTimeFence.TIMING_TYPE_KEY:
+                    fields.mTimingType = reader.nextInt();
+                    fields.mPresent |= Fields.TIMING_TYPE;
+                    break;
+                case StorableTimeFence.DAY_OF_WEEK_KEY:
+                    fields.mDayOfWeek = reader.nextInt();
+                    fields.mPresent |= Fields.DAY_OF_WEEK;
+                    break;
+                case StorableTimeFence.TIME_INTERVAL_KEY:
+                    fields.mTimeInterval = reader.nextInt();
+                    fields.mPresent |= Fields.TIME_INTERVAL;
+                    break;
+                case StorableTimeFence.TIME_INSTANT_KEY:
+                    fields.mTimeInstant = reader.nextInt();
+                    fields.mPresent |= Fields.TIME_INSTANT;
+                    break;
+                case StorableTimeFence.TIMEZONE_OFFSET_KEY:
+                    fields.mTimeZoneOffset = reader.nextInt();
+                    fields.mPresent |= Fields.TIMEZONE_OFFSET;
+                    break;
+                case StorableTimeFence.TIMEZONE_ID_KEY:
+                    fields.mTimeZoneId = reader.nextString();
+                    break;
+                case StorableTimeFence.START_TIME_KEY:
+                    fields.mStartTime = reader.nextLong();
+                    fields.mPresent |= Fields.START_TIME;
+                    break;
+                case StorableTimeFence.STOP_TIME_KEY:
+                    fields.mStopTime = reader.nextLong();
+                    fields.mPresent |= Fields.STOP_TIME;
+                    break;
+                case StorableTimeFence.START_OFFSET_KEY:
+                    fields.mStartOffset = reader.nextLong();
+                    fields.mPresent |= Fields.START_OFFSET;
+                    break;
+                case StorableTimeFence.STOP_OFFSET_KEY:
+                    fields.mStopOffset = reader.nextLong();
+                    fields.mPresent |= Fields.STOP_OFFSET;
+                    break;
+                case StorableHeadphoneFence.TRIGGER_TYPE_KEY:
+                    fields.mTriggerType = reader.nextInt();
+                    fields.mPresent |= Fields.TRIGGER_TYPE;
+                    break;
+                case StorableHeadphoneFence.HEADPHONE_STATE_KEY:
+                    fields.mHeadphoneState = reader.nextInt();
+                    fields.mPresent |= Fields.HEADPHONE_STATE;
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        StorableFence fence = fields.createFence();
+        if (fence != null) {
+            fence.setId(fields.mId);
+            fence.setPendingIntentClass(fields.mPendingIntentClass);
+            if (fields.mAdditionalData != null) {
+                fence.setAdditionalData(fields.mAdditionalData);
+            }
+        }
+        return fence;
+    }
+
+    /**
+     * Read an array of fences
+     * @return the fences, null if one of them can't be decoded
+     */
+    @Nullable
+    private static List<StorableFence> readFences(@NonNull JsonReader reader) throws IOException {
+        List<StorableFence> fences = new ArrayList<>();
+        boolean valid = true;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            StorableFence fence = readFence(reader);
+            valid &= (fence != null);
+            fences.add(fence);
+        }
+        reader.endArray();
+        return valid ? fences : null;
+    }
+
+    @NonNull
+    private static int[] readInts(@NonNull JsonReader reader) throws IOException {
+        int[] values = new int[4];
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (count == values.length) {
+                int[] grownValues = new int[count * 2];
+                System.arraycopy(values, 0, grownValues, 0, count);
+                values = grownValues;
+            }
+            values[count++] = reader.nextInt();
+        }
+        reader.endArray();
+
+        int[] result = new int[count];
+        System.arraycopy(values, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Read the additional data. Each value is an object that contains the class name of the value
+     * and the value itself, in any order.
+     */
+    @NonNull
+    private static HashMap<String, Object> readAdditionalData(@NonNull JsonReader reader) throws IOException {
+        HashMap<String, Object> additionalData = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            String className = null;
+            String rawValue = null;
+            Boolean booleanValue = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (StorableFence.ADDITIONAL_DATA_TYPE_KEY.equals(name)) {
+                    className = reader.nextString();
+                } else if (StorableFence.ADDITIONAL_DATA_VALUE_KEY.equals(name)) {
+                    if (reader.peek() == JsonToken.BOOLEAN) {
+                        booleanValue = reader.nextBoolean();
+                    } else {
+                        // numbers are read as strings and converted once the class is known
+                        rawValue = reader.nextString();
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            Object value = toValue(className, rawValue, booleanValue);
+            if (value != null) {
+                additionalData.put(key, value);
+            } else {
+                Log.e(TAG, "Additional data " + key + " of type " + className + " is ignored");
+            }
+        }
+        reader.endObject();
+        return additionalData;
+    }
+
+    @Nullable
+    private static Object toValue(@Nullable String className, @Nullable String rawValue,
+                                  @Nullable Boolean booleanValue) {
+        if (className == null) {
+            return null;
+        }
+        if (className.equals(Boolean.class.getName())) {
+            return (booleanValue != null) ? booleanValue :
+                    (rawValue != null) ? Boolean.valueOf(rawValue) : null;
+        }
+        if (rawValue == null) {
+            return null;
+        }
+        if (className.equals(String.class.getName())) {
+            return rawValue;
+        } else if (className.equals(Integer.class.getName())) {
+            return Integer.valueOf(rawValue);
+        } else if (className.equals(Long.class.getName())) {
+            return Long.valueOf(rawValue);
+        } else if (className.equals(Double.class.getName())) {
+            return Double.valueOf(rawValue);
+        }
+        return null;
+    }
+
+    /**
+     * Fields of a fence, gathered until the end of its JSON object.
+     * The primitive fields are only valid if their flag is set in {@link #mPresent}.
+     */
+    private static final class Fields {
+        static final int TYPE = 1;
+        static final int NOT = 1 << 1;
+        static final int TRANSITION = 1 << 2;
+        static final int LATITUDE = 1 << 3;
+        static final int LONGITUDE = 1 << 4;
+        static final int RADIUS = 1 << 5;
+        static final int DWELL = 1 << 6;
+        static final int TIMING_TYPE = 1 << 7;
+        static final int DAY_OF_WEEK = 1 << 8;
+        static final int TIME_INTERVAL = 1 << 9;
+        static final int TIME_INSTANT = 1 << 10;
+        static final int TIMEZONE_OFFSET = 1 << 11;
+        static final int START_TIME = 1 << 12;
+        static final int STOP_TIME = 1 << 13;
+        static final int START_OFFSET = 1 << 14;
+        static final int STOP_OFFSET = 1 << 15;
+        static final int TRIGGER_TYPE = 1 << 16;
+        static final int HEADPHONE_STATE = 1 << 17;
+
+        int mPresent;
+
+        int mType;
+        String mId;
+        String mPendingIntentClass;
+        HashMap<String, Object> mAdditionalData;
+
+        List<StorableFence> mAndFences;
+        List<StorableFence> mOrFences;
+        StorableFence mNotFence;
+
+        int mTransition;
+        double mLatitude;
+        double mLongitude;
+        double mRadius;
+        long mDwell;
+
+        int[] mActivities;
+
+        int mTimingType;
+        int mDayOfWeek;
+        int mTimeInterval;
+        int mTimeInstant;
+        int mTimeZoneOffset;
+        String mTimeZoneId;
+        long mStartTime;
+        long mStopTime;
+        long mStartOffset;
+        long mStopOffset;
+
+        int mTriggerType;
+        int mHeadphoneState;
+
+        private boolean has(int flags) {
+            return (mPresent & flags) == flags;
+        }
+
+        /**
+         * Create the fence described by the fields
+         * @return the fence, null if the fields are not valid
+         */
+        @Nullable
+        StorableFence createFence() {
+            StorableFence.Type[] types = StorableFence.Type.values();
+            if (!has(TYPE) || mType < 0 || mType >= types.length) {
+                return null;
+            }
+            switch (types[mType]) {
+                case META:
+                    if (mAndFences != null) {
+                        return StorableFence.and(mAndFences);
+                    } else if (mOrFences != null) {
+                        return StorableFence.or(mOrFences);
+                    } else if (mNotFence != null) {
+                        return StorableFence.not(mNotFence);
+                    }
+                    return null;
+                case LOCATION:
+                    return createLocationFence();
+                case ACTIVITY:
+                    return createActivityFence();
+                case TIME:
+                    return createTimeFence();
+                case HEADPHONE:
+                    return createHeadphoneFence();
+            }
+            return null;
+        }
+
+        @Nullable
+        private StorableFence createLocationFence() {
+            if (!has(TRANSITION | LATITUDE | LONGITUDE | RADIUS | DWELL)) {
+                return null;
+            }
+            switch (mTransition) {
+                case StorableLocationFence.ENTER_TYPE:
+                    return StorableLocationFence.entering(mLatitude, mLongitude, mRadius);
+                case StorableLocationFence.EXIT_TYPE:
+                    return StorableLocationFence.exiting(mLatitude, mLongitude, mRadius);
+                case StorableLocationFence.IN_TYPE:
+                    return StorableLocationFence.in(mLatitude, mLongitude, mRadius, mDwell);
+            }
+            return null;
+        }
+
+        @Nullable
+        private StorableFence createActivityFence() {
+            if (mActivities == null || !has(TRANSITION)) {
+                return null;
+            }
+            switch (mTransition) {
+                case StorableActivityFence.START_TYPE:
+                    return StorableActivityFence.starting(mActivities);
+                case StorableActivityFence.STOP_TYPE:
+                    return StorableActivityFence.stopping(mActivities);
+                case StorableActivityFence.DURING_TYPE:
+                    return StorableActivityFence.during(mActivities);
+            }
+            return null;
+        }
+
+        @Nullable
+        private StorableFence createTimeFence() {
+            if (!has(TIMING_TYPE | START_TIME | STOP_TIME)) {
+                return null;
+            }
+            TimeZone timeZone = null;
+            if (has(TIMEZONE_OFFSET) && mTimeZoneId != null) {
+                timeZone = TimeZoneTable.intern(mTimeZoneId, mTimeZoneOffset);
+            }
+            switch (mTimingType) {
+                case StorableTimeFence.ABSOLUTE:
+                    return StorableTimeFence.inInterval(mStartTime, mStopTime);
+                case StorableTimeFence.DAILY:
+                    return StorableTimeFence.inDailyInterval(timeZone, mStartTime, mStopTime);
+                case StorableTimeFence.DAY_OF_WEEK:
+                    return has(DAY_OF_WEEK) ? StorableTimeFence.inIntervalOfDay(mDayOfWeek,
+                            timeZone, mStartTime, mStopTime) : null;
+                case StorableTimeFence.TIME_INTERVAL:
+                    return has(TIME_INTERVAL) ? StorableTimeFence.inTimeInterval(mTimeInterval) : null;
+                case StorableTimeFence.TIME_INSTANT:
+                    return has(TIME_INSTANT | START_OFFSET | STOP_OFFSET) ?
+                            StorableTimeFence.aroundTimeInstant(mTimeInstant, mStartOffset, mStopOffset) :
+                            null;
+                case StorableTimeFence.MONDAY:
+                    return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_MONDAY, timeZone,
+                            mStartTime, mStopTime);
+                case StorableTimeFence.TUESDAY:
+                    return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_TUESDAY, timeZone,
+                            mStartTime, mStopTime);
+                case StorableTimeFence.WEDNESDAY:
+                    return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_WEDNESDAY, timeZone,
+                            mStartTime, mStopTime);
+                case StorableTimeFence.THURSDAY:
+                    return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_THURSDAY, timeZone,
+                            mStartTime, mStopTime);
+                case StorableTimeFence.FRIDAY:
+                    return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_FRIDAY, timeZone,
+                            mStartTime, mStopTime);
+                case StorableTimeFence.SATURDAY:
+                    return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_SATURDAY, timeZone,
+                            mStartTime, mStopTime);
+                case StorableTimeFence.SUNDAY:
+                    return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_SUNDAY, timeZone,
+                            mStartTime, mStopTime);
+            }
+            return null;
+        }
+
+        @Nullable
+        private StorableFence createHeadphoneFence() {
+            if (!has(TRIGGER_TYPE)) {
+                return null;
+            }
+            switch (mTriggerType) {
+                case StorableHeadphoneFence.STATE:
+                    return has(HEADPHONE_STATE) ? StorableHeadphoneFence.during(mHeadphoneState) : null;
+                case StorableHeadphoneFence.PLUGGING_IN:
+                    return StorableHeadphoneFence.pluggingIn();
+                case StorableHeadphoneFence.UNPLUGGING:
+                    return StorableHeadphoneFence.unplugging();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Package local spatial index over the {@link StorableLocationFence} of stored fences.
+ * The earth is split in a grid of cells of {@link #CELL_SIZE_DEGREES} degrees. Each location
+ * fence is registered in all the cells covered by its bounding box, so a query only has to look
+ * at the cells around the searched point instead of all the fences.
+ * Location fences nested in meta fences are indexed too: a query returns the id of the root
+ * fence they belong to.
+ * This class is not thread safe.
+ */
+final class LocationFenceIndex {
+
+    /** Size of a cell of the grid, in degrees. About 1.1km of latitude. */
+    @VisibleForTesting
+    static final double CELL_SIZE_DEGREES = 0.01;
+
+    /**
+     * Maximum number of cells a location fence can be registered in.
+     * Larger fences are kept apart and checked by every query.
+     */
+    private static final int MAX_CELLS_PER_LEAF = 64;
+
+    /**
+     * Maximum number of rings of cells visited around the searched point by
+     * {@link #findNearest(double, double, int)} before scanning all the fences.
+     */
+    private static final int MAX_RINGS = 32;
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS_METERS * Math.PI / 180;
+
+    private static final int ROW_COUNT = (int) Math.ceil(180 / CELL_SIZE_DEGREES);
+    private static final int COLUMN_COUNT = (int) Math.ceil(360 / CELL_SIZE_DEGREES);
+
+    /**
+     * A location fence, in the tree of a root fence.
+     */
+    private static final class Leaf {
+        @NonNull
+        final String mFenceId;
+        final double mLatitude;
+        final double mLongitude;
+        final double mRadius;
+        /** Keys of the cells this leaf is registered in, empty if it is a large leaf */
+        final List<Long> mCellKeys = new ArrayList<>();
+
+        Leaf(@NonNull String fenceId, @NonNull StorableLocationFence fence) {
+            mFenceId = fenceId;
+            mLatitude = fence.getLatitude();
+            mLongitude = fence.getLongitude();
+            mRadius = fence.getRadius();
+        }
+
+        /**
+         * Get the distance between a point and the border of this location fence.
+         * @return the distance in meters, 0 if the point is inside the fence
+         */
+        double distanceTo(double latitude, double longitude) {
+            return Math.max(0, distanceBetween(latitude, longitude, mLatitude, mLongitude) - mRadius);
+        }
+    }
+
+    /** Leaves indexed by the key of the cells they cover */
+    private final HashMap<Long, ArrayList<Leaf>> mCells = new HashMap<>();
+
+    /** Leaves that cover too many cells to be registered in each of them */
+    private final ArrayList<Leaf> mLargeLeaves = new ArrayList<>();
+
+    /** Leaves indexed by the id of their root fence */
+    private final HashMap<String, List<Leaf>> mLeavesByFenceId = new HashMap<>();
+
+    /**
+     * Index the location fences contained in a fence.
+     * If a fence with the same id is already indexed, it is replaced.
+     * @param fenceId the id of the fence
+     * @param fence the fence, it can be a location fence or a meta fence that contains location
+     *              fences
+     */
+    void add(@NonNull String fenceId, @NonNull StorableFence fence) {
+        remove(fenceId);
+
+        List<Leaf> leaves = new ArrayList<>();
+        collectLeaves(fenceId, fence, leaves);
+        if (leaves.isEmpty()) {
+            return;
+        }
+        mLeavesByFenceId.put(fenceId, leaves);
+
+        for (Leaf leaf : leaves) {
+            double latitudeDelta = leaf.mRadius / METERS_PER_DEGREE;
+            double cos = Math.cos(Math.toRadians(leaf.mLatitude));
+            int firstRow = row(leaf.mLatitude - latitudeDelta);
+            int lastRow = row(leaf.mLatitude + latitudeDelta);
+            int rowCount = lastRow - firstRow + 1;
+            if (cos <= 0 || rowCount > MAX_CELLS_PER_LEAF) {
+                mLargeLeaves.add(leaf);
+                continue;
+            }
+            double longitudeDelta = latitudeDelta / cos;
+            int firstColumn = column(leaf.mLongitude - longitudeDelta);
+            int columnCount = (int) (Math.floor((leaf.mLongitude + longitudeDelta + 180) / CELL_SIZE_DEGREES) -
+                    Math.floor((leaf.mLongitude - longitudeDelta + 180) / CELL_SIZE_DEGREES)) + 1;
+            if ((long) rowCount * columnCount > MAX_CELLS_PER_LEAF) {
+                mLargeLeaves.add(leaf);
+                continue;
+            }
+
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int i = 0; i < columnCount; i++) {
+                    long key = cellKey(row, firstColumn + i);
+                    ArrayList<Leaf> cell = mCells.get(key);
+                    if (cell == null) {
+                        cell = new ArrayList<>();
+                        mCells.put(key, cell);
+                    }
+                    cell.add(leaf);
+                    leaf.mCellKeys.add(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a fence from the index
+     * @param fenceId the id of the fence to remove
+     */
+    void remove(@NonNull String fenceId) {
+        List<Leaf> leaves = mLeavesByFenceId.remove(fenceId);
+        if (leaves == null) {
+            return;
+        }
+        for (Leaf leaf : leaves) {
+            if (leaf.mCellKeys.isEmpty()) {
+                mLargeLeaves.remove(leaf);
+            }
+            for (Long key : leaf.mCellKeys) {
+                ArrayList<Leaf> cell = mCells.get(key);
+                if (cell != null) {
+                    cell.remove(leaf);
+                    if (cell.isEmpty()) {
+                        mCells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all the fences from the index.
+     */
+    void clear() {
+        mCells.clear();
+        mLargeLeaves.clear();
+        mLeavesByFenceId.clear();
+    }
+
+    /**
+     * Find the fences that contain at least one location fence which contains the given point.
+     * This is a geometric test only: the logic of the meta fences (and, or, not) is not evaluated.
+     * @param latitude the latitude of the point
+     * @param longitude the longitude of the point
+     * @return the ids of the fences, can not be null
+     */
+    @NonNull
+    Set<String> findContaining(double latitude, double longitude) {
+        Set<String> fenceIds = new LinkedHashSet<>();
+        ArrayList<Leaf> cell = mCells.get(cellKey(row(latitude), column(longitude)));
+        if (cell != null) {
+            for (Leaf leaf : cell) {
+                if (leaf.distanceTo(latitude, longitude) <= 0) {
+                    fenceIds.add(leaf.mFenceId);
+                }
+            }
+        }
+        for (Leaf leaf : mLargeLeaves) {
+            if (leaf.distanceTo(latitude, longitude) <= 0) {
+                fenceIds.add(leaf.mFenceId);
+            }
+        }
+        return fenceIds;
+    }
+
+    /**
+     * Find the fences that are the nearest to the given point.
+     * The distance of a fence is the distance between the point and the border of its nearest
+     * location fence, 0 if the point is inside.
+     * @param latitude the latitude of the point
+     * @param longitude the longitude of the point
+     * @param count the maximum number of fences to return
+     * @return the ids of the fences, sorted from the nearest to the farthest. Can not be null.
+     */
+    @NonNull
+    List<String> findNearest(double latitude, double longitude, int count) {
+        final HashMap<String, Double> distances = new HashMap<>();
+        if (count <= 0) {
+            return new ArrayList<>();
+        }
+
+        for (Leaf leaf : mLargeLeaves) {
+            putMinDistance(distances, leaf, latitude, longitude);
+        }
+
+        int centerRow = row(latitude);
+        int centerColumn = column(longitude);
+        boolean complete = false;
+        for (int ring = 0; ring <= MAX_RINGS && !complete; ring++) {
+            for (int row = centerRow - ring; row <= centerRow + ring; row++) {
+                if (row < 0 || row >= ROW_COUNT) {
+                    continue;
+                }
+                // only visit the border of the ring, its inside has already been visited
+                int step = (row == centerRow - ring || row == centerRow + ring) ? 1 : Math.max(1, 2 * ring);
+                for (int column = centerColumn - ring; column <= centerColumn + ring; column += step) {
+                    ArrayList<Leaf> cell = mCells.get(cellKey(row, column));
+                    if (cell != null) {
+                        for (Leaf leaf : cell) {
+                            putMinDistance(distances, leaf, latitude, longitude);
+                        }
+                    }
+                }
+            }
+
+            if (distances.size() == mLeavesByFenceId.size()) {
+                complete = true;
+            } else if (distances.size() >= count) {
+                // fences that have not been found yet are at least as far as the border of the
+                // visited square
+                double farthestLatitude = Math.min(89.9, Math.abs(latitude) + (ring + 1) * CELL_SIZE_DEGREES);
+                double visitedDistance = ring * CELL_SIZE_DEGREES * METERS_PER_DEGREE *
+                        Math.cos(Math.toRadians(farthestLatitude));
+                complete = kthSmallest(distances, count) <= visitedDistance;
+            }
+        }
+
+        if (!complete) {
+            // the fences are too sparse around this point, look at all of them
+            for (List<Leaf> leaves : mLeavesByFenceId.values()) {
+                for (Leaf leaf : leaves) {
+                    putMinDistance(distances, leaf, latitude, longitude);
+                }
+            }
+        }
+
+        List<String> fenceIds = new ArrayList<>(distances.keySet());
+        Collections.sort(fenceIds, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return distances.get(lhs).compareTo(distances.get(rhs));
+            }
+        });
+        if (fenceIds.size() > count) {
+            fenceIds = new ArrayList<>(fenceIds.subList(0, count));
+        }
+        return fenceIds;
+    }
+
+    /**
+     * Get the distance between two points
+     * @return the distance in meters
+     */
+    static double distanceBetween(double latitude1, double longitude1,
+                                  double latitude2, double longitude2) {
+        double dLat = Math.toRadians(latitude2 - latitude1);
+        double dLng = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) *
+                        Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /**
+     * Whether a fence is or contains a {@link StorableLocationFence}
+     * @param fence a fence
+     * @return true if the fence would be indexed
+     */
+    static boolean containsLocation(StorableFence fence) {
+        if (fence == null) {
+            return false;
+        }
+        if (fence instanceof StorableLocationFence) {
+            return true;
+        }
+        if (fence.getType() == StorableFence.Type.META) {
+            for (StorableFence subFence : fence.getAndFences()) {
+                if (containsLocation(subFence)) {
+                    return true;
+                }
+            }
+            for (StorableFence subFence : fence.getOrFences()) {
+                if (containsLocation(subFence)) {
+                    return true;
+                }
+            }
+            return containsLocation(fence.getNotFence());
+        }
+        return false;
+    }
+
+    private static void collectLeaves(@NonNull String fenceId, StorableFence fence,
+                                      @NonNull List<Leaf> leaves) {
+        if (fence == null) {
+            return;
+        }
+        if (fence instanceof StorableLocationFence) {
+            leaves.add(new Leaf(fenceId, (StorableLocationFence) fence));
+        } else if (fence.getType() == StorableFence.Type.META) {
+            for (StorableFence subFence : fence.getAndFences()) {
+                collectLeaves(fenceId, subFence, leaves);
+            }
+            for (StorableFence subFence : fence.getOrFences()) {
+                collectLeaves(fenceId, subFence, leaves);
+            }
+            collectLeaves(fenceId, fence.getNotFence(), leaves);
+        }
+    }
+
+    private static void putMinDistance(@NonNull HashMap<String, Double> distances, @NonNull Leaf leaf,
+                                       double latitude, double longitude) {
+        double distance = leaf.distanceTo(latitude, longitude);
+        Double current = distances.get(leaf.mFenceId);
+        if (current == null || distance < current) {
+            distances.put(leaf.mFenceId, distance);
+        }
+    }
+
+    private static double kthSmallest(@NonNull HashMap<String, Double> distances, int k) {
+        List<Double> values = new ArrayList<>(distances.values());
+        Collections.sort(values);
+        return values.get(k - 1);
+    }
+
+    private static int row(double latitude) {
+        int row = (int) Math.floor((latitude + 90) / CELL_SIZE_DEGREES);
+        return Math.max(0, Math.min(ROW_COUNT - 1, row));
+    }
+
+    private static int column(double longitude) {
+        return (int) Math.floor((longitude + 180) / CELL_SIZE_DEGREES);
+    }
+
+    /**
+     * Get the key of a cell. Columns wrap around the antimeridian.
+     */
+    private static long cellKey(int row, int column) {
+        int wrappedColumn = ((column % COLUMN_COUNT) + COLUMN_COUNT) % COLUMN_COUNT;
+        return (long) row * COLUMN_COUNT + wrappedColumn;
+    }
+}
@@ -0,0 +1,101 @@
+package com.sousoum.jcvd;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Package local backend that moves the entries of a store from a previous backend to a new one,
+ * for example from the preferences to the database.
+ * The entries are moved the first time the store is accessed, not when the backend is created:
+ * the stores of the {@link StorableFenceManager} are first loaded by its startup, which can run in
+ * the background. Once the entries are moved, a flag is set in the given settings so that the
+ * previous backend is not read again.
+ */
+class MovingFenceStoreBackend implements FenceStoreBackend {
+
+    private static final String TAG = "MovingFenceStoreBackend";
+
+    @NonNull
+    private final String mStoreName;
+
+    @NonNull
+    private final FenceStoreBackend mPreviousBackend;
+
+    @NonNull
+    private final FenceStoreBackend mBackend;
+
+    @NonNull
+    private final SharedPreferences mSettings;
+
+    @NonNull
+    private final String mMovedKey;
+
+    private volatile boolean mMoved;
+
+    /**
+     * Constructor.
+     * @param storeName the name of the store, only used for logging
+     * @param previousBackend the backend from which the entries are moved
+     * @param backend the backend to which the entries are moved, and then used
+     * @param settings the preferences in which the flag is stored
+     * @param movedKey the key of the flag, specific to the store
+     */
+    MovingFenceStoreBackend(@NonNull String storeName, @NonNull FenceStoreBackend previousBackend,
+                            @NonNull FenceStoreBackend backend, @NonNull SharedPreferences settings,
+                            @NonNull String movedKey) {
+        mStoreName = storeName;
+        mPreviousBackend = previousBackend;
+        mBackend = backend;
+        mSettings = settings;
+        mMovedKey = movedKey;
+    }
+
+    @NonNull
+    @Override
+    public Map<String, String> loadAll() {
+        moveIfNeeded();
+        return mBackend.loadAll();
+    }
+
+    @Override
+    public void write(@NonNull Map<String, String> entries) {
+        moveIfNeeded();
+        mBackend.write(entries);
+    }
+
+    @Override
+    public void delete(@NonNull Collection<String> ids) {
+        moveIfNeeded();
+        mBackend.delete(ids);
+    }
+
+    /**
+     * Move the entries of the previous backend to the new one, if not already done
+     */
+    private void moveIfNeeded() {
+        if (mMoved) {
+            return;
+        }
+        synchronized (this) {
+            if (mMoved) {
+                return;
+            }
+            if (!mSettings.getBoolean(mMovedKey, false)) {
+                Map<String, String> previousEntries = mPreviousBackend.loadAll();
+                if (!previousEntries.isEmpty()) {
+                    Log.i(TAG, "Moving " + previousEntries.size() + " entries of " + mStoreName);
+                    mBackend.write(previousEntries);
+                    mPreviousBackend.delete(previousEntries.keySet());
+                }
+                SharedPreferences.Editor editor = mSettings.edit();
+                editor.putBoolean(mMovedKey, true);
+                editor.apply();
+            }
+            mMoved = true;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Package local policy that only registers the fences that contain a {@link StorableLocationFence}
+ * when they are among the nearest ones from the device.
+ */
+final class NearestRegistrationPolicy implements RegistrationPolicy {
+
+    private final int mMaxRegisteredFences;
+
+    private final double mLatitude;
+
+    private final double mLongitude;
+
+    /**
+     * Constructor.
+     * @param maxRegisteredFences the maximum number of location fences to register
+     * @param latitude the latitude of the device, NaN if unknown
+     * @param longitude the longitude of the device, NaN if unknown
+     */
+    NearestRegistrationPolicy(int maxRegisteredFences, double latitude, double longitude) {
+        mMaxRegisteredFences = maxRegisteredFences;
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    @Override
+    public boolean handles(@NonNull StorableFence fence) {
+        return LocationFenceIndex.containsLocation(fence);
+    }
+
+    @NonNull
+    @Override
+    public Set<String> selectFences(@NonNull FenceStore store) {
+        Set<String> fenceIds = new HashSet<>();
+        // nothing can be ranked while the location of the device is unknown
+        if (!Double.isNaN(mLatitude) && !Double.isNaN(mLongitude)) {
+            for (StorableFence fence : store.getNearestFences(mLatitude, mLongitude, mMaxRegisteredFences)) {
+                fenceIds.add(fence.getId());
+            }
+        }
+        return fenceIds;
+    }
+}
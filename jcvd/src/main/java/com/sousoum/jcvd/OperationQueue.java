@@ -0,0 +1,100 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Package local class that coalesces the additions and removals asked for a same fence.
+ * At most one operation per fence is submitted to the Google API Client at a time. The
+ * operations asked while it is in flight are coalesced in one pending operation: the last one
+ * wins, the replaced ones are never submitted. Once the in flight operation is complete, the
+ * pending operation, if any, is the next one to run.
+ * A queue can be used from multiple threads.
+ */
+final class OperationQueue {
+
+    /**
+     * The addition or the removal of a fence
+     */
+    static final class Operation {
+        @NonNull
+        final String mId;
+        /** The fence to add, null if the fence is removed */
+        @Nullable
+        final StorableFence mFence;
+        @NonNull
+        final ResultCallback<Status> mStatus;
+
+        /**
+         * Constructor.
+         * @param id the id of the fence
+         * @param fence the fence to add, null to remove the fence
+         * @param status the status that will be called when the operation fails, succeed or is
+         *               replaced by another one
+         */
+        Operation(@NonNull String id, @Nullable StorableFence fence, @NonNull ResultCallback<Status> status) {
+            mId = id;
+            mFence = fence;
+            mStatus = status;
+        }
+
+        boolean isRemoval() {
+            return mFence == null;
+        }
+
+        /**
+         * Whether this operation has the same effect as the given one
+         * @param other another operation on the same fence
+         * @return true if both remove the fence or both add the same fence
+         */
+        boolean hasSameEffect(@NonNull Operation other) {
+            return (mFence == null) ? (other.mFence == null) : mFence.equals(other.mFence);
+        }
+    }
+
+    /** Ids of the fences that have an operation in flight */
+    private final HashSet<String> mInFlightIds = new HashSet<>();
+
+    /** Operations waiting for the in flight operation of their fence, indexed by fence id */
+    private final HashMap<String, Operation> mPendingOperations = new HashMap<>();
+
+    /**
+     * Queue an operation.
+     * @param operation the operation
+     * @param replacedOperations the list in which the pending operation replaced by this one, if
+     *                           any, is added
+     * @return true if the operation should be submitted now, false if it is pending
+     */
+    synchronized boolean enqueue(@NonNull Operation operation, @NonNull List<Operation> replacedOperations) {
+        if (mInFlightIds.add(operation.mId)) {
+            return true;
+        }
+        Operation replaced = mPendingOperations.put(operation.mId, operation);
+        if (replaced != null) {
+            replacedOperations.add(replaced);
+        }
+        return false;
+    }
+
+    /**
+     * Inform that the in flight operation of a fence is complete.
+     * @param id the id of the fence
+     * @return the pending operation of the fence, which is now in flight, or null if the fence has
+     * no pending operation
+     */
+    @Nullable
+    synchronized Operation complete(@NonNull String id) {
+        Operation next = mPendingOperations.remove(id);
+        if (next == null) {
+            mInFlightIds.remove(id);
+        }
+        return next;
+    }
+}
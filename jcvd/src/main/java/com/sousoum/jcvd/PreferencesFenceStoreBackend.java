@@ -0,0 +1,173 @@
+package com.sousoum.jcvd;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Package local class that stores the fences in the preferences.
+ * Each encoded fence is stored under its prefixed id, and the set of ids is stored under a
+ * prefixed key.
+ * The set of ids is read, modified and written back by each write. All the backends of the
+ * process that share a prefix also share a lock, so that concurrent writers do not lose ids.
+ */
+class PreferencesFenceStoreBackend implements FenceStoreBackend {
+
+    private static final String SHARED_PREFS = "JCVDLibStore";
+
+    private static final String TAG = "PrefsFenceStoreBackend";
+
+    private static final String FENCE_ID_SET_KEY = "FENCE_ID_SET_KEY";
+
+    /** Key of the version of the last compaction, see {@link #compactIfNeeded()} */
+    private static final String COMPACTION_VERSION_KEY = "COMPACTION_VERSION";
+    private static final int COMPACTION_VERSION = 1;
+
+    /** Locks of the prefixes, shared by all the backends of the process */
+    private static final HashMap<String, Object> sLocks = new HashMap<>();
+
+    private final String mPrefix;
+    private final SharedPreferences mPrefs;
+    private final Object mLock;
+
+    /**
+     * Constructor.
+     * @param context a context
+     * @param prefix the prefix of all the keys of this storage
+     */
+    PreferencesFenceStoreBackend(@NonNull Context context, @NonNull String prefix) {
+        mPrefix = prefix;
+        mLock = getLock(prefix);
+
+        mPrefs = context.getSharedPreferences(SHARED_PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Get the lock shared by all the backends that use the given prefix
+     * @param prefix the prefix of the keys
+     * @return the lock of the prefix
+     */
+    @NonNull
+    private static Object getLock(@NonNull String prefix) {
+        synchronized (sLocks) {
+            Object lock = sLocks.get(prefix);
+            if (lock == null) {
+                lock = new Object();
+                sLocks.put(prefix, lock);
+            }
+            return lock;
+        }
+    }
+
+    @NonNull
+    @Override
+    public Map<String, String> loadAll() {
+        synchronized (mLock) {
+            compactIfNeeded();
+
+            HashMap<String, String> entries = new HashMap<>();
+
+            Set<String> fenceIdSet = mPrefs.getStringSet(mPrefix + FENCE_ID_SET_KEY, null);
+            if (fenceIdSet != null) {
+                for (String fenceId : fenceIdSet) {
+                    entries.put(fenceId, mPrefs.getString(mPrefix + fenceId, null));
+                }
+            }
+
+            return entries;
+        }
+    }
+
+    @Override
+    public void write(@NonNull Map<String, String> entries) {
+        synchronized (mLock) {
+            Set<String> setTmp = mPrefs.getStringSet(mPrefix + FENCE_ID_SET_KEY, null);
+            HashSet<String> fenceIdSet;
+            if (setTmp == null) {
+                fenceIdSet = new HashSet<>();
+            } else {
+                fenceIdSet = new HashSet<>(setTmp);
+            }
+
+            SharedPreferences.Editor editor = mPrefs.edit();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                if (entry.getValue() != null) {
+                    editor.putString(mPrefix + entry.getKey(), entry.getValue());
+                }
+                fenceIdSet.add(entry.getKey());
+            }
+
+            editor.putStringSet(mPrefix + FENCE_ID_SET_KEY, fenceIdSet);
+            editor.apply();
+        }
+    }
+
+    @Override
+    public void delete(@NonNull Collection<String> ids) {
+        synchronized (mLock) {
+            Set<String> setTmp = mPrefs.getStringSet(mPrefix + FENCE_ID_SET_KEY, null);
+            if (setTmp != null) {
+                // the set returned by the preferences must not be modified
+                HashSet<String> fenceIdSet = new HashSet<>(setTmp);
+                SharedPreferences.Editor editor = null;
+                for (String id : ids) {
+                    if (fenceIdSet.remove(id)) {
+                        if (editor == null) {
+                            editor = mPrefs.edit();
+                        }
+
+                        editor.remove(mPrefix + id);
+                    }
+                }
+
+                if (editor != null) {
+                    editor.putStringSet(mPrefix + FENCE_ID_SET_KEY, fenceIdSet);
+                    editor.apply();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the entries left behind by the previous versions, if not already done.
+     * Previous versions wrote the set of ids under an unprefixed key when deleting fences, and
+     * could leave the encoded fences of ids that are not in the set anymore.
+     */
+    private void compactIfNeeded() {
+        if (mPrefs.getInt(mPrefix + COMPACTION_VERSION_KEY, 0) >= COMPACTION_VERSION) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = mPrefs.edit();
+        editor.remove(FENCE_ID_SET_KEY);
+
+        Set<String> fenceIdSet = mPrefs.getStringSet(mPrefix + FENCE_ID_SET_KEY, null);
+        ArrayList<String> orphanKeys = new ArrayList<>();
+        for (String key : mPrefs.getAll().keySet()) {
+            if (key.startsWith(mPrefix) && !key.equals(mPrefix + FENCE_ID_SET_KEY) &&
+                    !key.equals(mPrefix + COMPACTION_VERSION_KEY)) {
+                String id = key.substring(mPrefix.length());
+                if (fenceIdSet == null || !fenceIdSet.contains(id)) {
+                    orphanKeys.add(key);
+                }
+            }
+        }
+        for (String key : orphanKeys) {
+            editor.remove(key);
+        }
+        if (!orphanKeys.isEmpty()) {
+            Log.i(TAG, "Removed " + orphanKeys.size() + " orphaned entries of " + mPrefix);
+        }
+
+        editor.putInt(mPrefix + COMPACTION_VERSION_KEY, COMPACTION_VERSION);
+        editor.apply();
+    }
+}
@@ -0,0 +1,30 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+
+import java.util.Set;
+
+/**
+ * Package local policy that decides which of the synced fences are registered in the Google API
+ * Client.
+ * Fences handled by a policy are kept in the synced store but are only registered when the policy
+ * selects them. The other fences are always registered.
+ */
+interface RegistrationPolicy {
+
+    /**
+     * Whether the registration of a fence is decided by this policy
+     * @param fence a fence
+     * @return true if the fence should only be registered when selected by
+     * {@link #selectFences(FenceStore)}
+     */
+    boolean handles(@NonNull StorableFence fence);
+
+    /**
+     * Select the handled fences that should currently be registered
+     * @param store the store of the synced fences
+     * @return the ids of the fences to register, can not be null
+     */
+    @NonNull
+    Set<String> selectFences(@NonNull FenceStore store);
+}
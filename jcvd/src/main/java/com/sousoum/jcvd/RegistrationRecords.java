@@ -0,0 +1,214 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Package local class that remembers, for each fence registered in the Google API Client, the
+ * fingerprint of what has been registered and the registration epoch in which it has been
+ * registered.
+ * The registration epoch changes each time the device boots, see
+ * {@link StorableFenceManager#synchronizeChangedToGoogleApi(Runnable)}.
+ * Records are kept in memory and persisted in the background: several records written in a row
+ * are persisted in one transaction.
+ */
+final class RegistrationRecords {
+
+    private static final String TAG = "RegistrationRecords";
+
+    /** Epoch returned for the fences that have no record */
+    static final long NO_EPOCH = -1;
+
+    private static final char SEPARATOR = '@';
+
+    @NonNull
+    private final FenceStoreBackend mBackend;
+
+    @NonNull
+    private final Executor mExecutor;
+
+    /** Records indexed by the id of the fence. Null until they have been loaded. */
+    @Nullable
+    private HashMap<String, Record> mRecords;
+
+    /** Records that have been modified since the last flush, null values are deleted records */
+    private final HashMap<String, Record> mDirtyRecords = new HashMap<>();
+
+    private boolean mFlushScheduled;
+
+    /**
+     * Constructor.
+     * @param backend the backend that persists the records
+     * @param executor the executor on which the records are persisted
+     */
+    RegistrationRecords(@NonNull FenceStoreBackend backend, @NonNull Executor executor) {
+        mBackend = backend;
+        mExecutor = executor;
+    }
+
+    /**
+     * Whether a fence has been registered with the given fingerprint
+     * @param id the id of the fence
+     * @param fingerprint the fingerprint of the fence that should be registered
+     * @return true if the last registration of the fence had the same fingerprint
+     */
+    synchronized boolean matches(@NonNull String id, long fingerprint) {
+        Record record = getRecords().get(id);
+        return (record != null) && (record.mFingerprint == fingerprint);
+    }
+
+    /**
+     * Get the registration epoch of a fence
+     * @param id the id of the fence
+     * @return the epoch in which the fence has been registered, {@link #NO_EPOCH} if it has no
+     * record
+     */
+    synchronized long getEpoch(@NonNull String id) {
+        Record record = getRecords().get(id);
+        return (record != null) ? record.mEpoch : NO_EPOCH;
+    }
+
+    /**
+     * Get the ids of all the recorded fences
+     * @return a copy of the ids
+     */
+    @NonNull
+    synchronized Set<String> getIds() {
+        return new HashSet<>(getRecords().keySet());
+    }
+
+    /**
+     * Record the registration of a fence
+     * @param id the id of the fence
+     * @param fingerprint the fingerprint of what has been registered
+     * @param epoch the current registration epoch
+     */
+    synchronized void put(@NonNull String id, long fingerprint, long epoch) {
+        Record record = new Record(fingerprint, epoch);
+        getRecords().put(id, record);
+        mDirtyRecords.put(id, record);
+        scheduleFlush();
+    }
+
+    /**
+     * Record the registration of several fences
+     * @param additions the additions that succeeded
+     * @param epoch the current registration epoch
+     */
+    synchronized void put(@NonNull Collection<GapiFenceManager.FenceAddition> additions, long epoch) {
+        HashMap<String, Record> records = getRecords();
+        for (GapiFenceManager.FenceAddition addition : additions) {
+            Record record = new Record(addition.mFingerprint, epoch);
+            records.put(addition.mId, record);
+            mDirtyRecords.put(addition.mId, record);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Forget the registration of some fences
+     * @param ids the ids of the fences that are not registered anymore
+     */
+    synchronized void remove(@NonNull Collection<String> ids) {
+        HashMap<String, Record> records = getRecords();
+        for (String id : ids) {
+            if (records.remove(id) != null) {
+                mDirtyRecords.put(id, null);
+            }
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled && !mDirtyRecords.isEmpty()) {
+            mFlushScheduled = true;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Persist the records modified since the last flush
+     */
+    synchronized void flush() {
+        mFlushScheduled = false;
+        if (mDirtyRecords.isEmpty()) {
+            return;
+        }
+
+        HashMap<String, String> entries = new HashMap<>();
+        ArrayList<String> deletedIds = new ArrayList<>();
+        for (Map.Entry<String, Record> entry : mDirtyRecords.entrySet()) {
+            if (entry.getValue() != null) {
+                entries.put(entry.getKey(), entry.getValue().encode());
+            } else {
+                deletedIds.add(entry.getKey());
+            }
+        }
+        mDirtyRecords.clear();
+
+        if (!entries.isEmpty()) {
+            mBackend.write(entries);
+        }
+        if (!deletedIds.isEmpty()) {
+            mBackend.delete(deletedIds);
+        }
+    }
+
+    @NonNull
+    private HashMap<String, Record> getRecords() {
+        if (mRecords == null) {
+            HashMap<String, Record> records = new HashMap<>();
+            for (Map.Entry<String, String> entry : mBackend.loadAll().entrySet()) {
+                Record record = (entry.getValue() != null) ? Record.decode(entry.getValue()) : null;
+                if (record != null) {
+                    records.put(entry.getKey(), record);
+                }
+            }
+            mRecords = records;
+        }
+        return mRecords;
+    }
+
+    private static final class Record {
+        final long mFingerprint;
+        final long mEpoch;
+
+        Record(long fingerprint, long epoch) {
+            mFingerprint = fingerprint;
+            mEpoch = epoch;
+        }
+
+        @NonNull
+        String encode() {
+            return Long.toString(mFingerprint) + SEPARATOR + mEpoch;
+        }
+
+        @Nullable
+        static Record decode(@NonNull String str) {
+            int separatorIndex = str.indexOf(SEPARATOR);
+            if (separatorIndex > 0) {
+                try {
+                    return new Record(Long.parseLong(str.substring(0, separatorIndex)),
+                            Long.parseLong(str.substring(separatorIndex + 1)));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Malformed record " + str);
+                }
+            }
+            return null;
+        }
+    }
+}
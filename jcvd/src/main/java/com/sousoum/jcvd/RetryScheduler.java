@@ -0,0 +1,156 @@
+package com.sousoum.jcvd;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Package local class that schedules the retries of the requests that failed in the Google API
+ * Client.
+ * Each failure schedules one retry, unless a retry is already scheduled. The delay doubles with
+ * each consecutive failure, from {@link #INITIAL_DELAY_MS} up to {@link #MAX_DELAY_MS}, and half
+ * of it is randomized so that the retries of several processes are spread.
+ * After {@link #FAILURES_TO_OPEN_CIRCUIT} consecutive failures, the Play Services are considered
+ * unavailable: the circuit is open and no request should be sent until a request succeeds again,
+ * see {@link #tryRequest()}. While the circuit is open, each retry lets one request through
+ * (the circuit is half-open): its success closes the circuit, its failure schedules the next
+ * retry. The retry task must therefore always send a request, even if there is nothing to retry.
+ * A scheduler can be used from multiple threads.
+ */
+class RetryScheduler {
+
+    private static final String TAG = "RetryScheduler";
+
+    /** Delay before the retry that follows the first failure */
+    @VisibleForTesting
+    static final long INITIAL_DELAY_MS = 5L * 1000L;
+
+    /** Maximum delay between two retries */
+    @VisibleForTesting
+    static final long MAX_DELAY_MS = 30L * 60L * 1000L;
+
+    /** Number of consecutive failures after which the circuit is open */
+    @VisibleForTesting
+    static final int FAILURES_TO_OPEN_CIRCUIT = 5;
+
+    @NonNull
+    private final Runnable mRetryTask;
+
+    @NonNull
+    private final Random mRandom;
+
+    private Handler mHandler;
+
+    private int mFailureCount;
+
+    private boolean mRetryScheduled;
+
+    /** Whether the request of the current retry can be sent while the circuit is open */
+    private boolean mHalfOpen;
+
+    /**
+     * Constructor.
+     * @param retryTask the task that retries the failed operations
+     * @param random the source of the jitter of the delays
+     */
+    RetryScheduler(@NonNull Runnable retryTask, @NonNull Random random) {
+        mRetryTask = retryTask;
+        mRandom = random;
+    }
+
+    /**
+     * Inform that a request succeeded. This resets the delay and closes the circuit.
+     * @return true if the circuit was open
+     */
+    synchronized boolean onSuccess() {
+        boolean wasOpen = isCircuitOpen();
+        if (wasOpen) {
+            Log.i(TAG, "Play Services are available again");
+        }
+        mFailureCount = 0;
+        mHalfOpen = false;
+        return wasOpen;
+    }
+
+    /**
+     * Inform that a request failed. This schedules a retry if none is scheduled.
+     */
+    synchronized void onFailure() {
+        mFailureCount++;
+        if (mFailureCount == FAILURES_TO_OPEN_CIRCUIT) {
+            Log.w(TAG, "Play Services seem unavailable, operations are suspended");
+        }
+
+        if (!mRetryScheduled) {
+            mRetryScheduled = true;
+            long delay = getRetryDelay();
+            Log.i(TAG, "Retry in " + delay + "ms after " + mFailureCount + " failures");
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (RetryScheduler.this) {
+                        mRetryScheduled = false;
+                        mHalfOpen = isCircuitOpen();
+                    }
+                    mRetryTask.run();
+                }
+            }, delay);
+        }
+    }
+
+    /**
+     * Whether the Play Services are considered unavailable
+     * @return true if new operations should not be submitted
+     */
+    synchronized boolean isCircuitOpen() {
+        return mFailureCount >= FAILURES_TO_OPEN_CIRCUIT;
+    }
+
+    /**
+     * Ask whether a request can be sent. While the circuit is open, only the first request of
+     * each retry can be sent.
+     * @return true if the request can be sent, false if it should not be sent
+     */
+    synchronized boolean tryRequest() {
+        if (!isCircuitOpen()) {
+            return true;
+        }
+        if (mHalfOpen) {
+            mHalfOpen = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the delay of the next retry, according to the number of consecutive failures
+     * @return a delay in milliseconds
+     */
+    @VisibleForTesting
+    synchronized long getRetryDelay() {
+        long delay = MAX_DELAY_MS;
+        int exponent = mFailureCount - 1;
+        if (exponent < Long.numberOfLeadingZeros(INITIAL_DELAY_MS) - 1) {
+            delay = Math.min(INITIAL_DELAY_MS << Math.max(exponent, 0), MAX_DELAY_MS);
+        }
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * half);
+    }
+
+    /**
+     * Run a task after a delay
+     * @param task the task to run
+     * @param delayMs the delay in milliseconds
+     */
+    @VisibleForTesting
+    protected void schedule(@NonNull Runnable task, long delayMs) {
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+        mHandler.postDelayed(task, delayMs);
+    }
+}
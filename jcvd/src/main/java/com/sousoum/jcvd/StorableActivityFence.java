@@ -1,16 +1,11 @@
 package com.sousoum.jcvd;
 
-import android.content.Context;
 import android.support.annotation.IntDef;
 import android.support.annotation.RequiresPermission;
 
 import com.google.android.gms.awareness.fence.AwarenessFence;
 import com.google.android.gms.awareness.fence.DetectedActivityFence;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.Arrays;
@@ -63,8 +58,8 @@ public final class StorableActivityFence extends StorableFence {
     @TransitionType
     private int mTransitionType;
 
-    private static final String ACTIVITIES_KEY = "activities";
-    private static final String TRANSITION_TYPE_KEY = "transition";
+    static final String ACTIVITIES_KEY = "activities";
+    static final String TRANSITION_TYPE_KEY = "transition";
 
     private StorableActivityFence(@ActivityType int[] activityTypes, int transitionType) {
         super(Type.ACTIVITY);
@@ -74,7 +69,7 @@ public final class StorableActivityFence extends StorableFence {
 
     @RequiresPermission("com.google.android.gms.permission.ACTIVITY_RECOGNITION")
     @Override
-    AwarenessFence getAwarenessFence(Context ctx) {
+    AwarenessFence createAwarenessFence(int permissions) {
         switch (mTransitionType) {
             case DURING_TYPE:
                 return DetectedActivityFence.during(mActivityTypes);
@@ -119,6 +114,16 @@ public final class StorableActivityFence extends StorableFence {
         );
     }
 
+    @Override
+    long computeFingerprint() {
+        long fingerprint = mixFingerprint(super.computeFingerprint(), mTransitionType);
+        fingerprint = mixFingerprint(fingerprint, mActivityTypes.length);
+        for (int activityType : mActivityTypes) {
+            fingerprint = mixFingerprint(fingerprint, activityType);
+        }
+        return fingerprint;
+    }
+
     /**
      * Creates an storable activity fence which will be valid when the user starts one of the given
      * activity
@@ -148,49 +153,4 @@ public final class StorableActivityFence extends StorableFence {
     public static StorableActivityFence during(@ActivityType int... activityTypes) {
         return new StorableActivityFence(activityTypes, DURING_TYPE);
     }
-
-    static JSONObject activityFenceToString(StorableFence fence, JSONObject json) {
-        if (fence.getType() == StorableFence.Type.ACTIVITY) {
-            StorableActivityFence actFence = (StorableActivityFence) fence;
-            JSONArray activityArr = new JSONArray();
-            for (int activity : actFence.mActivityTypes) {
-                activityArr.put(activity);
-            }
-            try {
-                json.put(FENCE_TYPE_KEY, StorableFence.Type.ACTIVITY.ordinal());
-                json.put(TRANSITION_TYPE_KEY, actFence.mTransitionType);
-                json.put(ACTIVITIES_KEY, activityArr);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        }
-
-        return json;
-    }
-
-    static StorableFence jsonToActivityFence(JSONObject jsonObj) {
-        try {
-            if (jsonObj.getInt(FENCE_TYPE_KEY) == StorableFence.Type.ACTIVITY.ordinal()) {
-                JSONArray jsonActivities = jsonObj.getJSONArray(ACTIVITIES_KEY);
-                @StorableActivityFence.ActivityType int[] activities = new int[jsonActivities.length()];
-                for(int i = 0; i < jsonActivities.length(); i++) {
-                    @StorableActivityFence.ActivityType int activity = jsonActivities.getInt(i);
-                    activities[i] = activity;
-                }
-                int transition = jsonObj.getInt(TRANSITION_TYPE_KEY);
-                switch (transition) {
-                    case StorableActivityFence.START_TYPE:
-                        return StorableActivityFence.starting(activities);
-                    case StorableActivityFence.STOP_TYPE:
-                        return StorableActivityFence.stopping(activities);
-                    case StorableActivityFence.DURING_TYPE:
-                        return StorableActivityFence.during(activities);
-                }
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        return null;
-    }
 }
@@ -1,22 +1,20 @@
 package com.sousoum.jcvd;
 
+import android.Manifest;
 import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v4.app.ActivityCompat;
 
 import com.google.android.gms.awareness.fence.AwarenessFence;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 /**
  * A storable fence that backs up a {@link AwarenessFence}.
@@ -78,15 +76,31 @@ public class StorableFence {
     @NonNull
     private final HashMap<String, Object> mAdditionalData;
 
+    /** Cached content fingerprint, null until it has been computed */
+    @Nullable
+    private volatile Long mFingerprint;
+
+    /** Cached awareness fence of this fence, null until it has been built once */
+    @Nullable
+    private volatile AwarenessFenceCache mAwarenessFenceCache;
+
+    /** Initial value of the fingerprints, changing it changes all the persisted fingerprints */
+    private static final long FINGERPRINT_SEED = 0xCBF29CE484222325L;
+
+    private static final long FINGERPRINT_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    /** Flag of {@link Manifest.permission#ACCESS_FINE_LOCATION} in the permissions */
+    static final int PERMISSION_FINE_LOCATION = 1;
+
     protected final static String FENCE_TYPE_KEY = "type";
-    private final static String FENCE_ID_KEY = "id";
-    private final static String FENCE_PENDING_INTENT_CLASS_KEY = "pendingIntentClass";
-    private final static String FENCE_ADDITIONAL_DATA_KEY = "additionalData";
-    private final static String ADDITIONAL_DATA_TYPE_KEY = "type";
-    private final static String ADDITIONAL_DATA_VALUE_KEY = "value";
-    private final static String FENCE_META_AND_KEY = "and";
-    private final static String FENCE_META_OR_KEY = "or";
-    private final static String FENCE_META_NOT_KEY = "not";
+    final static String FENCE_ID_KEY = "id";
+    final static String FENCE_PENDING_INTENT_CLASS_KEY = "pendingIntentClass";
+    final static String FENCE_ADDITIONAL_DATA_KEY = "additionalData";
+    final static String ADDITIONAL_DATA_TYPE_KEY = "type";
+    final static String ADDITIONAL_DATA_VALUE_KEY = "value";
+    final static String FENCE_META_AND_KEY = "and";
+    final static String FENCE_META_OR_KEY = "or";
+    final static String FENCE_META_NOT_KEY = "not";
 
     protected StorableFence(@NonNull Type type) {
         mType = type;
@@ -169,20 +183,48 @@ public class StorableFence {
      * A fence has an additional data only if it is the root fence that has been added to the
      * StorableFenceManager with
      * {@link StorableFenceManager#addFence(String, StorableFence, HashMap, String)}.
+     * The returned map is a copy: modifying it does not modify the fence. The nested values
+     * (arrays, maps) are shared with the fence and should not be modified.
      * @return a map of the additional data. Empty if it has not been set.
      */
     @NonNull
     public HashMap<String, Object> getAdditionalData() {
-        return mAdditionalData;
+        return new HashMap<>(mAdditionalData);
     }
 
-    AwarenessFence getAwarenessFence(Context ctx) {
+    /**
+     * Gets the awareness fence to register for this fence.
+     * It is built from the optimized tree of this fence (see {@link FenceOptimizer}), then cached
+     * with the permissions it has been built with: it is only built again when the permissions
+     * change. Modifying the lists of sub fences after the awareness fence has been built is not
+     * supported.
+     * @param permissions the granted permissions, as returned by {@link #getPermissions(Context)}
+     * @return the awareness fence, null if it can't be built with these permissions
+     */
+    @Nullable
+    AwarenessFence getAwarenessFence(int permissions) {
+        AwarenessFenceCache cache = mAwarenessFenceCache;
+        if (cache == null || cache.mPermissions != permissions) {
+            cache = new AwarenessFenceCache(permissions,
+                    FenceOptimizer.optimize(this).createAwarenessFence(permissions));
+            mAwarenessFenceCache = cache;
+        }
+        return cache.mAwarenessFence;
+    }
+
+    /**
+     * Creates the awareness fence of this fence tree
+     * @param permissions the granted permissions, as returned by {@link #getPermissions(Context)}
+     * @return the awareness fence, null if it can't be built with these permissions
+     */
+    @Nullable
+    AwarenessFence createAwarenessFence(int permissions) {
         if (mType.equals(Type.META)) {
             if (!mAndFences.isEmpty()) {
                 List<AwarenessFence> awarenessFences = new ArrayList<>();
                 for (StorableFence subFence : mAndFences) {
                     if (subFence != null) {
-                        awarenessFences.add(subFence.getAwarenessFence(ctx));
+                        awarenessFences.add(subFence.createAwarenessFence(permissions));
                     }
                 }
                 return AwarenessFence.and(awarenessFences);
@@ -190,16 +232,115 @@ public class StorableFence {
                 List<AwarenessFence> awarenessFences = new ArrayList<>();
                 for (StorableFence subFence : mOrFences) {
                     if (subFence != null) {
-                        awarenessFences.add(subFence.getAwarenessFence(ctx));
+                        awarenessFences.add(subFence.createAwarenessFence(permissions));
                     }
                 }
                 return AwarenessFence.or(awarenessFences);
             } else if (mNotFence != null) {
-                return AwarenessFence.not(mNotFence.getAwarenessFence(ctx));
+                return AwarenessFence.not(mNotFence.createAwarenessFence(permissions));
             }
         }
         return null;
     }
+
+    /**
+     * Gets the permissions granted to the app that change the awareness fences.
+     * It should be called once for a batch of fences, not for each fence.
+     * @param ctx the context
+     * @return flags of the granted permissions, see {@link #PERMISSION_FINE_LOCATION}
+     */
+    static int getPermissions(@NonNull Context ctx) {
+        int permissions = 0;
+        if (ActivityCompat.checkSelfPermission(ctx,
+                Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+            permissions |= PERMISSION_FINE_LOCATION;
+        }
+        return permissions;
+    }
+
+    /**
+     * Gets a 64 bits fingerprint of the content of the fence.
+     * The fingerprint covers everything compared by {@link #equals(Object)}: the type, the pending
+     * intent class, the additional data, the sub fences and the fields of the subclasses. The id
+     * is not part of it.
+     * Two equal fences have the same fingerprint, two fences with different fingerprints are not
+     * equal. It is computed once, then cached until the pending intent class or the additional
+     * data of this fence is modified. Modifying the lists of sub fences after the fingerprint has
+     * been computed is not supported.
+     * The fingerprint is stable across runs so that it can be persisted with the fence.
+     * @return the fingerprint of the fence
+     */
+    long getFingerprint() {
+        Long fingerprint = mFingerprint;
+        if (fingerprint == null) {
+            fingerprint = computeFingerprint();
+            mFingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Computes the fingerprint of the fence.
+     * Subclasses mix their own fields in the fingerprint computed by this method.
+     * @return the fingerprint of the fence
+     */
+    long computeFingerprint() {
+        long fingerprint = mixFingerprint(FINGERPRINT_SEED, mType.ordinal());
+        fingerprint = mixFingerprint(fingerprint, stringFingerprint(mPendingIntentClass));
+
+        fingerprint = mixFingerprint(fingerprint, AdditionalDataCodec.mapFingerprint(mAdditionalData));
+
+        fingerprint = mixFenceListFingerprint(fingerprint, mAndFences);
+        fingerprint = mixFenceListFingerprint(fingerprint, mOrFences);
+        fingerprint = mixFingerprint(fingerprint, (mNotFence != null) ? mNotFence.getFingerprint() : 0);
+        return fingerprint;
+    }
+
+    private static long mixFenceListFingerprint(long fingerprint, @NonNull List<StorableFence> fences) {
+        fingerprint = mixFingerprint(fingerprint, fences.size());
+        for (StorableFence fence : fences) {
+            fingerprint = mixFingerprint(fingerprint, (fence != null) ? fence.getFingerprint() : 0);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Mixes a value in a fingerprint
+     * @param fingerprint the current fingerprint
+     * @param value the value to mix
+     * @return the new fingerprint
+     */
+    static long mixFingerprint(long fingerprint, long value) {
+        fingerprint = (fingerprint ^ value) * FINGERPRINT_MULTIPLIER;
+        return fingerprint ^ (fingerprint >>> 29);
+    }
+
+    /**
+     * Mixes a double value in a fingerprint
+     * @param fingerprint the current fingerprint
+     * @param value the value to mix
+     * @return the new fingerprint
+     */
+    static long mixFingerprint(long fingerprint, double value) {
+        // 0.0 and -0.0 are equal but do not have the same bits
+        return mixFingerprint(fingerprint, (value == 0) ? 0L : Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Gets the fingerprint of a string, stable across runs
+     * @param str the string, can be null
+     * @return the fingerprint of the string
+     */
+    static long stringFingerprint(@Nullable String str) {
+        if (str == null) {
+            return 0;
+        }
+        long fingerprint = mixFingerprint(FINGERPRINT_SEED, str.length());
+        for (int i = 0; i < str.length(); i++) {
+            fingerprint = mixFingerprint(fingerprint, str.charAt(i));
+        }
+        return fingerprint;
+    }
     //endregion getters
 
     //region setters
@@ -209,11 +350,13 @@ public class StorableFence {
 
     void setPendingIntentClass(String pendingIntentClass) {
         mPendingIntentClass = pendingIntentClass;
+        mFingerprint = null;
     }
 
     void setAdditionalData(@Nullable HashMap<String,Object> additionalData) {
         if (additionalData != null) {
             mAdditionalData.putAll(additionalData);
+            mFingerprint = null;
         }
     }
 
@@ -227,7 +370,7 @@ public class StorableFence {
         if (!(other instanceof StorableFence))return false;
         StorableFence fence = (StorableFence)other;
         return ((mType == fence.getType()) &&
-                (mAdditionalData.equals(fence.getAdditionalData())) &&
+                (AdditionalDataCodec.mapsEqual(mAdditionalData, fence.mAdditionalData)) &&
                 (mAndFences.equals(fence.getAndFences())) &&
                 (mOrFences.equals(fence.getOrFences())) &&
                 ((mNotFence == null && fence.getNotFence() == null) ||
@@ -238,6 +381,12 @@ public class StorableFence {
         );
     }
 
+    @Override
+    public int hashCode() {
+        long fingerprint = getFingerprint();
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+
     /**
      * Creates a meta storable fence which is a logical 'and' of all the given fences
      * @param fences the fences to be added to the 'and' list of the resulting fence
@@ -297,168 +446,46 @@ public class StorableFence {
         return metaFence;
     }
 
-    static StorableFence stringToFence(String jsonStr) {
-        try {
-            JSONObject root = new JSONObject(jsonStr);
-            return jsonToFence(root);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-
-    static StorableFence jsonToFence(JSONObject jsonObj) {
-        StorableFence fenceToReturn = null;
-        try {
-            StorableFence.Type type = StorableFence.Type.values()[jsonObj.getInt(FENCE_TYPE_KEY)];
-            switch (type) {
-                case META:
-                    if (jsonObj.has(FENCE_META_AND_KEY)) {
-                        JSONArray jsonArr = jsonObj.getJSONArray(FENCE_META_AND_KEY);
-                        Collection<StorableFence> fenceArr = new ArrayList<>();
-                        for(int i = 0; i < jsonArr.length(); i++) {
-                            JSONObject jsonFence = jsonArr.getJSONObject(i);
-                            fenceArr.add(jsonToFence(jsonFence));
-                        }
-                        fenceToReturn = StorableFence.and(fenceArr);
-                    } else if (jsonObj.has(FENCE_META_OR_KEY)) {
-                        JSONArray jsonArr = jsonObj.getJSONArray(FENCE_META_OR_KEY);
-                        Collection<StorableFence> fenceArr = new ArrayList<>();
-                        for(int i = 0; i < jsonArr.length(); i++) {
-                            JSONObject jsonFence = jsonArr.getJSONObject(i);
-                            fenceArr.add(jsonToFence(jsonFence));
-                        }
-                        fenceToReturn = StorableFence.or(fenceArr);
-
-                    } else if (jsonObj.has(FENCE_META_NOT_KEY)) {
-                        JSONObject jsonFence = jsonObj.getJSONObject(FENCE_META_NOT_KEY);
-                        StorableFence fence = jsonToFence(jsonFence);
-                        if (fence != null) {
-                            fenceToReturn = StorableFence.not(fence);
-                        }
-                    }
-                    break;
-                case LOCATION:
-                    fenceToReturn = StorableLocationFence.jsonToLocationFence(jsonObj);
-                    break;
-                case ACTIVITY:
-                    fenceToReturn = StorableActivityFence.jsonToActivityFence(jsonObj);
-                    break;
-                case TIME:
-                    fenceToReturn = StorableTimeFence.jsonToTimeFence(jsonObj);
-                    break;
-                case HEADPHONE:
-                    fenceToReturn = StorableHeadphoneFence.jsonToHeadphoneFence(jsonObj);
-                    break;
-            }
-            if (fenceToReturn!= null && jsonObj.has(FENCE_ID_KEY)) {
-                fenceToReturn.mId = jsonObj.getString(FENCE_ID_KEY);
-            }
-            if (fenceToReturn!= null && jsonObj.has(FENCE_PENDING_INTENT_CLASS_KEY)) {
-                fenceToReturn.mPendingIntentClass = jsonObj.getString(FENCE_PENDING_INTENT_CLASS_KEY);
-            }
-            if (fenceToReturn!= null && jsonObj.has(FENCE_ADDITIONAL_DATA_KEY)) {
-                HashMap<String, Object> additionalData = new HashMap<>();
-                JSONObject additionalDataObj = jsonObj.getJSONObject(FENCE_ADDITIONAL_DATA_KEY);
-                Iterator keys = additionalDataObj.keys();
-                while (keys.hasNext()) {
-                    String key = (String) keys.next();
-                    JSONObject objAsJson = additionalDataObj.getJSONObject(key);
-                    try {
-                        Class classOfObj = Class.forName(objAsJson.getString(ADDITIONAL_DATA_TYPE_KEY));
-                        additionalData.put(key, classOfObj.cast(objAsJson.get(ADDITIONAL_DATA_VALUE_KEY)));
-                    } catch (ClassNotFoundException e) {
-                        e.printStackTrace();
-                    }
-                }
-                fenceToReturn.setAdditionalData(additionalData);
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+    /**
+     * Gets the fence delivered in the intent sent when a fence is triggered.
+     * The fence is only delivered if
+     * {@link StorableFenceManager#setDeliverFenceInIntent(boolean)} was enabled when it has been
+     * added or synchronized.
+     * This does not need any store lookup: the fence, its id, pending intent class and additional
+     * data are decoded from the intent.
+     * @param intent the intent received by the pending intent class of the fence
+     * @return the fence contained in the intent, null if it does not contain any fence
+     */
+    @Nullable
+    public static StorableFence fromTransitionIntent(@NonNull Intent intent) {
+        byte[] encodedFence = intent.getByteArrayExtra(GapiFenceManager.EXTRA_ENCODED_FENCE);
+        if (encodedFence == null) {
+            return null;
         }
-        return fenceToReturn;
+        return StorableFenceCodec.decode(encodedFence);
     }
 
-    static String fenceToString(StorableFence fence) {
-        JSONObject root = new JSONObject();
-        fenceToString(fence, root);
-        return root.toString();
+    /**
+     * Decode a fence stored in the legacy JSON format
+     * @param jsonStr the fence stored in the legacy JSON format by the previous versions
+     * @return the fence, null if the string can't be decoded
+     * @see LegacyFenceDecoder
+     */
+    static StorableFence stringToFence(String jsonStr) {
+        return LegacyFenceDecoder.decode(jsonStr);
     }
 
-    static JSONObject fenceToString(StorableFence fence, JSONObject json) {
-        try {
-            if (fence.mId != null) {
-                json.put(FENCE_ID_KEY, fence.mId);
-            }
-            if (fence.mPendingIntentClass != null) {
-                json.put(FENCE_PENDING_INTENT_CLASS_KEY, fence.mPendingIntentClass);
-            }
-            if (!fence.getAdditionalData().isEmpty()) {
-                JSONObject additionalDataAsJson = new JSONObject();
-                Set<String> keys = fence.getAdditionalData().keySet();
-                for (String key : keys) {
-                    Object obj = fence.getAdditionalData().get(key);
-                    if (obj != null) {
-                        try {
-                            Class objClass = obj.getClass();
-                            if (objClass.equals(String.class) ||
-                                    objClass.equals(Integer.class) ||
-                                    objClass.equals(Long.class) ||
-                                    objClass.equals(Double.class) ||
-                                    objClass.equals(Boolean.class)) {
-                                JSONObject objAsJson = new JSONObject();
-                                objAsJson.put(ADDITIONAL_DATA_TYPE_KEY, objClass.getName());
-                                objAsJson.put(ADDITIONAL_DATA_VALUE_KEY, obj);
-                                additionalDataAsJson.put(key, objAsJson);
-                            } else {
-                                throw new Exception("Key " + key + " is storing a object of class " + objClass.toString() + " which is not supported");
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-                json.put(FENCE_ADDITIONAL_DATA_KEY, additionalDataAsJson);
-            }
-            switch (fence.mType) {
-                case META:
-                    json.put(FENCE_TYPE_KEY, StorableFence.Type.META.ordinal());
-
-                    // if the meta fence is a AND meta
-                    if (!fence.mAndFences.isEmpty()) {
-                        JSONArray andArr = new JSONArray();
-                        for (StorableFence subFence : fence.mAndFences) {
-                            andArr.put(fenceToString(subFence, new JSONObject()));
-                        }
-                        json.put(FENCE_META_AND_KEY, andArr);
-                    } else if (!fence.mOrFences.isEmpty()) {
-                        JSONArray orArr = new JSONArray();
-                        for (StorableFence subFence : fence.mOrFences) {
-                            orArr.put(fenceToString(subFence, new JSONObject()));
-                        }
-                        json.put(FENCE_META_OR_KEY, orArr);
-                    } else if (fence.mNotFence != null) {
-                        json.put(FENCE_META_NOT_KEY, fenceToString(fence.mNotFence, new JSONObject()));
-                    }
-                    break;
-                case ACTIVITY:
-                    json = StorableActivityFence.activityFenceToString(fence, json);
-                    break;
-                case LOCATION:
-                    json = StorableLocationFence.locationFenceToString(fence, json);
-                    break;
-                case TIME:
-                    json = StorableTimeFence.timeFenceToString(fence, json);
-                    break;
-                case HEADPHONE:
-                    json = StorableHeadphoneFence.headphoneFenceToString(fence, json);
-                    break;
-            }
-        }
-        catch (JSONException e) {
-            e.printStackTrace();
+    /**
+     * An awareness fence and the permissions it has been built with
+     */
+    private static final class AwarenessFenceCache {
+        final int mPermissions;
+        @Nullable
+        final AwarenessFence mAwarenessFence;
+
+        AwarenessFenceCache(int permissions, @Nullable AwarenessFence awarenessFence) {
+            mPermissions = permissions;
+            mAwarenessFence = awarenessFence;
         }
-
-        return json;
     }
 }
@@ -0,0 +1,592 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Package local class that serializes fences in a compact binary format.
+ *
+ * The encoded data starts with a version byte, followed by the fingerprint of the root fence (see
+ * {@link StorableFence#getFingerprint()}) on 8 bytes, the dictionary of the time zones used by
+ * the time fences, then the root fence. The time fences refer to their time zone by its ordinal in
+ * the dictionary, so a time zone is only written and decoded once per encoded fence.
+ * Each fence is written as a type tag, a flag byte telling which of the id, pending intent class
+ * and additional data are present, these optional values, then the fields of its type.
+ * Integers are written as (zigzag) varints, doubles as their raw 8 bytes and strings as their
+ * UTF-8 bytes prefixed by their length. Additional data values are written as a tag followed by
+ * the value, see {@link AdditionalDataCodec}.
+ *
+ * Fences stored in the legacy JSON format by the previous versions can still be read with
+ * {@link #decodeFromString(String)}.
+ */
+final class StorableFenceCodec {
+
+    private static final String TAG = "StorableFenceCodec";
+
+    /** Current version of the format. */
+    static final int VERSION = 1;
+
+    /** Ordinal written by the time fences that have no time zone */
+    private static final int NO_TIME_ZONE = 0;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //region flags
+    private static final int FLAG_ID = 1;
+    private static final int FLAG_PENDING_INTENT_CLASS = 1 << 1;
+    private static final int FLAG_ADDITIONAL_DATA = 1 << 2;
+    //endregion flags
+
+    //region meta kinds
+    private static final int META_EMPTY = 0;
+    private static final int META_AND = 1;
+    private static final int META_OR = 2;
+    private static final int META_NOT = 3;
+    //endregion meta kinds
+
+    private StorableFenceCodec() {
+    }
+
+    /**
+     * Encode a fence into a string that can be stored in the preferences
+     * @param fence the fence to encode
+     * @return the encoded fence
+     */
+    @NonNull
+    static String encodeToString(@NonNull StorableFence fence) {
+        return Base64.encodeToString(encode(fence), Base64.NO_WRAP);
+    }
+
+    /**
+     * Decode a fence encoded with {@link #encodeToString(StorableFence)} or stored in the legacy
+     * JSON format
+     * @param str the encoded fence
+     * @return the decoded fence, or null if it can't be decoded
+     */
+    @Nullable
+    static StorableFence decodeFromString(@NonNull String str) {
+        if (isLegacy(str)) {
+            return StorableFence.stringToFence(str);
+        }
+
+        try {
+            return decode(Base64.decode(str, Base64.NO_WRAP));
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Tells whether the given encoded fence is in the legacy JSON format
+     * @param str the encoded fence
+     * @return true if the string is a legacy JSON fence
+     */
+    static boolean isLegacy(@NonNull String str) {
+        // base 64 never produces a '{'
+        return str.startsWith("{");
+    }
+
+    /**
+     * Encode a fence
+     * @param fence the fence to encode
+     * @return the encoded fence
+     */
+    @NonNull
+    static byte[] encode(@NonNull StorableFence fence) {
+        Writer writer = new Writer();
+        writer.writeVarInt(VERSION);
+        writer.writeFixedLong(fence.getFingerprint());
+
+        ArrayList<TimeZone> timeZones = new ArrayList<>();
+        collectTimeZones(fence, timeZones);
+        writer.writeVarInt(timeZones.size());
+        for (TimeZone timeZone : timeZones) {
+            writer.writeString(timeZone.getID());
+            writer.writeVarLong(timeZone.getRawOffset());
+        }
+
+        writeFence(fence, writer, timeZones);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decode a fence encoded with {@link #encode(StorableFence)}
+     * @param data the encoded fence
+     * @return the decoded fence, or null if it can't be decoded
+     */
+    @Nullable
+    static StorableFence decode(@NonNull byte[] data) {
+        Reader reader = new Reader(data);
+        try {
+            int version = reader.readVarInt();
+            if (version != VERSION) {
+                Log.e(TAG, "Can't decode fence of version " + version);
+                return null;
+            }
+
+            // the fingerprint may have been computed by another version of the library, it is
+            // computed again when needed
+            reader.readFixedLong();
+            TimeZone[] timeZones = new TimeZone[reader.readLength()];
+            for (int i = 0; i < timeZones.length; i++) {
+                String timeZoneId = reader.readString();
+                timeZones[i] = TimeZoneTable.intern(timeZoneId, (int) reader.readVarLong());
+            }
+            return readFence(reader, timeZones);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    //region writing
+    /**
+     * Add the time zones of the time fences of a fence to a list, if not already in it
+     */
+    private static void collectTimeZones(@Nullable StorableFence fence,
+                                         @NonNull List<TimeZone> timeZones) {
+        if (fence == null) {
+            return;
+        }
+        switch (fence.getType()) {
+            case META:
+                for (StorableFence subFence : fence.getAndFences()) {
+                    collectTimeZones(subFence, timeZones);
+                }
+                for (StorableFence subFence : fence.getOrFences()) {
+                    collectTimeZones(subFence, timeZones);
+                }
+                collectTimeZones(fence.getNotFence(), timeZones);
+                break;
+            case TIME:
+                TimeZone timeZone = ((StorableTimeFence) fence).getSharedTimeZone();
+                if (timeZone != null && indexOfTimeZone(timeZone, timeZones) < 0) {
+                    timeZones.add(timeZone);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Get the index of a time zone in a list, comparing the values that are written
+     * @return the index, -1 if the list does not contain the time zone
+     */
+    private static int indexOfTimeZone(@NonNull TimeZone timeZone, @NonNull List<TimeZone> timeZones) {
+        for (int i = 0; i < timeZones.size(); i++) {
+            TimeZone other = timeZones.get(i);
+            if (other.getRawOffset() == timeZone.getRawOffset() && other.getID().equals(timeZone.getID())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeFence(@NonNull StorableFence fence, @NonNull Writer writer,
+                                   @NonNull List<TimeZone> timeZones) {
+        HashMap<String, Object> additionalData = fence.getAdditionalData();
+        int flags = 0;
+        if (fence.getId() != null) {
+            flags |= FLAG_ID;
+        }
+        if (fence.getPendingIntentClass() != null) {
+            flags |= FLAG_PENDING_INTENT_CLASS;
+        }
+        if (!additionalData.isEmpty()) {
+            flags |= FLAG_ADDITIONAL_DATA;
+        }
+
+        writer.writeVarInt(fence.getType().ordinal());
+        writer.writeVarInt(flags);
+        if (fence.getId() != null) {
+            writer.writeString(fence.getId());
+        }
+        if (fence.getPendingIntentClass() != null) {
+            writer.writeString(fence.getPendingIntentClass());
+        }
+        if (!additionalData.isEmpty()) {
+            AdditionalDataCodec.writeMap(additionalData, writer);
+        }
+
+        switch (fence.getType()) {
+            case META:
+                if (!fence.getAndFences().isEmpty()) {
+                    writer.writeVarInt(META_AND);
+                    writeFenceList(fence.getAndFences(), writer, timeZones);
+                } else if (!fence.getOrFences().isEmpty()) {
+                    writer.writeVarInt(META_OR);
+                    writeFenceList(fence.getOrFences(), writer, timeZones);
+                } else if (fence.getNotFence() != null) {
+                    writer.writeVarInt(META_NOT);
+                    writeFence(fence.getNotFence(), writer, timeZones);
+                } else {
+                    writer.writeVarInt(META_EMPTY);
+                }
+                break;
+            case LOCATION:
+                StorableLocationFence locFence = (StorableLocationFence) fence;
+                writer.writeVarInt(locFence.getTransitionType());
+                writer.writeDouble(locFence.getLatitude());
+                writer.writeDouble(locFence.getLongitude());
+                writer.writeDouble(locFence.getRadius());
+                writer.writeVarLong(locFence.getDwellTimeMillis());
+                break;
+            case ACTIVITY:
+                StorableActivityFence actFence = (StorableActivityFence) fence;
+                int[] activities = actFence.getActivityTypes();
+                writer.writeVarInt(actFence.getTransitionType());
+                writer.writeVarInt(activities.length);
+                for (int activity : activities) {
+                    writer.writeVarInt(activity);
+                }
+                break;
+            case TIME:
+                StorableTimeFence timeFence = (StorableTimeFence) fence;
+                writer.writeVarInt(timeFence.getTimingType());
+                // a single day or the flags of several days, depending on the timing type
+                writer.writeVarInt((timeFence.getTimingType() == StorableTimeFence.DAYS_OF_WEEK) ?
+                        timeFence.getDaysOfWeek() : timeFence.getDayOfWeek());
+                writer.writeVarInt(timeFence.getTimeInterval());
+                writer.writeVarInt(timeFence.getTimeInstant());
+                TimeZone timeZone = timeFence.getSharedTimeZone();
+                writer.writeVarInt((timeZone != null) ?
+                        indexOfTimeZone(timeZone, timeZones) + 1 : NO_TIME_ZONE);
+                writer.writeVarLong(timeFence.getStartTime());
+                writer.writeVarLong(timeFence.getStopTime());
+                writer.writeVarLong(timeFence.getStartOffset());
+                writer.writeVarLong(timeFence.getStopOffset());
+                break;
+            case HEADPHONE:
+                StorableHeadphoneFence headphoneFence = (StorableHeadphoneFence) fence;
+                writer.writeVarInt(headphoneFence.getTriggerType());
+                writer.writeVarInt(headphoneFence.getHeadphoneState());
+                break;
+        }
+    }
+
+    private static void writeFenceList(@NonNull List<StorableFence> fences, @NonNull Writer writer,
+                                       @NonNull List<TimeZone> timeZones) {
+        writer.writeVarInt(fences.size());
+        for (StorableFence subFence : fences) {
+            writeFence(subFence, writer, timeZones);
+        }
+    }
+    //endregion writing
+
+    //region reading
+    /**
+     * Read a fence
+     * @param timeZones the dictionary of the time zones
+     */
+    @Nullable
+    private static StorableFence readFence(@NonNull Reader reader,
+                                           @NonNull TimeZone[] timeZones) throws IOException {
+        int typeOrdinal = reader.readVarInt();
+        if (typeOrdinal < 0 || typeOrdinal >= StorableFence.Type.values().length) {
+            throw new IOException("Unknown fence type " + typeOrdinal);
+        }
+        StorableFence.Type type = StorableFence.Type.values()[typeOrdinal];
+        int flags = reader.readVarInt();
+        String id = ((flags & FLAG_ID) != 0) ? reader.readString() : null;
+        String pendingIntentClass = ((flags & FLAG_PENDING_INTENT_CLASS) != 0) ? reader.readString() : null;
+        HashMap<String, Object> additionalData = ((flags & FLAG_ADDITIONAL_DATA) != 0) ?
+                AdditionalDataCodec.readMap(reader) : null;
+
+        StorableFence fence = null;
+        switch (type) {
+            case META:
+                int metaKind = reader.readVarInt();
+                switch (metaKind) {
+                    case META_AND:
+                        fence = StorableFence.and(readFenceList(reader, timeZones));
+                        break;
+                    case META_OR:
+                        fence = StorableFence.or(readFenceList(reader, timeZones));
+                        break;
+                    case META_NOT:
+                        StorableFence notFence = readFence(reader, timeZones);
+                        if (notFence != null) {
+                            fence = StorableFence.not(notFence);
+                        }
+                        break;
+                    case META_EMPTY:
+                        fence = new StorableFence(StorableFence.Type.META);
+                        break;
+                    default:
+                        throw new IOException("Unknown meta kind " + metaKind);
+                }
+                break;
+            case LOCATION:
+                fence = readLocationFence(reader);
+                break;
+            case ACTIVITY:
+                fence = readActivityFence(reader);
+                break;
+            case TIME:
+                fence = readTimeFence(reader, timeZones);
+                break;
+            case HEADPHONE:
+                fence = readHeadphoneFence(reader);
+                break;
+        }
+
+        if (fence != null) {
+            fence.setId(id);
+            fence.setPendingIntentClass(pendingIntentClass);
+            fence.setAdditionalData(additionalData);
+        }
+        return fence;
+    }
+
+    @NonNull
+    private static List<StorableFence> readFenceList(@NonNull Reader reader,
+                                                     @NonNull TimeZone[] timeZones) throws IOException {
+        int count = reader.readVarInt();
+        List<StorableFence> fences = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            fences.add(readFence(reader, timeZones));
+        }
+        return fences;
+    }
+
+    @Nullable
+    private static StorableFence readLocationFence(@NonNull Reader reader) throws IOException {
+        int transition = reader.readVarInt();
+        double latitude = reader.readDouble();
+        double longitude = reader.readDouble();
+        double radius = reader.readDouble();
+        long dwell = reader.readVarLong();
+        switch (transition) {
+            case StorableLocationFence.ENTER_TYPE:
+                return StorableLocationFence.entering(latitude, longitude, radius);
+            case StorableLocationFence.EXIT_TYPE:
+                return StorableLocationFence.exiting(latitude, longitude, radius);
+            case StorableLocationFence.IN_TYPE:
+                return StorableLocationFence.in(latitude, longitude, radius, dwell);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static StorableFence readActivityFence(@NonNull Reader reader) throws IOException {
+        int transition = reader.readVarInt();
+        @StorableActivityFence.ActivityType int[] activities = new int[reader.readVarInt()];
+        for (int i = 0; i < activities.length; i++) {
+            activities[i] = reader.readVarInt();
+        }
+        switch (transition) {
+            case StorableActivityFence.START_TYPE:
+                return StorableActivityFence.starting(activities);
+            case StorableActivityFence.STOP_TYPE:
+                return StorableActivityFence.stopping(activities);
+            case StorableActivityFence.DURING_TYPE:
+                return StorableActivityFence.during(activities);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static StorableFence readTimeFence(@NonNull Reader reader,
+                                               @NonNull TimeZone[] timeZones) throws IOException {
+        @StorableTimeFence.TimingType int timingType = reader.readVarInt();
+        @StorableTimeFence.DayOfWeek int dayOfWeek = reader.readVarInt();
+        @StorableTimeFence.TimeInterval int timeInterval = reader.readVarInt();
+        @StorableTimeFence.TimeInstant int timeInstant = reader.readVarInt();
+        TimeZone timeZone = null;
+        int timeZoneOrdinal = reader.readVarInt();
+        if (timeZoneOrdinal != NO_TIME_ZONE) {
+            if (timeZoneOrdinal < 0 || timeZoneOrdinal > timeZones.length) {
+                throw new IOException("Unknown time zone " + timeZoneOrdinal);
+            }
+            timeZone = timeZones[timeZoneOrdinal - 1];
+        }
+        long startTime = reader.readVarLong();
+        long stopTime = reader.readVarLong();
+        long startOffset = reader.readVarLong();
+        long stopOffset = reader.readVarLong();
+        switch (timingType) {
+            case StorableTimeFence.ABSOLUTE:
+                return StorableTimeFence.inInterval(startTime, stopTime);
+            case StorableTimeFence.DAILY:
+                return StorableTimeFence.inDailyInterval(timeZone, startTime, stopTime);
+            case StorableTimeFence.DAY_OF_WEEK:
+                return StorableTimeFence.inIntervalOfDay(dayOfWeek, timeZone, startTime, stopTime);
+            case StorableTimeFence.DAYS_OF_WEEK:
+                return StorableTimeFence.withDaysOfWeek(dayOfWeek, timeZone, startTime, stopTime);
+            case StorableTimeFence.TIME_INTERVAL:
+                return StorableTimeFence.inTimeInterval(timeInterval);
+            case StorableTimeFence.TIME_INSTANT:
+                return StorableTimeFence.aroundTimeInstant(timeInstant, startOffset, stopOffset);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static StorableFence readHeadphoneFence(@NonNull Reader reader) throws IOException {
+        int triggerType = reader.readVarInt();
+        int headphoneState = reader.readVarInt();
+        switch (triggerType) {
+            case StorableHeadphoneFence.STATE:
+                return StorableHeadphoneFence.during(headphoneState);
+            case StorableHeadphoneFence.PLUGGING_IN:
+                return StorableHeadphoneFence.pluggingIn();
+            case StorableHeadphoneFence.UNPLUGGING:
+                return StorableHeadphoneFence.unplugging();
+        }
+        return null;
+    }
+    //endregion reading
+
+    /**
+     * Sequentially writes primitive values in a byte array
+     */
+    static final class Writer {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        void writeVarInt(int value) {
+            // negative values are written on 5 bytes
+            writeRawVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long value) {
+            // zigzag encoding so that small negative values are also small
+            writeRawVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeDouble(double value) {
+            writeFixedLong(Double.doubleToLongBits(value));
+        }
+
+        void writeFixedLong(long value) {
+            for (int i = 0; i < 8; i++) {
+                mOut.write((int) (value >>> (8 * i)));
+            }
+        }
+
+        void writeBoolean(boolean value) {
+            mOut.write(value ? 1 : 0);
+        }
+
+        void writeString(@NonNull String value) {
+            writeBytes(value.getBytes(UTF_8));
+        }
+
+        void writeBytes(@NonNull byte[] value) {
+            writeVarInt(value.length);
+            mOut.write(value, 0, value.length);
+        }
+
+        @NonNull
+        byte[] toByteArray() {
+            return mOut.toByteArray();
+        }
+
+        private void writeRawVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                mOut.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mOut.write((int) value);
+        }
+    }
+
+    /**
+     * Sequentially reads primitive values from a byte array
+     */
+    static final class Reader {
+        @NonNull
+        private final byte[] mData;
+        private int mPos;
+
+        Reader(@NonNull byte[] data) {
+            mData = data;
+        }
+
+        int readVarInt() throws IOException {
+            return (int) readRawVarLong();
+        }
+
+        long readVarLong() throws IOException {
+            long raw = readRawVarLong();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        double readDouble() throws IOException {
+            return Double.longBitsToDouble(readFixedLong());
+        }
+
+        long readFixedLong() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value |= ((long) readByte()) << (8 * i);
+            }
+            return value;
+        }
+
+        boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @NonNull
+        String readString() throws IOException {
+            int length = readLength();
+            String value = new String(mData, mPos, length, UTF_8);
+            mPos += length;
+            return value;
+        }
+
+        @NonNull
+        byte[] readBytes() throws IOException {
+            int length = readLength();
+            byte[] value = new byte[length];
+            System.arraycopy(mData, mPos, value, 0, length);
+            mPos += length;
+            return value;
+        }
+
+        /**
+         * Read the length of a string, an array or a map. Each element takes at least one byte,
+         * so a length greater than the remaining bytes is malformed.
+         */
+        int readLength() throws IOException {
+            int length = readVarInt();
+            if (length < 0 || length > mData.length - mPos) {
+                throw new EOFException();
+            }
+            return length;
+        }
+
+        private int readByte() throws IOException {
+            if (mPos >= mData.length) {
+                throw new EOFException();
+            }
+            return mData[mPos++] & 0xFF;
+        }
+
+        private long readRawVarLong() throws IOException {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift >= 64) {
+                    throw new IOException("Malformed varint");
+                }
+                b = readByte();
+                value |= ((long) (b & 0x7F)) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
@@ -1,310 +1,1804 @@
-package com.sousoum.jcvd;
-
-import android.content.Context;
-import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
-import android.support.annotation.VisibleForTesting;
-import android.util.Log;
-
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.common.api.Status;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
-
-/**
- * Class that manages addition and deletion of Fences in the Google API Client.
- * It uses a store to remember all fences that are currently in the Google API Client.
- * The store is currently backed by the shared preferences
- */
-public class StorableFenceManager {
-
-    /**
-     * Informs about fence addition or removal status
-     */
-    public interface Listener {
-        /**
-         * Called when a fence has been, successfully or not, added to the Google API Client
-         * @param fence the fence that has been added
-         * @param status the status of the operation
-         */
-        void fenceAddStatus(StorableFence fence, Status status);
-
-        /**
-         * Called when a fence has been, successfully or not, removed from the Google API Client
-         * @param fenceId the id of the fence that has been removed
-         * @param status the status of the operation
-         */
-        void fenceRemoveStatus(String fenceId, Status status);
-    }
-
-    private static final String TAG = "FenceManager";
-
-    private static final String TO_ADD_STORE = "TO_ADD_STORE";
-    private static final String TO_REMOVE_STORE = "TO_REMOVE_STORE";
-    private static final String SYNCED_STORE = "SYNCED_STORE";
-
-    private final Context mContext;
-
-    private Listener mListener;
-
-    @VisibleForTesting
-    final FenceStore mToAddStore; // store of the fence to add to the Google API Client
-    @VisibleForTesting
-    final FenceStore mToRemoveStore; // store of the fence to remove from the Google API Client
-    @VisibleForTesting
-    final FenceStore mSyncedStore; // store that represent which fences are in the Google API Client
-
-    private final GapiFenceManager mGapiFenceManager;
-
-    /**
-     * Constructor.
-     *
-     * @param context a context
-     */
-    public StorableFenceManager(Context context) {
-        mContext = context;
-
-        mToAddStore = new FenceStore(context, TO_ADD_STORE);
-        mToRemoveStore = new FenceStore(context, TO_REMOVE_STORE);
-        mSyncedStore = new FenceStore(context, SYNCED_STORE);
-
-        mGapiFenceManager = createGapiFenceManager();
-        synchronizeNonCommittedFencesToGoogleApi();
-    }
-
-    @VisibleForTesting
-    protected GapiFenceManager createGapiFenceManager() {
-        return new GapiFenceManager(mContext);
-    }
-
-    /**
-     * Set the listener. This listener will be informed when the fences are modified in the google api client
-     * @param listener a listener
-     */
-    public void setListener(Listener listener) {
-        mListener = listener;
-    }
-
-    /**
-     * Get the current listener
-     * @return the current listener
-     */
-    public Listener getListener() {
-        return mListener;
-    }
-
-    /**
-     * Add a fence to the store
-     * This will also add the fence to the google api client if connected. If not, it will trigger a connection
-     * This call requires that the following granted permissions:
-     *      - ACCESS_FINE_LOCATION if one of the fence is a {@link StorableLocationFence}
-     *      - ACTIVITY_RECOGNITION if one of the fence is a {@link StorableActivityFence}
-     * @param id the unique id of the fence. You will be able to get the fence with this id.
-     * @param storableFence the fence to store
-     * @param pendingIntentClassName the class name of the pending intent to call when the fence will be valid.
-     */
-    public void addFence(@NonNull String id, @NonNull StorableFence storableFence,
-                            @NonNull String pendingIntentClassName) {
-        addFence(id, storableFence, null, pendingIntentClassName);
-    }
-
-    /**
-     * Add a fence to the store
-     * This will also add the fence to the google api client if connected. If not, it will trigger a connection
-     * This call requires that the following granted permissions:
-     *      - ACCESS_FINE_LOCATION if one of the fence is a {@link StorableLocationFence}
-     *      - ACTIVITY_RECOGNITION if one of the fence is a {@link StorableActivityFence}
-     * @param id the unique id of the fence. You will be able to get the fence with this id.
-     * @param storableFence the fence to store
-     * @param additionalData a hash map associated with this fence. Can be null.
-     * @param pendingIntentClassName the class name of the pending intent to call when the fence will be valid.
-     */
-    public void addFence(@NonNull String id, @NonNull StorableFence storableFence,
-                            @Nullable HashMap<String, Object> additionalData,
-                            @NonNull String pendingIntentClassName) {
-        storableFence.setId(id);
-        storableFence.setAdditionalData(additionalData);
-        storableFence.setPendingIntentClass(pendingIntentClassName);
-        mToAddStore.storeFence(storableFence);
-
-        FenceAddStatus addStatus = new FenceAddStatus(storableFence);
-        mGapiFenceManager.addFence(id, storableFence.getAwarenessFence(mContext),
-                pendingIntentClassName, addStatus);
-    }
-
-    /**
-     * Ask to remove a fence from the store.
-     * If the Google API Client is not connected, trigger a connection
-     * Else, remove from the Google API client. It will be removed from store if the operation is successful
-     * @param fenceId The id of the fence to remove
-     */
-    public void removeFence(@NonNull String fenceId) {
-
-        mToRemoveStore.storeFenceId(fenceId);
-
-        FenceRemoveStatus removeStatus = new FenceRemoveStatus(fenceId);
-        mGapiFenceManager.removeFence(fenceId, removeStatus);
-    }
-
-    /**
-     * Resynchronize all fences to the Google API Client.
-     * This means that the already stored fences will be re-submitted and that the
-     * {@link StorableFenceManager#synchronizeNonCommittedFencesToGoogleApi()} function will be
-     * called.
-     */
-    @VisibleForTesting(otherwise=VisibleForTesting.PACKAGE_PRIVATE)
-    public void synchronizeAllToGoogleApi() {
-        Log.i(TAG, "Resynchronize all fences");
-        // first, add all (already) stored fences, without listener
-        ArrayList<StorableFence> storedFences = mSyncedStore.getAllFences();
-        if (!storedFences.isEmpty()) {
-            // for each fence, add it to the Google API Client
-            for (StorableFence storableFence : storedFences) {
-                if ((storableFence.getId() != null) &&
-                        (storableFence.getPendingIntentClass() != null)) {
-                    mGapiFenceManager.addFence(storableFence.getId(), storableFence.getAwarenessFence(mContext),
-                            storableFence.getPendingIntentClass(), null);
-                }
-                Log.i(TAG, "Added " + storableFence);
-            }
-            Log.i(TAG, "All already stored fences have been submitted to be synchronized with Google API Client");
-        }
-
-        // then synchronize non-committed fences
-        synchronizeNonCommittedFencesToGoogleApi();
-    }
-
-    /**
-     * Ask to synchronize all non committed changes to the Google API Client
-     * (i.e. add the fences that are in the toAddStore and remove the fences that are in the
-     * toRemoveStore)
-     */
-    private void synchronizeNonCommittedFencesToGoogleApi() {
-        Log.i(TAG, "Synchronize non-commited fences");
-        // add all fences from the to add list
-        ArrayList<StorableFence> toAddFences = mToAddStore.getAllFences();
-        if (!toAddFences.isEmpty()) {
-            // for each fence, add it to the Google API Client
-            for (StorableFence storableFence : toAddFences) {
-                FenceAddStatus addStatus = new FenceAddStatus(storableFence);
-
-                if ((storableFence.getId() != null) &&
-                        (storableFence.getPendingIntentClass() != null)) {
-                    mGapiFenceManager.addFence(storableFence.getId(), storableFence.getAwarenessFence(mContext),
-                            storableFence.getPendingIntentClass(), addStatus);
-                }
-                Log.i(TAG, "Added " + storableFence);
-            }
-            Log.i(TAG, "All fences to add have been submitted to be synchronized with Google API Client");
-        }
-
-        // remove all fences from the to remove list
-        Set<String> toRemoveFences = mToRemoveStore.getAllFenceIds();
-        if (!toRemoveFences.isEmpty()) {
-            // TODO: use only one request!
-            // for each fence, remove it to the Google API Client
-            for (String fenceId : toRemoveFences) {
-
-                FenceRemoveStatus removeStatus = new FenceRemoveStatus(fenceId);
-                mGapiFenceManager.removeFence(fenceId, removeStatus);
-                Log.i(TAG, "Removed " + fenceId);
-            }
-            Log.i(TAG, "All fences to remove have been submitted to be synchronized with Google API Client");
-        }
-    }
-
-    /**
-     * Get all stored fences that are synced with Google API Client.
-     * @return a list of StorableFence (can not be null)
-     */
-    public @NonNull
-    ArrayList<StorableFence> getAllFences() {
-        return mSyncedStore.getAllFences();
-    }
-
-    /**
-     * Get a stored fence which is synced with Google API Client.
-     * @param id the id of the searched fence
-     * @return a StorableFence that matches the given id
-     */
-    public StorableFence getFence(String id) {
-        StorableFence storableFence = null;
-
-        if (id != null) {
-            ArrayList<StorableFence> allGeo = getAllFences();
-
-            for (StorableFence currentFence : allGeo) {
-                if (currentFence.getId() != null && currentFence.getId().equals(id)) {
-                    storableFence = currentFence;
-                    break;
-                }
-            }
-        }
-        return storableFence;
-    }
-
-    //region Result callbacks
-    private class FenceRemoveStatus implements ResultCallback<Status> {
-
-        /**
-         * Inner class that will responds to ResultCallback when a fence will be, successfully or not, removed from the Google API Client
-         */
-
-        private final String mFenceId;
-        public FenceRemoveStatus(@NonNull String fenceId) {
-            mFenceId = fenceId;
-        }
-
-        @Override
-        public void onResult(@NonNull Status status) {
-            if (status.isSuccess()) {
-                Log.i(TAG, "Removed successfully fence " + mFenceId + " to the Google API");
-                // since the operation is successful, remove from the local store
-                mSyncedStore.removeFence(mFenceId);
-
-                mToRemoveStore.removeFence(mFenceId);
-            } else {
-                Log.e(TAG, "Error : fence not removed. Error is " + status.getStatusMessage() + "(code : " + status.getStatusCode() + ")");
-            }
-
-            if (mListener != null) {
-                mListener.fenceRemoveStatus(mFenceId, status);
-            }
-        }
-    }
-
-    private class FenceAddStatus implements ResultCallback<Status> {
-
-        /**
-         * Inner class that will responds to ResultCallback when a fence will be, successfully or not, added to the Google API Client
-         */
-
-        private final StorableFence mFence;
-
-        public FenceAddStatus(@NonNull StorableFence fence) {
-            mFence = fence;
-        }
-
-        @Override
-        public void onResult(@NonNull Status status) {
-            if (status.isSuccess()) {
-                Log.i(TAG, "Added successfully fence " + mFence + " to the Google API");
-                // since the operation is successful, remove from the local store
-                mSyncedStore.storeFence(mFence);
-
-                // id could not be null here as we have added the fence to the store
-                assert mFence.getId() != null;
-                mToAddStore.removeFence(mFence.getId());
-            } else {
-                Log.e(TAG, "Error : fence not added. Error is " + status.getStatusMessage() + "(code : " + status.getStatusCode() + ")");
-            }
-
-            if (mListener != null) {
-                mListener.fenceAddStatus(mFence, status);
-            }
-        }
-    }
-    //endregion Result callbacks
-}
+package com.sousoum.jcvd;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Class that manages addition and deletion of Fences in the Google API Client.
+ * It uses a store to remember all fences that are currently in the Google API Client.
+ * The store is backed by the shared preferences or by a database, see {@link StorageType}.
+ */
+public class StorableFenceManager {
+
+    /**
+     * Informs about fence addition or removal status
+     */
+    public interface Listener {
+        /**
+         * Called when a fence has been, successfully or not, added to the Google API Client
+         * @param fence the fence that has been added
+         * @param status the status of the operation
+         */
+        void fenceAddStatus(StorableFence fence, Status status);
+
+        /**
+         * Called when a fence has been, successfully or not, removed from the Google API Client
+         * @param fenceId the id of the fence that has been removed
+         * @param status the status of the operation
+         */
+        void fenceRemoveStatus(String fenceId, Status status);
+    }
+
+    /**
+     * Informs about the status of a bulk addition or removal
+     */
+    public interface BulkListener {
+        /**
+         * Called when all the fences given to
+         * {@link StorableFenceManager#addFences(Map, Map, String, BulkListener)} have been,
+         * successfully or not, added to the Google API Client
+         * @param addedFences the fences that have been successfully added
+         * @param failedFences the fences that have not been added
+         */
+        void fencesAddStatus(@NonNull List<StorableFence> addedFences,
+                             @NonNull List<StorableFence> failedFences);
+
+        /**
+         * Called when all the fences given to
+         * {@link StorableFenceManager#removeFences(Collection, BulkListener)} have been,
+         * successfully or not, removed from the Google API Client
+         * @param removedFenceIds the ids of the fences that have been successfully removed
+         * @param failedFenceIds the ids of the fences that have not been removed
+         */
+        void fencesRemoveStatus(@NonNull List<String> removedFenceIds,
+                                @NonNull List<String> failedFenceIds);
+    }
+
+    /**
+     * Creates the process-wide manager returned by {@link StorableFenceManager#getInstance(Context, int)}
+     */
+    @VisibleForTesting
+    interface InstanceFactory {
+        /**
+         * Create the manager. It should load its stores and synchronize its non committed fences
+         * on the background thread.
+         * @param context the application context
+         * @param storageType where the fences are stored
+         * @return the manager
+         */
+        @NonNull
+        StorableFenceManager create(@NonNull Context context, @StorageType int storageType);
+    }
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({PREFERENCES_STORAGE, DATABASE_STORAGE})
+    public @interface StorageType {}
+
+    /**
+     * The fences are stored in the shared preferences.
+     * This is fine for a few dozens of fences, but each write rewrites all the stored fences.
+     */
+    public static final int PREFERENCES_STORAGE = 0;
+
+    /**
+     * The fences are stored in a SQLite database, indexed by their id.
+     * Writing a fence does not depend on the number of stored fences.
+     * Fences previously stored in the shared preferences are moved in the database.
+     */
+    public static final int DATABASE_STORAGE = 1;
+
+    private static final String TAG = "FenceManager";
+
+    private static final String TO_ADD_STORE = "TO_ADD_STORE";
+    private static final String TO_REMOVE_STORE = "TO_REMOVE_STORE";
+    private static final String SYNCED_STORE = "SYNCED_STORE";
+    private static final String REGISTERED_STORE = "REGISTERED_STORE";
+    private static final String REGISTRATION_RECORDS = "REGISTRATION_RECORDS";
+
+    private static final String SETTINGS_PREFS_NAME = "JCVDLibSettings";
+    private static final String DELIVER_FENCE_IN_INTENT_KEY = "DELIVER_FENCE_IN_INTENT";
+    private static final String MAX_REGISTERED_LOCATION_FENCES_KEY = "MAX_REGISTERED_LOCATION_FENCES";
+    private static final String DEVICE_LATITUDE_KEY = "DEVICE_LATITUDE";
+    private static final String DEVICE_LONGITUDE_KEY = "DEVICE_LONGITUDE";
+    private static final String REGISTRATION_EPOCH_KEY = "REGISTRATION_EPOCH";
+    private static final String STORES_COMPACTED_KEY = "STORES_COMPACTED";
+    private static final String TIME_WINDOW_HORIZON_KEY = "TIME_WINDOW_HORIZON";
+    /** Prefix of the flags telling that a store has been moved to the database */
+    private static final String MOVED_TO_DATABASE_KEY_PREFIX = "MOVED_TO_DATABASE_";
+
+    /** The process-wide instance, lazily created by {@link #getInstance(Context, int)} */
+    private static StorableFenceManager sInstance;
+
+    /** Creates the process-wide instance, null to create a StorableFenceManager */
+    @Nullable
+    private static InstanceFactory sInstanceFactory;
+
+    /** Executor used to run the synchronizations that should not block the caller */
+    private static final Executor sBackgroundExecutor = Executors.newSingleThreadExecutor();
+
+    private final Context mContext;
+
+    private volatile Listener mListener;
+
+    @VisibleForTesting
+    final FenceStore mToAddStore; // store of the fence to add to the Google API Client
+    @VisibleForTesting
+    final FenceStore mToRemoveStore; // store of the fence to remove from the Google API Client
+    @VisibleForTesting
+    final FenceStore mSyncedStore; // store that represent which fences are in the Google API Client
+    @VisibleForTesting
+    final FenceStore mRegisteredStore; // store of the ids of the synced fences handled by the registration policy that are registered in the Google API Client
+    @VisibleForTesting
+    final RegistrationRecords mRegistrationRecords; // what has been registered in the Google API Client, and when
+
+    private final GapiFenceManager mGapiFenceManager;
+
+    /** Coalesces the operations asked for a same fence while one of them is in flight */
+    private final OperationQueue mOperationQueue = new OperationQueue();
+
+    /** Retries the non committed operations when requests fail */
+    private final RetryScheduler mRetryScheduler;
+
+    @StorageType
+    private final int mStorageType;
+
+    private volatile boolean mDeliverFenceInIntent;
+
+    private volatile int mMaxRegisteredLocationFences;
+
+    private volatile double mDeviceLatitude;
+
+    private volatile double mDeviceLongitude;
+
+    private volatile long mTimeWindowHorizon;
+
+    /** Policy that decides which synced fences are registered. Null if all fences are registered. */
+    @Nullable
+    private volatile RegistrationPolicy mRegistrationPolicy;
+
+    /** Policy of the time window mode, part of {@link #mRegistrationPolicy}. Null if the mode is disabled. */
+    @Nullable
+    private volatile TimeWindowRegistrationPolicy mTimeWindowPolicy;
+
+    /** Incremented each time the device boots, see {@link RegistrationRecords} */
+    private volatile long mRegistrationEpoch;
+
+    /**
+     * Constructor.
+     * Fences are stored in the shared preferences.
+     *
+     * @param context a context
+     */
+    public StorableFenceManager(Context context) {
+        this(context, PREFERENCES_STORAGE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param context a context
+     * @param storageType where the fences are stored
+     */
+    public StorableFenceManager(Context context, @StorageType int storageType) {
+        this(context, storageType, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param context a context
+     * @param storageType where the fences are stored
+     * @param synchronizeInBackground true to load the stores and synchronize the non committed
+     *                                fences on a background thread, false to do it before
+     *                                returning
+     */
+    @VisibleForTesting
+    StorableFenceManager(Context context, @StorageType int storageType,
+                         boolean synchronizeInBackground) {
+        mContext = context;
+        mStorageType = storageType;
+        SharedPreferences settings = getSettings();
+        mDeliverFenceInIntent = settings.getBoolean(DELIVER_FENCE_IN_INTENT_KEY, false);
+        mMaxRegisteredLocationFences = settings.getInt(MAX_REGISTERED_LOCATION_FENCES_KEY, 0);
+        long unknown = Double.doubleToLongBits(Double.NaN);
+        mDeviceLatitude = Double.longBitsToDouble(settings.getLong(DEVICE_LATITUDE_KEY, unknown));
+        mDeviceLongitude = Double.longBitsToDouble(settings.getLong(DEVICE_LONGITUDE_KEY, unknown));
+        mTimeWindowHorizon = settings.getLong(TIME_WINDOW_HORIZON_KEY, 0);
+        refreshRegistrationPolicy();
+        mRegistrationEpoch = settings.getLong(REGISTRATION_EPOCH_KEY, 0);
+
+        mToAddStore = createStore(TO_ADD_STORE);
+        mToRemoveStore = createStore(TO_REMOVE_STORE);
+        mSyncedStore = createStore(SYNCED_STORE);
+        mRegisteredStore = createStore(REGISTERED_STORE);
+        mRegistrationRecords = new RegistrationRecords(createBackend(REGISTRATION_RECORDS),
+                new Executor() {
+                    @Override
+                    public void execute(@NonNull Runnable task) {
+                        runInBackground(task);
+                    }
+                });
+
+        mRetryScheduler = createRetryScheduler(new Runnable() {
+            @Override
+            public void run() {
+                runInBackground(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!synchronizeNonCommittedFencesToGoogleApi()) {
+                            probeGoogleApi();
+                        }
+                    }
+                });
+            }
+        });
+
+        mGapiFenceManager = createGapiFenceManager();
+        mGapiFenceManager.setRegistrationListener(new GapiFenceManager.RegistrationListener() {
+            @Override
+            public void onFencesAdded(@NonNull List<GapiFenceManager.FenceAddition> additions) {
+                mRegistrationRecords.put(additions, mRegistrationEpoch);
+                onRequestSucceeded();
+            }
+
+            @Override
+            public void onFencesRemoved(@NonNull List<String> fenceIds) {
+                mRegistrationRecords.remove(fenceIds);
+                onRequestSucceeded();
+            }
+
+            @Override
+            public void onRequestFailed() {
+                mRetryScheduler.onFailure();
+            }
+        });
+        if (synchronizeInBackground) {
+            runInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    compactStoresIfNeeded();
+                    synchronizeNonCommittedFencesToGoogleApi();
+                }
+            });
+        } else {
+            compactStoresIfNeeded();
+            synchronizeNonCommittedFencesToGoogleApi();
+        }
+    }
+
+    /**
+     * Remove the ids left behind by the previous versions, if not already done.
+     * Previous versions could keep the ids of removed fences, without their fence, in the stores.
+     */
+    private void compactStoresIfNeeded() {
+        SharedPreferences settings = getSettings();
+        if (settings.getBoolean(STORES_COMPACTED_KEY, false)) {
+            return;
+        }
+
+        int staleCount = removeIdsWithoutFence(mToAddStore) + removeIdsWithoutFence(mSyncedStore);
+        // registered fences are always synced fences
+        Set<String> staleIds = mRegisteredStore.getAllFenceIds();
+        staleIds.removeAll(mSyncedStore.getAllFenceIds());
+        if (!staleIds.isEmpty()) {
+            mRegisteredStore.removeFences(staleIds);
+            staleCount += staleIds.size();
+        }
+        if (staleCount > 0) {
+            Log.i(TAG, "Removed " + staleCount + " stale fence ids");
+        }
+
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putBoolean(STORES_COMPACTED_KEY, true);
+        editor.apply();
+    }
+
+    /**
+     * Remove the ids that have no fence from a store of fences
+     * @param store the store
+     * @return the number of removed ids
+     */
+    private static int removeIdsWithoutFence(@NonNull FenceStore store) {
+        Set<String> staleIds = store.getAllFenceIds();
+        for (StorableFence storableFence : store.getAllFences()) {
+            staleIds.remove(storableFence.getId());
+        }
+        if (!staleIds.isEmpty()) {
+            store.removeFences(staleIds);
+        }
+        return staleIds.size();
+    }
+
+    /**
+     * Get the process-wide manager, backed by the shared preferences.
+     * The manager is created on the first call. Its stores are loaded and its non committed fences
+     * are synchronized on a background thread, so this call returns quickly.
+     * Prefer this instance to creating a new manager each time a fence is triggered.
+     *
+     * @param context a context
+     * @return the process-wide manager
+     */
+    @NonNull
+    public static StorableFenceManager getInstance(@NonNull Context context) {
+        return getInstance(context, PREFERENCES_STORAGE);
+    }
+
+    /**
+     * Get the process-wide manager.
+     * The manager is created on the first call. Its stores are loaded and its non committed fences
+     * are synchronized on a background thread, so this call returns quickly.
+     * Prefer this instance to creating a new manager each time a fence is triggered.
+     *
+     * @param context a context
+     * @param storageType where the fences are stored. Only used by the call that creates the
+     *                    manager.
+     * @return the process-wide manager
+     */
+    @NonNull
+    public static synchronized StorableFenceManager getInstance(@NonNull Context context,
+                                                                @StorageType int storageType) {
+        if (sInstance == null) {
+            Context applicationContext = context.getApplicationContext();
+            if (sInstanceFactory != null) {
+                sInstance = sInstanceFactory.create(applicationContext, storageType);
+            } else {
+                sInstance = new StorableFenceManager(applicationContext, storageType, true);
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Set the factory of the process-wide manager, and forget the current one
+     * @param instanceFactory the factory, null to create a StorableFenceManager
+     */
+    @VisibleForTesting
+    static synchronized void setInstanceFactory(@Nullable InstanceFactory instanceFactory) {
+        sInstanceFactory = instanceFactory;
+        sInstance = null;
+    }
+
+    /**
+     * Run a task on the background thread of the managers.
+     * Tasks are run one after the other, in the order they are posted.
+     * @param task the task to run
+     */
+    void runInBackground(@NonNull Runnable task) {
+        sBackgroundExecutor.execute(task);
+    }
+
+    @VisibleForTesting
+    protected GapiFenceManager createGapiFenceManager() {
+        return new GapiFenceManager(mContext);
+    }
+
+    @VisibleForTesting
+    protected RetryScheduler createRetryScheduler(@NonNull Runnable retryTask) {
+        return new RetryScheduler(retryTask, new Random());
+    }
+
+    @VisibleForTesting
+    protected long getCurrentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Schedule the next update of the time window, see {@link #setTimeWindowHorizon(long)}.
+     * There is a single alarm: it replaces the previously scheduled update.
+     * @param triggerAtMillis the time of the update in milliseconds since epoch,
+     *                        {@link Long#MAX_VALUE} to cancel the scheduled update
+     */
+    @VisibleForTesting
+    protected void scheduleTimeWindowUpdate(long triggerAtMillis) {
+        AlarmManager alarmManager = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        if (alarmManager == null) {
+            return;
+        }
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(mContext, 0,
+                new Intent(mContext, TimeWindowReceiver.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        if (triggerAtMillis == Long.MAX_VALUE) {
+            alarmManager.cancel(pendingIntent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, triggerAtMillis, pendingIntent);
+        }
+    }
+
+    /**
+     * Create a store according to the storage type
+     * @param storeName the name of the store
+     * @return a new store
+     */
+    @NonNull
+    private FenceStore createStore(@NonNull String storeName) {
+        return new FenceStore(storeName, createBackend(storeName));
+    }
+
+    /**
+     * Create a backend according to the storage type.
+     * The database backend moves the fences that have been stored in the preferences to the
+     * database when the store is first loaded, see {@link MovingFenceStoreBackend}. Creating a
+     * backend does not read nor write anything.
+     * @param storeName the name of the store
+     * @return a new backend
+     */
+    @NonNull
+    private FenceStoreBackend createBackend(@NonNull String storeName) {
+        FenceStoreBackend prefsBackend = new PreferencesFenceStoreBackend(mContext, storeName);
+        if (mStorageType == DATABASE_STORAGE) {
+            return new MovingFenceStoreBackend(storeName, prefsBackend,
+                    new DatabaseFenceStoreBackend(mContext, storeName), getSettings(),
+                    MOVED_TO_DATABASE_KEY_PREFIX + storeName);
+        }
+        return prefsBackend;
+    }
+
+    /**
+     * Set the listener. This listener will be informed when the fences are modified in the google api client
+     * @param listener a listener
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Get the current listener
+     * @return the current listener
+     */
+    public Listener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Set whether the fences should be delivered in the intents sent when they are triggered.
+     * When enabled, the handler of the intent can get the fence and its additional data with
+     * {@link StorableFence#fromTransitionIntent(android.content.Intent)}, without any store lookup.
+     * This setting is persisted and applies to the fences added or synchronized after this call.
+     * Call {@link #synchronizeAllToGoogleApi()} to apply it to the fences that are already synced.
+     * Disabled by default.
+     * @param deliverFenceInIntent true to put the fences in the intents, false otherwise
+     */
+    public void setDeliverFenceInIntent(boolean deliverFenceInIntent) {
+        mDeliverFenceInIntent = deliverFenceInIntent;
+        SharedPreferences.Editor editor = getSettings().edit();
+        editor.putBoolean(DELIVER_FENCE_IN_INTENT_KEY, deliverFenceInIntent);
+        editor.apply();
+    }
+
+    /**
+     * Get whether the fences are delivered in the intents sent when they are triggered.
+     * @return true if the fences are put in the intents, false otherwise
+     * @see #setDeliverFenceInIntent(boolean)
+     */
+    public boolean isDeliveringFenceInIntent() {
+        return mDeliverFenceInIntent;
+    }
+
+    /**
+     * Only register the fences that contain a {@link StorableLocationFence} when they are among
+     * the nearest ones from the device.
+     * Play Services limits the number of fences an app can register. In this mode, all the fences
+     * are kept in the store but only the given number of location fences are registered. The
+     * registrations are updated each time {@link #updateDeviceLocation(double, double)} is called:
+     * only the fences that enter or leave the nearest ones are added or removed.
+     * The fences that do not contain any location fence are always registered.
+     * A fence added in this mode is reported as successfully added as soon as it is stored.
+     * This setting is persisted.
+     * @param maxRegisteredFences the maximum number of location fences to register, 0 to register
+     *                            all the fences
+     */
+    public void setMaxRegisteredLocationFences(int maxRegisteredFences) {
+        RegistrationPolicy previousPolicy = mRegistrationPolicy;
+        mMaxRegisteredLocationFences = Math.max(0, maxRegisteredFences);
+        SharedPreferences.Editor editor = getSettings().edit();
+        editor.putInt(MAX_REGISTERED_LOCATION_FENCES_KEY, mMaxRegisteredLocationFences);
+        editor.apply();
+
+        onRegistrationModeChanged(previousPolicy);
+    }
+
+    /**
+     * Get the maximum number of location fences registered in the Google API Client.
+     * @return the maximum number of location fences, 0 if all the fences are registered
+     * @see #setMaxRegisteredLocationFences(int)
+     */
+    public int getMaxRegisteredLocationFences() {
+        return mMaxRegisteredLocationFences;
+    }
+
+    /**
+     * Inform the manager about the location of the device.
+     * If {@link #setMaxRegisteredLocationFences(int)} is set, the location fences are ranked again
+     * and only the difference with the currently registered fences is sent to the Google API Client.
+     * The location is persisted so that the registrations can be restored after a reboot.
+     * @param latitude the latitude of the device
+     * @param longitude the longitude of the device
+     */
+    public void updateDeviceLocation(double latitude, double longitude) {
+        SharedPreferences.Editor editor = getSettings().edit();
+        editor.putLong(DEVICE_LATITUDE_KEY, Double.doubleToLongBits(latitude));
+        editor.putLong(DEVICE_LONGITUDE_KEY, Double.doubleToLongBits(longitude));
+        editor.apply();
+
+        mDeviceLatitude = latitude;
+        mDeviceLongitude = longitude;
+        if (mMaxRegisteredLocationFences > 0) {
+            refreshRegistrationPolicy();
+            updateRegistrations();
+        }
+    }
+
+    /**
+     * Only register the fences bounded by an absolute time interval, such as
+     * {@link StorableTimeFence#inInterval(long, long)}, when their interval opens within the given
+     * horizon.
+     * In this mode, the fences that will only be true in a distant future are kept in the store
+     * but are not registered. The window moves forward with a single alarm, set to the next time
+     * a fence enters the window. Fences whose interval is over are removed, the listener is
+     * informed of their removal.
+     * Fences inside an 'and' meta fence with an absolute time fence are also bounded. The fences
+     * that are not bounded are always registered.
+     * A fence added in this mode is reported as successfully added as soon as it is stored.
+     * This setting is persisted.
+     * @param horizonMillis the duration, in milliseconds, before the start of their interval
+     *                      during which the fences are registered, 0 to register all the fences
+     */
+    public void setTimeWindowHorizon(long horizonMillis) {
+        RegistrationPolicy previousPolicy = mRegistrationPolicy;
+        mTimeWindowHorizon = Math.max(0, horizonMillis);
+        SharedPreferences.Editor editor = getSettings().edit();
+        editor.putLong(TIME_WINDOW_HORIZON_KEY, mTimeWindowHorizon);
+        editor.apply();
+
+        onRegistrationModeChanged(previousPolicy);
+        if (mTimeWindowHorizon == 0) {
+            scheduleTimeWindowUpdate(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Get the horizon of the time window mode.
+     * @return the horizon in milliseconds, 0 if all the fences are registered
+     * @see #setTimeWindowHorizon(long)
+     */
+    public long getTimeWindowHorizon() {
+        return mTimeWindowHorizon;
+    }
+
+    /**
+     * Move the time window to the current time: the fences whose interval opens within the
+     * horizon are registered, the expired ones are removed and the next update is scheduled.
+     * Called when the alarm set by {@link #scheduleTimeWindowUpdate(long)} goes off.
+     * @param onUpdated called once the registrations have been submitted. Can be null.
+     */
+    void updateTimeWindow(@Nullable final Runnable onUpdated) {
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    updateRegistrations();
+                } finally {
+                    if (onUpdated != null) {
+                        onUpdated.run();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Create the registration policy of the enabled registration modes, for the current time
+     * @return the policy, null if all the fences are registered
+     */
+    @Nullable
+    private synchronized RegistrationPolicy refreshRegistrationPolicy() {
+        RegistrationPolicy nearestPolicy = null;
+        if (mMaxRegisteredLocationFences > 0) {
+            nearestPolicy = new NearestRegistrationPolicy(mMaxRegisteredLocationFences,
+                    mDeviceLatitude, mDeviceLongitude);
+        }
+        TimeWindowRegistrationPolicy timeWindowPolicy = null;
+        if (mTimeWindowHorizon > 0) {
+            timeWindowPolicy = new TimeWindowRegistrationPolicy(mTimeWindowHorizon, getCurrentTimeMillis());
+        }
+
+        RegistrationPolicy policy;
+        if (nearestPolicy != null && timeWindowPolicy != null) {
+            policy = new CompositeRegistrationPolicy(nearestPolicy, timeWindowPolicy);
+        } else {
+            policy = (nearestPolicy != null) ? nearestPolicy : timeWindowPolicy;
+        }
+        mTimeWindowPolicy = timeWindowPolicy;
+        mRegistrationPolicy = policy;
+        return policy;
+    }
+
+    /**
+     * Apply a change of the registration modes: the fences that are not handled by a policy
+     * anymore are registered, then the registrations of the new policy are updated
+     * @param previousPolicy the policy before the change
+     */
+    private void onRegistrationModeChanged(@Nullable RegistrationPolicy previousPolicy) {
+        RegistrationPolicy policy = refreshRegistrationPolicy();
+        if (previousPolicy != null) {
+            registerDeferredFences(previousPolicy, policy);
+        }
+        if (policy != null) {
+            updateRegistrations();
+        }
+    }
+
+    private SharedPreferences getSettings() {
+        return mContext.getSharedPreferences(SETTINGS_PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Add a fence to the store
+     * This will also add the fence to the google api client if connected. If not, it will trigger a connection
+     * This call requires that the following granted permissions:
+     *      - ACCESS_FINE_LOCATION if one of the fence is a {@link StorableLocationFence}
+     *      - ACTIVITY_RECOGNITION if one of the fence is a {@link StorableActivityFence}
+     * @param id the unique id of the fence. You will be able to get the fence with this id.
+     * @param storableFence the fence to store
+     * @param pendingIntentClassName the class name of the pending intent to call when the fence will be valid.
+     */
+    public void addFence(@NonNull String id, @NonNull StorableFence storableFence,
+                            @NonNull String pendingIntentClassName) {
+        addFence(id, storableFence, null, pendingIntentClassName);
+    }
+
+    /**
+     * Add a fence to the store
+     * This will also add the fence to the google api client if connected. If not, it will trigger a connection
+     * This call requires that the following granted permissions:
+     *      - ACCESS_FINE_LOCATION if one of the fence is a {@link StorableLocationFence}
+     *      - ACTIVITY_RECOGNITION if one of the fence is a {@link StorableActivityFence}
+     * @param id the unique id of the fence. You will be able to get the fence with this id.
+     * @param storableFence the fence to store
+     * @param additionalData a hash map associated with this fence. Can be null.
+     * @param pendingIntentClassName the class name of the pending intent to call when the fence will be valid.
+     */
+    public void addFence(@NonNull String id, @NonNull StorableFence storableFence,
+                            @Nullable HashMap<String, Object> additionalData,
+                            @NonNull String pendingIntentClassName) {
+        storableFence.setId(id);
+        storableFence.setAdditionalData(additionalData);
+        storableFence.setPendingIntentClass(pendingIntentClassName);
+        mToAddStore.storeFence(storableFence);
+        if (mToRemoveStore.containsFenceId(id)) {
+            // the last operation wins
+            mToRemoveStore.removeFence(id);
+        }
+
+        enqueueOperations(Collections.singletonList(
+                new OperationQueue.Operation(id, storableFence, new FenceAddStatus(storableFence))));
+    }
+
+    /**
+     * Add multiple fences to the store
+     * The fences are stored in one transaction and added to the google api client with as few
+     * requests as possible.
+     * The listener is informed for each fence once all the fences have been processed, then the
+     * bulk listener is informed.
+     * This call requires that the following granted permissions:
+     *      - ACCESS_FINE_LOCATION if one of the fence is a {@link StorableLocationFence}
+     *      - ACTIVITY_RECOGNITION if one of the fence is a {@link StorableActivityFence}
+     * @param fences the fences to store, indexed by their unique id. You will be able to get each
+     *               fence with its id.
+     * @param additionalData hash maps associated with the fences, indexed by the id of the fence.
+     *                       Can be null.
+     * @param pendingIntentClassName the class name of the pending intent to call when the fences
+     *                               will be valid.
+     * @param bulkListener the listener informed when all the fences have been processed. Can be null.
+     */
+    public void addFences(@NonNull Map<String, StorableFence> fences,
+                          @Nullable Map<String, HashMap<String, Object>> additionalData,
+                          @NonNull String pendingIntentClassName,
+                          @Nullable BulkListener bulkListener) {
+        List<StorableFence> storableFences = new ArrayList<>(fences.size());
+        for (Map.Entry<String, StorableFence> entry : fences.entrySet()) {
+            StorableFence storableFence = entry.getValue();
+            storableFence.setId(entry.getKey());
+            if (additionalData != null) {
+                storableFence.setAdditionalData(additionalData.get(entry.getKey()));
+            }
+            storableFence.setPendingIntentClass(pendingIntentClassName);
+            storableFences.add(storableFence);
+        }
+        mToAddStore.storeFences(storableFences);
+        removeFromStore(mToRemoveStore, fences.keySet());
+
+        BulkAddStatus bulkStatus = new BulkAddStatus(storableFences.size(), bulkListener);
+        List<OperationQueue.Operation> operations = new ArrayList<>(storableFences.size());
+        for (StorableFence storableFence : storableFences) {
+            operations.add(new OperationQueue.Operation(storableFence.getId(), storableFence,
+                    new FenceAddStatus(storableFence, bulkStatus)));
+        }
+        enqueueOperations(operations);
+    }
+
+    /**
+     * Ask to remove a fence from the store.
+     * If the Google API Client is not connected, trigger a connection
+     * Else, remove from the Google API client. It will be removed from store if the operation is successful
+     * @param fenceId The id of the fence to remove
+     */
+    public void removeFence(@NonNull String fenceId) {
+
+        mToRemoveStore.storeFenceId(fenceId);
+        if (mToAddStore.containsFenceId(fenceId)) {
+            // the last operation wins
+            mToAddStore.removeFence(fenceId);
+        }
+
+        enqueueOperations(Collections.singletonList(
+                new OperationQueue.Operation(fenceId, null, new FenceRemoveStatus(fenceId))));
+    }
+
+    /**
+     * Ask to remove multiple fences from the store.
+     * The ids are stored in one transaction and the fences are removed from the google api client
+     * with as few requests as possible. They will be removed from store if the operation is
+     * successful.
+     * The listener is informed for each fence once all the fences have been processed, then the
+     * bulk listener is informed.
+     * @param fenceIds The ids of the fences to remove
+     * @param bulkListener the listener informed when all the fences have been processed. Can be null.
+     */
+    public void removeFences(@NonNull Collection<String> fenceIds, @Nullable BulkListener bulkListener) {
+        mToRemoveStore.storeFenceIds(fenceIds);
+        removeFromStore(mToAddStore, fenceIds);
+
+        BulkRemoveStatus bulkStatus = new BulkRemoveStatus(fenceIds.size(), bulkListener);
+        List<OperationQueue.Operation> operations = new ArrayList<>(fenceIds.size());
+        for (String fenceId : fenceIds) {
+            operations.add(new OperationQueue.Operation(fenceId, null,
+                    new FenceRemoveStatus(fenceId, bulkStatus)));
+        }
+        enqueueOperations(operations);
+    }
+
+    /**
+     * Remove the given ids from a store, if they are in it
+     * @param store the store
+     * @param fenceIds the ids to remove
+     */
+    private static void removeFromStore(@NonNull FenceStore store, @NonNull Collection<String> fenceIds) {
+        List<String> storedIds = new ArrayList<>();
+        for (String fenceId : fenceIds) {
+            if (store.containsFenceId(fenceId)) {
+                storedIds.add(fenceId);
+            }
+        }
+        if (!storedIds.isEmpty()) {
+            store.removeFences(storedIds);
+        }
+    }
+
+    /**
+     * Submit the operations asked by the user, batched in as few requests as possible.
+     * The operations of the fences that already have an operation in flight are not submitted,
+     * they are coalesced by the {@link OperationQueue} and run once the in flight operation is
+     * complete. The pending operations they replace are reported as canceled.
+     * While the Play Services are unavailable, the operations are not submitted and are reported
+     * as failed, see {@link #submitOperations(List, List)}.
+     * @param operations the operations to submit
+     */
+    private void enqueueOperations(@NonNull List<OperationQueue.Operation> operations) {
+        List<GapiFenceManager.FenceAddition> additions = new ArrayList<>(operations.size());
+        List<GapiFenceManager.FenceRemoval> removals = new ArrayList<>();
+        List<OperationQueue.Operation> replacedOperations = new ArrayList<>();
+        boolean deferred = false;
+        int permissions = StorableFence.getPermissions(mContext);
+        for (OperationQueue.Operation operation : operations) {
+            if (mOperationQueue.enqueue(operation, replacedOperations)) {
+                deferred |= addOperation(additions, removals, operation, permissions);
+            }
+        }
+        for (OperationQueue.Operation replaced : replacedOperations) {
+            Log.i(TAG, "Operation on fence " + replaced.mId + " is replaced by a newer one");
+            replaced.mStatus.onResult(Status.RESULT_CANCELED);
+        }
+
+        submitOperations(additions, removals);
+        if (deferred) {
+            updateRegistrations();
+        }
+    }
+
+    /**
+     * Add an operation of the {@link OperationQueue} to the given lists
+     * @param additions the list in which the addition will be added
+     * @param removals the list in which the removal will be added
+     * @param operation the operation
+     * @param permissions the granted permissions, see {@link StorableFence#getPermissions(Context)}
+     * @return true if the addition has been deferred to the registration policy
+     */
+    private boolean addOperation(@NonNull List<GapiFenceManager.FenceAddition> additions,
+                                 @NonNull List<GapiFenceManager.FenceRemoval> removals,
+                                 @NonNull OperationQueue.Operation operation, int permissions) {
+        QueuedOperationStatus status = new QueuedOperationStatus(operation);
+        if (operation.isRemoval()) {
+            removals.add(new GapiFenceManager.FenceRemoval(operation.mId, status));
+            return false;
+        }
+        assert operation.mFence != null;
+        return addOrDefer(additions, operation.mFence, status, permissions);
+    }
+
+    /**
+     * Run the pending operation of a fence, once the previous operation is complete.
+     * If the previous operation succeeded and had the same effect, the pending operation is
+     * reported as successful without any request to the Google API Client.
+     * @param previous the operation that is complete
+     * @param previousStatus the status of the previous operation
+     * @param next the pending operation
+     */
+    private void runPendingOperation(@NonNull OperationQueue.Operation previous,
+                                     @NonNull Status previousStatus,
+                                     @NonNull OperationQueue.Operation next) {
+        if (previousStatus.isSuccess() && next.hasSameEffect(previous)) {
+            Log.i(TAG, "Operation on fence " + next.mId + " is already done");
+            new QueuedOperationStatus(next).onResult(Status.RESULT_SUCCESS);
+            return;
+        }
+
+        List<GapiFenceManager.FenceAddition> additions = new ArrayList<>(1);
+        List<GapiFenceManager.FenceRemoval> removals = new ArrayList<>(1);
+        boolean deferred = addOperation(additions, removals, next,
+                StorableFence.getPermissions(mContext));
+        submitOperations(additions, removals);
+        if (deferred) {
+            updateRegistrations();
+        }
+    }
+
+    /**
+     * Resynchronize all fences to the Google API Client.
+     * This means that the already stored fences will be re-submitted and that the
+     * {@link StorableFenceManager#synchronizeNonCommittedFencesToGoogleApi()} function will be
+     * called.
+     * All these operations are batched in as few requests as possible.
+     */
+    @VisibleForTesting(otherwise=VisibleForTesting.PACKAGE_PRIVATE)
+    public void synchronizeAllToGoogleApi() {
+        Log.i(TAG, "Resynchronize all fences");
+        List<GapiFenceManager.FenceAddition> additions = new ArrayList<>();
+        List<GapiFenceManager.FenceRemoval> removals = new ArrayList<>();
+
+        // first, add all (already) stored fences, without listener
+        RegistrationPolicy policy = mRegistrationPolicy;
+        Set<String> registeredIds = mRegisteredStore.getAllFenceIds();
+        int permissions = StorableFence.getPermissions(mContext);
+        for (StorableFence storableFence : mSyncedStore.getAllFences()) {
+            if ((storableFence.getId() != null) &&
+                    (storableFence.getPendingIntentClass() != null)) {
+                // fences handled by the policy are only registered if they were registered
+                if (policy == null || !policy.handles(storableFence) ||
+                        registeredIds.contains(storableFence.getId())) {
+                    additions.add(createAddition(storableFence, null, permissions));
+                }
+            }
+        }
+
+        // then synchronize non-committed fences
+        boolean deferred = collectNonCommittedOperations(additions, removals, permissions);
+
+        submitOperations(additions, removals);
+        if (deferred || policy != null) {
+            updateRegistrations();
+        }
+    }
+
+    /**
+     * Resynchronize the fences that are missing or changed in the Google API Client.
+     * This is used when the device boots: a new registration epoch starts, the fences registered
+     * in the Google API Client are queried, and only the synced fences that are not registered or
+     * that changed since their registration are re-submitted, along with the non committed
+     * operations, in as few requests as possible.
+     * If the registered fences can't be queried, only the fences registered during the current
+     * epoch are considered registered, which means that all the fences are re-submitted.
+     * While the Play Services are unavailable, nothing is submitted: the fences are resynchronized
+     * once they are available again.
+     * @param onSubmitted called once the operations have been submitted. Can be null.
+     */
+    void synchronizeChangedToGoogleApi(@Nullable final Runnable onSubmitted) {
+        final long epoch = startRegistrationEpoch();
+        if (mRetryScheduler.isCircuitOpen()) {
+            Log.w(TAG, "Play Services are unavailable, resynchronization is postponed");
+            if (onSubmitted != null) {
+                onSubmitted.run();
+            }
+            return;
+        }
+        mGapiFenceManager.queryFenceIds(new GapiFenceManager.FenceIdsListener() {
+            @Override
+            public void onFenceIds(@Nullable final Set<String> fenceIds) {
+                runInBackground(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            synchronizeChangedFences(fenceIds, epoch);
+                        } finally {
+                            if (onSubmitted != null) {
+                                onSubmitted.run();
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reconcile the fences registered in the Google API Client with the stored fences.
+     * The registered fences are queried and compared to the synced fences: only the fences that
+     * are missing or changed are added, and only the registered fences that are not stored
+     * anymore are removed. The non committed operations are submitted along with this
+     * difference, in as few requests as possible.
+     * Registrations can drift from the stored fences when the application data is cleared, when
+     * the Play Services are updated or when a result has been lost. This call is much cheaper
+     * than {@link #synchronizeAllToGoogleApi()} and can be done periodically, for example from a
+     * job.
+     * Nothing is submitted if the registered fences can't be queried, or while the Play Services
+     * are unavailable: the fences are reconciled once they are available again.
+     * @param onSubmitted called once the operations have been submitted, or once the
+     *                    reconciliation has been abandoned. Can be null.
+     */
+    public void reconcileWithGoogleApi(@Nullable final Runnable onSubmitted) {
+        if (mRetryScheduler.isCircuitOpen()) {
+            Log.w(TAG, "Play Services are unavailable, reconciliation is abandoned");
+            if (onSubmitted != null) {
+                onSubmitted.run();
+            }
+            return;
+        }
+        mGapiFenceManager.queryFenceIds(new GapiFenceManager.FenceIdsListener() {
+            @Override
+            public void onFenceIds(@Nullable final Set<String> fenceIds) {
+                if (fenceIds == null) {
+                    Log.w(TAG, "Registered fences are unknown, reconciliation is abandoned");
+                    if (onSubmitted != null) {
+                        onSubmitted.run();
+                    }
+                    return;
+                }
+                runInBackground(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            synchronizeChangedFences(fenceIds, mRegistrationEpoch);
+                        } finally {
+                            if (onSubmitted != null) {
+                                onSubmitted.run();
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Start a new registration epoch
+     * @return the new epoch
+     */
+    private synchronized long startRegistrationEpoch() {
+        mRegistrationEpoch++;
+        SharedPreferences.Editor editor = getSettings().edit();
+        editor.putLong(REGISTRATION_EPOCH_KEY, mRegistrationEpoch);
+        editor.apply();
+        return mRegistrationEpoch;
+    }
+
+    /**
+     * Submit the synced fences that are missing or changed in the Google API Client, the removal
+     * of the registered fences that are not synced anymore, and the non committed operations.
+     * @param registeredIds the ids of the fences registered in the Google API Client, null if
+     *                      unknown
+     * @param epoch the current registration epoch
+     */
+    private void synchronizeChangedFences(@Nullable Set<String> registeredIds, long epoch) {
+        List<GapiFenceManager.FenceAddition> additions = new ArrayList<>();
+        List<GapiFenceManager.FenceRemoval> removals = new ArrayList<>();
+
+        RegistrationPolicy policy = mRegistrationPolicy;
+        Set<String> policyRegisteredIds = mRegisteredStore.getAllFenceIds();
+        Set<String> expectedIds = new HashSet<>();
+        int unchangedCount = 0;
+        int permissions = StorableFence.getPermissions(mContext);
+        for (StorableFence storableFence : mSyncedStore.getAllFences()) {
+            String fenceId = storableFence.getId();
+            if (fenceId == null || storableFence.getPendingIntentClass() == null ||
+                    (policy != null && policy.handles(storableFence) &&
+                            !policyRegisteredIds.contains(fenceId))) {
+                continue;
+            }
+            expectedIds.add(fenceId);
+
+            long fingerprint = getRegistrationFingerprint(storableFence);
+            boolean registered = (registeredIds != null) ? registeredIds.contains(fenceId) :
+                    (mRegistrationRecords.getEpoch(fenceId) == epoch);
+            if (registered && mRegistrationRecords.matches(fenceId, fingerprint)) {
+                unchangedCount++;
+                if (mRegistrationRecords.getEpoch(fenceId) != epoch) {
+                    // the registration has been confirmed during this epoch
+                    mRegistrationRecords.put(fenceId, fingerprint, epoch);
+                }
+            } else {
+                additions.add(createAddition(storableFence, null, permissions));
+            }
+        }
+
+        // fences that are registered but are not synced anymore
+        Set<String> toAddIds = mToAddStore.getAllFenceIds();
+        Set<String> toRemoveIds = mToRemoveStore.getAllFenceIds();
+        Set<String> staleIds = new HashSet<>(mRegistrationRecords.getIds());
+        if (registeredIds != null) {
+            staleIds.addAll(registeredIds);
+        }
+        List<String> forgottenIds = new ArrayList<>();
+        for (String fenceId : staleIds) {
+            if (!expectedIds.contains(fenceId) && !toAddIds.contains(fenceId) &&
+                    !toRemoveIds.contains(fenceId)) {
+                if (registeredIds == null || registeredIds.contains(fenceId)) {
+                    removals.add(new GapiFenceManager.FenceRemoval(fenceId, null));
+                } else {
+                    forgottenIds.add(fenceId);
+                }
+            }
+        }
+        if (!forgottenIds.isEmpty()) {
+            mRegistrationRecords.remove(forgottenIds);
+        }
+        Log.i(TAG, unchangedCount + " fences are already registered, " + additions.size() +
+                " fences are missing or changed, " + removals.size() + " fences are stale");
+
+        boolean deferred = collectNonCommittedOperations(additions, removals, permissions);
+
+        submitOperations(additions, removals);
+        if (deferred || policy != null) {
+            updateRegistrations();
+        }
+    }
+
+    /**
+     * Ask to synchronize all non committed changes to the Google API Client
+     * (i.e. add the fences that are in the toAddStore and remove the fences that are in the
+     * toRemoveStore)
+     * @return true if there were operations to submit
+     */
+    private boolean synchronizeNonCommittedFencesToGoogleApi() {
+        Log.i(TAG, "Synchronize non-commited fences");
+        List<GapiFenceManager.FenceAddition> additions = new ArrayList<>();
+        List<GapiFenceManager.FenceRemoval> removals = new ArrayList<>();
+
+        boolean deferred = collectNonCommittedOperations(additions, removals,
+                StorableFence.getPermissions(mContext));
+
+        submitOperations(additions, removals);
+        if (deferred) {
+            updateRegistrations();
+        }
+        return !additions.isEmpty() || !removals.isEmpty();
+    }
+
+    /**
+     * Send a request to the Google API Client to know whether the Play Services are available.
+     * Used by the retries that have no operation to submit, so that the circuit of the
+     * {@link RetryScheduler} can close, or the next retry can be scheduled.
+     */
+    private void probeGoogleApi() {
+        if (!mRetryScheduler.tryRequest()) {
+            return;
+        }
+        Log.i(TAG, "Nothing to retry, query the registered fences");
+        mGapiFenceManager.queryFenceIds(new GapiFenceManager.FenceIdsListener() {
+            @Override
+            public void onFenceIds(@Nullable Set<String> fenceIds) {
+                if (fenceIds != null) {
+                    onRequestSucceeded();
+                } else {
+                    mRetryScheduler.onFailure();
+                }
+            }
+        });
+    }
+
+    /**
+     * Inform the {@link RetryScheduler} that a request succeeded. If the Play Services were
+     * considered unavailable, the fences are reconciled since the requests skipped during the
+     * outage (registrations, resynchronizations) are not retried.
+     */
+    private void onRequestSucceeded() {
+        if (mRetryScheduler.onSuccess()) {
+            mGapiFenceManager.queryFenceIds(new GapiFenceManager.FenceIdsListener() {
+                @Override
+                public void onFenceIds(@Nullable final Set<String> fenceIds) {
+                    runInBackground(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronizeChangedFences(fenceIds, mRegistrationEpoch);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Fill the given lists with the operations that have not been committed yet to the Google API
+     * Client (i.e. the fences that are in the toAddStore and the fences that are in the
+     * toRemoveStore)
+     * @param additions the list in which the additions will be added
+     * @param removals the list in which the removals will be added
+     * @param permissions the granted permissions, see {@link StorableFence#getPermissions(Context)}
+     * @return true if some additions have been deferred to the registration policy
+     */
+    private boolean collectNonCommittedOperations(@NonNull List<GapiFenceManager.FenceAddition> additions,
+                                               @NonNull List<GapiFenceManager.FenceRemoval> removals,
+                                               int permissions) {
+        // add all fences from the to add list
+        boolean deferred = false;
+        for (StorableFence storableFence : mToAddStore.getAllFences()) {
+            if ((storableFence.getId() != null) &&
+                    (storableFence.getPendingIntentClass() != null)) {
+                deferred |= addOrDefer(additions, storableFence, new FenceAddStatus(storableFence),
+                        permissions);
+            }
+        }
+
+        // remove all fences from the to remove list
+        for (String fenceId : mToRemoveStore.getAllFenceIds()) {
+            removals.add(new GapiFenceManager.FenceRemoval(fenceId, new FenceRemoveStatus(fenceId)));
+        }
+        return deferred;
+    }
+
+    /**
+     * Add the addition of a fence to the given list, or, if the fence is handled by the
+     * registration policy, report it as added right away. It will be registered by
+     * {@link #updateRegistrations()} when selected by the policy.
+     * @param additions the list in which the addition will be added
+     * @param storableFence the fence to add
+     * @param status the status that will be called when the addition fails or succeed
+     * @param permissions the granted permissions, see {@link StorableFence#getPermissions(Context)}
+     * @return true if the addition has been deferred to the registration policy
+     */
+    private boolean addOrDefer(@NonNull List<GapiFenceManager.FenceAddition> additions,
+                               @NonNull StorableFence storableFence,
+                               @NonNull ResultCallback<Status> status, int permissions) {
+        RegistrationPolicy policy = mRegistrationPolicy;
+        if (policy != null) {
+            boolean registered = mRegisteredStore.containsFenceId(storableFence.getId());
+            if (policy.handles(storableFence)) {
+                if (!registered) {
+                    status.onResult(Status.RESULT_SUCCESS);
+                    return true;
+                }
+                // the fence is already registered, update it
+            } else if (registered) {
+                // the fence is not handled by the policy anymore, it should stay registered
+                mRegisteredStore.removeFence(storableFence.getId());
+            }
+        }
+        additions.add(createAddition(storableFence, status, permissions));
+        return false;
+    }
+
+    /**
+     * Register the fences selected by the registration policy and unregister the other ones.
+     * Only the difference with the currently registered fences is sent to the Google API Client.
+     */
+    private synchronized void updateRegistrations() {
+        if (mTimeWindowHorizon > 0) {
+            // the time window moves with the time
+            refreshRegistrationPolicy();
+        }
+        RegistrationPolicy policy = mRegistrationPolicy;
+        if (policy == null) {
+            return;
+        }
+        TimeWindowRegistrationPolicy timeWindowPolicy = mTimeWindowPolicy;
+        if (timeWindowPolicy != null) {
+            removeExpiredFences(timeWindowPolicy);
+        }
+
+        Set<String> selectedIds = policy.selectFences(mSyncedStore);
+        Set<String> registeredIds = mRegisteredStore.getAllFenceIds();
+        // the fences that are being removed are unregistered by their removal
+        Set<String> toRemoveIds = mToRemoveStore.getAllFenceIds();
+
+        List<GapiFenceManager.FenceAddition> additions = new ArrayList<>();
+        List<GapiFenceManager.FenceRemoval> removals = new ArrayList<>();
+        List<StorableFence> fencesToRegister = new ArrayList<>();
+        for (String fenceId : selectedIds) {
+            if (!registeredIds.contains(fenceId)) {
+                StorableFence storableFence = mSyncedStore.getFence(fenceId);
+                if (storableFence != null && storableFence.getPendingIntentClass() != null) {
+                    fencesToRegister.add(storableFence);
+                }
+            }
+        }
+        List<String> idsToUnregister = new ArrayList<>();
+        for (String fenceId : registeredIds) {
+            if (!selectedIds.contains(fenceId) && !toRemoveIds.contains(fenceId)) {
+                idsToUnregister.add(fenceId);
+            }
+        }
+
+        RegistrationStatus registrationStatus =
+                new RegistrationStatus(fencesToRegister.size() + idsToUnregister.size());
+        int permissions = StorableFence.getPermissions(mContext);
+        for (StorableFence storableFence : fencesToRegister) {
+            additions.add(createAddition(storableFence,
+                    registrationStatus.forFence(storableFence.getId(), true), permissions));
+        }
+        for (String fenceId : idsToUnregister) {
+            removals.add(new GapiFenceManager.FenceRemoval(fenceId,
+                    registrationStatus.forFence(fenceId, false)));
+        }
+        submitOperations(additions, removals);
+
+        if (timeWindowPolicy != null) {
+            scheduleTimeWindowUpdate(timeWindowPolicy.getNextUpdateTime(mSyncedStore));
+        }
+    }
+
+    /**
+     * Remove the synced fences whose absolute time interval is over
+     * @param timeWindowPolicy the policy of the time window mode
+     */
+    private void removeExpiredFences(@NonNull TimeWindowRegistrationPolicy timeWindowPolicy) {
+        List<String> expiredIds = timeWindowPolicy.getExpiredFenceIds(mSyncedStore);
+        expiredIds.removeAll(mToRemoveStore.getAllFenceIds());
+        if (!expiredIds.isEmpty()) {
+            Log.i(TAG, "Removing " + expiredIds.size() + " expired fences");
+            removeFences(expiredIds, null);
+        }
+    }
+
+    /**
+     * Register all the synced fences which registration was decided by the previous policy and
+     * is not decided by the current one, that are not registered yet. Used when the registration
+     * policy changes.
+     * @param previousPolicy the previous registration policy
+     * @param policy the current registration policy, null if all the fences are registered
+     */
+    private synchronized void registerDeferredFences(@NonNull RegistrationPolicy previousPolicy,
+                                                     @Nullable RegistrationPolicy policy) {
+        Set<String> registeredIds = mRegisteredStore.getAllFenceIds();
+        List<GapiFenceManager.FenceAddition> additions = new ArrayList<>();
+        List<String> releasedIds = new ArrayList<>();
+        int permissions = StorableFence.getPermissions(mContext);
+        for (StorableFence storableFence : mSyncedStore.getAllFences()) {
+            if (storableFence.getId() != null && storableFence.getPendingIntentClass() != null &&
+                    previousPolicy.handles(storableFence) &&
+                    (policy == null || !policy.handles(storableFence))) {
+                if (registeredIds.contains(storableFence.getId())) {
+                    releasedIds.add(storableFence.getId());
+                } else {
+                    additions.add(createAddition(storableFence, null, permissions));
+                }
+            }
+        }
+        if (policy == null) {
+            mRegisteredStore.removeFences(registeredIds);
+        } else if (!releasedIds.isEmpty()) {
+            mRegisteredStore.removeFences(releasedIds);
+        }
+        submitOperations(additions, new ArrayList<GapiFenceManager.FenceRemoval>());
+    }
+
+    /**
+     * Create the addition of a fence that has an id and a pending intent class.
+     * The fence is encoded in the addition if it should be delivered in the intent.
+     * The awareness fence is built from the optimized fence tree, see {@link FenceOptimizer}, and
+     * cached by the fence until the permissions change.
+     * @param storableFence the fence to add
+     * @param status the status that will be called when the addition fails or succeed
+     * @param permissions the granted permissions, see {@link StorableFence#getPermissions(Context)}
+     * @return the addition
+     */
+    @NonNull
+    private GapiFenceManager.FenceAddition createAddition(@NonNull StorableFence storableFence,
+                                                          @Nullable ResultCallback<Status> status,
+                                                          int permissions) {
+        byte[] encodedFence = null;
+        if (mDeliverFenceInIntent) {
+            encodedFence = StorableFenceCodec.encode(storableFence);
+        }
+        return new GapiFenceManager.FenceAddition(storableFence.getId(),
+                storableFence.getAwarenessFence(permissions),
+                storableFence.getPendingIntentClass(),
+                encodedFence, getRegistrationFingerprint(storableFence), status);
+    }
+
+    /**
+     * Get the fingerprint of what is registered in the Google API Client for a fence.
+     * It changes with the fence and with the settings that change the registered fence.
+     * @param storableFence a fence
+     * @return the fingerprint recorded in {@link #mRegistrationRecords}
+     */
+    private long getRegistrationFingerprint(@NonNull StorableFence storableFence) {
+        return StorableFence.mixFingerprint(storableFence.getFingerprint(), mDeliverFenceInIntent ? 1 : 0);
+    }
+
+    /**
+     * Submit the given operations to the Google API Client, batched in as few requests as possible.
+     * While the Play Services are unavailable (see {@link RetryScheduler#tryRequest()}), the
+     * operations are not submitted and their statuses are informed of the failure. The operations
+     * of the user stay in the stores and will be submitted by the next retry.
+     * @param additions the fences to add
+     * @param removals the fences to remove
+     */
+    private void submitOperations(@NonNull List<GapiFenceManager.FenceAddition> additions,
+                                  @NonNull List<GapiFenceManager.FenceRemoval> removals) {
+        if (additions.isEmpty() && removals.isEmpty()) {
+            return;
+        }
+        if (!mRetryScheduler.tryRequest()) {
+            Log.w(TAG, (additions.size() + removals.size()) +
+                    " operations are suspended until Play Services are available");
+            Status status = new Status(CommonStatusCodes.API_NOT_CONNECTED,
+                    "Play Services are unavailable, the operation will be retried");
+            for (GapiFenceManager.FenceAddition addition : additions) {
+                if (addition.mStatus != null) {
+                    addition.mStatus.onResult(status);
+                }
+            }
+            for (GapiFenceManager.FenceRemoval removal : removals) {
+                if (removal.mStatus != null) {
+                    removal.mStatus.onResult(status);
+                }
+            }
+        } else {
+            mGapiFenceManager.updateFences(additions, removals);
+            Log.i(TAG, additions.size() + " additions and " + removals.size() +
+                    " removals have been submitted to be synchronized with Google API Client");
+        }
+    }
+
+    /**
+     * Get all stored fences that are synced with Google API Client.
+     * The returned fences are shared with the store and should not be modified.
+     * @return a list of StorableFence (can not be null)
+     */
+    public @NonNull
+    ArrayList<StorableFence> getAllFences() {
+        return mSyncedStore.getAllFences();
+    }
+
+    /**
+     * Get the stored fences, synced with Google API Client, that contain a
+     * {@link StorableLocationFence} which contains the given point.
+     * Location fences nested in meta fences are taken into account, but the logic of the meta
+     * fences (and, or, not) is not evaluated.
+     * This lookup uses a spatial index, it does not scan all the fences.
+     * The returned fences are shared with the store and should not be modified.
+     * @param latitude the latitude of the point
+     * @param longitude the longitude of the point
+     * @return a list of StorableFence (can not be null)
+     */
+    @NonNull
+    public ArrayList<StorableFence> findFencesContaining(double latitude, double longitude) {
+        return mSyncedStore.getFencesContaining(latitude, longitude);
+    }
+
+    /**
+     * Get the stored fences, synced with Google API Client, whose {@link StorableLocationFence}
+     * are the nearest to the given point.
+     * The distance of a fence is the distance between the point and the border of its nearest
+     * location fence (0 if the point is inside). Fences without location fence are ignored.
+     * This lookup uses a spatial index, it does not scan all the fences.
+     * The returned fences are shared with the store and should not be modified.
+     * @param latitude the latitude of the point
+     * @param longitude the longitude of the point
+     * @param count the maximum number of fences to return
+     * @return a list of StorableFence, sorted from the nearest to the farthest (can not be null)
+     */
+    @NonNull
+    public ArrayList<StorableFence> findNearestFences(double latitude, double longitude, int count) {
+        return mSyncedStore.getNearestFences(latitude, longitude, count);
+    }
+
+    /**
+     * Get the stored fences, synced with Google API Client, that have a {@link StorableTimeFence}
+     * active at the given time.
+     * Only absolute, daily and day of week time fences are taken into account. Time fences nested
+     * in meta fences are taken into account too, but the logic of the meta fences is not evaluated.
+     * This lookup uses an interval index, it does not scan all the fences.
+     * The returned fences are shared with the store and should not be modified.
+     * @param epochMillis the time in milliseconds since epoch
+     * @return a list of StorableFence (can not be null)
+     */
+    @NonNull
+    public ArrayList<StorableFence> findActiveTimeFences(long epochMillis) {
+        return mSyncedStore.getFencesActiveAt(epochMillis);
+    }
+
+    /**
+     * Get the next time at which a {@link StorableTimeFence} of the stored fences, synced with
+     * Google API Client, becomes active or inactive.
+     * Only absolute, daily and day of week time fences are taken into account.
+     * @param epochMillis the time in milliseconds since epoch
+     * @return the time of the transition in milliseconds since epoch, {@link Long#MAX_VALUE} if
+     * there is none
+     */
+    public long getNextTimeTransitionAfter(long epochMillis) {
+        return mSyncedStore.getNextTimeTransitionAfter(epochMillis);
+    }
+
+    /**
+     * Get the stored fences, synced with Google API Client, that are true in the given context.
+     * The fences are evaluated locally by {@link FenceEvaluator}, without any request to the
+     * Play Services. Fences that can not be evaluated with the given context are not returned.
+     * The returned fences are shared with the store and should not be modified.
+     * @param snapshot the context of the device
+     * @return a list of StorableFence (can not be null)
+     */
+    @NonNull
+    public ArrayList<StorableFence> findTrueFences(@NonNull ContextSnapshot snapshot) {
+        ArrayList<StorableFence> trueFences = new ArrayList<>();
+        for (StorableFence storableFence : mSyncedStore.getAllFences()) {
+            if (FenceEvaluator.evaluate(storableFence, snapshot) == FenceEvaluator.TRUE) {
+                trueFences.add(storableFence);
+            }
+        }
+        return trueFences;
+    }
+
+    /**
+     * Get a stored fence which is synced with Google API Client.
+     * This is a simple lookup in memory, stored fences are only decoded once.
+     * The returned fence is shared with the store and should not be modified.
+     * @param id the id of the searched fence
+     * @return a StorableFence that matches the given id
+     */
+    public StorableFence getFence(String id) {
+        StorableFence storableFence = null;
+
+        if (id != null) {
+            storableFence = mSyncedStore.getFence(id);
+        }
+        return storableFence;
+    }
+
+    //region Result callbacks
+    private class FenceRemoveStatus implements ResultCallback<Status> {
+
+        /**
+         * Inner class that will responds to ResultCallback when a fence will be, successfully or not, removed from the Google API Client
+         */
+
+        private final String mFenceId;
+
+        @Nullable
+        private final BulkRemoveStatus mBulkStatus;
+
+        public FenceRemoveStatus(@NonNull String fenceId) {
+            this(fenceId, null);
+        }
+
+        public FenceRemoveStatus(@NonNull String fenceId, @Nullable BulkRemoveStatus bulkStatus) {
+            mFenceId = fenceId;
+            mBulkStatus = bulkStatus;
+        }
+
+        @Override
+        public void onResult(@NonNull Status status) {
+            if (mBulkStatus != null) {
+                // the bulk status will update the stores and inform the listener
+                mBulkStatus.onFenceResult(mFenceId, status);
+                return;
+            }
+
+            if (status.isSuccess()) {
+                Log.i(TAG, "Removed successfully fence " + mFenceId + " to the Google API");
+                // since the operation is successful, remove from the local store
+                mSyncedStore.removeFence(mFenceId);
+                if (mRegistrationPolicy != null) {
+                    mRegisteredStore.removeFence(mFenceId);
+                }
+
+                mToRemoveStore.removeFence(mFenceId);
+            } else {
+                Log.e(TAG, "Error : fence not removed. Error is " + status.getStatusMessage() + "(code : " + status.getStatusCode() + ")");
+            }
+
+            if (mListener != null) {
+                mListener.fenceRemoveStatus(mFenceId, status);
+            }
+        }
+    }
+
+    private class FenceAddStatus implements ResultCallback<Status> {
+
+        /**
+         * Inner class that will responds to ResultCallback when a fence will be, successfully or not, added to the Google API Client
+         */
+
+        private final StorableFence mFence;
+
+        @Nullable
+        private final BulkAddStatus mBulkStatus;
+
+        public FenceAddStatus(@NonNull StorableFence fence) {
+            this(fence, null);
+        }
+
+        public FenceAddStatus(@NonNull StorableFence fence, @Nullable BulkAddStatus bulkStatus) {
+            mFence = fence;
+            mBulkStatus = bulkStatus;
+        }
+
+        @Override
+        public void onResult(@NonNull Status status) {
+            if (mBulkStatus != null) {
+                // the bulk status will update the stores and inform the listener
+                mBulkStatus.onFenceResult(mFence, status);
+                return;
+            }
+
+            if (status.isSuccess()) {
+                Log.i(TAG, "Added successfully fence " + mFence + " to the Google API");
+                // since the operation is successful, remove from the local store
+                mSyncedStore.storeFence(mFence);
+
+                // id could not be null here as we have added the fence to the store
+                assert mFence.getId() != null;
+                mToAddStore.removeFencesIfUnchanged(Collections.singletonList(mFence));
+            } else {
+                Log.e(TAG, "Error : fence not added. Error is " + status.getStatusMessage() + "(code : " + status.getStatusCode() + ")");
+            }
+
+            if (mListener != null) {
+                mListener.fenceAddStatus(mFence, status);
+            }
+        }
+    }
+
+    private class QueuedOperationStatus implements ResultCallback<Status> {
+
+        /**
+         * Inner class that will responds to ResultCallback when an operation of the
+         * {@link OperationQueue} is complete. It calls the status of the operation, then runs the
+         * next operation of the fence, if any.
+         */
+
+        private final OperationQueue.Operation mOperation;
+
+        QueuedOperationStatus(@NonNull OperationQueue.Operation operation) {
+            mOperation = operation;
+        }
+
+        @Override
+        public void onResult(@NonNull Status status) {
+            mOperation.mStatus.onResult(status);
+
+            OperationQueue.Operation next = mOperationQueue.complete(mOperation.mId);
+            if (next != null) {
+                runPendingOperation(mOperation, status, next);
+            }
+        }
+    }
+
+    private class BulkAddStatus {
+
+        /**
+         * Inner class that gathers the statuses of the fences added by
+         * {@link StorableFenceManager#addFences(Map, Map, String, BulkListener)}.
+         * Once all the statuses are known, the stores are updated in one transaction each and
+         * the listeners are informed.
+         */
+
+        private final int mExpectedCount;
+
+        @Nullable
+        private final BulkListener mBulkListener;
+
+        private final List<StorableFence> mFences = new ArrayList<>();
+        private final List<Status> mStatuses = new ArrayList<>();
+
+        BulkAddStatus(int expectedCount, @Nullable BulkListener bulkListener) {
+            mExpectedCount = expectedCount;
+            mBulkListener = bulkListener;
+
+            if (mExpectedCount == 0) {
+                onAllResults();
+            }
+        }
+
+        synchronized void onFenceResult(@NonNull StorableFence fence, @NonNull Status status) {
+            mFences.add(fence);
+            mStatuses.add(status);
+            if (mFences.size() == mExpectedCount) {
+                onAllResults();
+            }
+        }
+
+        private void onAllResults() {
+            List<StorableFence> addedFences = new ArrayList<>();
+            List<StorableFence> failedFences = new ArrayList<>();
+            for (int i = 0; i < mFences.size(); i++) {
+                StorableFence fence = mFences.get(i);
+                Status status = mStatuses.get(i);
+                if (status.isSuccess()) {
+                    addedFences.add(fence);
+                } else {
+                    Log.e(TAG, "Error : fence " + fence.getId() + " not added. Error is " + status.getStatusMessage() + "(code : " + status.getStatusCode() + ")");
+                    failedFences.add(fence);
+                }
+            }
+            Log.i(TAG, "Added successfully " + addedFences.size() + " fences to the Google API");
+
+            // since the operations are successful, move from the to add store to the synced one
+            if (!addedFences.isEmpty()) {
+                mSyncedStore.storeFences(addedFences);
+                mToAddStore.removeFencesIfUnchanged(addedFences);
+            }
+
+            if (mListener != null) {
+                for (int i = 0; i < mFences.size(); i++) {
+                    mListener.fenceAddStatus(mFences.get(i), mStatuses.get(i));
+                }
+            }
+            if (mBulkListener != null) {
+                mBulkListener.fencesAddStatus(addedFences, failedFences);
+            }
+        }
+    }
+
+    private class BulkRemoveStatus {
+
+        /**
+         * Inner class that gathers the statuses of the fences removed by
+         * {@link StorableFenceManager#removeFences(Collection, BulkListener)}.
+         * Once all the statuses are known, the stores are updated in one transaction each and
+         * the listeners are informed.
+         */
+
+        private final int mExpectedCount;
+
+        @Nullable
+        private final BulkListener mBulkListener;
+
+        private final List<String> mFenceIds = new ArrayList<>();
+        private final List<Status> mStatuses = new ArrayList<>();
+
+        BulkRemoveStatus(int expectedCount, @Nullable BulkListener bulkListener) {
+            mExpectedCount = expectedCount;
+            mBulkListener = bulkListener;
+
+            if (mExpectedCount == 0) {
+                onAllResults();
+            }
+        }
+
+        synchronized void onFenceResult(@NonNull String fenceId, @NonNull Status status) {
+            mFenceIds.add(fenceId);
+            mStatuses.add(status);
+            if (mFenceIds.size() == mExpectedCount) {
+                onAllResults();
+            }
+        }
+
+        private void onAllResults() {
+            List<String> removedIds = new ArrayList<>();
+            List<String> failedIds = new ArrayList<>();
+            for (int i = 0; i < mFenceIds.size(); i++) {
+                String fenceId = mFenceIds.get(i);
+                Status status = mStatuses.get(i);
+                if (status.isSuccess()) {
+                    removedIds.add(fenceId);
+                } else {
+                    Log.e(TAG, "Error : fence " + fenceId + " not removed. Error is " + status.getStatusMessage() + "(code : " + status.getStatusCode() + ")");
+                    failedIds.add(fenceId);
+                }
+            }
+            Log.i(TAG, "Removed successfully " + removedIds.size() + " fences from the Google API");
+
+            // since the operations are successful, remove from the local stores
+            if (!removedIds.isEmpty()) {
+                mSyncedStore.removeFences(removedIds);
+                mToRemoveStore.removeFences(removedIds);
+                if (mRegistrationPolicy != null) {
+                    mRegisteredStore.removeFences(removedIds);
+                }
+            }
+
+            if (mListener != null) {
+                for (int i = 0; i < mFenceIds.size(); i++) {
+                    mListener.fenceRemoveStatus(mFenceIds.get(i), mStatuses.get(i));
+                }
+            }
+            if (mBulkListener != null) {
+                mBulkListener.fencesRemoveStatus(removedIds, failedIds);
+            }
+        }
+    }
+
+    private class RegistrationStatus {
+
+        /**
+         * Inner class that gathers the statuses of the registrations and unregistrations
+         * submitted by {@link StorableFenceManager#updateRegistrations()}.
+         * Once all the statuses are known, the registered store is updated in one transaction.
+         * The listener is not informed: the fences stay in the synced store.
+         */
+
+        private final int mExpectedCount;
+
+        private int mResultCount;
+
+        private final List<String> mRegisteredIds = new ArrayList<>();
+        private final List<String> mUnregisteredIds = new ArrayList<>();
+
+        RegistrationStatus(int expectedCount) {
+            mExpectedCount = expectedCount;
+        }
+
+        @NonNull
+        ResultCallback<Status> forFence(@NonNull final String fenceId, final boolean register) {
+            return new ResultCallback<Status>() {
+                @Override
+                public void onResult(@NonNull Status status) {
+                    onFenceResult(fenceId, register, status);
+                }
+            };
+        }
+
+        private synchronized void onFenceResult(@NonNull String fenceId, boolean register,
+                                                @NonNull Status status) {
+            mResultCount++;
+            if (status.isSuccess()) {
+                if (register) {
+                    mRegisteredIds.add(fenceId);
+                } else {
+                    mUnregisteredIds.add(fenceId);
+                }
+            } else {
+                Log.e(TAG, "Error : fence " + fenceId + " not " + (register ? "registered" : "unregistered") +
+                        ". Error is " + status.getStatusMessage() + "(code : " + status.getStatusCode() + ")");
+            }
+
+            if (mResultCount == mExpectedCount) {
+                Log.i(TAG, "Registered " + mRegisteredIds.size() + " and unregistered " +
+                        mUnregisteredIds.size() + " fences");
+                if (!mRegisteredIds.isEmpty()) {
+                    mRegisteredStore.storeFenceIds(mRegisteredIds);
+                }
+                if (!mUnregisteredIds.isEmpty()) {
+                    mRegisteredStore.removeFences(mUnregisteredIds);
+                }
+            }
+        }
+    }
+
+    //endregion Result callbacks
+}
@@ -1,14 +1,10 @@
 package com.sousoum.jcvd;
 
-import android.content.Context;
 import android.support.annotation.IntDef;
 
 import com.google.android.gms.awareness.fence.AwarenessFence;
 import com.google.android.gms.awareness.fence.HeadphoneFence;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
@@ -50,8 +46,8 @@ public final class StorableHeadphoneFence extends StorableFence {
 
     private final int mHeadphoneState;
 
-    private static final String TRIGGER_TYPE_KEY = "trigger_type";
-    private static final String HEADPHONE_STATE_KEY = "headphone_state";
+    static final String TRIGGER_TYPE_KEY = "trigger_type";
+    static final String HEADPHONE_STATE_KEY = "headphone_state";
 
 
     /**
@@ -75,7 +71,7 @@ public final class StorableHeadphoneFence extends StorableFence {
     }
 
     @Override
-    AwarenessFence getAwarenessFence(Context ctx) {
+    AwarenessFence createAwarenessFence(int permissions) {
         switch (mTriggerType) {
             case STATE:
                 return HeadphoneFence.during(mHeadphoneState);
@@ -121,6 +117,12 @@ public final class StorableHeadphoneFence extends StorableFence {
                 (mHeadphoneState == fence.getHeadphoneState()));
     }
 
+    @Override
+    long computeFingerprint() {
+        long fingerprint = mixFingerprint(super.computeFingerprint(), mTriggerType);
+        return mixFingerprint(fingerprint, mHeadphoneState);
+    }
+
     /**
      * Creates a storable headphone fence which will be valid when the headphones are in
      * the specified state
@@ -150,42 +152,4 @@ public final class StorableHeadphoneFence extends StorableFence {
     public static StorableHeadphoneFence unplugging() {
         return new StorableHeadphoneFence(UNPLUGGING);
     }
-
-    static JSONObject headphoneFenceToString(StorableFence fence, JSONObject json) {
-        if (fence.getType() == Type.HEADPHONE) {
-            StorableHeadphoneFence headphoneFence = (StorableHeadphoneFence) fence;
-            try {
-                json.put(FENCE_TYPE_KEY, Type.HEADPHONE.ordinal());
-                json.put(TRIGGER_TYPE_KEY, headphoneFence.mTriggerType);
-                if (headphoneFence.mTriggerType == STATE) {
-                    json.put(HEADPHONE_STATE_KEY, headphoneFence.mHeadphoneState);
-                }
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        }
-
-        return json;
-    }
-
-    static StorableFence jsonToHeadphoneFence(JSONObject jsonObj) {
-        try {
-            if (jsonObj.getInt(FENCE_TYPE_KEY) == Type.HEADPHONE.ordinal()) {
-                @TriggerType int triggerType = jsonObj.getInt(TRIGGER_TYPE_KEY);
-                switch (triggerType) {
-                    case StorableHeadphoneFence.STATE:
-                        int headphoneState = jsonObj.getInt(HEADPHONE_STATE_KEY);
-                        return StorableHeadphoneFence.during(headphoneState);
-                    case StorableHeadphoneFence.PLUGGING_IN:
-                        return StorableHeadphoneFence.pluggingIn();
-                    case StorableHeadphoneFence.UNPLUGGING:
-                        return StorableHeadphoneFence.unplugging();
-                }
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        return null;
-    }
 }
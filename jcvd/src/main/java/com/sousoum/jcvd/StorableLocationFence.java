@@ -1,18 +1,10 @@
 package com.sousoum.jcvd;
 
-import android.Manifest;
-import android.content.Context;
-import android.content.pm.PackageManager;
 import android.support.annotation.IntDef;
-import android.support.v4.app.ActivityCompat;
-import android.util.Log;
 
 import com.google.android.gms.awareness.fence.AwarenessFence;
 import com.google.android.gms.awareness.fence.LocationFence;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 
@@ -42,11 +34,11 @@ public final class StorableLocationFence extends StorableFence {
     private final double mRadius;
     private final long mDwellTimeMillis;
 
-    private static final String TRANSITION_TYPE_KEY = "transition";
-    private static final String LATITUDE_KEY = "latitude";
-    private static final String LONGITUDE_KEY = "longitude";
-    private static final String RADIUS_KEY = "radius";
-    private static final String DWELL_KEY = "dwell";
+    static final String TRANSITION_TYPE_KEY = "transition";
+    static final String LATITUDE_KEY = "latitude";
+    static final String LONGITUDE_KEY = "longitude";
+    static final String RADIUS_KEY = "radius";
+    static final String DWELL_KEY = "dwell";
 
     @TransitionType
     private int mTransitionType;
@@ -62,9 +54,8 @@ public final class StorableLocationFence extends StorableFence {
     }
 
     @Override
-    AwarenessFence getAwarenessFence(Context ctx) {
-        if (ActivityCompat.checkSelfPermission(ctx,
-                Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+    AwarenessFence createAwarenessFence(int permissions) {
+        if ((permissions & PERMISSION_FINE_LOCATION) != 0) {
             switch (mTransitionType) {
                 case ENTER_TYPE:
                     return LocationFence.entering(mLatitude, mLongitude, mRadius);
@@ -139,6 +130,15 @@ public final class StorableLocationFence extends StorableFence {
         );
     }
 
+    @Override
+    long computeFingerprint() {
+        long fingerprint = mixFingerprint(super.computeFingerprint(), mTransitionType);
+        fingerprint = mixFingerprint(fingerprint, mLatitude);
+        fingerprint = mixFingerprint(fingerprint, mLongitude);
+        fingerprint = mixFingerprint(fingerprint, mRadius);
+        return mixFingerprint(fingerprint, mDwellTimeMillis);
+    }
+
     /**
      * Creates a storable location fence which will be valid when the user enter the given region
      * @param latitude the latitude of the center of the region
@@ -174,48 +174,4 @@ public final class StorableLocationFence extends StorableFence {
                                            long dwellTimeMillis) {
         return new StorableLocationFence(IN_TYPE, latitude, longitude, radius, dwellTimeMillis);
     }
-
-    static StorableFence jsonToLocationFence(JSONObject jsonObj) {
-        try {
-            if (jsonObj.getInt(FENCE_TYPE_KEY) == StorableFence.Type.LOCATION.ordinal()) {
-                int transition = jsonObj.getInt(TRANSITION_TYPE_KEY);
-                double latitude = jsonObj.getDouble(LATITUDE_KEY);
-                double longitude = jsonObj.getDouble(LONGITUDE_KEY);
-                double radius = jsonObj.getDouble(RADIUS_KEY);
-                long dwell = jsonObj.getLong(DWELL_KEY);
-                switch (transition) {
-                    case StorableLocationFence.ENTER_TYPE:
-                        return StorableLocationFence.entering(latitude, longitude, radius);
-                    case StorableLocationFence.EXIT_TYPE:
-                        return StorableLocationFence.exiting(latitude, longitude, radius);
-                    case StorableLocationFence.IN_TYPE:
-                        return StorableLocationFence.in(latitude, longitude, radius, dwell);
-                    default:
-                        Log.e("LocationFence", "not normal");
-                }
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        return null;
-    }
-
-    static JSONObject locationFenceToString(StorableFence fence, JSONObject json) {
-        if (fence.getType() == StorableFence.Type.LOCATION) {
-            StorableLocationFence locFence = (StorableLocationFence) fence;
-            try {
-                json.put(FENCE_TYPE_KEY, StorableFence.Type.LOCATION.ordinal());
-                json.put(TRANSITION_TYPE_KEY, locFence.mTransitionType);
-                json.put(LATITUDE_KEY, locFence.mLatitude);
-                json.put(LONGITUDE_KEY, locFence.mLongitude);
-                json.put(RADIUS_KEY, locFence.mRadius);
-                json.put(DWELL_KEY, locFence.mDwellTimeMillis);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        }
-
-        return json;
-    }
 }
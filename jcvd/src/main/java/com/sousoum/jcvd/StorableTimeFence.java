@@ -1,22 +1,16 @@
 package com.sousoum.jcvd;
 
-import android.Manifest;
-import android.content.Context;
-import android.content.pm.PackageManager;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v4.app.ActivityCompat;
 
 import com.google.android.gms.awareness.fence.AwarenessFence;
 import com.google.android.gms.awareness.fence.TimeFence;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.SimpleTimeZone;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TimeZone;
 
 import static com.google.android.gms.awareness.fence.TimeFence.DAY_OF_WEEK_FRIDAY;
@@ -64,8 +58,8 @@ public final class StorableTimeFence extends StorableFence {
     }
 
     @Retention(RetentionPolicy.SOURCE)
-    @IntDef({ABSOLUTE, DAILY, DAY_OF_WEEK, TIME_INTERVAL, TIME_INSTANT, MONDAY, TUESDAY, WEDNESDAY,
-            THURSDAY, FRIDAY, SATURDAY, SUNDAY})
+    @IntDef({ABSOLUTE, DAILY, DAY_OF_WEEK, DAYS_OF_WEEK, TIME_INTERVAL, TIME_INSTANT, MONDAY,
+            TUESDAY, WEDNESDAY, THURSDAY, FRIDAY, SATURDAY, SUNDAY})
     public @interface TimingType {
     }
 
@@ -91,6 +85,14 @@ public final class StorableTimeFence extends StorableFence {
      */
     public static final int DAY_OF_WEEK = 10;
 
+    /**
+     * With this type, the fence is in the TRUE state on each of the
+     * {@link StorableTimeFence#getDaysOfWeek() days of the week} during the interval specified by
+     * {@link StorableTimeFence#getStartTime()} as a startTimeOfDayMillis and
+     * {@link StorableTimeFence#getStopTime()} as a stopTimeOfDayMillis in the given timeZone.
+     */
+    public static final int DAYS_OF_WEEK = 13;
+
     /**
      * With this type, the fence is in the TRUE state on the
      * {@link StorableTimeFence#getTimeInterval() time interval }.
@@ -161,6 +163,15 @@ public final class StorableTimeFence extends StorableFence {
      */
     public static final int SUNDAY = 9;
 
+    /** Flags of all the days in {@link #getDaysOfWeek()} */
+    static final int ALL_DAYS_OF_WEEK = (1 << 7) - 1;
+
+    static final long DAY_MILLIS = 24L * 60L * 60L * 1000L;
+    static final long WEEK_MILLIS = 7 * DAY_MILLIS;
+
+    /** The epoch is a Thursday: shift of the time so that the weeks start on Sunday */
+    private static final long EPOCH_WEEK_SHIFT = 4 * DAY_MILLIS;
+
     @TimingType
     private final int mTimingType;
 
@@ -168,6 +179,12 @@ public final class StorableTimeFence extends StorableFence {
     @DayOfWeek
     private final int mDayOfWeek;
 
+    /**
+     * Days of the week, one bit per day as given by {@link #dayOfWeekFlag(int)}.
+     * Only accurate if timing type is DAYS_OF_WEEK.
+     */
+    private final int mDaysOfWeek;
+
     /** Time interval. Not accurate if timing type is not TIME_INTERVAL. */
     @TimeInterval
     private final int mTimeInterval;
@@ -190,26 +207,27 @@ public final class StorableTimeFence extends StorableFence {
     /** Stop offset in millis. Not accurate if timing type is not TIME_INSTANT. */
     private final long mStopOffset;
 
-    private static final String TIMING_TYPE_KEY = "timing_type";
-    private static final String DAY_OF_WEEK_KEY = "day_of_week";
-    private static final String TIME_INTERVAL_KEY = "time_interval";
-    private static final String TIME_INSTANT_KEY = "time_instant";
-    private static final String TIMEZONE_OFFSET_KEY = "timezone_offset";
-    private static final String TIMEZONE_ID_KEY = "timezone_id";
-    private static final String START_TIME_KEY = "start";
-    private static final String STOP_TIME_KEY = "stop";
-    private static final String START_OFFSET_KEY = "start_offset";
-    private static final String STOP_OFFSET_KEY = "stop_offset";
+    static final String TIMING_TYPE_KEY = "timing_type";
+    static final String DAY_OF_WEEK_KEY = "day_of_week";
+    static final String TIME_INTERVAL_KEY = "time_interval";
+    static final String TIME_INSTANT_KEY = "time_instant";
+    static final String TIMEZONE_OFFSET_KEY = "timezone_offset";
+    static final String TIMEZONE_ID_KEY = "timezone_id";
+    static final String START_TIME_KEY = "start";
+    static final String STOP_TIME_KEY = "stop";
+    static final String START_OFFSET_KEY = "start_offset";
+    static final String STOP_OFFSET_KEY = "stop_offset";
 
 
     private StorableTimeFence(@TimingType int timingType, @DayOfWeek int dayOfWeek,
-                              @TimeInterval int timeInterval, @TimeInstant int timeInstant,
-                              @Nullable TimeZone timeZone,
+                              int daysOfWeek, @TimeInterval int timeInterval,
+                              @TimeInstant int timeInstant, @Nullable TimeZone timeZone,
                               long startTime, long stopTime,
                               long startOffset, long stopOffset) {
         super(Type.TIME);
         mTimingType = timingType;
         mDayOfWeek = dayOfWeek;
+        mDaysOfWeek = daysOfWeek;
         mTimeInterval = timeInterval;
         mTimeInstant = timeInstant;
         mTimeZone = timeZone;
@@ -220,7 +238,7 @@ public final class StorableTimeFence extends StorableFence {
     }
 
     @Override
-    AwarenessFence getAwarenessFence(Context ctx) {
+    AwarenessFence createAwarenessFence(int permissions) {
         switch (mTimingType) {
             case ABSOLUTE:
                 return TimeFence.inInterval(mStartTime, mStopTime);
@@ -228,9 +246,25 @@ public final class StorableTimeFence extends StorableFence {
                 return TimeFence.inDailyInterval(mTimeZone, mStartTime, mStopTime);
             case DAY_OF_WEEK:
                 return TimeFence.inIntervalOfDay(mDayOfWeek, mTimeZone, mStartTime, mStopTime);
+            case DAYS_OF_WEEK:
+                if (mDaysOfWeek == ALL_DAYS_OF_WEEK) {
+                    return TimeFence.inDailyInterval(mTimeZone, mStartTime, mStopTime);
+                }
+                // the days are only expanded into awareness fences here, they are stored once
+                List<AwarenessFence> dayFences = new ArrayList<>(7);
+                for (int day = DAY_OF_WEEK_SUNDAY; day <= DAY_OF_WEEK_SATURDAY; day++) {
+                    if (hasDayOfWeek(day)) {
+                        dayFences.add(TimeFence.inIntervalOfDay(day, mTimeZone, mStartTime, mStopTime));
+                    }
+                }
+                if (dayFences.size() == 1) {
+                    return dayFences.get(0);
+                } else if (!dayFences.isEmpty()) {
+                    return AwarenessFence.or(dayFences);
+                }
+                break;
             case TIME_INTERVAL:
-                if (ActivityCompat.checkSelfPermission(ctx,
-                        Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+                if ((permissions & PERMISSION_FINE_LOCATION) != 0) {
                     return TimeFence.inTimeInterval(mTimeInterval);
                 }
                 break;
@@ -275,6 +309,25 @@ public final class StorableTimeFence extends StorableFence {
         return mDayOfWeek;
     }
 
+    /**
+     * Get the days of the week, one bit per day as given by {@link #dayOfWeekFlag(int)}.
+     * Only accurate if timing type is {@link StorableTimeFence#DAYS_OF_WEEK}.
+     * @return the days of the week when this time fence is triggered
+     */
+    public int getDaysOfWeek() {
+        return mDaysOfWeek;
+    }
+
+    /**
+     * Whether a day is one of the {@link #getDaysOfWeek() days of the week}.
+     * Only accurate if timing type is {@link StorableTimeFence#DAYS_OF_WEEK}.
+     * @param dayOfWeek the day of the week
+     * @return true if this time fence is triggered on this day
+     */
+    public boolean hasDayOfWeek(@DayOfWeek int dayOfWeek) {
+        return (mDaysOfWeek & dayOfWeekFlag(dayOfWeek)) != 0;
+    }
+
     /**
      * Get the time interval.
      * Only accurate if timing type is {@link StorableTimeFence#TIME_INTERVAL}.
@@ -313,10 +366,21 @@ public final class StorableTimeFence extends StorableFence {
 
     /**
      * Get the time zone used to understand the start and stop times
-     * @return the timezone
+     * @return a copy of the timezone
      */
     @Nullable
     public TimeZone getTimeZone() {
+        return (mTimeZone != null) ? (TimeZone) mTimeZone.clone() : null;
+    }
+
+    /**
+     * Get the time zone used to understand the start and stop times, without copying it.
+     * Decoded fences share their time zones, see {@link TimeZoneTable}, so the returned time
+     * zone must not be modified.
+     * @return the timezone
+     */
+    @Nullable
+    TimeZone getSharedTimeZone() {
         return mTimeZone;
     }
 
@@ -337,6 +401,19 @@ public final class StorableTimeFence extends StorableFence {
     }
     //endregion getters
 
+    /**
+     * Creates a copy of this fence valid during another interval.
+     * Only meaningful for the timing types that have a start and a stop time.
+     * @param startTime the start time of the copy
+     * @param stopTime the stop time of the copy
+     * @return a time fence with the same timing type, day of week and time zone
+     */
+    @NonNull
+    StorableTimeFence withInterval(long startTime, long stopTime) {
+        return new StorableTimeFence(mTimingType, mDayOfWeek, mDaysOfWeek, mTimeInterval,
+                mTimeInstant, mTimeZone, startTime, stopTime, mStartOffset, mStopOffset);
+    }
+
     @Override
     public boolean equals(Object other) {
         if (other == null) return false;
@@ -345,12 +422,14 @@ public final class StorableTimeFence extends StorableFence {
         StorableTimeFence fence = (StorableTimeFence)other;
         return ((super.equals(other)) &&
                 (mTimingType == fence.getTimingType()) &&
+                (mDayOfWeek == fence.getDayOfWeek()) &&
+                (mDaysOfWeek == fence.getDaysOfWeek()) &&
                 (mTimeInterval == fence.getTimeInterval()) &&
                 (mTimeInstant == fence.getTimeInstant()) &&
-                ((mTimeZone == null) && (fence.getTimeZone() == null) ||
-                        ((mTimeZone != null) && (fence.getTimeZone() != null) &&
-                                (mTimeZone.getDisplayName().equals(fence.getTimeZone().getDisplayName())) &&
-                                (mTimeZone.getID().equals(fence.getTimeZone().getID())))) &&
+                ((mTimeZone == null) && (fence.mTimeZone == null) ||
+                        ((mTimeZone != null) && (fence.mTimeZone != null) &&
+                                (mTimeZone.getDisplayName().equals(fence.mTimeZone.getDisplayName())) &&
+                                (mTimeZone.getID().equals(fence.mTimeZone.getID())))) &&
                 (mStartTime == fence.getStartTime()) &&
                 (mStopTime == fence.getStopTime()) &&
                 (mStartOffset == fence.getStartOffset()) &&
@@ -358,6 +437,22 @@ public final class StorableTimeFence extends StorableFence {
         );
     }
 
+    @Override
+    long computeFingerprint() {
+        long fingerprint = mixFingerprint(super.computeFingerprint(), mTimingType);
+        fingerprint = mixFingerprint(fingerprint, mDayOfWeek);
+        fingerprint = mixFingerprint(fingerprint, mDaysOfWeek);
+        fingerprint = mixFingerprint(fingerprint, mTimeInterval);
+        fingerprint = mixFingerprint(fingerprint, mTimeInstant);
+        // the time zones are compared on their id
+        fingerprint = mixFingerprint(fingerprint,
+                stringFingerprint((mTimeZone != null) ? mTimeZone.getID() : null));
+        fingerprint = mixFingerprint(fingerprint, mStartTime);
+        fingerprint = mixFingerprint(fingerprint, mStopTime);
+        fingerprint = mixFingerprint(fingerprint, mStartOffset);
+        return mixFingerprint(fingerprint, mStopOffset);
+    }
+
     /**
      * Creates a storable time fence which will be valid on dayOfWeek during the interval
      * specified by startTimeOfDayMillis to stopTimeOfDayMillis in the given timeZone.
@@ -373,12 +468,79 @@ public final class StorableTimeFence extends StorableFence {
                                                     @Nullable TimeZone timeZone,
                                                     long startTimeOfDayMillis,
                                                     long stopTimeOfDayMillis) {
-        return new StorableTimeFence(DAY_OF_WEEK, dayOfWeek, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(DAY_OF_WEEK, dayOfWeek, 0, TIME_INTERVAL_WEEKDAY,
                 TIME_INSTANT_SUNRISE, timeZone, startTimeOfDayMillis,
                 stopTimeOfDayMillis, 0, 0);
     }
 
+    /**
+     * Creates a storable time fence which will be valid on each of the given days of the week
+     * during the interval specified by startTimeOfDayMillis to stopTimeOfDayMillis in the given
+     * timeZone.
+     * It replaces an 'or' of {@link #inIntervalOfDay(int, TimeZone, long, long)} fences that only
+     * differ by their day: the interval and the time zone are stored once.
+     * @param timeZone the time zone to use. If null current device time zone is used.
+     * @param startTimeOfDayMillis Milliseconds since the start of the day.
+     * @param stopTimeOfDayMillis Milliseconds since the start of the day. This time must be
+     *                            greater than or equal to startTimeOfDayMillis.
+     * @param daysOfWeek the days of the week
+     * @return a time fence
+     */
+    @NonNull
+    public static StorableTimeFence inIntervalOfDays(@Nullable TimeZone timeZone,
+                                                     long startTimeOfDayMillis,
+                                                     long stopTimeOfDayMillis,
+                                                     @DayOfWeek int... daysOfWeek) {
+        int flags = 0;
+        for (int dayOfWeek : daysOfWeek) {
+            flags |= dayOfWeekFlag(dayOfWeek);
+        }
+        return withDaysOfWeek(flags, timeZone, startTimeOfDayMillis, stopTimeOfDayMillis);
+    }
 
+    /**
+     * Creates a storable time fence of timing type {@link #DAYS_OF_WEEK}
+     * @param daysOfWeek the days of the week, one bit per day as given by {@link #dayOfWeekFlag(int)}
+     */
+    @NonNull
+    static StorableTimeFence withDaysOfWeek(int daysOfWeek, @Nullable TimeZone timeZone,
+                                            long startTimeOfDayMillis, long stopTimeOfDayMillis) {
+        return new StorableTimeFence(DAYS_OF_WEEK, DAY_OF_WEEK_SUNDAY,
+                daysOfWeek & ALL_DAYS_OF_WEEK, TIME_INTERVAL_WEEKDAY, TIME_INSTANT_SUNRISE, timeZone,
+                startTimeOfDayMillis, stopTimeOfDayMillis, 0, 0);
+    }
+
+    /**
+     * Get the bit of a day in {@link #getDaysOfWeek()}
+     * @param dayOfWeek the day of the week
+     * @return the flag of the day, 0 if the day is not valid
+     */
+    static int dayOfWeekFlag(@DayOfWeek int dayOfWeek) {
+        int index = dayOfWeek - DAY_OF_WEEK_SUNDAY;
+        return (index >= 0 && index < 7) ? (1 << index) : 0;
+    }
+
+    /**
+     * Get the position of a time in its week, in a time zone
+     * @param time the time in milliseconds since epoch
+     * @param timeZone the time zone
+     * @return the milliseconds since the start of the Sunday of the week, in local time
+     */
+    static long getWeekPosition(long time, @NonNull TimeZone timeZone) {
+        long position = (time + timeZone.getOffset(time) + EPOCH_WEEK_SHIFT) % WEEK_MILLIS;
+        return (position < 0) ? position + WEEK_MILLIS : position;
+    }
+
+    /**
+     * Get the day of the week of a position in the week
+     * @param weekPosition a position given by {@link #getWeekPosition(long, TimeZone)}
+     * @return the day of the week, from {@link TimeFence#DAY_OF_WEEK_SUNDAY} to
+     * {@link TimeFence#DAY_OF_WEEK_SATURDAY}
+     */
+    @DayOfWeek
+    static int getDayOfWeek(long weekPosition) {
+        return DAY_OF_WEEK_SUNDAY + (int) (weekPosition / DAY_MILLIS);
+    }
 
     /**
      * Creates a storable time fence which will be valid in the given absolute time frame
@@ -388,7 +550,7 @@ public final class StorableTimeFence extends StorableFence {
      */
     @NonNull
     public static StorableTimeFence inInterval(long startTimeMillis, long stopTimeMillis) {
-        return new StorableTimeFence(ABSOLUTE, DAY_OF_WEEK_SUNDAY, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(ABSOLUTE, DAY_OF_WEEK_SUNDAY, 0, TIME_INTERVAL_WEEKDAY,
                 TIME_INSTANT_SUNRISE, null, startTimeMillis, stopTimeMillis, 0, 0);
     }
 
@@ -407,7 +569,7 @@ public final class StorableTimeFence extends StorableFence {
     public static StorableTimeFence inDailyInterval(@Nullable TimeZone timeZone,
                                                     long startTimeOfDayMillis,
                                                     long stopTimeOfDayMillis) {
-        return new StorableTimeFence(DAILY, DAY_OF_WEEK_SUNDAY, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(DAILY, DAY_OF_WEEK_SUNDAY, 0, TIME_INTERVAL_WEEKDAY,
                 TIME_INSTANT_SUNRISE, timeZone, startTimeOfDayMillis, stopTimeOfDayMillis, 0, 0);
     }
 
@@ -418,7 +580,7 @@ public final class StorableTimeFence extends StorableFence {
      */
     @NonNull
     public static StorableTimeFence inTimeInterval(@TimeInterval int timeInterval) {
-        return new StorableTimeFence(TIME_INTERVAL, DAY_OF_WEEK_SUNDAY, timeInterval,
+        return new StorableTimeFence(TIME_INTERVAL, DAY_OF_WEEK_SUNDAY, 0, timeInterval,
                 TIME_INSTANT_SUNRISE, null, 0, 0, 0, 0);
     }
 
@@ -439,7 +601,7 @@ public final class StorableTimeFence extends StorableFence {
     public static StorableTimeFence aroundTimeInstant(@TimeInstant int timeInstant,
                                                       long startOffsetMillis,
                                                       long stopOffsetMillis) {
-        return new StorableTimeFence(TIME_INSTANT, DAY_OF_WEEK_SUNDAY, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(TIME_INSTANT, DAY_OF_WEEK_SUNDAY, 0, TIME_INTERVAL_WEEKDAY,
                 timeInstant, null, 0, 0, startOffsetMillis, stopOffsetMillis);
     }
 
@@ -457,7 +619,7 @@ public final class StorableTimeFence extends StorableFence {
      */
     public static StorableTimeFence inMondayInterval(TimeZone timeZone, long startTimeOfDayMillis,
                                                      long stopTimeOfDayMillis) {
-        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_MONDAY, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_MONDAY, 0, TIME_INTERVAL_WEEKDAY,
                 TIME_INSTANT_SUNRISE, timeZone, startTimeOfDayMillis, stopTimeOfDayMillis, 0, 0);
     }
 
@@ -475,7 +637,7 @@ public final class StorableTimeFence extends StorableFence {
      */
     public static StorableTimeFence inTuesdayInterval(TimeZone timeZone, long startTimeOfDayMillis,
                                                       long stopTimeOfDayMillis) {
-        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_TUESDAY, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_TUESDAY, 0, TIME_INTERVAL_WEEKDAY,
                 TIME_INSTANT_SUNRISE, timeZone, startTimeOfDayMillis, stopTimeOfDayMillis, 0, 0);
     }
 
@@ -494,7 +656,7 @@ public final class StorableTimeFence extends StorableFence {
     public static StorableTimeFence inWednesdayInterval(TimeZone timeZone,
                                                         long startTimeOfDayMillis,
                                                         long stopTimeOfDayMillis) {
-        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_WEDNESDAY, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_WEDNESDAY, 0, TIME_INTERVAL_WEEKDAY,
                 TIME_INSTANT_SUNRISE, timeZone, startTimeOfDayMillis, stopTimeOfDayMillis, 0, 0);
     }
 
@@ -512,7 +674,7 @@ public final class StorableTimeFence extends StorableFence {
      */
     public static StorableTimeFence inThursdayInterval(TimeZone timeZone, long startTimeOfDayMillis,
                                                        long stopTimeOfDayMillis) {
-        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_THURSDAY, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_THURSDAY, 0, TIME_INTERVAL_WEEKDAY,
                 TIME_INSTANT_SUNRISE, timeZone, startTimeOfDayMillis, stopTimeOfDayMillis, 0, 0);
     }
 
@@ -530,7 +692,7 @@ public final class StorableTimeFence extends StorableFence {
      */
     public static StorableTimeFence inFridayInterval(TimeZone timeZone, long startTimeOfDayMillis,
                                                      long stopTimeOfDayMillis) {
-        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_FRIDAY, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_FRIDAY, 0, TIME_INTERVAL_WEEKDAY,
                 TIME_INSTANT_SUNRISE, timeZone, startTimeOfDayMillis, stopTimeOfDayMillis, 0, 0);
     }
 
@@ -548,7 +710,7 @@ public final class StorableTimeFence extends StorableFence {
      */
     public static StorableTimeFence inSaturdayInterval(TimeZone timeZone, long startTimeOfDayMillis,
                                                        long stopTimeOfDayMillis) {
-        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_SATURDAY, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_SATURDAY, 0, TIME_INTERVAL_WEEKDAY,
                 TIME_INSTANT_SUNRISE, timeZone, startTimeOfDayMillis, stopTimeOfDayMillis, 0, 0);
     }
 
@@ -566,91 +728,7 @@ public final class StorableTimeFence extends StorableFence {
      */
     public static StorableTimeFence inSundayInterval(TimeZone timeZone, long startTimeOfDayMillis,
                                                      long stopTimeOfDayMillis) {
-        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_SUNDAY, TIME_INTERVAL_WEEKDAY,
+        return new StorableTimeFence(DAY_OF_WEEK, DAY_OF_WEEK_SUNDAY, 0, TIME_INTERVAL_WEEKDAY,
                 TIME_INSTANT_SUNRISE, timeZone, startTimeOfDayMillis, stopTimeOfDayMillis, 0, 0);
     }
-
-    static JSONObject timeFenceToString(StorableFence fence, JSONObject json) {
-        if (fence.getType() == Type.TIME) {
-            StorableTimeFence timeFence = (StorableTimeFence) fence;
-            try {
-                json.put(FENCE_TYPE_KEY, Type.TIME.ordinal());
-                json.put(TIMING_TYPE_KEY, timeFence.getTimingType());
-                json.put(DAY_OF_WEEK_KEY, timeFence.getDayOfWeek());
-                json.put(TIME_INTERVAL_KEY, timeFence.getTimeInterval());
-                json.put(TIME_INSTANT_KEY, timeFence.getTimeInstant());
-                TimeZone timeZone = timeFence.getTimeZone();
-                if (timeZone != null) {
-                    json.put(TIMEZONE_OFFSET_KEY, timeZone.getRawOffset());
-                    json.put(TIMEZONE_ID_KEY, timeZone.getID());
-                }
-                json.put(START_TIME_KEY, timeFence.getStartTime());
-                json.put(STOP_TIME_KEY, timeFence.getStopTime());
-                json.put(START_OFFSET_KEY, timeFence.getStartOffset());
-                json.put(STOP_OFFSET_KEY, timeFence.getStopOffset());
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        }
-        return json;
-    }
-
-    static StorableFence jsonToTimeFence(JSONObject jsonObj) {
-        try {
-            if (jsonObj.getInt(FENCE_TYPE_KEY) == Type.TIME.ordinal()) {
-                @TimingType int timingType = jsonObj.getInt(TIMING_TYPE_KEY);
-                TimeZone timeZone = null;
-                if (jsonObj.has(TIMEZONE_OFFSET_KEY) && jsonObj.has(TIMEZONE_ID_KEY)) {
-                    timeZone = new SimpleTimeZone(jsonObj.getInt(TIMEZONE_OFFSET_KEY),
-                            jsonObj.getString(TIMEZONE_ID_KEY));
-                }
-                long startTime = jsonObj.getLong(START_TIME_KEY);
-                long stopTime = jsonObj.getLong(STOP_TIME_KEY);
-                switch (timingType) {
-                    case ABSOLUTE:
-                        return StorableTimeFence.inInterval(startTime, stopTime);
-                    case DAILY:
-                        return StorableTimeFence.inDailyInterval(timeZone, startTime, stopTime);
-                    case DAY_OF_WEEK:
-                        @DayOfWeek int dayOfWeek = jsonObj.getInt(DAY_OF_WEEK_KEY);
-                        return StorableTimeFence.inIntervalOfDay(dayOfWeek, timeZone, startTime,
-                                stopTime);
-                    case TIME_INTERVAL:
-                        @TimeInterval int timeInterval = jsonObj.getInt(TIME_INTERVAL_KEY);
-                        return StorableTimeFence.inTimeInterval(timeInterval);
-                    case TIME_INSTANT:
-                        @TimeInstant int timeIntant = jsonObj.getInt(TIME_INSTANT_KEY);
-                        long startOffset = jsonObj.getLong(START_OFFSET_KEY);
-                        long stopOffset = jsonObj.getLong(STOP_OFFSET_KEY);
-                        return StorableTimeFence.aroundTimeInstant(timeIntant, startOffset,
-                                stopOffset);
-                    case MONDAY:
-                        return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_MONDAY, timeZone,
-                                startTime, stopTime);
-                    case TUESDAY:
-                        return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_TUESDAY, timeZone,
-                                startTime, stopTime);
-                    case WEDNESDAY:
-                        return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_WEDNESDAY, timeZone,
-                                startTime, stopTime);
-                    case THURSDAY:
-                        return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_THURSDAY, timeZone,
-                                startTime, stopTime);
-                    case FRIDAY:
-                        return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_FRIDAY, timeZone,
-                                startTime, stopTime);
-                    case SATURDAY:
-                        return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_SATURDAY, timeZone,
-                                startTime, stopTime);
-                    case SUNDAY:
-                        return StorableTimeFence.inIntervalOfDay(DAY_OF_WEEK_SUNDAY, timeZone,
-                                startTime, stopTime);
-                }
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-
-        return null;
-    }
 }
@@ -0,0 +1,392 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import static com.sousoum.jcvd.StorableTimeFence.DAY_MILLIS;
+import static com.sousoum.jcvd.StorableTimeFence.WEEK_MILLIS;
+import static com.sousoum.jcvd.StorableTimeFence.getWeekPosition;
+
+/**
+ * Package local index over the {@link StorableTimeFence} of stored fences.
+ * {@link StorableTimeFence#ABSOLUTE} time fences are indexed by their interval. Recurring
+ * {@link StorableTimeFence#DAILY}, {@link StorableTimeFence#DAY_OF_WEEK} and
+ * {@link StorableTimeFence#DAYS_OF_WEEK} time fences are indexed by their intervals within a week, grouped by time zone: a query converts the searched
+ * time to a position in the week of each time zone. Time fences without a fixed interval (time
+ * intervals and time instants) are not indexed.
+ * The intervals are half open: a time fence is active from its start time, included, to its stop
+ * time, excluded.
+ * Time fences nested in meta fences are indexed too: a query returns the id of the root fence
+ * they belong to. The logic of the meta fences is not evaluated.
+ * Each set of intervals is an interval tree, built on the first query after a modification. A
+ * query then takes a logarithmic time for each time zone.
+ * This class is not thread safe.
+ */
+final class TimeFenceIndex {
+
+    /**
+     * An interval of a time fence, in the tree of a root fence.
+     */
+    private static final class Leaf {
+        @NonNull
+        final String mFenceId;
+        final long mStart;
+        final long mStop;
+
+        Leaf(@NonNull String fenceId, long start, long stop) {
+            mFenceId = fenceId;
+            mStart = start;
+            mStop = stop;
+        }
+    }
+
+    /** Indexed root fences, indexed by their id */
+    private final HashMap<String, StorableFence> mFences = new HashMap<>();
+
+    /** Tree of the absolute intervals, null if it should be built again */
+    @Nullable
+    private IntervalTree mAbsoluteTree;
+
+    /**
+     * Trees of the intervals within a week, indexed by time zone, null if they should be built
+     * again. The null time zone is the default time zone of the device.
+     */
+    @Nullable
+    private HashMap<TimeZone, IntervalTree> mWeeklyTrees;
+
+    /**
+     * Add a fence to the index, replacing the fence that had the same id
+     * @param fenceId the id of the fence
+     * @param fence the fence
+     */
+    void add(@NonNull String fenceId, @NonNull StorableFence fence) {
+        remove(fenceId);
+        if (containsTime(fence)) {
+            mFences.put(fenceId, fence);
+            invalidate();
+        }
+    }
+
+    /**
+     * Remove a fence from the index
+     * @param fenceId the id of the fence to remove
+     */
+    void remove(@NonNull String fenceId) {
+        if (mFences.remove(fenceId) != null) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Remove all the fences from the index
+     */
+    void clear() {
+        mFences.clear();
+        invalidate();
+    }
+
+    /**
+     * Find the fences that have a time fence active at the given time
+     * @param time the time in milliseconds since epoch
+     * @return the ids of the root fences, can not be null
+     */
+    @NonNull
+    Set<String> findActiveAt(long time) {
+        build();
+        Set<String> fenceIds = new LinkedHashSet<>();
+        assert mAbsoluteTree != null && mWeeklyTrees != null;
+        mAbsoluteTree.findActive(time, fenceIds);
+        for (Map.Entry<TimeZone, IntervalTree> entry : mWeeklyTrees.entrySet()) {
+            entry.getValue().findActive(getWeekPosition(time, getTimeZone(entry.getKey())), fenceIds);
+        }
+        return fenceIds;
+    }
+
+    /**
+     * Find the next time at which a time fence becomes active or inactive
+     * @param time the time in milliseconds since epoch
+     * @return the first start or stop of an interval after the given time, in milliseconds since
+     * epoch, {@link Long#MAX_VALUE} if there is none
+     */
+    long findNextTransitionAfter(long time) {
+        build();
+        assert mAbsoluteTree != null && mWeeklyTrees != null;
+        long nextTransition = mAbsoluteTree.findNextBoundaryAfter(time);
+        for (Map.Entry<TimeZone, IntervalTree> entry : mWeeklyTrees.entrySet()) {
+            IntervalTree tree = entry.getValue();
+            if (tree.isEmpty()) {
+                continue;
+            }
+            TimeZone timeZone = getTimeZone(entry.getKey());
+            long position = getWeekPosition(time, timeZone);
+            long boundary = tree.findNextBoundaryAfter(position);
+            if (boundary == Long.MAX_VALUE) {
+                // the next boundary is in the next week
+                boundary = tree.findNextBoundaryAfter(Long.MIN_VALUE) + WEEK_MILLIS;
+            }
+            long transition = time + (boundary - position);
+            // the boundary is in local time, the offset may have changed in the meantime
+            long adjustedTransition = transition - (timeZone.getOffset(transition) - timeZone.getOffset(time));
+            if (adjustedTransition > time) {
+                transition = adjustedTransition;
+            }
+            nextTransition = Math.min(nextTransition, transition);
+        }
+        return nextTransition;
+    }
+
+    private void invalidate() {
+        mAbsoluteTree = null;
+        mWeeklyTrees = null;
+    }
+
+    /**
+     * Build the trees if they have been invalidated
+     */
+    private void build() {
+        if (mAbsoluteTree != null && mWeeklyTrees != null) {
+            return;
+        }
+        List<Leaf> absoluteLeaves = new ArrayList<>();
+        HashMap<TimeZone, List<Leaf>> weeklyLeaves = new HashMap<>();
+        for (Map.Entry<String, StorableFence> entry : mFences.entrySet()) {
+            collectLeaves(entry.getKey(), entry.getValue(), absoluteLeaves, weeklyLeaves);
+        }
+
+        mAbsoluteTree = new IntervalTree(absoluteLeaves);
+        HashMap<TimeZone, IntervalTree> weeklyTrees = new HashMap<>();
+        for (Map.Entry<TimeZone, List<Leaf>> entry : weeklyLeaves.entrySet()) {
+            weeklyTrees.put(entry.getKey(), new IntervalTree(entry.getValue()));
+        }
+        mWeeklyTrees = weeklyTrees;
+    }
+
+    private static void collectLeaves(@NonNull String fenceId, @Nullable StorableFence fence,
+                                      @NonNull List<Leaf> absoluteLeaves,
+                                      @NonNull HashMap<TimeZone, List<Leaf>> weeklyLeaves) {
+        if (fence == null) {
+            return;
+        }
+        switch (fence.getType()) {
+            case META:
+                for (StorableFence subFence : fence.getAndFences()) {
+                    collectLeaves(fenceId, subFence, absoluteLeaves, weeklyLeaves);
+                }
+                for (StorableFence subFence : fence.getOrFences()) {
+                    collectLeaves(fenceId, subFence, absoluteLeaves, weeklyLeaves);
+                }
+                collectLeaves(fenceId, fence.getNotFence(), absoluteLeaves, weeklyLeaves);
+                break;
+            case TIME:
+                StorableTimeFence timeFence = (StorableTimeFence) fence;
+                long start = timeFence.getStartTime();
+                long stop = timeFence.getStopTime();
+                if (stop <= start) {
+                    break;
+                }
+                switch (timeFence.getTimingType()) {
+                    case StorableTimeFence.ABSOLUTE:
+                        absoluteLeaves.add(new Leaf(fenceId, start, stop));
+                        break;
+                    case StorableTimeFence.DAILY:
+                        addWeeklyLeaves(fenceId, timeFence, StorableTimeFence.ALL_DAYS_OF_WEEK,
+                                weeklyLeaves);
+                        break;
+                    case StorableTimeFence.DAY_OF_WEEK:
+                        addWeeklyLeaves(fenceId, timeFence,
+                                StorableTimeFence.dayOfWeekFlag(timeFence.getDayOfWeek()), weeklyLeaves);
+                        break;
+                    case StorableTimeFence.DAYS_OF_WEEK:
+                        addWeeklyLeaves(fenceId, timeFence, timeFence.getDaysOfWeek(), weeklyLeaves);
+                        break;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Add the interval of a time fence on each of the given days of the week
+     * @param daysOfWeek the flags of the days, as given by {@link StorableTimeFence#dayOfWeekFlag(int)}
+     */
+    private static void addWeeklyLeaves(@NonNull String fenceId, @NonNull StorableTimeFence fence,
+                                        int daysOfWeek,
+                                        @NonNull HashMap<TimeZone, List<Leaf>> weeklyLeaves) {
+        for (int day = 0; day < 7; day++) {
+            if ((daysOfWeek & (1 << day)) != 0) {
+                addWeeklyLeaf(fenceId, fence.getSharedTimeZone(), day * DAY_MILLIS + fence.getStartTime(),
+                        day * DAY_MILLIS + fence.getStopTime(), weeklyLeaves);
+            }
+        }
+    }
+
+    private static void addWeeklyLeaf(@NonNull String fenceId, @Nullable TimeZone timeZone,
+                                      long start, long stop,
+                                      @NonNull HashMap<TimeZone, List<Leaf>> weeklyLeaves) {
+        start = Math.max(0, start);
+        if (stop > WEEK_MILLIS) {
+            // the interval continues at the start of the next week
+            addLeaf(new Leaf(fenceId, 0, Math.min(stop - WEEK_MILLIS, WEEK_MILLIS)), timeZone, weeklyLeaves);
+            stop = WEEK_MILLIS;
+        }
+        if (start < stop) {
+            addLeaf(new Leaf(fenceId, start, stop), timeZone, weeklyLeaves);
+        }
+    }
+
+    /**
+     * Add a leaf to the leaves of a time zone, so that only the time zones that have leaves get a tree
+     */
+    private static void addLeaf(@NonNull Leaf leaf, @Nullable TimeZone timeZone,
+                                @NonNull HashMap<TimeZone, List<Leaf>> weeklyLeaves) {
+        List<Leaf> leaves = weeklyLeaves.get(timeZone);
+        if (leaves == null) {
+            leaves = new ArrayList<>();
+            weeklyLeaves.put(timeZone, leaves);
+        }
+        leaves.add(leaf);
+    }
+
+    /**
+     * Whether a fence has a time fence that can be indexed
+     */
+    private static boolean containsTime(@Nullable StorableFence fence) {
+        if (fence == null) {
+            return false;
+        }
+        switch (fence.getType()) {
+            case META:
+                for (StorableFence subFence : fence.getAndFences()) {
+                    if (containsTime(subFence)) {
+                        return true;
+                    }
+                }
+                for (StorableFence subFence : fence.getOrFences()) {
+                    if (containsTime(subFence)) {
+                        return true;
+                    }
+                }
+                return containsTime(fence.getNotFence());
+            case TIME:
+                int timingType = ((StorableTimeFence) fence).getTimingType();
+                return timingType == StorableTimeFence.ABSOLUTE ||
+                        timingType == StorableTimeFence.DAILY ||
+                        timingType == StorableTimeFence.DAY_OF_WEEK ||
+                        timingType == StorableTimeFence.DAYS_OF_WEEK;
+        }
+        return false;
+    }
+
+    @NonNull
+    private static TimeZone getTimeZone(@Nullable TimeZone timeZone) {
+        return (timeZone != null) ? timeZone : TimeZone.getDefault();
+    }
+
+    /**
+     * Static interval tree. The intervals are sorted by start, and the tree is implicit: the
+     * root of a range is its middle, and each node knows the maximum stop of its subtree.
+     */
+    private static final class IntervalTree {
+        private final long[] mStarts;
+        private final long[] mStops;
+        private final String[] mFenceIds;
+        /** Maximum stop of the subtree of each node */
+        private final long[] mMaxStops;
+        /** Starts and stops of all the intervals, sorted */
+        private final long[] mBoundaries;
+
+        IntervalTree(@NonNull List<Leaf> leaves) {
+            List<Leaf> sortedLeaves = new ArrayList<>(leaves);
+            Collections.sort(sortedLeaves, new Comparator<Leaf>() {
+                @Override
+                public int compare(Leaf leaf1, Leaf leaf2) {
+                    return (leaf1.mStart < leaf2.mStart) ? -1 : ((leaf1.mStart == leaf2.mStart) ? 0 : 1);
+                }
+            });
+
+            int count = sortedLeaves.size();
+            mStarts = new long[count];
+            mStops = new long[count];
+            mFenceIds = new String[count];
+            mMaxStops = new long[count];
+            mBoundaries = new long[2 * count];
+            for (int i = 0; i < count; i++) {
+                Leaf leaf = sortedLeaves.get(i);
+                mStarts[i] = leaf.mStart;
+                mStops[i] = leaf.mStop;
+                mFenceIds[i] = leaf.mFenceId;
+                mBoundaries[2 * i] = leaf.mStart;
+                mBoundaries[2 * i + 1] = leaf.mStop;
+            }
+            Arrays.sort(mBoundaries);
+            computeMaxStops(0, count - 1);
+        }
+
+        private long computeMaxStops(int low, int high) {
+            if (low > high) {
+                return Long.MIN_VALUE;
+            }
+            int middle = (low + high) >>> 1;
+            long maxStop = Math.max(mStops[middle],
+                    Math.max(computeMaxStops(low, middle - 1), computeMaxStops(middle + 1, high)));
+            mMaxStops[middle] = maxStop;
+            return maxStop;
+        }
+
+        boolean isEmpty() {
+            return mStarts.length == 0;
+        }
+
+        void findActive(long time, @NonNull Set<String> fenceIds) {
+            findActive(0, mStarts.length - 1, time, fenceIds);
+        }
+
+        private void findActive(int low, int high, long time, @NonNull Set<String> fenceIds) {
+            if (low > high) {
+                return;
+            }
+            int middle = (low + high) >>> 1;
+            if (mMaxStops[middle] <= time) {
+                // all the intervals of this subtree are over
+                return;
+            }
+            findActive(low, middle - 1, time, fenceIds);
+            if (mStarts[middle] > time) {
+                // this interval and the ones of the right subtree are not started
+                return;
+            }
+            if (mStops[middle] > time) {
+                fenceIds.add(mFenceIds[middle]);
+            }
+            findActive(middle + 1, high, time, fenceIds);
+        }
+
+        /**
+         * Find the first boundary after the given time
+         * @return the boundary, {@link Long#MAX_VALUE} if there is none
+         */
+        long findNextBoundaryAfter(long time) {
+            int low = 0;
+            int high = mBoundaries.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (mBoundaries[middle] <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return (low < mBoundaries.length) ? mBoundaries[low] : Long.MAX_VALUE;
+        }
+    }
+}
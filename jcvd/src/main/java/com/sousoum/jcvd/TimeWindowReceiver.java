@@ -0,0 +1,24 @@
+package com.sousoum.jcvd;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receiver of the alarm that moves the time window of
+ * {@link StorableFenceManager#setTimeWindowHorizon(long)}.
+ */
+public class TimeWindowReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        StorableFenceManager manager = StorableFenceManager.getInstance(context);
+        // keep the receiver alive until the registrations have been submitted
+        final PendingResult pendingResult = goAsync();
+        manager.updateTimeWindow(new Runnable() {
+            @Override
+            public void run() {
+                pendingResult.finish();
+            }
+        });
+    }
+}
@@ -0,0 +1,139 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Package local policy that only registers the fences bounded by an absolute time interval when
+ * their interval opens within a horizon.
+ * The interval of a fence is the interval of its {@link StorableTimeFence#ABSOLUTE} time fence,
+ * the intersection of the intervals of the fences of an 'and' meta fence, or the smallest interval
+ * that contains the intervals of the fences of an 'or' meta fence. Other fences have no interval
+ * and are not handled by this policy.
+ * A policy is created for a given time, it does not move with the time: a new policy should be
+ * created when the time returned by {@link #getNextUpdateTime(FenceStore)} is reached.
+ */
+final class TimeWindowRegistrationPolicy implements RegistrationPolicy {
+
+    private static final int START = 0;
+    private static final int STOP = 1;
+
+    private final long mNow;
+
+    /** End of the window, the intervals that start before are registered */
+    private final long mWindowEnd;
+
+    private final long mHorizon;
+
+    /**
+     * Constructor.
+     * @param horizon the duration, in milliseconds, before the start of its interval during
+     *                which a fence is registered
+     * @param now the current time, in milliseconds since epoch
+     */
+    TimeWindowRegistrationPolicy(long horizon, long now) {
+        mHorizon = horizon;
+        mNow = now;
+        mWindowEnd = (horizon > Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + horizon;
+    }
+
+    @Override
+    public boolean handles(@NonNull StorableFence fence) {
+        return handles(getInterval(fence));
+    }
+
+    @NonNull
+    @Override
+    public Set<String> selectFences(@NonNull FenceStore store) {
+        Set<String> fenceIds = new HashSet<>();
+        for (StorableFence fence : store.getAllFences()) {
+            long[] interval = getInterval(fence);
+            if (interval[START] <= mWindowEnd && interval[STOP] > mNow && handles(interval)) {
+                fenceIds.add(fence.getId());
+            }
+        }
+        return fenceIds;
+    }
+
+    /**
+     * Get the fences whose interval is over: they will never be true again
+     * @param store the store of the synced fences
+     * @return the ids of the expired fences, can not be null
+     */
+    @NonNull
+    List<String> getExpiredFenceIds(@NonNull FenceStore store) {
+        List<String> fenceIds = new ArrayList<>();
+        for (StorableFence fence : store.getAllFences()) {
+            if (getInterval(fence)[STOP] <= mNow) {
+                fenceIds.add(fence.getId());
+            }
+        }
+        return fenceIds;
+    }
+
+    /**
+     * Get the next time at which the selection of this policy changes: a fence enters the window
+     * or a selected fence expires
+     * @param store the store of the synced fences
+     * @return the time in milliseconds since epoch, {@link Long#MAX_VALUE} if the selection will
+     * not change
+     */
+    long getNextUpdateTime(@NonNull FenceStore store) {
+        long nextUpdateTime = Long.MAX_VALUE;
+        for (StorableFence fence : store.getAllFences()) {
+            long[] interval = getInterval(fence);
+            if (interval[START] > mWindowEnd) {
+                nextUpdateTime = Math.min(nextUpdateTime, interval[START] - mHorizon);
+            } else if (interval[STOP] > mNow && interval[STOP] != Long.MAX_VALUE) {
+                nextUpdateTime = Math.min(nextUpdateTime, interval[STOP]);
+            }
+        }
+        return nextUpdateTime;
+    }
+
+    private static boolean handles(@NonNull long[] interval) {
+        return interval[START] != Long.MIN_VALUE || interval[STOP] != Long.MAX_VALUE;
+    }
+
+    /**
+     * Get the absolute time interval out of which a fence can't be true
+     * @param fence a fence
+     * @return the start and the stop of the interval, {@link Long#MIN_VALUE} and
+     * {@link Long#MAX_VALUE} if the fence is not bounded
+     */
+    @NonNull
+    static long[] getInterval(@NonNull StorableFence fence) {
+        switch (fence.getType()) {
+            case META:
+                if (!fence.getAndFences().isEmpty()) {
+                    long[] interval = {Long.MIN_VALUE, Long.MAX_VALUE};
+                    for (StorableFence subFence : fence.getAndFences()) {
+                        long[] subInterval = getInterval(subFence);
+                        interval[START] = Math.max(interval[START], subInterval[START]);
+                        interval[STOP] = Math.min(interval[STOP], subInterval[STOP]);
+                    }
+                    return interval;
+                } else if (!fence.getOrFences().isEmpty()) {
+                    long[] interval = {Long.MAX_VALUE, Long.MIN_VALUE};
+                    for (StorableFence subFence : fence.getOrFences()) {
+                        long[] subInterval = getInterval(subFence);
+                        interval[START] = Math.min(interval[START], subInterval[START]);
+                        interval[STOP] = Math.max(interval[STOP], subInterval[STOP]);
+                    }
+                    return interval;
+                }
+                break;
+            case TIME:
+                StorableTimeFence timeFence = (StorableTimeFence) fence;
+                if (timeFence.getTimingType() == StorableTimeFence.ABSOLUTE) {
+                    return new long[]{timeFence.getStartTime(), timeFence.getStopTime()};
+                }
+                break;
+        }
+        return new long[]{Long.MIN_VALUE, Long.MAX_VALUE};
+    }
+}
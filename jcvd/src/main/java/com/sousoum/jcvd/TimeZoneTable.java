@@ -0,0 +1,42 @@
+package com.sousoum.jcvd;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
+
+/**
+ * Package local table of the time zones of the decoded time fences.
+ * A time fence is stored with the id and the raw offset of its time zone. Instead of creating a
+ * new time zone for each decoded time fence, the decoders get it from this table, so that all the
+ * time fences of a process that use the same time zone share one instance. These shared instances
+ * are not modified: {@link StorableTimeFence#getTimeZone()} only returns copies of them.
+ * This class is thread safe.
+ */
+final class TimeZoneTable {
+
+    /** Interned time zones, indexed by their id */
+    private static final HashMap<String, TimeZone> sTimeZones = new HashMap<>();
+
+    private TimeZoneTable() {
+    }
+
+    /**
+     * Get the time zone that has the given id and raw offset, create it if not already done
+     * @param id the id of the time zone
+     * @param rawOffset the raw offset of the time zone, in milliseconds
+     * @return the time zone, shared with the other callers
+     */
+    @NonNull
+    static TimeZone intern(@NonNull String id, int rawOffset) {
+        synchronized (sTimeZones) {
+            TimeZone timeZone = sTimeZones.get(id);
+            if (timeZone == null || timeZone.getRawOffset() != rawOffset) {
+                timeZone = new SimpleTimeZone(rawOffset, id);
+                sTimeZones.put(id, timeZone);
+            }
+            return timeZone;
+        }
+    }
+}